@@ -0,0 +1,397 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.ProtectionDomain;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Threads for authentication work, with support for virtual threads on Java
+ * runtimes that have them.
+ *
+ * Virtual threads make it cheap to block on the KDC or a directory, but
+ * JAAS login modules and the JDK's Kerberos code hold monitors while they do
+ * I/O, which pins a virtual thread to its carrier thread until the I/O is
+ * done.  The known pinning sections ({@code LoginContext.login}, the SPNego
+ * acceptor and the SPNego initiator) are therefore run through
+ * {@link #callPinning(String, PinningAction) callPinning}, which hands them
+ * to a small pool of platform threads when it is called on a virtual thread,
+ * so the carriers stay free.  On platform threads the section runs directly.
+ *
+ * The size of the platform pool is read from the system property
+ * {@code jaasmine.pinningThreads}; the default is twice the number of
+ * available processors.  Setting the system property
+ * {@code jaasmine.pinningDiagnostics} to {@code true} (or calling
+ * {@link #setPinningDiagnostics(boolean)}) runs the sections directly on the
+ * virtual thread instead and logs each of them, so that pinning can be
+ * observed with {@code -Djdk.tracePinnedThreads=full} or the
+ * {@code jdk.VirtualThreadPinned} JFR event.  This shows whether the
+ * platform pool is still needed on a given Java runtime.
+ *
+ * Every thread made here is created with an access control context of its
+ * own.  Before Java 23, a thread inherits the access control context it is
+ * created in, and with it any Subject bound by {@code Subject.doAs} or
+ * {@code Subject.callAs}, so a pool thread started lazily during a request
+ * would otherwise keep that requester's Subject and delegated credentials
+ * for the rest of its life.
+ *
+ * The virtual thread API is called reflectively so that this library still
+ * runs on Java 11.  Where virtual threads are not available,
+ * {@link #newExecutor(String, int, int, boolean)} makes platform threads.
+ *
+ * This class has a configurable commons-logging based logger named
+ * {@code com.logiclander.jaasmine.AuthenticationThreads}.
+ */
+public final class AuthenticationThreads {
+
+	/**
+	 * A section of authentication work that may pin a virtual thread.
+	 *
+	 * @param <T> the result type.
+	 * @param <E> the checked exception type.
+	 */
+	public interface PinningAction<T, E extends Exception> {
+
+		/**
+		 * @return the result.
+		 * @throws E if the work fails.
+		 */
+		T run() throws E;
+	}
+
+	private static final Log logger =
+			LogFactory.getLog(AuthenticationThreads.class);
+
+	private static final MethodHandle IS_VIRTUAL;
+
+	private static final Method OF_VIRTUAL;
+
+	private static final Method NAME;
+
+	private static final Method FACTORY;
+
+	static {
+
+		MethodHandle isVirtual = null;
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+
+		try {
+
+			isVirtual = MethodHandles.publicLookup().findVirtual(Thread.class,
+					"isVirtual", MethodType.methodType(boolean.class));
+
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+
+			// Java 19 and 20 have the methods as a preview API, which
+			// throws when called unless --enable-preview is set.  Build a
+			// thread to be sure.
+			((ThreadFactory) factory.invoke(ofVirtual.invoke(null)))
+					.newThread(() -> { });
+
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+
+			// Java 18 or earlier, or Java 19 or 20 without --enable-preview.
+			isVirtual = null;
+			ofVirtual = null;
+		}
+
+		IS_VIRTUAL = isVirtual;
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+	}
+
+	/** The context threads are created in: no Subject, no domain combiner. */
+	private static final AccessControlContext THREAD_CREATION_CONTEXT =
+			new AccessControlContext(new ProtectionDomain[0]);
+
+	private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+	private static final AtomicLong routedCount = new AtomicLong();
+
+	private static volatile boolean pinningDiagnostics =
+			Boolean.getBoolean("jaasmine.pinningDiagnostics");
+
+	private AuthenticationThreads() {
+		// Static methods only.
+	}
+
+	/**
+	 * @return true if the Java runtime has virtual threads.
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * @return true if the current thread is a virtual thread.
+	 */
+	public static boolean isVirtualThread() {
+
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+
+		try {
+			return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+		} catch (Throwable ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates an executor for authentication work.
+	 *
+	 * With virtual threads, each task gets its own virtual thread and at most
+	 * {@code threads + queueSize} tasks are admitted at once.  Otherwise the
+	 * executor has {@code threads} daemon platform threads and a queue of
+	 * {@code queueSize} tasks.  Either way, tasks beyond the limit are
+	 * rejected with a {@link java.util.concurrent.RejectedExecutionException}.
+	 *
+	 * @param name the prefix of the thread names.
+	 * @param threads the number of tasks that run at once on platform threads.
+	 * @param queueSize the number of tasks that can wait for a platform
+	 * thread.
+	 * @param virtual true to use virtual threads if the Java runtime has them.
+	 * @return a new ExecutorService.  The caller shuts it down.
+	 */
+	public static ExecutorService newExecutor(String name, int threads,
+			int queueSize, boolean virtual) {
+
+		if (threads <= 0 || queueSize <= 0) {
+			throw new IllegalArgumentException(
+				"threads and queueSize must be positive"
+			);
+		}
+
+		String prefix = String.format("%s-%d-", name,
+				POOL_NUMBER.incrementAndGet());
+
+		if (virtual && isVirtualThreadSupported()) {
+			return new BoundedVirtualThreadExecutor(
+					newVirtualThreadFactory(prefix), threads + queueSize);
+		}
+
+		if (virtual && logger.isInfoEnabled()) {
+			logger.info(String.format("Virtual threads are not available, "
+					+ "using %d platform threads for %s", threads, name));
+		}
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				newPlatformThreadFactory(prefix),
+				new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Creates a factory of daemon platform threads that do not inherit the
+	 * Subject, or the access control context, of the code that starts them.
+	 *
+	 * @param prefix the prefix of the thread names, which are numbered.
+	 * @return a new ThreadFactory.
+	 */
+	public static ThreadFactory newThreadFactory(String prefix) {
+		return newPlatformThreadFactory(prefix);
+	}
+
+	/**
+	 * Creates a scheduler with one daemon platform thread, for timeouts of
+	 * authentication work.  Cancelled tasks are removed at once.
+	 *
+	 * @param name the prefix of the thread name.
+	 * @return a new ScheduledExecutorService.  The caller shuts it down.
+	 */
+	public static ScheduledExecutorService newScheduler(String name) {
+
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+				1, newPlatformThreadFactory(String.format("%s-%d-", name,
+						POOL_NUMBER.incrementAndGet())));
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
+	/**
+	 * Runs a section of work that may pin a virtual thread.  On a virtual
+	 * thread it runs on the platform pool while the virtual thread waits
+	 * unpinned, unless pinning diagnostics are on.  On a platform thread it
+	 * runs directly.
+	 *
+	 * @param <T> the result type.
+	 * @param <E> the checked exception type.
+	 * @param section the name of the section, for diagnostics.
+	 * @param action the work.
+	 * @return the result of the work.
+	 * @throws E if the work fails.
+	 */
+	public static <T, E extends Exception> T callPinning(String section,
+			PinningAction<T, E> action) throws E {
+
+		if (!isVirtualThread()) {
+			return action.run();
+		}
+
+		if (pinningDiagnostics) {
+			if (logger.isInfoEnabled()) {
+				logger.info(String.format("Running %s on virtual thread %s",
+						section, Thread.currentThread()));
+			}
+			return action.run();
+		}
+
+		routedCount.incrementAndGet();
+		Future<T> result = PinningPoolHolder.POOL.submit(action::run);
+
+		boolean interrupted = false;
+		try {
+
+			while (true) {
+				try {
+					return result.get();
+				} catch (InterruptedException ex) {
+					// The section cannot be abandoned half way, so wait for
+					// it and restore the interrupt afterwards.
+					interrupted = true;
+				}
+			}
+
+		} catch (ExecutionException ex) {
+
+			return AuthenticationThreads.<T, E>rethrow(ex.getCause());
+
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T, E extends Exception> T rethrow(Throwable cause)
+			throws E {
+
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		// The action declares E and nothing else that is checked.
+		throw (E) cause;
+	}
+
+	/**
+	 * Turns pinning diagnostics on or off.
+	 *
+	 * @param on true to run pinning sections directly on virtual threads and
+	 * log them.
+	 */
+	public static void setPinningDiagnostics(boolean on) {
+		pinningDiagnostics = on;
+	}
+
+	/**
+	 * @return true if pinning diagnostics are on.
+	 */
+	public static boolean isPinningDiagnostics() {
+		return pinningDiagnostics;
+	}
+
+	/**
+	 * @return the number of pinning sections handed from a virtual thread to
+	 * the platform pool.
+	 */
+	public static long getRoutedCount() {
+		return routedCount.get();
+	}
+
+	private static ThreadFactory newVirtualThreadFactory(String prefix) {
+
+		final ThreadFactory factory;
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 1L);
+			factory = (ThreadFactory) FACTORY.invoke(builder);
+		} catch (ReflectiveOperationException ex) {
+			throw new IllegalStateException(
+					"Could not create virtual threads", ex);
+		}
+
+		return r -> createThread(() -> factory.newThread(r));
+	}
+
+	private static ThreadFactory newPlatformThreadFactory(final String prefix) {
+
+		return new ThreadFactory() {
+
+			private final AtomicInteger threadNumber = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				return createThread(() -> {
+					Thread t = new Thread(r,
+							prefix + threadNumber.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+			}
+		};
+	}
+
+	/**
+	 * Creates a thread in {@link #THREAD_CREATION_CONTEXT}, so that it does
+	 * not inherit the caller's access control context.
+	 */
+	private static Thread createThread(PrivilegedAction<Thread> newThread) {
+		return AccessController.doPrivileged(newThread,
+				THREAD_CREATION_CONTEXT);
+	}
+
+	private static final class PinningPoolHolder {
+
+		static final ExecutorService POOL = Executors.newFixedThreadPool(
+				Integer.getInteger("jaasmine.pinningThreads",
+						2 * Runtime.getRuntime().availableProcessors()),
+				newPlatformThreadFactory("jaasmine-pinning-"));
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each task on a new thread from a ThreadFactory, normally one that
+ * makes virtual threads, and rejects tasks while a given number are already
+ * running.
+ */
+final class BoundedVirtualThreadExecutor extends AbstractExecutorService {
+
+	private final ThreadFactory threadFactory;
+
+	private final Semaphore permits;
+
+	private final Set<Thread> running = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean shutdown;
+
+	/**
+	 * @param threadFactory the ThreadFactory.
+	 * @param maxTasks the number of tasks that may run at once.
+	 */
+	BoundedVirtualThreadExecutor(ThreadFactory threadFactory, int maxTasks) {
+		this.threadFactory = threadFactory;
+		this.permits = new Semaphore(maxTasks);
+	}
+
+	@Override
+	public void execute(final Runnable task) {
+
+		if (shutdown) {
+			throw new RejectedExecutionException("Shut down");
+		}
+		if (!permits.tryAcquire()) {
+			throw new RejectedExecutionException("Too many tasks");
+		}
+
+		Thread thread;
+		try {
+
+			thread = threadFactory.newThread(() -> {
+				try {
+					task.run();
+				} finally {
+					running.remove(Thread.currentThread());
+					permits.release();
+					signalIfTerminated();
+				}
+			});
+
+		} catch (RuntimeException ex) {
+			permits.release();
+			throw ex;
+		}
+
+		running.add(thread);
+		thread.start();
+	}
+
+	private void signalIfTerminated() {
+		if (isTerminated()) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		signalIfTerminated();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown();
+		for (Thread thread : running) {
+			thread.interrupt();
+		}
+		return new ArrayList<>();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown && running.isEmpty();
+	}
+
+	@Override
+	public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!isTerminated()) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stops calls to an authentication backend, such as a KDC or a directory,
+ * while it is failing, so that callers fail at once instead of each waiting
+ * for its own network timeout.
+ *
+ * The breaker starts closed and records the outcome of the last calls in a
+ * sliding window.  Calls that take longer than the slow call threshold count
+ * as failures.  When the share of failures in the window reaches the failure
+ * rate threshold, the breaker opens and refuses calls.  After the open
+ * duration it is half open and lets a few probe calls through: if they all
+ * succeed the breaker closes, and if one fails it opens again.
+ *
+ * State changes are logged and passed to registered {@link Listener}s.
+ *
+ * Instances of this class have a configurable commons-logging based logger
+ * named {@code com.logiclander.jaasmine.CircuitBreaker}.
+ */
+public class CircuitBreaker {
+
+	/** The states of a CircuitBreaker. */
+	public enum State {
+
+		/** Calls are let through and their outcomes recorded. */
+		CLOSED,
+
+		/** Calls are refused. */
+		OPEN,
+
+		/** A few probe calls are let through. */
+		HALF_OPEN
+	}
+
+	/**
+	 * Notified when a CircuitBreaker changes state.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param breaker the CircuitBreaker.
+		 * @param from the previous state.
+		 * @param to the new state.
+		 */
+		void stateChanged(CircuitBreaker breaker, State from, State to);
+	}
+
+	/** The default number of calls in the sliding window. */
+	public static final int DEFAULT_WINDOW_SIZE = 20;
+
+	/** The default number of calls recorded before the breaker can open. */
+	public static final int DEFAULT_MINIMUM_CALLS = 10;
+
+	/** The default number of milliseconds after which a call is slow. */
+	public static final long DEFAULT_SLOW_CALL_MILLIS = 5000;
+
+	/** The default number of milliseconds the breaker stays open. */
+	public static final long DEFAULT_OPEN_MILLIS = 30000;
+
+	/** The default number of probe calls while half open. */
+	public static final int DEFAULT_PROBE_CALLS = 3;
+
+	private static final Log logger = LogFactory.getLog(CircuitBreaker.class);
+
+	private final String name;
+
+	private final int failureRatePercent;
+
+	private final int minimumCalls;
+
+	private final long slowCallNanos;
+
+	private final long openNanos;
+
+	private final int probeCalls;
+
+	private final boolean[] window;
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private State state = State.CLOSED;
+
+	private int windowNext;
+
+	private int windowCalls;
+
+	private int windowFailures;
+
+	private long openUntil;
+
+	private int probesStarted;
+
+	private int probesSucceeded;
+
+	/**
+	 * Constructs a CircuitBreaker with the default window, slow call
+	 * threshold, open duration and probe calls.
+	 *
+	 * @param name the name of the backend, used in log messages.
+	 * @param failureRatePercent the percentage of failed calls in the window
+	 * at which the breaker opens.
+	 */
+	public CircuitBreaker(String name, int failureRatePercent) {
+		this(name, failureRatePercent, DEFAULT_WINDOW_SIZE,
+				DEFAULT_MINIMUM_CALLS, DEFAULT_SLOW_CALL_MILLIS,
+				DEFAULT_OPEN_MILLIS, DEFAULT_PROBE_CALLS);
+	}
+
+	/**
+	 * Constructs a CircuitBreaker.
+	 *
+	 * @param name the name of the backend, used in log messages.
+	 * @param failureRatePercent the percentage of failed calls in the window
+	 * at which the breaker opens.
+	 * @param windowSize the number of calls in the sliding window.
+	 * @param minimumCalls the number of calls recorded before the breaker can
+	 * open.
+	 * @param slowCallMillis the number of milliseconds after which a call
+	 * counts as failed.
+	 * @param openMillis the number of milliseconds the breaker stays open
+	 * before probing.
+	 * @param probeCalls the number of probe calls that must succeed to close
+	 * the breaker.
+	 */
+	public CircuitBreaker(String name, int failureRatePercent, int windowSize,
+			int minimumCalls, long slowCallMillis, long openMillis,
+			int probeCalls) {
+
+		if (failureRatePercent <= 0 || failureRatePercent > 100) {
+			throw new IllegalArgumentException(
+				"failureRatePercent must be between 1 and 100"
+			);
+		}
+		if (windowSize <= 0 || minimumCalls <= 0 || minimumCalls > windowSize
+				|| slowCallMillis <= 0 || openMillis <= 0 || probeCalls <= 0) {
+			throw new IllegalArgumentException("windowSize, slowCallMillis, "
+				+ "openMillis and probeCalls must be positive and minimumCalls "
+				+ "must be between 1 and windowSize");
+		}
+
+		this.name = name;
+		this.failureRatePercent = failureRatePercent;
+		this.minimumCalls = minimumCalls;
+		this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+		this.probeCalls = probeCalls;
+		this.window = new boolean[windowSize];
+	}
+
+	/**
+	 * Asks to make a call to the backend.  Every call that is let through
+	 * must be followed by {@link #onSuccess(long)} or
+	 * {@link #onFailure(long)}.
+	 *
+	 * @return true if the call may be made, false if the breaker refuses it.
+	 */
+	public boolean tryAcquire() {
+
+		State from;
+		synchronized (this) {
+
+			from = state;
+			if (state == State.OPEN && System.nanoTime() - openUntil >= 0) {
+				moveTo(State.HALF_OPEN);
+			}
+
+			if (state == State.CLOSED
+					|| (state == State.HALF_OPEN && probesStarted < probeCalls)) {
+
+				if (state == State.HALF_OPEN) {
+					probesStarted++;
+				}
+				return notifyIfChanged(from, true);
+			}
+		}
+
+		rejectedCount.incrementAndGet();
+		return notifyIfChanged(from, false);
+	}
+
+	/**
+	 * Records a call that the backend answered.  It counts as a failure if it
+	 * was slow.
+	 *
+	 * @param elapsedNanos the duration of the call.
+	 */
+	public void onSuccess(long elapsedNanos) {
+		record(elapsedNanos < slowCallNanos);
+	}
+
+	/**
+	 * Records a call that failed because of the backend.
+	 *
+	 * @param elapsedNanos the duration of the call.
+	 */
+	public void onFailure(long elapsedNanos) {
+		record(false);
+	}
+
+	private void record(boolean succeeded) {
+
+		State from;
+		synchronized (this) {
+
+			from = state;
+			switch (state) {
+			case CLOSED:
+				recordInWindow(succeeded);
+				if (windowCalls >= minimumCalls && windowFailures * 100
+						>= failureRatePercent * windowCalls) {
+					moveTo(State.OPEN);
+				}
+				break;
+			case HALF_OPEN:
+				if (!succeeded) {
+					moveTo(State.OPEN);
+				} else if (++probesSucceeded >= probeCalls) {
+					moveTo(State.CLOSED);
+				}
+				break;
+			default:
+				// Calls that started before the breaker opened.
+				break;
+			}
+		}
+
+		notifyIfChanged(from, succeeded);
+	}
+
+	private void recordInWindow(boolean succeeded) {
+
+		if (windowCalls == window.length) {
+			if (!window[windowNext]) {
+				windowFailures--;
+			}
+		} else {
+			windowCalls++;
+		}
+
+		window[windowNext] = succeeded;
+		if (!succeeded) {
+			windowFailures++;
+		}
+		windowNext = (windowNext + 1) % window.length;
+	}
+
+	private void moveTo(State to) {
+
+		state = to;
+		probesStarted = 0;
+		probesSucceeded = 0;
+
+		if (to == State.OPEN) {
+			openUntil = System.nanoTime() + openNanos;
+		} else if (to == State.CLOSED) {
+			windowNext = 0;
+			windowCalls = 0;
+			windowFailures = 0;
+		}
+	}
+
+	/**
+	 * Logs and notifies the listeners outside the lock if the state changed.
+	 */
+	private boolean notifyIfChanged(State from, boolean result) {
+
+		State to = getState();
+		if (from == to) {
+			return result;
+		}
+
+		if (logger.isWarnEnabled()) {
+			logger.warn(String.format("Circuit breaker for %s is %s, was %s",
+					name, to, from));
+		}
+
+		for (Listener listener : listeners) {
+			try {
+				listener.stateChanged(this, from, to);
+			} catch (RuntimeException ex) {
+				logger.warn("Circuit breaker listener failed", ex);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param listener the Listener to notify of state changes.
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener the Listener to stop notifying.
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return the name of the backend.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the current State.
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the percentage of failed calls in the sliding window.
+	 */
+	public synchronized int getFailureRatePercent() {
+		return windowCalls == 0 ? 0 : windowFailures * 100 / windowCalls;
+	}
+
+	/**
+	 * @return the number of calls the breaker refused.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s for %s: %s, failure rate = %d%%, "
+				+ "rejected = %d", getClass().getSimpleName(), name,
+				getState(), getFailureRatePercent(), getRejectedCount());
+	}
+}
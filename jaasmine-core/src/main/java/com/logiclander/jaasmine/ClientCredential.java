@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.util.Date;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+
+import com.logiclander.jaasmine.authentication.AuthenticationService;
+
+/**
+ * A client identity whose tickets are kept current by a
+ * {@link ClientCredentialRenewer}.
+ *
+ * The logged in Subject and the {@link SPNegoClient} made from it are
+ * replaced together when the tickets are renewed, so
+ * {@link #getSPNegoClient()} always returns a client for the current
+ * tickets and never waits for the KDC.
+ */
+public final class ClientCredential {
+
+	private final String name;
+
+	private final AuthenticationService authnService;
+
+	private final String userId;
+
+	private final char[] password;
+
+	private volatile State state;
+
+	private volatile ScheduledFuture<?> renewal;
+
+	private volatile boolean registered = true;
+
+	ClientCredential(String name, AuthenticationService authnService,
+			String userId, char[] password) {
+		this.name = name;
+		this.authnService = authnService;
+		this.userId = userId;
+		this.password = password == null ? null : password.clone();
+	}
+
+	/**
+	 * @return the name the identity was registered with.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the SPNegoClient for the current tickets.
+	 */
+	public SPNegoClient getSPNegoClient() {
+		return state.spnegoClient;
+	}
+
+	/**
+	 * @return the logged in Subject holding the current tickets.
+	 */
+	public Subject getSubject() {
+		return state.subject;
+	}
+
+	/**
+	 * @return when the current TGT expires, or {@code null} if it is not
+	 * known.
+	 */
+	public Date getEndTime() {
+		KerberosTicket tgt = state.tgt;
+		return tgt == null ? null : tgt.getEndTime();
+	}
+
+	/**
+	 * @return until when the current TGT can be renewed, or {@code null} if
+	 * it is not renewable.
+	 */
+	public Date getRenewTill() {
+		KerberosTicket tgt = state.tgt;
+		return tgt == null || !tgt.isRenewable() ? null : tgt.getRenewTill();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s: TGT ends %tc", getClass().getSimpleName(),
+				name, getEndTime());
+	}
+
+	Subject login() {
+		return authnService.login(userId,
+				password == null ? null : password.clone());
+	}
+
+	State getState() {
+		return state;
+	}
+
+	void setState(State state) {
+		this.state = state;
+	}
+
+	ScheduledFuture<?> getRenewal() {
+		return renewal;
+	}
+
+	void setRenewal(ScheduledFuture<?> renewal) {
+		this.renewal = renewal;
+	}
+
+	boolean isRegistered() {
+		return registered;
+	}
+
+	void setRegistered(boolean registered) {
+		this.registered = registered;
+	}
+
+	/**
+	 * A Subject, its TGT and the SPNegoClient made from them.
+	 */
+	static final class State {
+
+		final Subject subject;
+
+		final KerberosTicket tgt;
+
+		final SPNegoClient spnegoClient;
+
+		State(Subject subject, SPNegoClient spnegoClient) {
+			this.subject = subject;
+			this.tgt = findTgt(subject);
+			this.spnegoClient = spnegoClient;
+		}
+
+		/**
+		 * @return the TGT in the Subject, or {@code null} if there is none.
+		 */
+		static KerberosTicket findTgt(Subject subject) {
+
+			for (KerberosTicket ticket :
+					subject.getPrivateCredentials(KerberosTicket.class)) {
+
+				if (ticket.getServer() != null &&
+						ticket.getServer().getName().startsWith("krbtgt/")) {
+					return ticket;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.login.LoginException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.logiclander.jaasmine.authentication.KeyTabAuthenticationService;
+
+/**
+ * Keeps a logged in client credential for every principal of a keytab.
+ *
+ * The principals are read from the keytab once, when the pool is opened,
+ * and each is logged in with {@code Krb5LoginModule} without an entry in the
+ * JAAS configuration file.  The credentials are registered with a
+ * {@link ClientCredentialRenewer}, so their tickets are renewed in the
+ * background.  Looking up the {@link SPNegoClient} of a principal is a single
+ * hash map lookup.
+ *
+ * A principal that cannot log in when the pool is opened is logged and left
+ * out of the pool.
+ *
+ * Instances of this class have a configurable commons-logging based logger
+ * named {@code com.logiclander.jaasmine.ClientCredentialPool}.
+ */
+public class ClientCredentialPool implements Closeable {
+
+	private static final Log logger =
+			LogFactory.getLog(ClientCredentialPool.class);
+
+	private final File keyTab;
+
+	private final ClientCredentialRenewer renewer;
+
+	private final boolean ownRenewer;
+
+	private volatile Map<String, ClientCredential> credentials =
+			Collections.emptyMap();
+
+	/**
+	 * Constructs a ClientCredentialPool with its own ClientCredentialRenewer,
+	 * which is closed with the pool.
+	 *
+	 * @param keyTab the keytab file.
+	 */
+	public ClientCredentialPool(File keyTab) {
+		this(keyTab, new ClientCredentialRenewer(), true);
+	}
+
+	/**
+	 * Constructs a ClientCredentialPool.
+	 *
+	 * @param keyTab the keytab file.
+	 * @param renewer the ClientCredentialRenewer that renews the credentials.
+	 * It is not closed with the pool.
+	 */
+	public ClientCredentialPool(File keyTab, ClientCredentialRenewer renewer) {
+		this(keyTab, renewer, false);
+	}
+
+	private ClientCredentialPool(File keyTab, ClientCredentialRenewer renewer,
+			boolean ownRenewer) {
+		this.keyTab = keyTab;
+		this.renewer = renewer;
+		this.ownRenewer = ownRenewer;
+	}
+
+	/**
+	 * Reads the principals of the keytab and logs each of them in.  Opening
+	 * the pool again, for example after the keytab is replaced, logs the
+	 * principals in anew and stops renewing the credentials of the earlier
+	 * opening.
+	 *
+	 * @throws IOException if the keytab cannot be read.
+	 */
+	public synchronized void open() throws IOException {
+
+		Set<String> principals = KeyTabPrincipals.read(keyTab);
+		Map<String, ClientCredential> loggedIn = new LinkedHashMap<>();
+
+		for (String principal : principals) {
+
+			try {
+
+				loggedIn.put(principal, renewer.register(principal,
+						new KeyTabAuthenticationService(keyTab, principal),
+						null, null));
+
+			} catch (LoginException ex) {
+
+				if (logger.isWarnEnabled()) {
+					logger.warn(String.format("Could not log in %s from %s: %s",
+							principal, keyTab, ex.getMessage()));
+				}
+			}
+		}
+
+		Map<String, ClientCredential> previous = credentials;
+		credentials = Collections.unmodifiableMap(loggedIn);
+
+		for (ClientCredential credential : previous.values()) {
+			renewer.unregister(credential);
+		}
+
+		if (logger.isInfoEnabled()) {
+			logger.info(String.format("Logged in %d of %d principals from %s",
+					loggedIn.size(), principals.size(), keyTab));
+		}
+	}
+
+	/**
+	 * @param principal the name of a principal in the keytab, including the
+	 * realm.
+	 * @return the ClientCredential of the principal.
+	 * @throws IllegalArgumentException if the principal is not in the pool.
+	 */
+	public ClientCredential getClientCredential(String principal) {
+
+		ClientCredential credential = credentials.get(principal);
+		if (credential == null) {
+			throw new IllegalArgumentException(String.format(
+					"No credential for %s", principal));
+		}
+		return credential;
+	}
+
+	/**
+	 * @param principal the name of a principal in the keytab, including the
+	 * realm.
+	 * @return the SPNegoClient for the current tickets of the principal.
+	 * @throws IllegalArgumentException if the principal is not in the pool.
+	 */
+	public SPNegoClient getSPNegoClient(String principal) {
+		return getClientCredential(principal).getSPNegoClient();
+	}
+
+	/**
+	 * @return the names of the principals in the pool.
+	 */
+	public Set<String> getPrincipals() {
+		return credentials.keySet();
+	}
+
+	/**
+	 * Stops renewing the credentials.  SPNegoClients already handed out stay
+	 * usable until their tickets expire.
+	 */
+	@Override
+	public synchronized void close() {
+
+		for (ClientCredential credential : credentials.values()) {
+			renewer.unregister(credential);
+		}
+		credentials = Collections.emptyMap();
+
+		if (ownRenewer) {
+			renewer.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s for %s: principals = %d",
+				getClass().getSimpleName(), keyTab, credentials.size());
+	}
+}
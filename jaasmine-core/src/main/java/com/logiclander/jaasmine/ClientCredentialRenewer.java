@@ -0,0 +1,353 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.io.Closeable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.RefreshFailedException;
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.LoginException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ietf.jgss.GSSException;
+
+import com.logiclander.jaasmine.authentication.AuthenticationService;
+
+/**
+ * Keeps the tickets of client identities current in the background.
+ *
+ * Each registered identity is logged in once by
+ * {@link #register(String, AuthenticationService, String, char[]) register}.
+ * When the renew fraction of its TGT lifetime has passed (less a random
+ * jitter of up to 10%), the TGT is renewed with the KDC if it is renewable
+ * and its renew-till time allows, or the identity logs in again otherwise.
+ * A new {@link SPNegoClient} is then made, the service tickets of the SPNs
+ * used with the old client are obtained for it, and it is published in the
+ * {@link ClientCredential}.  Token generation keeps using the old client
+ * until then and never waits for the KDC.
+ *
+ * A failed renewal is retried every 30 seconds.
+ *
+ * Renewals run on a single daemon thread that is stopped by
+ * {@link #close() close}.
+ *
+ * Instances of this class have a configurable commons-logging based logger
+ * named {@code com.logiclander.jaasmine.ClientCredentialRenewer}.
+ */
+public class ClientCredentialRenewer implements Closeable {
+
+	/** The default fraction of the TGT lifetime after which it is renewed. */
+	public static final double DEFAULT_RENEW_FRACTION = 0.8;
+
+	/** The number of seconds between logins when the TGT is not known. */
+	private static final long DEFAULT_LIFETIME_SECONDS = 3600;
+
+	/** The number of seconds to wait before retrying a failed renewal. */
+	private static final long RETRY_SECONDS = 30;
+
+	private static final double JITTER_FRACTION = 0.1;
+
+	private static final Log logger =
+			LogFactory.getLog(ClientCredentialRenewer.class);
+
+	private final double renewFraction;
+
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	private final AtomicLong renewalCount = new AtomicLong();
+
+	private final AtomicLong loginCount = new AtomicLong();
+
+	private final AtomicLong failureCount = new AtomicLong();
+
+	/**
+	 * Constructs a new ClientCredentialRenewer that renews tickets after
+	 * {@link #DEFAULT_RENEW_FRACTION} of their lifetime.
+	 */
+	public ClientCredentialRenewer() {
+		this(DEFAULT_RENEW_FRACTION);
+	}
+
+	/**
+	 * Constructs a new ClientCredentialRenewer.
+	 *
+	 * @param renewFraction the fraction of the TGT lifetime after which it is
+	 * renewed, greater than 0 and less than 1.
+	 */
+	public ClientCredentialRenewer(double renewFraction) {
+
+		if (!(renewFraction > 0 && renewFraction < 1)) {
+			throw new IllegalArgumentException(
+				"renewFraction must be between 0 and 1"
+			);
+		}
+
+		this.renewFraction = renewFraction;
+		this.scheduler = new ScheduledThreadPoolExecutor(1,
+				AuthenticationThreads.newThreadFactory(
+						"jaasmine-credential-renewer-"));
+		this.scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Logs in a client identity and keeps its tickets current.
+	 *
+	 * @param name a name for the identity, used in log messages.
+	 * @param authnService the AuthenticationService that logs the identity
+	 * in.
+	 * @param userId the user id passed to the AuthenticationService, or
+	 * {@code null} for keytab logins.
+	 * @param password the password passed to the AuthenticationService, or
+	 * {@code null} for keytab logins.  A copy is kept for later logins.
+	 * @return the ClientCredential of the identity.
+	 * @throws LoginException if the identity cannot log in.
+	 */
+	public ClientCredential register(String name,
+			AuthenticationService authnService, String userId,
+			char[] password) throws LoginException {
+
+		ClientCredential credential = new ClientCredential(name, authnService,
+				userId, password);
+
+		try {
+			credential.setState(newState(credential, login(credential)));
+		} catch (LoginException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			LoginException le = new LoginException(String.format(
+					"Could not create a credential for %s", name));
+			le.initCause(ex);
+			throw le;
+		}
+
+		schedule(credential);
+		return credential;
+	}
+
+	/**
+	 * Stops renewing the tickets of a client identity.  Its current
+	 * SPNegoClient stays usable until the tickets expire.
+	 *
+	 * @param credential the ClientCredential.
+	 */
+	public void unregister(ClientCredential credential) {
+
+		credential.setRegistered(false);
+		ScheduledFuture<?> renewal = credential.getRenewal();
+		if (renewal != null) {
+			renewal.cancel(false);
+		}
+	}
+
+	/**
+	 * Stops renewing tickets.
+	 */
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * @return the number of TGTs renewed with the KDC.
+	 */
+	public long getRenewalCount() {
+		return renewalCount.get();
+	}
+
+	/**
+	 * @return the number of logins, including the first login of each
+	 * identity.
+	 */
+	public long getLoginCount() {
+		return loginCount.get();
+	}
+
+	/**
+	 * @return the number of renewals that failed.
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"%s: renewals = %d, logins = %d, failures = %d",
+			getClass().getSimpleName(), getRenewalCount(), getLoginCount(),
+			getFailureCount());
+	}
+
+	private void schedule(ClientCredential credential) {
+
+		KerberosTicket tgt = credential.getState().tgt;
+		long now = System.currentTimeMillis();
+		long start = now;
+		long end = now + TimeUnit.SECONDS.toMillis(DEFAULT_LIFETIME_SECONDS);
+
+		if (tgt != null && tgt.getEndTime() != null) {
+			if (tgt.getStartTime() != null) {
+				start = tgt.getStartTime().getTime();
+			}
+			end = tgt.getEndTime().getTime();
+		}
+
+		long lifetime = Math.max(end - start, 0);
+		long jitter = (long) (lifetime * JITTER_FRACTION *
+				ThreadLocalRandom.current().nextDouble());
+
+		scheduleAt(credential, start + (long) (lifetime * renewFraction)
+				- jitter);
+	}
+
+	private void scheduleAt(final ClientCredential credential, long time) {
+
+		if (scheduler.isShutdown() || !credential.isRegistered()) {
+			return;
+		}
+
+		long delay = Math.max(time - System.currentTimeMillis(), 0);
+		credential.setRenewal(scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				renew(credential);
+			}
+
+		}, delay, TimeUnit.MILLISECONDS));
+
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Renewing %s in %d seconds",
+					credential.getName(),
+					TimeUnit.MILLISECONDS.toSeconds(delay)));
+		}
+	}
+
+	private void renew(ClientCredential credential) {
+
+		ClientCredential.State old = credential.getState();
+
+		try {
+
+			Subject subject = old.subject;
+			if (!refresh(credential, old.tgt)) {
+				subject = login(credential);
+			}
+
+			ClientCredential.State current = newState(credential, subject);
+			prefetch(credential, current.spnegoClient,
+					old.spnegoClient);
+			credential.setState(current);
+
+			schedule(credential);
+
+		} catch (Exception ex) {
+
+			failureCount.incrementAndGet();
+
+			if (logger.isWarnEnabled()) {
+				logger.warn(String.format(
+						"Could not renew %s, retrying in %d seconds: %s",
+						credential.getName(), RETRY_SECONDS, ex.getMessage()));
+			}
+
+			scheduleAt(credential, System.currentTimeMillis() +
+					TimeUnit.SECONDS.toMillis(RETRY_SECONDS));
+		}
+	}
+
+	/**
+	 * Renews the TGT with the KDC if it is renewable past its end time.
+	 *
+	 * @return true if the TGT was renewed.
+	 */
+	private boolean refresh(ClientCredential credential, KerberosTicket tgt) {
+
+		if (tgt == null || !tgt.isRenewable() || tgt.getRenewTill() == null ||
+				!tgt.getRenewTill().after(tgt.getEndTime())) {
+			return false;
+		}
+
+		try {
+
+			tgt.refresh();
+			renewalCount.incrementAndGet();
+			return true;
+
+		} catch (RefreshFailedException ex) {
+
+			if (logger.isDebugEnabled()) {
+				logger.debug(String.format("Could not renew the TGT of %s: %s",
+						credential.getName(), ex.getMessage()));
+			}
+			return false;
+		}
+	}
+
+	private Subject login(ClientCredential credential) throws LoginException {
+
+		Subject subject = credential.login();
+		if (subject == null) {
+			throw new LoginException(String.format("Login failed for %s",
+					credential.getName()));
+		}
+
+		loginCount.incrementAndGet();
+		return subject;
+	}
+
+	private ClientCredential.State newState(ClientCredential credential,
+			Subject subject) throws Exception {
+		return new ClientCredential.State(subject,
+				new SPNegoClient(subject, AuthenticationType.KRB5));
+	}
+
+	/**
+	 * Obtains service tickets for the SPNs the old client was used with, so
+	 * that the first tokens made with the new client do not wait for the KDC.
+	 */
+	private void prefetch(ClientCredential credential, SPNegoClient current,
+			SPNegoClient old) throws GSSException {
+
+		current.setCredentialDelegationState(
+				old.getCredentialDelegationState());
+		current.setMutualAuthenticationState(
+				old.getMutualAuthenticationState());
+
+		for (String spn : old.getTargetSPNs()) {
+
+			try {
+
+				current.prefetchServiceTicket(spn);
+
+			} catch (Exception ex) {
+
+				if (logger.isDebugEnabled()) {
+					logger.debug(String.format(
+							"Could not prefetch %s for %s: %s", spn,
+							credential.getName(), ex.getMessage()));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import org.ietf.jgss.GSSException;
+
+/**
+ * Thrown when a token is rejected by {@link SPNegoTokenValidator} before it
+ * reaches the acceptor.
+ */
+public class InvalidSPNegoTokenException extends GSSException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final SPNegoTokenType tokenType;
+
+	/**
+	 * @param tokenType the type of the rejected token.
+	 */
+	public InvalidSPNegoTokenException(SPNegoTokenType tokenType) {
+		super(GSSException.DEFECTIVE_TOKEN, 0,
+				String.format("%s token rejected", tokenType));
+		this.tokenType = tokenType;
+	}
+
+	/**
+	 * @return the type of the rejected token.
+	 */
+	public SPNegoTokenType getTokenType() {
+		return tokenType;
+	}
+}
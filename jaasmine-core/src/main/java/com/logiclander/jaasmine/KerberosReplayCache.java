@@ -0,0 +1,461 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An in-memory replay cache for the Kerberos authenticators in SPNego tokens.
+ *
+ * The JDK acceptor checks every authenticator against a single replay cache
+ * guarded by one lock (or, with {@code sun.security.krb5.rcache=dfl}, a file
+ * that is written for every authenticator).  This cache is used by
+ * {@link SPNegoServices}, so the JDK cache can be turned off with
+ * {@code -Dsun.security.krb5.rcache=none}.  That property applies to every
+ * acceptor in the JVM, including those of other applications, so this
+ * library never sets it; see {@link #isJdkReplayCacheDisabled()}.
+ * SPNegoServices asks
+ * {@link #isReplay(byte[]) isReplay} before a token reaches the acceptor, to
+ * turn known replays away cheaply, and records the authenticator with
+ * {@link #checkAndStore(byte[]) checkAndStore} only after the acceptor has
+ * decrypted and accepted the token.  Tokens that fail, for example because
+ * they are forged or the acceptor credential is unavailable, are therefore
+ * not remembered: they cannot fill the cache, and a client retrying a
+ * token that failed for a transient reason is not taken for a replay.
+ *
+ * A token that carries an AP-REQ whose authenticator cannot be found, for
+ * example one re-framed with an indefinite length that the JDK acceptor
+ * still decodes, is refused as defective: accepting it unchecked would let
+ * any captured token be replayed.  Only SPNego tokens without a mechToken,
+ * which carry no authenticator, go unchecked.
+ *
+ * An authenticator is identified by a hash of its cipher text, as in the JDK
+ * and MIT caches.  Hashes are spread over a number of shards, each with its
+ * own lock, so that threads checking different authenticators rarely wait for
+ * each other.  Within a shard, hashes are kept in time buckets.  When a
+ * bucket falls out of the lifetime of the cache, it is dropped as a whole
+ * instead of expiring its entries one by one.
+ *
+ * An authenticator is only accepted within the clock skew of its timestamp,
+ * which is encrypted and cannot be read here.  The lifetime of the cache
+ * must therefore be at least twice the clock skew allowed by the Kerberos
+ * configuration ({@code clockskew}, {@link #DEFAULT_CLOCK_SKEW_SECONDS}
+ * seconds by default).
+ *
+ * The number of authenticators remembered is bounded.  When a shard is full,
+ * new authenticators are refused rather than letting older ones be
+ * forgotten early, which would reopen the replay window for them;
+ * SPNegoServices rejects the token as unavailable in that case.
+ *
+ * Instances of this class have a configurable commons-logging based logger
+ * named {@code com.logiclander.jaasmine.KerberosReplayCache}.
+ */
+public class KerberosReplayCache {
+
+	/** The default number of seconds an authenticator is remembered. */
+	public static final long DEFAULT_LIFETIME_SECONDS =
+			TimeUnit.MINUTES.toSeconds(10);
+
+	/** The default Kerberos clock skew in seconds. */
+	public static final long DEFAULT_CLOCK_SKEW_SECONDS = 300;
+
+	/** The default number of shards. */
+	public static final int DEFAULT_SHARDS = 64;
+
+	/** The default maximum number of authenticators remembered. */
+	public static final long DEFAULT_MAXIMUM_SIZE = 1000000;
+
+	/** The number of time buckets covering the lifetime. */
+	private static final int BUCKETS_PER_LIFETIME = 10;
+
+	private static final String JDK_RCACHE_PROPERTY =
+			"sun.security.krb5.rcache";
+
+	private static final Log logger =
+			LogFactory.getLog(KerberosReplayCache.class);
+
+	private final Shard[] shards;
+
+	private final int shardMask;
+
+	private final long bucketMillis;
+
+	private final AtomicLong checkCount = new AtomicLong();
+
+	private final AtomicLong replayCount = new AtomicLong();
+
+	private final AtomicLong uncheckedCount = new AtomicLong();
+
+	private final AtomicLong overflowCount = new AtomicLong();
+
+	private final AtomicLong defectiveCount = new AtomicLong();
+
+	/**
+	 * Constructs a new KerberosReplayCache with the default lifetime and
+	 * number of shards.
+	 */
+	public KerberosReplayCache() {
+		this(DEFAULT_LIFETIME_SECONDS, DEFAULT_SHARDS);
+	}
+
+	/**
+	 * Constructs a new KerberosReplayCache with the default maximum size.
+	 *
+	 * @param lifetimeSeconds the number of seconds an authenticator is
+	 * remembered.
+	 * @param shards the number of shards, rounded up to a power of two.
+	 */
+	public KerberosReplayCache(long lifetimeSeconds, int shards) {
+		this(lifetimeSeconds, shards, DEFAULT_MAXIMUM_SIZE);
+	}
+
+	/**
+	 * Constructs a new KerberosReplayCache.
+	 *
+	 * @param lifetimeSeconds the number of seconds an authenticator is
+	 * remembered.
+	 * @param shards the number of shards, rounded up to a power of two.
+	 * @param maximumSize the maximum number of authenticators remembered,
+	 * spread evenly over the shards.
+	 */
+	public KerberosReplayCache(long lifetimeSeconds, int shards,
+			long maximumSize) {
+
+		if (lifetimeSeconds <= 0 || shards <= 0 || maximumSize <= 0) {
+			throw new IllegalArgumentException(
+				"lifetimeSeconds, shards and maximumSize must be positive"
+			);
+		}
+
+		int shardCount = Integer.highestOneBit(shards);
+		if (shardCount < shards) {
+			shardCount <<= 1;
+		}
+
+		// Keep one bucket more than the lifetime needs, so that an entry
+		// stored at the end of a bucket still lives for the whole lifetime.
+		this.bucketMillis = Math.max(1, TimeUnit.SECONDS.toMillis(
+				lifetimeSeconds) / BUCKETS_PER_LIFETIME);
+		this.shards = new Shard[shardCount];
+		this.shardMask = shardCount - 1;
+		int shardSize = (int) Math.min(Integer.MAX_VALUE,
+				(maximumSize + shardCount - 1) / shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			this.shards[i] = new Shard(BUCKETS_PER_LIFETIME + 1, shardSize);
+		}
+	}
+
+	/**
+	 * Tells whether the replay cache of the JDK acceptor is turned off.  It
+	 * is turned off for the whole JVM by starting it with
+	 * {@code -Dsun.security.krb5.rcache=none}, which takes replay detection
+	 * away from every acceptor that does not use a KerberosReplayCache.
+	 *
+	 * @return true if {@code sun.security.krb5.rcache} is {@code none}.
+	 */
+	public static boolean isJdkReplayCacheDisabled() {
+		return "none".equals(System.getProperty(JDK_RCACHE_PROPERTY));
+	}
+
+	/**
+	 * @return the value of {@code sun.security.krb5.rcache}, or {@code null}
+	 * if it is not set.
+	 */
+	public static String getJdkReplayCacheType() {
+		return System.getProperty(JDK_RCACHE_PROPERTY);
+	}
+
+	/**
+	 * Tells whether the authenticator of the given token can be checked.
+	 *
+	 * @param token the decoded SPNego or Kerberos token.
+	 * @return false if the token carries an AP-REQ whose authenticator cannot
+	 * be found, or is not a token at all; such tokens must be refused.
+	 */
+	public boolean isCheckable(byte[] token) {
+		return SPNegoTokenParser.findAuthenticatorCipher(token) != null ||
+				SPNegoTokenParser.isWithoutApReq(token);
+	}
+
+	/**
+	 * Checks the authenticator of the given token without recording it.
+	 *
+	 * @param token the decoded SPNego or Kerberos token.
+	 * @return true if the authenticator has been recorded within the
+	 * lifetime of the cache.
+	 */
+	public boolean isReplay(byte[] token) {
+
+		AuthenticatorHash hash = AuthenticatorHash.of(token);
+		return hash != null && shard(hash).contains(hash,
+				System.currentTimeMillis() / bucketMillis);
+	}
+
+	/**
+	 * Records the authenticator of the given token.  This should only be
+	 * called for tokens the acceptor has accepted.
+	 *
+	 * @param token the decoded SPNego or Kerberos token.
+	 * @return false if the authenticator has been seen within the lifetime of
+	 * the cache, the cache is full or the token is not
+	 * {@link #isCheckable(byte[]) checkable}; true if it is new or the token
+	 * has no authenticator.
+	 */
+	public boolean checkAndStore(byte[] token) {
+		return store(token, System.currentTimeMillis()) == Result.STORED;
+	}
+
+	/**
+	 * @return the number of authenticators checked.
+	 */
+	public long getCheckCount() {
+		return checkCount.get();
+	}
+
+	/**
+	 * @return the number of replays detected.
+	 */
+	public long getReplayCount() {
+		return replayCount.get();
+	}
+
+	/**
+	 * @return the number of tokens without an authenticator.
+	 */
+	public long getUncheckedCount() {
+		return uncheckedCount.get();
+	}
+
+	/**
+	 * @return the number of authenticators refused because the cache was
+	 * full.
+	 */
+	public long getOverflowCount() {
+		return overflowCount.get();
+	}
+
+	/**
+	 * @return the number of tokens refused because their authenticator could
+	 * not be found.
+	 */
+	public long getDefectiveCount() {
+		return defectiveCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"%s: shards = %d, checks = %d, replays = %d, unchecked = %d, "
+			+ "overflows = %d, defective = %d",
+			getClass().getSimpleName(), shards.length, getCheckCount(),
+			getReplayCount(), getUncheckedCount(), getOverflowCount(),
+			getDefectiveCount());
+	}
+
+	/** The outcome of recording an authenticator. */
+	enum Result {
+
+		/** The authenticator is new and was recorded, or there is none. */
+		STORED,
+
+		/** The authenticator was recorded before. */
+		REPLAY,
+
+		/** The shard of the authenticator is full. */
+		FULL,
+
+		/** The token carries an AP-REQ whose authenticator was not found. */
+		DEFECTIVE
+	}
+
+	Result store(byte[] token, long now) {
+
+		AuthenticatorHash hash = AuthenticatorHash.of(token);
+		if (hash == null) {
+			if (SPNegoTokenParser.isWithoutApReq(token)) {
+				uncheckedCount.incrementAndGet();
+				return Result.STORED;
+			}
+			defectiveCount.incrementAndGet();
+			return Result.DEFECTIVE;
+		}
+
+		checkCount.incrementAndGet();
+
+		Result result = shard(hash).store(hash, now / bucketMillis);
+
+		if (result == Result.REPLAY) {
+			replayCount.incrementAndGet();
+			if (logger.isWarnEnabled()) {
+				logger.warn("Replayed Kerberos authenticator rejected");
+			}
+		} else if (result == Result.FULL) {
+			if (overflowCount.getAndIncrement() == 0 &&
+					logger.isWarnEnabled()) {
+				logger.warn(String.format("Replay cache is full, refusing "
+						+ "new authenticators: %s", this));
+			}
+		}
+
+		return result;
+	}
+
+	private Shard shard(AuthenticatorHash hash) {
+		return shards[(int) hash.low & shardMask];
+	}
+
+	private static byte[] digest(byte[] token, int offset, int length) {
+
+		try {
+
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(token, offset, length);
+			return md.digest();
+
+		} catch (NoSuchAlgorithmException ex) {
+
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(ex);
+
+		}
+	}
+
+	/** The hashes of one time bucket. */
+	private static final class Bucket {
+
+		long epoch = Long.MIN_VALUE;
+
+		final Set<AuthenticatorHash> hashes = new HashSet<>();
+	}
+
+	/** A lock and the time buckets of the hashes that map to it. */
+	private static final class Shard {
+
+		private final Bucket[] buckets;
+
+		private final int maximumSize;
+
+		/** The number of hashes in live buckets. */
+		private int size;
+
+		Shard(int bucketCount, int maximumSize) {
+			this.buckets = new Bucket[bucketCount];
+			for (int i = 0; i < bucketCount; i++) {
+				this.buckets[i] = new Bucket();
+			}
+			this.maximumSize = maximumSize;
+		}
+
+		synchronized boolean contains(AuthenticatorHash hash, long epoch) {
+
+			long oldest = epoch - buckets.length;
+
+			for (Bucket bucket : buckets) {
+				if (bucket.epoch > oldest && bucket.hashes.contains(hash)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		synchronized Result store(AuthenticatorHash hash, long epoch) {
+
+			if (contains(hash, epoch)) {
+				return Result.REPLAY;
+			}
+
+			expire(epoch);
+			if (size >= maximumSize) {
+				return Result.FULL;
+			}
+
+			// Expired above if it belonged to an older epoch.
+			Bucket current = buckets[(int) (epoch % buckets.length)];
+			current.epoch = epoch;
+			current.hashes.add(hash);
+			size++;
+			return Result.STORED;
+		}
+
+		/** Drops the buckets that belong to expired epochs, whole. */
+		private void expire(long epoch) {
+
+			long oldest = epoch - buckets.length;
+
+			for (Bucket bucket : buckets) {
+				if (bucket.epoch <= oldest && !bucket.hashes.isEmpty()) {
+					size -= bucket.hashes.size();
+					bucket.hashes.clear();
+				}
+			}
+		}
+	}
+
+	/** The first 128 bits of the SHA-256 digest of an authenticator. */
+	private static final class AuthenticatorHash {
+
+		private final long high;
+
+		private final long low;
+
+		/**
+		 * @return the hash of the authenticator of the given token, or
+		 * {@code null} if the token has none.
+		 */
+		static AuthenticatorHash of(byte[] token) {
+
+			int[] cipher = SPNegoTokenParser.findAuthenticatorCipher(token);
+			return cipher == null ? null :
+				new AuthenticatorHash(digest(token, cipher[0], cipher[1]));
+		}
+
+		AuthenticatorHash(byte[] digest) {
+			long h = 0;
+			long l = 0;
+			for (int i = 0; i < 8; i++) {
+				h = (h << 8) | (digest[i] & 0xff);
+				l = (l << 8) | (digest[i + 8] & 0xff);
+			}
+			this.high = h;
+			this.low = l;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (high ^ (high >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+
+			if (!(obj instanceof AuthenticatorHash)) {
+				return false;
+			}
+
+			AuthenticatorHash other = (AuthenticatorHash) obj;
+			return high == other.high && low == other.low;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the principal names stored in a keytab file.
+ *
+ * {@link javax.security.auth.kerberos.KeyTab} can only look keys up by
+ * principal, so the entries are read here.  Only the names are read; the
+ * keys are skipped.  The MIT keytab format, version 0x0502, is supported,
+ * which is what {@code ktutil}, {@code ktpass} and Java's {@code ktab}
+ * write.
+ */
+final class KeyTabPrincipals {
+
+	private static final int VERSION = 0x0502;
+
+	private KeyTabPrincipals() {
+		// Static methods only.
+	}
+
+	/**
+	 * @param keyTab the keytab file.
+	 * @return the names of the principals in the keytab, in the order of their
+	 * first entries.
+	 * @throws IOException if the keytab cannot be read or is malformed.
+	 */
+	static Set<String> read(File keyTab) throws IOException {
+
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(keyTab.toPath()));
+		Set<String> principals = new LinkedHashSet<>();
+
+		try {
+
+			if ((in.getShort() & 0xffff) != VERSION) {
+				throw new IOException(String.format(
+						"%s is not a version 0x0502 keytab", keyTab));
+			}
+
+			while (in.remaining() >= 4) {
+
+				int size = in.getInt();
+				if (size < 0) {
+					// A hole left by a deleted entry.
+					in.position(in.position() - size);
+					continue;
+				}
+				if (size == 0) {
+					break;
+				}
+
+				int end = in.position() + size;
+				principals.add(readPrincipal(in));
+				in.position(end);
+			}
+
+		} catch (BufferUnderflowException | IllegalArgumentException ex) {
+			throw new IOException(String.format("%s is malformed", keyTab), ex);
+		}
+
+		return principals;
+	}
+
+	private static String readPrincipal(ByteBuffer in) {
+
+		int count = in.getShort() & 0xffff;
+		String realm = readString(in);
+
+		List<String> components = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			components.add(readString(in));
+		}
+
+		return String.join("/", components) + "@" + realm;
+	}
+
+	private static String readString(ByteBuffer in) {
+
+		byte[] value = new byte[in.getShort() & 0xffff];
+		in.get(value);
+		return new String(value, StandardCharsets.UTF_8);
+	}
+}
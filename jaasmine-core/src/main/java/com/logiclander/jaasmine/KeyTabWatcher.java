@@ -0,0 +1,383 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ietf.jgss.GSSException;
+
+/**
+ * Watches a keytab file and reloads the acceptor credentials of one or more
+ * {@link SPNegoServices} when the contents of the keytab change.
+ *
+ * Changes are detected with a {@link WatchService} on the directory holding
+ * the keytab.  Since some file systems do not report changes, the keytab is
+ * also checked every poll interval.  In both cases the keytab is reloaded
+ * only if the SHA-256 digest of its contents has changed, so touching the
+ * file or rewriting it with the same keys does not replace the credential.
+ *
+ * The watcher runs on a single daemon thread that is started by
+ * {@link #start() start} and stopped by {@link #close() close}.
+ *
+ * Instances of this class have a configurable commons-logging based logger
+ * named {@code com.logiclander.jaasmine.KeyTabWatcher}.
+ */
+public class KeyTabWatcher implements Closeable {
+
+	/** The default number of seconds between checks of the keytab. */
+	public static final long DEFAULT_POLL_INTERVAL_SECONDS = 60;
+
+	/** Events arriving within this many milliseconds are handled together. */
+	private static final long SETTLE_MILLIS = 250;
+
+	private static final Log logger = LogFactory.getLog(KeyTabWatcher.class);
+
+	private final List<SPNegoServices> spnegoServices;
+
+	private final Path keyTab;
+
+	private final long pollIntervalMillis;
+
+	private final AtomicLong reloadCount = new AtomicLong();
+
+	private final AtomicLong reloadFailureCount = new AtomicLong();
+
+	private final AtomicLong lastReloadNanos = new AtomicLong();
+
+	private final AtomicLong totalReloadNanos = new AtomicLong();
+
+	private volatile long lastReloadTime;
+
+	private volatile boolean running;
+
+	private WatchService watchService;
+
+	private Thread watcherThread;
+
+	private byte[] digest;
+
+	/**
+	 * Constructs a new KeyTabWatcher that checks the keytab every
+	 * {@link #DEFAULT_POLL_INTERVAL_SECONDS} seconds in addition to watching
+	 * it for changes.
+	 *
+	 * @param spnegoServices the SPNegoServices to reload.
+	 * @param keyTab the keytab file.
+	 */
+	public KeyTabWatcher(SPNegoServices spnegoServices, File keyTab) {
+		this(Collections.singletonList(spnegoServices), keyTab,
+				DEFAULT_POLL_INTERVAL_SECONDS);
+	}
+
+	/**
+	 * Constructs a new KeyTabWatcher for acceptors that share one keytab and
+	 * checks the keytab every {@link #DEFAULT_POLL_INTERVAL_SECONDS} seconds in
+	 * addition to watching it for changes.
+	 *
+	 * @param spnegoServices the SPNegoServices to reload.
+	 * @param keyTab the keytab file.
+	 */
+	public KeyTabWatcher(Collection<SPNegoServices> spnegoServices,
+			File keyTab) {
+		this(spnegoServices, keyTab, DEFAULT_POLL_INTERVAL_SECONDS);
+	}
+
+	/**
+	 * Constructs a new KeyTabWatcher.
+	 *
+	 * @param spnegoServices the SPNegoServices to reload.
+	 * @param keyTab the keytab file.
+	 * @param pollIntervalSeconds the number of seconds between checks of the
+	 * keytab when no change events are received.
+	 */
+	public KeyTabWatcher(Collection<SPNegoServices> spnegoServices,
+			File keyTab, long pollIntervalSeconds) {
+
+		if (pollIntervalSeconds <= 0) {
+			throw new IllegalArgumentException(
+				"pollIntervalSeconds must be positive"
+			);
+		}
+
+		this.spnegoServices = Collections.unmodifiableList(
+				new ArrayList<>(spnegoServices));
+		this.keyTab = keyTab.toPath().toAbsolutePath();
+		this.pollIntervalMillis = TimeUnit.SECONDS.toMillis(pollIntervalSeconds);
+	}
+
+	/**
+	 * Records the current contents of the keytab and starts watching it.
+	 *
+	 * @throws IOException if the keytab directory cannot be watched.
+	 */
+	public synchronized void start() throws IOException {
+
+		if (running) {
+			return;
+		}
+
+		digest = digestKeyTab();
+		watchService = keyTab.getFileSystem().newWatchService();
+		keyTab.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+
+		running = true;
+		watcherThread = AuthenticationThreads.newThreadFactory(
+				String.format("jaasmine-keytab-watcher[%s]-",
+						keyTab.getFileName())).newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				watch();
+			}
+
+		});
+		watcherThread.start();
+
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Watching %s", keyTab));
+		}
+	}
+
+	/**
+	 * Stops watching the keytab.
+	 */
+	@Override
+	public synchronized void close() {
+
+		if (!running) {
+			return;
+		}
+
+		running = false;
+
+		try {
+			watchService.close();
+		} catch (IOException ex) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Problem closing WatchService", ex);
+			}
+		}
+
+		watcherThread.interrupt();
+	}
+
+	/**
+	 * @return the number of successful reloads.
+	 */
+	public long getReloadCount() {
+		return reloadCount.get();
+	}
+
+	/**
+	 * @return the number of reloads that failed.
+	 */
+	public long getReloadFailureCount() {
+		return reloadFailureCount.get();
+	}
+
+	/**
+	 * @return the duration of the last reload in milliseconds.
+	 */
+	public long getLastReloadMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lastReloadNanos.get());
+	}
+
+	/**
+	 * @return the total time spent reloading in milliseconds.
+	 */
+	public long getTotalReloadMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(totalReloadNanos.get());
+	}
+
+	/**
+	 * @return the time of the last successful reload in milliseconds since
+	 * the epoch, or 0 if the keytab has not been reloaded.
+	 */
+	public long getLastReloadTime() {
+		return lastReloadTime;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"%s for %s: reloads = %d, failures = %d, last reload = %d ms",
+			getClass().getSimpleName(), keyTab, getReloadCount(),
+			getReloadFailureCount(), getLastReloadMillis());
+	}
+
+	private void watch() {
+
+		while (running) {
+
+			try {
+
+				WatchKey key = watchService.poll(pollIntervalMillis,
+						TimeUnit.MILLISECONDS);
+
+				if (key != null) {
+
+					boolean keyTabChanged = isKeyTabEvent(key);
+					key.reset();
+
+					if (!keyTabChanged) {
+						continue;
+					}
+
+					// Keytab tools often write the file in several steps, so
+					// let the events settle before reading it.
+					drainEvents();
+				}
+
+				checkKeyTab();
+
+			} catch (InterruptedException ex) {
+
+				Thread.currentThread().interrupt();
+				return;
+
+			} catch (ClosedWatchServiceException ex) {
+
+				return;
+
+			}
+		}
+	}
+
+	private void drainEvents() throws InterruptedException {
+
+		WatchKey key;
+		while ((key = watchService.poll(SETTLE_MILLIS,
+				TimeUnit.MILLISECONDS)) != null) {
+			key.pollEvents();
+			key.reset();
+		}
+	}
+
+	private boolean isKeyTabEvent(WatchKey key) {
+
+		boolean keyTabEvent = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			if (context == null || keyTab.getFileName().equals(context)) {
+				keyTabEvent = true;
+			}
+		}
+		return keyTabEvent;
+	}
+
+	private void checkKeyTab() {
+
+		byte[] current;
+
+		try {
+
+			current = digestKeyTab();
+
+		} catch (NoSuchFileException ex) {
+
+			// The keytab is being replaced.  The next event will pick it up.
+			return;
+
+		} catch (IOException ex) {
+
+			if (logger.isWarnEnabled()) {
+				logger.warn(String.format("Could not read %s: %s", keyTab,
+						ex.getMessage()));
+			}
+			return;
+		}
+
+		if (Arrays.equals(digest, current)) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		boolean reloaded = true;
+
+		for (SPNegoServices services : spnegoServices) {
+
+			try {
+
+				services.reload();
+
+			} catch (GSSException ex) {
+
+				reloaded = false;
+
+				if (logger.isWarnEnabled()) {
+					logger.warn(String.format("Could not reload %s for %s",
+							keyTab, services), ex);
+				}
+			}
+		}
+
+		if (!reloaded) {
+			reloadFailureCount.incrementAndGet();
+			return;
+		}
+
+		long elapsed = System.nanoTime() - start;
+		digest = current;
+		reloadCount.incrementAndGet();
+		lastReloadNanos.set(elapsed);
+		totalReloadNanos.addAndGet(elapsed);
+		lastReloadTime = System.currentTimeMillis();
+
+		if (logger.isInfoEnabled()) {
+			logger.info(String.format("Reloaded %s in %d ms", keyTab,
+					TimeUnit.NANOSECONDS.toMillis(elapsed)));
+		}
+	}
+
+	private byte[] digestKeyTab() throws IOException {
+
+		try {
+
+			return MessageDigest.getInstance("SHA-256").digest(
+					Files.readAllBytes(keyTab));
+
+		} catch (NoSuchAlgorithmException ex) {
+
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(ex);
+
+		}
+	}
+}
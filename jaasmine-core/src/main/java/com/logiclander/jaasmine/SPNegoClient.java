@@ -19,9 +19,26 @@ package com.logiclander.jaasmine;
 import static com.logiclander.jaasmine.JAASMineContants.SPNEGO_MECH_OID;
 
 import java.security.PrivilegedActionException;
-import java.security.PrivilegedExceptionAction;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
@@ -34,23 +51,54 @@ import org.ietf.jgss.GSSName;
 import org.ietf.jgss.Oid;
 
 /**
+ * Generates SPNego tokens for one client credential.
+ *
+ * Instances of this class are safe for use by many threads.  The
+ * canonicalized name of each target SPN and the service ticket obtained for
+ * it are kept until the ticket is within a minute of expiring, so after the
+ * first token for an SPN, tokens are made without contacting the KDC.  The
+ * first token for an SPN is made by one thread at a time; other threads
+ * asking for the same SPN wait for its service ticket.
+ *
+ * The JDK only reuses service tickets found in the Subject of the calling
+ * thread, so each token is made in {@link Subject#doAs doAs} with a private
+ * Subject that holds the kept ticket.  The Subjects are never shared, which
+ * avoids concurrent changes to a Subject's credential set.
+ *
+ * Credential delegation, which is requested by default, asks the KDC for a
+ * forwarded TGT with every token if the service allows delegation.  Turn it
+ * off with {@link #setCredentialDelegationState(boolean)} when the service
+ * does not need the client's credentials.
+ *
+ * Token generation holds JDK monitors while it waits for the KDC, so on a
+ * virtual thread it is run on the platform pool of
+ * {@link AuthenticationThreads}.
  *
  * @author tcarroll
  */
 public class SPNegoClient {
 
+	/** Service tickets are renewed this long before they expire. */
+	private static final long TICKET_MARGIN_MILLIS =
+			TimeUnit.MINUTES.toMillis(1);
+
 	private final Oid spnegoMechOid = new Oid(SPNEGO_MECH_OID);
 	private final GSSManager gssManager = GSSManager.getInstance();
 	private final GSSCredential gssClientCred;
-	private boolean credentialDelegationState = true;
-	private boolean mutualAuthenticationState = true;
+	private volatile boolean credentialDelegationState = true;
+	private volatile boolean mutualAuthenticationState = true;
+	private final ConcurrentMap<String, Target> targets =
+			new ConcurrentHashMap<>();
+	private final AtomicLong serviceTicketHits = new AtomicLong();
+	private final AtomicLong tgsRequests = new AtomicLong();
 	private final Log logger = LogFactory.getLog(SPNegoClient.class);
 
 	public SPNegoClient(Subject subject, AuthenticationType type)
 			throws GSSException, PrivilegedActionException {
 		// create a GSS Credential using a JAAS Subject that has Kerberos
-		// ticket(s)
-		gssClientCred = Subject.doAs(
+		// ticket(s).  PrivilegedActionException is no longer thrown, but is
+		// still declared so that existing callers compile.
+		gssClientCred = SubjectPropagation.callAs(
 			subject,
 			new CredentialGenerator(gssManager, type.getOidValue())
 		);
@@ -91,55 +139,261 @@ public class SPNegoClient {
 			return spnegoToken;
 		}
 
-		GSSContext targetServerContext = null;
+		Target target = getTarget(spn);
+		KerberosTicket serviceTicket = target.getServiceTicket();
 
-		try {
+		if (serviceTicket != null) {
 
-			GSSName targetSPN = createTargetSPN(spn);
-			targetServerContext = createTargetServerContext(targetSPN);
-			spnegoToken = createTargetSPNegoToken(targetServerContext);
+			serviceTicketHits.incrementAndGet();
+			spnegoToken = createTargetSPNegoToken(target, serviceTicket);
 
-			if (logger.isDebugEnabled()) {
-				logger.debug(
-					String.format("Generated SPNego token: %s", spnegoToken)
-				);
+		} else {
+
+			spnegoToken = createFirstSPNegoToken(target);
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug(
+				String.format("Generated SPNego token: %s", spnegoToken)
+			);
+		}
+
+		return spnegoToken;
+	}
+
+	/**
+	 * Generates tokens for many SPNs in parallel.  At most
+	 * {@code maxConcurrency} tokens are made at once, whatever the size of
+	 * the executor; the others wait their turn.  Each SPN gets its own
+	 * future, completed exceptionally if its token cannot be made, so one
+	 * slow or failing service does not hold up the rest.
+	 *
+	 * @param spns the target SPNs.  Duplicates are generated once.
+	 * @param executor the executor that makes the tokens.
+	 * @param maxConcurrency the maximum number of tokens made at once.
+	 * @return the future token of each SPN, in the order of {@code spns}.
+	 */
+	public Map<String, CompletableFuture<String>> generateSPNegoTokens(
+			Collection<String> spns, Executor executor, int maxConcurrency) {
+
+		if (maxConcurrency <= 0) {
+			throw new IllegalArgumentException(
+				"maxConcurrency must be positive"
+			);
+		}
+
+		final Map<String, CompletableFuture<String>> tokens =
+				new LinkedHashMap<>();
+		for (String spn : spns) {
+			tokens.putIfAbsent(spn, new CompletableFuture<String>());
+		}
+
+		final Queue<Map.Entry<String, CompletableFuture<String>>> pending =
+				new ConcurrentLinkedQueue<>(tokens.entrySet());
+
+		Runnable worker = new Runnable() {
+
+			@Override
+			public void run() {
+
+				Map.Entry<String, CompletableFuture<String>> entry;
+				while ((entry = pending.poll()) != null) {
+
+					try {
+						entry.getValue().complete(
+								generateSPNegoToken(entry.getKey()));
+					} catch (Exception ex) {
+						entry.getValue().completeExceptionally(ex);
+					}
+				}
+			}
+
+		};
+
+		int workers = Math.min(maxConcurrency, tokens.size());
+		for (int i = 0; i < workers; i++) {
+
+			try {
+
+				executor.execute(worker);
+
+			} catch (RejectedExecutionException ex) {
+
+				if (i == 0) {
+					// Nothing will run the pending SPNs.
+					Map.Entry<String, CompletableFuture<String>> entry;
+					while ((entry = pending.poll()) != null) {
+						entry.getValue().completeExceptionally(ex);
+					}
+				}
+				break;
+			}
+		}
+
+		return Collections.unmodifiableMap(tokens);
+	}
+
+	/**
+	 * Obtains and keeps the service ticket for an SPN if there is no usable
+	 * one, so that the next token for the SPN does not contact the KDC.
+	 *
+	 * @param spn the target SPN.
+	 * @throws GSSException if the service ticket cannot be obtained.
+	 */
+	public void prefetchServiceTicket(String spn) throws GSSException {
+
+		if (gssClientCred == null) {
+			return;
+		}
+
+		Target target = getTarget(spn);
+		if (target.getServiceTicket() == null) {
+			createFirstSPNegoToken(target);
+		}
+	}
+
+	/**
+	 * @return the SPNs this client has made tokens for.
+	 */
+	public Set<String> getTargetSPNs() {
+		return Collections.unmodifiableSet(new HashSet<>(targets.keySet()));
+	}
+
+	/**
+	 * @return the number of tokens made with a kept service ticket.
+	 */
+	public long getServiceTicketHitCount() {
+		return serviceTicketHits.get();
+	}
+
+	/**
+	 * @return the number of tokens that needed a new service ticket from the
+	 * KDC.
+	 */
+	public long getTgsRequestCount() {
+		return tgsRequests.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"%s: targets = %d, service ticket hits = %d, TGS requests = %d",
+			getClass().getSimpleName(), targets.size(),
+			getServiceTicketHitCount(), getTgsRequestCount());
+	}
+
+	/**
+	 * Makes a token for a target without a usable service ticket.  Only one
+	 * thread asks the KDC for the service ticket of a target.
+	 */
+	private String createFirstSPNegoToken(Target target) throws GSSException {
+
+		// A lock rather than a monitor, so that a virtual thread waiting for
+		// the KDC here does not pin its carrier.
+		target.lock.lock();
+		try {
+
+			KerberosTicket serviceTicket = target.getServiceTicket();
+			if (serviceTicket != null) {
+				serviceTicketHits.incrementAndGet();
+			} else {
+				tgsRequests.incrementAndGet();
 			}
+			return createTargetSPNegoToken(target, serviceTicket);
 
 		} finally {
+			target.lock.unlock();
+		}
+	}
 
-			if (targetServerContext != null) {
+	private Target getTarget(String spn) throws GSSException {
+
+		Target target = targets.get(spn);
+		if (target == null) {
+			Target created = new Target(
+					createTargetSPN(spn).canonicalize(spnegoMechOid));
+			target = targets.putIfAbsent(spn, created);
+			if (target == null) {
+				target = created;
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * Makes a token for the target.  If no service ticket is given, the one
+	 * obtained from the KDC is kept in the target.
+	 */
+	private String createTargetSPNegoToken(final Target target,
+			KerberosTicket serviceTicket) throws GSSException {
+
+		Subject ticketSubject = new Subject();
+		if (serviceTicket != null) {
+			ticketSubject.getPrivateCredentials().add(serviceTicket);
+		}
+
+		byte[] spnegoToken;
+
+		spnegoToken = AuthenticationThreads.callPinning("SPNegoClient",
+				() -> initSecContextAs(ticketSubject, target.name));
+
+		if (serviceTicket == null) {
+			for (KerberosTicket ticket :
+					ticketSubject.getPrivateCredentials(KerberosTicket.class)) {
+				target.setServiceTicket(ticket);
 
 				if (logger.isDebugEnabled()) {
-					logger.debug("Disposing targetServerContext");
+					logger.debug(String.format(
+						"Keeping service ticket for %s until %tc",
+						target.name, ticket.getEndTime()));
 				}
-				targetServerContext.dispose();
 			}
 		}
 
-		return spnegoToken;
+		return new String(Base64.encodeBase64(spnegoToken));
 	}
 
-	private String createTargetSPNegoToken(GSSContext gssContext)
-			throws GSSException {
+	private byte[] initSecContextAs(Subject ticketSubject,
+			final GSSName targetName) throws GSSException {
 
-		gssContext.requestCredDeleg(credentialDelegationState);
-		gssContext.requestMutualAuth(mutualAuthenticationState);
+		return SubjectPropagation.callAs(ticketSubject,
+				() -> initSecContext(targetName));
+	}
 
-		byte[] spnegoToken = new byte[0];
-		spnegoToken = gssContext.initSecContext(
-			spnegoToken,
-			0,
-			spnegoToken.length
-		);
+	private byte[] initSecContext(GSSName targetName) throws GSSException {
 
-		return new String(Base64.encodeBase64(spnegoToken));
+		GSSContext targetServerContext = null;
+
+		try {
+
+			targetServerContext = createTargetServerContext(targetName);
+			targetServerContext.requestCredDeleg(credentialDelegationState);
+			targetServerContext.requestMutualAuth(mutualAuthenticationState);
+
+			byte[] spnegoToken = new byte[0];
+			return targetServerContext.initSecContext(
+				spnegoToken,
+				0,
+				spnegoToken.length
+			);
+
+		} finally {
+
+			if (targetServerContext != null) {
+
+				if (logger.isDebugEnabled()) {
+					logger.debug("Disposing targetServerContext");
+				}
+				targetServerContext.dispose();
+			}
+		}
 	}
 
 	private GSSContext createTargetServerContext(GSSName gssServerName)
 			throws GSSException {
 
 		return gssManager.createContext(
-			gssServerName.canonicalize(spnegoMechOid),
+			gssServerName,
 			spnegoMechOid,
 			gssClientCred,
 			GSSContext.DEFAULT_LIFETIME
@@ -150,8 +404,47 @@ public class SPNegoClient {
 		return gssManager.createName(spn, GSSName.NT_USER_NAME);
 	}
 
+	/**
+	 * The canonicalized name of a target SPN and its service ticket.
+	 */
+	private static class Target {
+
+		private final GSSName name;
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private volatile KerberosTicket serviceTicket;
+
+		Target(GSSName name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return the service ticket, or {@code null} if there is none or it
+		 * is about to expire.
+		 */
+		KerberosTicket getServiceTicket() {
+
+			KerberosTicket ticket = serviceTicket;
+			if (ticket == null || ticket.isDestroyed()) {
+				return null;
+			}
+
+			Date endTime = ticket.getEndTime();
+			if (endTime == null || endTime.getTime() - TICKET_MARGIN_MILLIS <
+					System.currentTimeMillis()) {
+				return null;
+			}
+			return ticket;
+		}
+
+		void setServiceTicket(KerberosTicket serviceTicket) {
+			this.serviceTicket = serviceTicket;
+		}
+	}
+
 	private static class CredentialGenerator implements
-			PrivilegedExceptionAction<GSSCredential> {
+			SubjectPropagation.SubjectAction<GSSCredential, GSSException> {
 
 		private final GSSManager gssManager;
 		private final Oid userMechOid;
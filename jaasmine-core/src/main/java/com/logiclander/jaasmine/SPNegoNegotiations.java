@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * A bounded store of partially established acceptor contexts, used by
+ * {@link SPNegoServices#accept(String, SPNegoNegotiations, String)} for
+ * negotiations that need more than one token.
+ *
+ * Contexts are stored under a key chosen by the caller (for example, an
+ * identifier of the client's connection) and are taken out of the store when
+ * the next token of the negotiation arrives.  Contexts that are not taken
+ * within the timeout, that are pushed out because the store is full, or that
+ * are replaced by a new negotiation under the same key, are disposed.
+ *
+ * Instances of this class have a configurable commons-logging based logger
+ * named {@code com.logiclander.jaasmine.SPNegoNegotiations}.
+ */
+public class SPNegoNegotiations {
+
+	/** The default number of seconds a negotiation may take. */
+	public static final long DEFAULT_TIMEOUT_SECONDS = 30;
+
+	/** The default maximum number of negotiations in progress. */
+	public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+	private static final Log logger =
+			LogFactory.getLog(SPNegoNegotiations.class);
+
+	private final Cache<String, GSSContext> contexts;
+
+	/**
+	 * Constructs a new SPNegoNegotiations with the default timeout and
+	 * maximum size.
+	 */
+	public SPNegoNegotiations() {
+		this(DEFAULT_TIMEOUT_SECONDS, DEFAULT_MAXIMUM_SIZE);
+	}
+
+	/**
+	 * Constructs a new SPNegoNegotiations.
+	 *
+	 * @param timeoutSeconds the number of seconds after which an incomplete
+	 * context is disposed.
+	 * @param maximumSize the maximum number of incomplete contexts kept.
+	 */
+	public SPNegoNegotiations(long timeoutSeconds, long maximumSize) {
+
+		if (timeoutSeconds <= 0 || maximumSize <= 0) {
+			throw new IllegalArgumentException(
+				"timeoutSeconds and maximumSize must be positive"
+			);
+		}
+
+		this.contexts = CacheBuilder.newBuilder()
+			.expireAfterWrite(timeoutSeconds, TimeUnit.SECONDS)
+			.maximumSize(maximumSize)
+			.removalListener(new ContextDisposer())
+			.build();
+	}
+
+	/**
+	 * @return the number of negotiations in progress.
+	 */
+	public long size() {
+		return contexts.size();
+	}
+
+	/**
+	 * Disposes every stored context.
+	 */
+	public void clear() {
+
+		// invalidateAll reports EXPLICIT removals, which are left to the
+		// caller of take, so the contexts are drained and disposed here.
+		for (String key : contexts.asMap().keySet()) {
+			GSSContext context = take(key);
+			if (context != null) {
+				dispose(key, context, "CLEARED");
+			}
+		}
+		contexts.cleanUp();
+	}
+
+	/**
+	 * Removes and returns the context stored under the given key.  The caller
+	 * owns the returned context.
+	 *
+	 * @param key the negotiation key.
+	 * @return the context, or {@code null} if there is none.
+	 */
+	GSSContext take(String key) {
+		return contexts.asMap().remove(key);
+	}
+
+	/**
+	 * Stores a context until the next token of its negotiation arrives.
+	 *
+	 * @param key the negotiation key.
+	 * @param context the incomplete context.
+	 */
+	void put(String key, GSSContext context) {
+		contexts.put(key, context);
+	}
+
+	/**
+	 * Disposes contexts that leave the store for any reason but an explicit
+	 * removal, which only take and clear make.
+	 */
+	private static final class ContextDisposer
+			implements RemovalListener<String, GSSContext> {
+
+		@Override
+		public void onRemoval(
+				RemovalNotification<String, GSSContext> notification) {
+
+			if (notification.getCause() == RemovalCause.EXPLICIT) {
+				return;
+			}
+
+			GSSContext context = notification.getValue();
+			if (context != null) {
+				dispose(notification.getKey(), context,
+						notification.getCause());
+			}
+		}
+	}
+
+	private static void dispose(String key, GSSContext context,
+			Object cause) {
+
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Disposing negotiation %s (%s)",
+					key, cause));
+		}
+
+		try {
+			context.dispose();
+		} catch (GSSException ex) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Problem disposing context", ex);
+			}
+		}
+	}
+}
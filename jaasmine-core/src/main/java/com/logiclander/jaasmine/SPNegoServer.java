@@ -17,6 +17,8 @@ package com.logiclander.jaasmine;
 
 import static com.logiclander.jaasmine.JAASMineContants.SPNEGO_MECH_OID;
 
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -35,38 +37,92 @@ public class SPNegoServer {
 
 	/** An empty byte array to return (avoids null pointer exceptions). */
 	private transient static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
-	private final Oid spnegoMechOid = new Oid(SPNEGO_MECH_OID);
-	private final GSSManager gssManager = GSSManager.getInstance();
-	private final GSSCredential gssServerCred;
 	private final byte[] responseToken;
 	private final boolean isValidToken;
+	private final boolean isContinueNeeded;
 	private final boolean canDelegateToken;
 	private final GSSCredential gssDelegateCred;
 
 	private final GSSName requesterName;
 
-	private final Log logger = LogFactory.getLog(SPNegoServer.class);
+	private final long ticketEndTime;
+
+	private static final Log logger = LogFactory.getLog(SPNegoServer.class);
 
+	/**
+	 * Validates the given SPNego token with a newly acquired acceptor
+	 * credential.  Use {@link SPNegoServices#accept(String)} to validate many
+	 * tokens with a single credential.
+	 *
+	 * @param spnegoToken the Base64 encoded SPNego token.
+	 * @throws GSSException if the token cannot be accepted.
+	 */
 	public SPNegoServer(String spnegoToken) throws GSSException {
+		this(GSSManager.getInstance(), spnegoToken);
+	}
+
+	private SPNegoServer(GSSManager gssManager, String spnegoToken)
+			throws GSSException {
+		this(gssManager, createServerCredential(gssManager), spnegoToken);
+	}
 
-		GSSContext gssContext = null;
+	SPNegoServer(GSSManager gssManager, GSSCredential serverCredential,
+			String spnegoToken) throws GSSException {
+		this(gssManager.createContext(serverCredential),
+				Base64.decodeBase64(spnegoToken), false);
+	}
+
+	/**
+	 * Accepts the given SPNego token on the given context.
+	 *
+	 * @param gssContext a new context, or one returned for an earlier token
+	 * of the same negotiation.
+	 * @param spnegoToken the decoded SPNego token.
+	 * @param keepIncompleteContext if {@code true}, the context is not
+	 * disposed when another token is needed to establish it.  The caller is
+	 * then responsible for disposing it.
+	 * @throws GSSException if the token cannot be accepted.  The context is
+	 * disposed in that case.
+	 */
+	SPNegoServer(GSSContext gssContext, byte[] spnegoToken,
+			boolean keepIncompleteContext) throws GSSException {
+
+		boolean keepContext = false;
 
 		try {
 
-			gssServerCred = createServerCredential();
-			gssContext = createServerContext(gssServerCred);
-			responseToken = createResponseToken(gssContext, spnegoToken);
+			responseToken = gssContext.acceptSecContext(spnegoToken, 0,
+					spnegoToken.length);
 
 			isValidToken = gssContext.isEstablished();
+			isContinueNeeded = !isValidToken;
+
+			if (isValidToken) {
+
+				canDelegateToken = gssContext.getCredDelegState();
+				gssDelegateCred = getDelegateCredential(gssContext);
+
+				requesterName = gssContext.getSrcName();
+
+				// The acceptor's context lives as long as the service ticket.
+				int lifetime = gssContext.getLifetime();
+				ticketEndTime = lifetime == GSSContext.INDEFINITE_LIFETIME ?
+						Long.MAX_VALUE : System.currentTimeMillis() +
+								TimeUnit.SECONDS.toMillis(lifetime);
 
-			canDelegateToken = gssContext.getCredDelegState();
-			gssDelegateCred = getDelegateCredential(gssContext);
+			} else {
 
-			requesterName = gssContext.getSrcName();
+				canDelegateToken = false;
+				gssDelegateCred = null;
+				requesterName = null;
+				ticketEndTime = 0;
+			}
+
+			keepContext = keepIncompleteContext && isContinueNeeded;
 
 		} finally {
 
-			if (gssContext != null) {
+			if (!keepContext) {
 
 				if (logger.isDebugEnabled()) {
 					logger.debug("Disposing context");
@@ -89,29 +145,25 @@ public class SPNegoServer {
 		return delegate;
 	}
 
-	private GSSContext createServerContext(GSSCredential serverCredential)
+	private static GSSCredential createServerCredential(GSSManager gssManager)
 			throws GSSException {
-		return gssManager.createContext(serverCredential);
-	}
-
-	private GSSCredential createServerCredential() throws GSSException {
 		return gssManager.createCredential(null,
-				GSSCredential.DEFAULT_LIFETIME, spnegoMechOid,
+				GSSCredential.DEFAULT_LIFETIME, new Oid(SPNEGO_MECH_OID),
 				GSSCredential.ACCEPT_ONLY);
 	}
 
-	private byte[] createResponseToken(GSSContext ctx, String spnegoToken)
-			throws GSSException {
-
-		byte[] spnegoTokenBytes = Base64.decodeBase64(spnegoToken);
-		return ctx.acceptSecContext(spnegoTokenBytes, 0,
-				spnegoTokenBytes.length);
-	}
-
 	public boolean isValidToken() {
 		return isValidToken;
 	}
 
+	/**
+	 * @return true if the context is not established yet and the client has
+	 * to send another token, in reply to {@link #getResponseToken()}.
+	 */
+	public boolean isContinueNeeded() {
+		return isContinueNeeded;
+	}
+
 	public boolean canDelegateToken() {
 		return canDelegateToken;
 	}
@@ -128,6 +180,14 @@ public class SPNegoServer {
 		return requesterName;
 	}
 
+	/**
+	 * @return the time the requester's service ticket expires, in
+	 * milliseconds since the epoch, or 0 if the token is not valid.
+	 */
+	long getTicketEndTime() {
+		return ticketEndTime;
+	}
+
 	public String generateDelegateSPNegoToken(String spn) throws GSSException {
 		SPNegoClient client = new SPNegoClient(gssDelegateCred);
 		return client.generateSPNegoToken(spn);
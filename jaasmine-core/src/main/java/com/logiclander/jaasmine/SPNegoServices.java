@@ -16,10 +16,614 @@
 
 package com.logiclander.jaasmine;
 
+import static com.logiclander.jaasmine.JAASMineContants.KRB5_PRINCIPAL_NAME_OID;
+import static com.logiclander.jaasmine.JAASMineContants.SPNEGO_MECH_OID;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosKey;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KeyTab;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+
 /**
+ * A reusable SPNego acceptor.
+ *
+ * An instance of this class holds the acceptor GSSCredential and the
+ * mechanism Oids needed to validate SPNego tokens, so that they are acquired
+ * once instead of on every request.  It is meant to be created once (for
+ * example, when a Filter is initialized) and shared by all request threads.
+ *
+ * The credential is acquired on the first call to {@link #accept(String)
+ * accept} and is refreshed before it expires.  Credentials that never expire
+ * (keytab based acceptors) are re-acquired after the configured refresh
+ * interval.  While one thread refreshes the credential, other threads keep
+ * accepting tokens with the current credential.
+ *
+ * When constructed with a keytab and a principal, the credential is built from
+ * the keys read from the keytab instead of the default acceptor configuration.
+ * Calling {@link #reload() reload} (see {@link KeyTabWatcher}) reads the
+ * keytab again and swaps in a new credential.  Keys that were removed from the
+ * keytab are still accepted for the configured grace period so that service
+ * tickets issued for the previous key version stay valid during a key
+ * rotation.
+ *
+ * Instances of this class have a configurable commons-logging based logger
+ * named {@code com.logiclander.jaasmine.SPNegoServices}.
  *
  * @author tcarroll
  */
 public class SPNegoServices {
 
+	/** The default refresh interval for credentials that never expire. */
+	public static final long DEFAULT_REFRESH_INTERVAL_SECONDS =
+			TimeUnit.HOURS.toSeconds(1);
+
+	/** The default number of seconds that removed keys are still accepted. */
+	public static final long DEFAULT_GRACE_PERIOD_SECONDS =
+			TimeUnit.HOURS.toSeconds(1);
+
+	/** Credentials are refreshed this long before they expire. */
+	private static final long REFRESH_MARGIN_MILLIS =
+			TimeUnit.MINUTES.toMillis(5);
+
+	private static final Log logger = LogFactory.getLog(SPNegoServices.class);
+
+	private final GSSManager gssManager = GSSManager.getInstance();
+
+	private final Oid[] acceptorMechOids;
+
+	private final long refreshIntervalMillis;
+
+	private final File keyTab;
+
+	private final KerberosPrincipal principal;
+
+	private final long gracePeriodMillis;
+
+	private final ReentrantLock refreshLock = new ReentrantLock();
+
+	private volatile AcceptorCredential acceptorCredential;
+
+	private volatile SPNegoTokenValidator tokenValidator;
+
+	private volatile KerberosReplayCache replayCache;
+
+	private volatile TicketExpiryCache ticketCache;
+
+	/**
+	 * Constructs a new SPNegoServices that accepts SPNego and Kerberos tokens
+	 * and uses the {@link #DEFAULT_REFRESH_INTERVAL_SECONDS default refresh
+	 * interval}.
+	 *
+	 * @throws GSSException if the mechanism Oids cannot be created.
+	 */
+	public SPNegoServices() throws GSSException {
+		this(DEFAULT_REFRESH_INTERVAL_SECONDS);
+	}
+
+	/**
+	 * Constructs a new SPNegoServices that accepts SPNego and Kerberos tokens.
+	 *
+	 * @param refreshIntervalSeconds the number of seconds after which a
+	 * credential that never expires is acquired again.
+	 * @throws GSSException if the mechanism Oids cannot be created.
+	 */
+	public SPNegoServices(long refreshIntervalSeconds) throws GSSException {
+		this(null, null, refreshIntervalSeconds, 0);
+	}
+
+	/**
+	 * Constructs a new SPNegoServices that accepts SPNego and Kerberos tokens
+	 * with the keys of the given principal in the given keytab.
+	 *
+	 * @param keyTab the keytab file.
+	 * @param principal the name of the service principal, for example
+	 * {@code HTTP/host.name@MYDOMAIN.COM}.
+	 * @throws GSSException if the mechanism Oids cannot be created.
+	 */
+	public SPNegoServices(File keyTab, String principal) throws GSSException {
+		this(keyTab, principal, DEFAULT_REFRESH_INTERVAL_SECONDS,
+				DEFAULT_GRACE_PERIOD_SECONDS);
+	}
+
+	/**
+	 * Constructs a new SPNegoServices that accepts SPNego and Kerberos tokens
+	 * with the keys of the given principal in the given keytab.
+	 *
+	 * @param keyTab the keytab file.
+	 * @param principal the name of the service principal, for example
+	 * {@code HTTP/host.name@MYDOMAIN.COM}.
+	 * @param refreshIntervalSeconds the number of seconds after which the
+	 * keytab is read again.
+	 * @param gracePeriodSeconds the number of seconds that keys removed from
+	 * the keytab are still accepted.
+	 * @throws GSSException if the mechanism Oids cannot be created.
+	 */
+	public SPNegoServices(File keyTab, String principal,
+			long refreshIntervalSeconds, long gracePeriodSeconds)
+			throws GSSException {
+
+		if (refreshIntervalSeconds <= 0) {
+			throw new IllegalArgumentException(
+				"refreshIntervalSeconds must be positive"
+			);
+		}
+
+		if (gracePeriodSeconds < 0) {
+			throw new IllegalArgumentException(
+				"gracePeriodSeconds must not be negative"
+			);
+		}
+
+		if ((keyTab == null) != (principal == null)) {
+			throw new IllegalArgumentException(
+				"keyTab and principal must be set together"
+			);
+		}
+
+		this.acceptorMechOids = new Oid[] {
+			new Oid(SPNEGO_MECH_OID),
+			new Oid(AuthenticationType.KRB5.getOidValue())
+		};
+		this.refreshIntervalMillis =
+				TimeUnit.SECONDS.toMillis(refreshIntervalSeconds);
+		this.keyTab = keyTab;
+		this.principal = principal == null ? null :
+				new KerberosPrincipal(principal);
+		this.gracePeriodMillis = TimeUnit.SECONDS.toMillis(gracePeriodSeconds);
+	}
+
+	/**
+	 * Validates the given SPNego token with the cached acceptor credential.
+	 *
+	 * @param spnegoToken the Base64 encoded SPNego token.
+	 * @return an SPNegoServer holding the result of the validation.
+	 * @throws GSSException if the credential cannot be acquired or the token
+	 * cannot be accepted.
+	 */
+	public SPNegoServer accept(String spnegoToken) throws GSSException {
+
+		byte[] token = decode(spnegoToken);
+		String ticketKey = checkToken(token);
+
+		final GSSContext gssContext =
+				gssManager.createContext(getServerCredential());
+		SPNegoServer server = AuthenticationThreads.callPinning("SPNegoServer",
+				() -> new SPNegoServer(gssContext, token, false));
+		recordAuthenticator(token, null);
+		rememberTicket(ticketKey, server);
+
+		return server;
+	}
+
+	/**
+	 * Validates the given SPNego token as the next token of a negotiation that
+	 * may need more than one token.  If the token continues a negotiation
+	 * stored under the given key, it is accepted on the stored context.  If
+	 * the context is still not established afterwards, it is stored again
+	 * under the key and the result {@link SPNegoServer#isContinueNeeded()
+	 * needs another token}.
+	 *
+	 * @param spnegoToken the Base64 encoded SPNego token.
+	 * @param negotiations the store of negotiations in progress.
+	 * @param key the key of the negotiation, for example an identifier of the
+	 * client's connection.
+	 * @return an SPNegoServer holding the result of the validation.
+	 * @throws GSSException if the credential cannot be acquired or the token
+	 * cannot be accepted.  The negotiation is abandoned in that case.
+	 */
+	public SPNegoServer accept(String spnegoToken,
+			SPNegoNegotiations negotiations, String key) throws GSSException {
+
+		byte[] token = decode(spnegoToken);
+		String ticketKey = checkToken(token);
+
+		GSSContext taken = negotiations.take(key);
+		if (taken == null) {
+			taken = gssManager.createContext(getServerCredential());
+		} else if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Continuing negotiation %s", key));
+		}
+
+		final GSSContext gssContext = taken;
+		SPNegoServer server = AuthenticationThreads.callPinning("SPNegoServer",
+				() -> new SPNegoServer(gssContext, token, true));
+		recordAuthenticator(token,
+				server.isContinueNeeded() ? gssContext : null);
+		if (server.isContinueNeeded()) {
+			negotiations.put(key, gssContext);
+		}
+		rememberTicket(ticketKey, server);
+
+		return server;
+	}
+
+	private byte[] decode(String spnegoToken) throws GSSException {
+
+		SPNegoTokenValidator validator = tokenValidator;
+		return validator == null ? Base64.decodeBase64(spnegoToken) :
+				validator.decode(spnegoToken);
+	}
+
+	/**
+	 * Checks the token against the replay cache and the ticket cache, if
+	 * they are set, before it is handed to the acceptor.  The authenticator
+	 * is not recorded here, since the token has not been verified yet.  With
+	 * a replay cache, a token whose authenticator cannot be found is refused,
+	 * since the acceptor might still accept it.
+	 *
+	 * @return the ticket cache key of the token, or {@code null}.
+	 */
+	private String checkToken(byte[] token) throws GSSException {
+
+		KerberosReplayCache replays = replayCache;
+		if (replays != null) {
+			if (!replays.isCheckable(token)) {
+				throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+			}
+			if (replays.isReplay(token)) {
+				throw new GSSException(GSSException.DUPLICATE_TOKEN);
+			}
+		}
+
+		TicketExpiryCache tickets = ticketCache;
+		if (tickets == null) {
+			return null;
+		}
+
+		String ticketKey = TicketExpiryCache.getTicketKey(token);
+		if (ticketKey != null) {
+			tickets.check(ticketKey, System.currentTimeMillis());
+		}
+		return ticketKey;
+	}
+
+	/**
+	 * Records the authenticator of a token the acceptor has accepted.  The
+	 * record is atomic, so of two requests racing with the same token only
+	 * one is accepted.
+	 *
+	 * @param incompleteContext the context kept for the next token of the
+	 * negotiation, disposed if the token is rejected, or {@code null}.
+	 */
+	private void recordAuthenticator(byte[] token,
+			GSSContext incompleteContext) throws GSSException {
+
+		KerberosReplayCache replays = replayCache;
+		if (replays == null) {
+			return;
+		}
+
+		KerberosReplayCache.Result result =
+				replays.store(token, System.currentTimeMillis());
+		if (result == KerberosReplayCache.Result.STORED) {
+			return;
+		}
+
+		if (incompleteContext != null) {
+			incompleteContext.dispose();
+		}
+
+		if (result == KerberosReplayCache.Result.REPLAY) {
+			throw new GSSException(GSSException.DUPLICATE_TOKEN);
+		}
+		if (result == KerberosReplayCache.Result.DEFECTIVE) {
+			throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+		}
+		throw new GSSException(GSSException.UNAVAILABLE, 0,
+				"The replay cache is full");
+	}
+
+	private void rememberTicket(String ticketKey, SPNegoServer server) {
+
+		TicketExpiryCache tickets = ticketCache;
+		if (ticketKey != null && tickets != null && server.isValidToken()) {
+			tickets.put(ticketKey, server.getTicketEndTime());
+		}
+	}
+
+	/**
+	 * Sets the validator that rejects malformed, oversized and NTLM tokens
+	 * before they reach the acceptor.  A validator may be shared by several
+	 * SPNegoServices.
+	 *
+	 * @param tokenValidator the validator, or {@code null} to hand every
+	 * token to the acceptor.
+	 */
+	public void setTokenValidator(SPNegoTokenValidator tokenValidator) {
+		this.tokenValidator = tokenValidator;
+	}
+
+	/**
+	 * @return the token validator, or {@code null} if there is none.
+	 */
+	public SPNegoTokenValidator getTokenValidator() {
+		return tokenValidator;
+	}
+
+	/**
+	 * Sets the cache the authenticators of accepted tokens are checked
+	 * against.  A replay cache may be shared by several SPNegoServices.
+	 *
+	 * @param replayCache the replay cache, or {@code null} to leave replay
+	 * detection to the JDK acceptor.
+	 * @see KerberosReplayCache#isJdkReplayCacheDisabled()
+	 */
+	public void setReplayCache(KerberosReplayCache replayCache) {
+		this.replayCache = replayCache;
+	}
+
+	/**
+	 * @return the replay cache, or {@code null} if there is none.
+	 */
+	public KerberosReplayCache getReplayCache() {
+		return replayCache;
+	}
+
+	/**
+	 * Sets the cache of the end times of service tickets verified by this
+	 * acceptor.  A ticket cache may be shared by several SPNegoServices.
+	 *
+	 * @param ticketCache the ticket cache, or {@code null}.
+	 */
+	public void setTicketCache(TicketExpiryCache ticketCache) {
+		this.ticketCache = ticketCache;
+	}
+
+	/**
+	 * @return the ticket cache, or {@code null} if there is none.
+	 */
+	public TicketExpiryCache getTicketCache() {
+		return ticketCache;
+	}
+
+	/**
+	 * Discards the cached acceptor credential.  The next call to
+	 * {@link #accept(String) accept} acquires a new one.
+	 */
+	public void invalidate() {
+		acceptorCredential = null;
+	}
+
+	/**
+	 * Acquires a new acceptor credential and swaps it in.  Threads that are
+	 * accepting tokens with the current credential are not blocked and finish
+	 * with the credential they started with.
+	 *
+	 * @throws GSSException if the credential cannot be acquired.  The current
+	 * credential is kept in that case.
+	 */
+	public void reload() throws GSSException {
+
+		refreshLock.lock();
+
+		try {
+
+			acceptorCredential =
+					acquireServerCredential(System.currentTimeMillis());
+
+		} finally {
+			refreshLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the name of the service principal, or {@code null} if the
+	 * default acceptor configuration is used.
+	 */
+	public String getPrincipal() {
+		return principal == null ? null : principal.getName();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s for %s", getClass().getSimpleName(),
+				principal == null ? "default acceptor" : principal.getName());
+	}
+
+	GSSCredential getServerCredential() throws GSSException {
+
+		AcceptorCredential current = acceptorCredential;
+		long now = System.currentTimeMillis();
+
+		if (current != null && now < current.refreshAt) {
+			return current.credential;
+		}
+
+		// Only one thread refreshes.  Everyone else keeps using the current
+		// credential for as long as it is still valid.
+		if (current != null && now < current.expiresAt) {
+			if (!refreshLock.tryLock()) {
+				return current.credential;
+			}
+		} else {
+			refreshLock.lock();
+		}
+
+		try {
+
+			current = acceptorCredential;
+			if (current != null && now < current.refreshAt) {
+				return current.credential;
+			}
+
+			try {
+
+				acceptorCredential = acquireServerCredential(now);
+				return acceptorCredential.credential;
+
+			} catch (GSSException ex) {
+
+				if (current == null || now >= current.expiresAt) {
+					throw ex;
+				}
+
+				if (logger.isWarnEnabled()) {
+					logger.warn(String.format(
+						"Could not refresh acceptor credential, using the "
+						+ "current one: %s", ex.getMessage()));
+				}
+				return current.credential;
+			}
+
+		} finally {
+			refreshLock.unlock();
+		}
+	}
+
+	private AcceptorCredential acquireServerCredential(long now)
+			throws GSSException {
+
+		GSSCredential credential;
+		Set<KerberosKey> keys = Collections.emptySet();
+		Map<KerberosKey, Long> retiredKeys = Collections.emptyMap();
+		long retireAt = Long.MAX_VALUE;
+
+		if (keyTab == null) {
+
+			credential = gssManager.createCredential(null,
+					GSSCredential.DEFAULT_LIFETIME, acceptorMechOids,
+					GSSCredential.ACCEPT_ONLY);
+
+		} else {
+
+			keys = readKeys();
+			retiredKeys = retireKeys(acceptorCredential, keys, now);
+
+			Set<KerberosKey> acceptedKeys = new HashSet<>(keys);
+			acceptedKeys.addAll(retiredKeys.keySet());
+			credential = createKeyTabCredential(acceptedKeys);
+
+			for (Long at : retiredKeys.values()) {
+				retireAt = Math.min(retireAt, at);
+			}
+		}
+
+		int lifetime = GSSCredential.INDEFINITE_LIFETIME;
+		for (Oid mech : acceptorMechOids) {
+			lifetime = Math.min(lifetime,
+					credential.getRemainingAcceptLifetime(mech));
+		}
+
+		long expiresAt = Long.MAX_VALUE;
+		long refreshAt = now + refreshIntervalMillis;
+
+		if (lifetime != GSSCredential.INDEFINITE_LIFETIME) {
+			expiresAt = now + TimeUnit.SECONDS.toMillis(lifetime);
+			refreshAt = Math.min(refreshAt, expiresAt - REFRESH_MARGIN_MILLIS);
+		}
+
+		// Rebuild the credential without the retired keys once their grace
+		// period is over.
+		refreshAt = Math.min(refreshAt, retireAt);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format(
+				"Acquired acceptor credential %s, lifetime = %d seconds, "
+				+ "retired keys = %d",
+				credential.getName(), lifetime, retiredKeys.size()));
+		}
+
+		return new AcceptorCredential(credential, refreshAt, expiresAt, keys,
+				retiredKeys);
+	}
+
+	private Set<KerberosKey> readKeys() throws GSSException {
+
+		KerberosKey[] keys = KeyTab.getInstance(keyTab).getKeys(principal);
+
+		if (keys.length == 0) {
+			throw new GSSException(GSSException.NO_CRED, -1,
+				String.format("No keys for %s in %s", principal, keyTab));
+		}
+
+		return new HashSet<>(Arrays.asList(keys));
+	}
+
+	private Map<KerberosKey, Long> retireKeys(AcceptorCredential previous,
+			Set<KerberosKey> keys, long now) {
+
+		Map<KerberosKey, Long> retiredKeys = new HashMap<>();
+
+		if (previous == null || gracePeriodMillis == 0) {
+			return retiredKeys;
+		}
+
+		for (Map.Entry<KerberosKey, Long> retired :
+				previous.retiredKeys.entrySet()) {
+			if (retired.getValue() > now && !keys.contains(retired.getKey())) {
+				retiredKeys.put(retired.getKey(), retired.getValue());
+			}
+		}
+
+		for (KerberosKey key : previous.keys) {
+			if (!keys.contains(key)) {
+				retiredKeys.put(key, now + gracePeriodMillis);
+			}
+		}
+
+		return retiredKeys;
+	}
+
+	private GSSCredential createKeyTabCredential(Set<KerberosKey> keys)
+			throws GSSException {
+
+		final GSSName name = gssManager.createName(principal.getName(),
+				new Oid(KRB5_PRINCIPAL_NAME_OID));
+
+		Subject subject = new Subject();
+		subject.getPrincipals().add(principal);
+		subject.getPrivateCredentials().addAll(keys);
+
+		return SubjectPropagation.callAs(subject,
+				() -> gssManager.createCredential(name,
+						GSSCredential.DEFAULT_LIFETIME, acceptorMechOids,
+						GSSCredential.ACCEPT_ONLY));
+	}
+
+	/**
+	 * An acquired credential, the times at which it goes stale and, for
+	 * keytab based credentials, the keys it was built from.
+	 */
+	private static final class AcceptorCredential {
+
+		private final GSSCredential credential;
+
+		private final long refreshAt;
+
+		private final long expiresAt;
+
+		private final Set<KerberosKey> keys;
+
+		private final Map<KerberosKey, Long> retiredKeys;
+
+		AcceptorCredential(GSSCredential credential, long refreshAt,
+				long expiresAt, Set<KerberosKey> keys,
+				Map<KerberosKey, Long> retiredKeys) {
+			this.credential = credential;
+			this.refreshAt = refreshAt;
+			this.expiresAt = expiresAt;
+			this.keys = keys;
+			this.retiredKeys = retiredKeys;
+		}
+	}
 }
@@ -0,0 +1,464 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+/**
+ * Finds the parts of SPNego and Kerberos GSS tokens that jaasmine looks at
+ * before handing a token to the JGSS acceptor.
+ *
+ * Only the outer DER structure is read; nothing is decrypted.  The parser
+ * works on the token bytes in place and never copies them.  Methods return
+ * {@code null} for tokens that do not have the expected structure.
+ *
+ * The parser only accepts DER, but the JDK acceptor decodes the AP-REQ as
+ * BER, which allows indefinite lengths.  A token the parser cannot read may
+ * therefore still be accepted, so callers that depend on finding the
+ * authenticator, like {@link KerberosReplayCache}, must refuse such tokens
+ * rather than leave them to the acceptor.
+ */
+final class SPNegoTokenParser {
+
+	/** DER encoding of the SPNego Oid 1.3.6.1.5.5.2. */
+	private static final byte[] SPNEGO_OID = {
+		0x2b, 0x06, 0x01, 0x05, 0x05, 0x02
+	};
+
+	/** DER encoding of the Kerberos V5 Oid 1.2.840.113554.1.2.2. */
+	private static final byte[] KRB5_OID = {
+		0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x12, 0x01, 0x02,
+		0x02
+	};
+
+	/** DER encoding of the Microsoft Kerberos Oid 1.2.840.48018.1.2.2. */
+	private static final byte[] MS_KRB5_OID = {
+		0x2a, (byte) 0x86, 0x48, (byte) 0x82, (byte) 0xf7, 0x12, 0x01, 0x02,
+		0x02
+	};
+
+	private static final int GSS_TOKEN_TAG = 0x60;
+
+	private static final int NEG_TOKEN_INIT_TAG = 0xa0;
+
+	private static final int NEG_TOKEN_RESP_TAG = 0xa1;
+
+	private static final int AP_REQ_TAG = 0x6e;
+
+	private static final int SEQUENCE_TAG = 0x30;
+
+	private static final int OID_TAG = 0x06;
+
+	private static final int OCTET_STRING_TAG = 0x04;
+
+	/**
+	 * The tag of the mechToken of a NegTokenInit and of the responseToken of
+	 * a NegTokenResp.
+	 */
+	private static final int MECH_TOKEN_TAG = 0xa2;
+
+	/** The signature that starts every NTLMSSP message. */
+	private static final byte[] NTLMSSP_SIGNATURE = {
+		'N', 'T', 'L', 'M', 'S', 'S', 'P', 0
+	};
+
+	private SPNegoTokenParser() {
+		// Static methods only.
+	}
+
+	/**
+	 * Classifies a token by its framing.  The outermost element must cover
+	 * the whole token, the elements of the SPNego sequence must be well
+	 * formed, and a Kerberos token, alone or as the mechToken of an SPNego
+	 * token, must carry an AP-REQ whose authenticator can be found.
+	 *
+	 * @param token the token bytes.
+	 * @return the type of the token, never {@link SPNegoTokenType#OVERSIZED}.
+	 */
+	static SPNegoTokenType classify(byte[] token) {
+
+		if (startsWith(token, 0, token.length, NTLMSSP_SIGNATURE)) {
+			return SPNegoTokenType.NTLM;
+		}
+
+		int[] outer = element(token, 0, token.length, -1);
+		if (outer == null || outer[2] != token.length) {
+			return SPNegoTokenType.MALFORMED;
+		}
+
+		switch (outer[0]) {
+
+		case NEG_TOKEN_RESP_TAG:
+			return classifyNegToken(token, outer,
+					SPNegoTokenType.SPNEGO_RESPONSE);
+
+		case GSS_TOKEN_TAG:
+			int[] oid = element(token, outer[1], outer[2], OID_TAG);
+			if (oid == null) {
+				return SPNegoTokenType.MALFORMED;
+			}
+
+			if (equals(token, oid, SPNEGO_OID)) {
+				return classifyNegTokenInit(token, oid[2], outer[2]);
+			}
+
+			if ((equals(token, oid, KRB5_OID) ||
+					equals(token, oid, MS_KRB5_OID)) &&
+					isKerberosToken(token, 0, token.length)) {
+				return SPNegoTokenType.KERBEROS;
+			}
+
+			return SPNegoTokenType.MALFORMED;
+
+		default:
+			return SPNegoTokenType.MALFORMED;
+		}
+	}
+
+	/**
+	 * @return the type of the NegTokenInit in the given range.
+	 */
+	private static SPNegoTokenType classifyNegTokenInit(byte[] token,
+			int start, int end) {
+
+		int[] negTokenInit = element(token, start, end, NEG_TOKEN_INIT_TAG);
+		if (negTokenInit == null || negTokenInit[2] != end) {
+			return SPNegoTokenType.MALFORMED;
+		}
+
+		return classifyNegToken(token, negTokenInit,
+				SPNegoTokenType.SPNEGO_INIT);
+	}
+
+	/**
+	 * @return the given type if the sequence of the NegTokenInit or
+	 * NegTokenResp is well formed and its mechToken, if any, is a Kerberos
+	 * token; NTLM if the mechToken is an NTLMSSP message; or else MALFORMED.
+	 */
+	private static SPNegoTokenType classifyNegToken(byte[] token,
+			int[] negToken, SPNegoTokenType type) {
+
+		int[] sequence = element(token, negToken[1], negToken[2],
+				SEQUENCE_TAG);
+		if (sequence == null || sequence[2] != negToken[2]) {
+			return SPNegoTokenType.MALFORMED;
+		}
+
+		int[] mechToken = null;
+		int pos = sequence[1];
+		while (pos < sequence[2]) {
+			int[] e = element(token, pos, sequence[2], -1);
+			if (e == null) {
+				return SPNegoTokenType.MALFORMED;
+			}
+			if (e[0] == MECH_TOKEN_TAG && mechToken == null) {
+				mechToken = e;
+			}
+			pos = e[2];
+		}
+
+		if (mechToken == null) {
+			return type;
+		}
+
+		int[] octets = element(token, mechToken[1], mechToken[2],
+				OCTET_STRING_TAG);
+		if (octets == null || octets[2] != mechToken[2]) {
+			return SPNegoTokenType.MALFORMED;
+		}
+
+		if (startsWith(token, octets[1], octets[2], NTLMSSP_SIGNATURE)) {
+			return SPNegoTokenType.NTLM;
+		}
+
+		return isKerberosToken(token, octets[1], octets[2]) ? type :
+				SPNegoTokenType.MALFORMED;
+	}
+
+	/**
+	 * @return true if the given range is exactly a Kerberos GSS token
+	 * carrying an AP-REQ whose authenticator can be found.
+	 */
+	private static boolean isKerberosToken(byte[] token, int start, int end) {
+
+		int[] gssToken = element(token, start, end, GSS_TOKEN_TAG);
+		if (gssToken == null || gssToken[2] != end) {
+			return false;
+		}
+
+		int[] apReq = findApReq(token, start, end, false);
+		return apReq != null && apReq[2] == end &&
+				findAuthenticatorCipher(token, apReq) != null;
+	}
+
+	/**
+	 * Tells whether a token carries no Kerberos AP-REQ at all, as opposed to
+	 * one that cannot be read.  Such a token is a well formed SPNego token
+	 * without a mechToken, like a NegTokenResp that only has a mechListMIC.
+	 *
+	 * @param token the token bytes.
+	 * @return true if the token is an SPNego token without a mechToken.
+	 */
+	static boolean isWithoutApReq(byte[] token) {
+
+		SPNegoTokenType type = classify(token);
+		return (type == SPNegoTokenType.SPNEGO_INIT ||
+				type == SPNegoTokenType.SPNEGO_RESPONSE) &&
+				findApReq(token, 0, token.length, true) == null;
+	}
+
+	/**
+	 * Finds the encrypted authenticator of the Kerberos AP-REQ carried by an
+	 * SPNego or Kerberos GSS token.
+	 *
+	 * @param token the token bytes.
+	 * @return the offset and length of the authenticator cipher text in the
+	 * token, or {@code null} if the token does not carry an AP-REQ.
+	 */
+	static int[] findAuthenticatorCipher(byte[] token) {
+
+		int[] apReq = findApReq(token, 0, token.length, true);
+		return apReq == null ? null : findAuthenticatorCipher(token, apReq);
+	}
+
+	/**
+	 * @return the offset and length of the authenticator cipher text of the
+	 * given AP-REQ element, or {@code null} if it cannot be found.
+	 */
+	private static int[] findAuthenticatorCipher(byte[] token, int[] apReq) {
+
+		// AP-REQ ::= [APPLICATION 14] SEQUENCE { ..., authenticator [4]
+		// EncryptedData }
+		int[] sequence = element(token, apReq[1], apReq[2], SEQUENCE_TAG);
+		int[] apReqPart = sequence == null ? null :
+				child(token, sequence[1], sequence[2], 0xa4);
+		int[] encryptedData = apReqPart == null ? null :
+				element(token, apReqPart[1], apReqPart[2], SEQUENCE_TAG);
+
+		return encryptedData == null ? null :
+				findCipher(token, encryptedData);
+	}
+
+	/**
+	 * Finds the encrypted part of the service ticket in the Kerberos AP-REQ
+	 * carried by an SPNego or Kerberos GSS token.
+	 *
+	 * @param token the token bytes.
+	 * @return the offset and length of the ticket cipher text in the token,
+	 * or {@code null} if the token does not carry an AP-REQ.
+	 */
+	static int[] findTicketCipher(byte[] token) {
+
+		// AP-REQ ::= [APPLICATION 14] SEQUENCE { ..., ticket [3] Ticket },
+		// Ticket ::= [APPLICATION 1] SEQUENCE { ..., enc-part [3]
+		// EncryptedData }
+		int[] apReqPart = findApReqPart(token, 0xa3);
+		int[] ticket = apReqPart == null ? null :
+				element(token, apReqPart[1], apReqPart[2], 0x61);
+		int[] sequence = ticket == null ? null :
+				element(token, ticket[1], ticket[2], SEQUENCE_TAG);
+		int[] encPart = sequence == null ? null :
+				child(token, sequence[1], sequence[2], 0xa3);
+		int[] encryptedData = encPart == null ? null :
+				element(token, encPart[1], encPart[2], SEQUENCE_TAG);
+
+		return encryptedData == null ? null :
+				findCipher(token, encryptedData);
+	}
+
+	/**
+	 * @return the element of the AP-REQ in the token with the given context
+	 * tag, or {@code null} if there is none.
+	 */
+	private static int[] findApReqPart(byte[] token, int tag) {
+
+		int[] apReq = findApReq(token, 0, token.length, true);
+		int[] sequence = apReq == null ? null :
+				element(token, apReq[1], apReq[2], SEQUENCE_TAG);
+
+		return sequence == null ? null :
+				child(token, sequence[1], sequence[2], tag);
+	}
+
+	/**
+	 * @return the offset and length of the cipher text of an EncryptedData
+	 * sequence, or {@code null} if it has none.
+	 */
+	private static int[] findCipher(byte[] token, int[] encryptedData) {
+
+		// EncryptedData ::= SEQUENCE { ..., cipher [2] OCTET STRING }
+		int[] cipher = child(token, encryptedData[1], encryptedData[2], 0xa2);
+		int[] octets = cipher == null ? null :
+				element(token, cipher[1], cipher[2], OCTET_STRING_TAG);
+
+		return octets == null ? null :
+				new int[] { octets[1], octets[2] - octets[1] };
+	}
+
+	/**
+	 * @param spnego {@code false} inside an SPNego mechToken, which cannot
+	 * itself be SPNego.
+	 * @return the AP-REQ element in the given range, looking through SPNego
+	 * and GSS framing, or {@code null} if there is none.
+	 */
+	private static int[] findApReq(byte[] token, int start, int end,
+			boolean spnego) {
+
+		int[] outer = element(token, start, end, -1);
+		if (outer == null) {
+			return null;
+		}
+
+		switch (outer[0]) {
+
+		case AP_REQ_TAG:
+			return outer;
+
+		case NEG_TOKEN_RESP_TAG:
+			return spnego ? findMechToken(token, outer) : null;
+
+		case GSS_TOKEN_TAG:
+			int[] oid = element(token, outer[1], outer[2], OID_TAG);
+			if (oid == null) {
+				return null;
+			}
+
+			if (spnego && equals(token, oid, SPNEGO_OID)) {
+
+				int[] negTokenInit = element(token, oid[2], outer[2],
+						NEG_TOKEN_INIT_TAG);
+				return negTokenInit == null ? null :
+						findMechToken(token, negTokenInit);
+
+			} else if (equals(token, oid, KRB5_OID) ||
+					equals(token, oid, MS_KRB5_OID)) {
+
+				// The two byte token id of a krb5 AP-REQ is 01 00.
+				int tokenId = oid[2];
+				if (tokenId + 2 > outer[2] || token[tokenId] != 0x01 ||
+						token[tokenId + 1] != 0x00) {
+					return null;
+				}
+				return element(token, tokenId + 2, outer[2], AP_REQ_TAG);
+			}
+			return null;
+
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the AP-REQ in the mechToken (NegTokenInit) or responseToken
+	 * (NegTokenResp) of the given SPNego element.
+	 */
+	private static int[] findMechToken(byte[] token, int[] negToken) {
+
+		int[] sequence = element(token, negToken[1], negToken[2],
+				SEQUENCE_TAG);
+		int[] mechToken = sequence == null ? null :
+				child(token, sequence[1], sequence[2], MECH_TOKEN_TAG);
+		int[] octets = mechToken == null ? null :
+				element(token, mechToken[1], mechToken[2], OCTET_STRING_TAG);
+
+		return octets == null ? null : findApReq(token, octets[1], octets[2],
+				false);
+	}
+
+	/**
+	 * @return the first element in the given range with the given tag.
+	 */
+	private static int[] child(byte[] token, int start, int end, int tag) {
+
+		int pos = start;
+		while (pos < end) {
+			int[] e = element(token, pos, end, -1);
+			if (e == null) {
+				return null;
+			}
+			if (e[0] == tag) {
+				return e;
+			}
+			pos = e[2];
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the DER element starting at the given position.
+	 *
+	 * @param tag the expected tag, or -1 for any tag.
+	 * @return the tag, the start and the end of the element's contents, or
+	 * {@code null} if there is no well formed element with the tag.
+	 */
+	static int[] element(byte[] token, int pos, int end, int tag) {
+
+		if (pos + 2 > end) {
+			return null;
+		}
+
+		int actualTag = token[pos] & 0xff;
+		if (tag >= 0 && actualTag != tag) {
+			return null;
+		}
+
+		int length = token[pos + 1] & 0xff;
+		int contents = pos + 2;
+
+		if (length > 0x80) {
+
+			int octets = length & 0x7f;
+			if (octets > 3 || contents + octets > end) {
+				return null;
+			}
+
+			length = 0;
+			for (int i = 0; i < octets; i++) {
+				length = (length << 8) | (token[contents++] & 0xff);
+			}
+
+		} else if (length == 0x80) {
+
+			// Indefinite lengths are not allowed in DER.
+			return null;
+		}
+
+		if (length > end - contents) {
+			return null;
+		}
+
+		return new int[] { actualTag, contents, contents + length };
+	}
+
+	private static boolean startsWith(byte[] token, int start, int end,
+			byte[] value) {
+
+		if (end - start < value.length) {
+			return false;
+		}
+
+		for (int i = 0; i < value.length; i++) {
+			if (token[start + i] != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean equals(byte[] token, int[] element, byte[] value) {
+		return element[2] - element[1] == value.length &&
+				startsWith(token, element[1], element[2], value);
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+/**
+ * The kinds of tokens found in an {@code Authorization: Negotiate} header.
+ */
+public enum SPNegoTokenType {
+
+	/** An SPNego NegTokenInit, normally carrying a Kerberos AP-REQ. */
+	SPNEGO_INIT(true),
+
+	/** An SPNego NegTokenResp, sent in later legs of a negotiation. */
+	SPNEGO_RESPONSE(true),
+
+	/** A Kerberos GSS token without SPNego framing. */
+	KERBEROS(true),
+
+	/** An NTLMSSP message, which the acceptor does not support. */
+	NTLM(false),
+
+	/** A token larger than the configured maximum. */
+	OVERSIZED(false),
+
+	/** Anything else: bad Base64, truncated or malformed DER. */
+	MALFORMED(false);
+
+	private final boolean acceptable;
+
+	SPNegoTokenType(boolean acceptable) {
+		this.acceptable = acceptable;
+	}
+
+	/**
+	 * @return true if tokens of this type are handed to the acceptor.
+	 */
+	public boolean isAcceptable() {
+		return acceptable;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Decodes Base64 encoded SPNego tokens and rejects the ones the acceptor
+ * cannot handle before they reach JGSS.
+ *
+ * A token is rejected if it is larger than the maximum size (checked before
+ * it is decoded), if it is not valid Base64, if it is an NTLMSSP message
+ * (alone or inside an SPNego NegTokenInit), or if its outer DER framing is
+ * malformed.  The check reads each byte of the token at most once and does
+ * not decrypt anything.  Rejections are counted by {@link SPNegoTokenType}.
+ */
+public class SPNegoTokenValidator {
+
+	/**
+	 * The default maximum decoded token size, the largest {@code MaxTokenSize}
+	 * that Windows clients can be configured with.
+	 */
+	public static final int DEFAULT_MAXIMUM_TOKEN_BYTES = 65535;
+
+	private final int maximumTokenBytes;
+
+	private final Map<SPNegoTokenType, AtomicLong> rejectedCounts =
+			new EnumMap<>(SPNegoTokenType.class);
+
+	/**
+	 * Constructs a new SPNegoTokenValidator that accepts tokens up to
+	 * {@link #DEFAULT_MAXIMUM_TOKEN_BYTES} bytes.
+	 */
+	public SPNegoTokenValidator() {
+		this(DEFAULT_MAXIMUM_TOKEN_BYTES);
+	}
+
+	/**
+	 * Constructs a new SPNegoTokenValidator.
+	 *
+	 * @param maximumTokenBytes the maximum size of a decoded token.
+	 */
+	public SPNegoTokenValidator(int maximumTokenBytes) {
+
+		if (maximumTokenBytes <= 0) {
+			throw new IllegalArgumentException(
+				"maximumTokenBytes must be positive"
+			);
+		}
+
+		this.maximumTokenBytes = maximumTokenBytes;
+		for (SPNegoTokenType type : SPNegoTokenType.values()) {
+			rejectedCounts.put(type, new AtomicLong());
+		}
+	}
+
+	/**
+	 * Decodes and checks a token.
+	 *
+	 * @param encodedToken the Base64 encoded token.
+	 * @return the decoded token.
+	 * @throws InvalidSPNegoTokenException if the token is rejected.
+	 */
+	public byte[] decode(String encodedToken)
+			throws InvalidSPNegoTokenException {
+
+		if (encodedToken == null || encodedToken.isEmpty() ||
+				!isBase64(encodedToken)) {
+			throw reject(SPNegoTokenType.MALFORMED);
+		}
+
+		// Four Base64 characters encode three bytes, less one for each
+		// padding character.
+		if (decodedLength(encodedToken) > maximumTokenBytes) {
+			throw reject(SPNegoTokenType.OVERSIZED);
+		}
+
+		byte[] token = Base64.decodeBase64(encodedToken);
+
+		SPNegoTokenType type = SPNegoTokenParser.classify(token);
+		if (!type.isAcceptable()) {
+			throw reject(type);
+		}
+
+		return token;
+	}
+
+	/**
+	 * @param type a token type.
+	 * @return the number of tokens of the given type that were rejected.
+	 */
+	public long getRejectedCount(SPNegoTokenType type) {
+		return rejectedCounts.get(type).get();
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder sb = new StringBuilder(getClass().getSimpleName())
+			.append(": rejected");
+		for (Map.Entry<SPNegoTokenType, AtomicLong> entry :
+				rejectedCounts.entrySet()) {
+			sb.append(' ').append(entry.getKey()).append(" = ")
+				.append(entry.getValue().get());
+		}
+		return sb.toString();
+	}
+
+	private InvalidSPNegoTokenException reject(SPNegoTokenType type) {
+		rejectedCounts.get(type).incrementAndGet();
+		return new InvalidSPNegoTokenException(type);
+	}
+
+	/**
+	 * @return the number of bytes the Base64 value decodes to.
+	 */
+	private static long decodedLength(String value) {
+
+		int padding = 0;
+		for (int i = value.length() - 1; i >= 0 && value.charAt(i) == '='; i--) {
+			padding++;
+		}
+		return (long) value.length() * 3 / 4 - padding;
+	}
+
+	/**
+	 * @return true if the value only has Base64 characters and padding at the
+	 * end.
+	 */
+	private static boolean isBase64(String value) {
+
+		int length = value.length();
+		int end = length;
+		while (end > 0 && value.charAt(end - 1) == '=') {
+			end--;
+		}
+
+		if (length - end > 2) {
+			return false;
+		}
+
+		for (int i = 0; i < end; i++) {
+			char c = value.charAt(i);
+			if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') ||
+					(c >= '0' && c <= '9') || c == '+' || c == '/')) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
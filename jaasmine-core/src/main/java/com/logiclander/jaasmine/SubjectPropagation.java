@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+
+import javax.security.auth.Subject;
+
+/**
+ * Runs work as an authenticated Subject and tells the work which Subject it
+ * runs as.
+ *
+ * {@link #callAs(Subject, SubjectAction) callAs} binds the Subject with
+ * {@code Subject.callAs} on Java runtimes that have it (Java 18 and later,
+ * where it is backed by a scoped value instead of the access control context
+ * from Java 23 on), and with {@code Subject.doAs} on older ones.  Either way,
+ * the JDK's own Kerberos and GSS-API code sees the Subject, so credentials
+ * in it are found as before.
+ *
+ * The Subject is also kept in a thread local variable for the duration of
+ * the call, so {@link #current()} is a single read instead of a walk of the
+ * access control context on every call.  Only work started through this
+ * class is visible there; for a Subject bound some other way,
+ * {@code current()} falls back to asking the JDK.  Work handed to an
+ * executor has to bind the Subject again.  Threads created during the call
+ * do inherit it before Java 23, through the access control context, so the
+ * library makes its own threads with
+ * {@link AuthenticationThreads#newThreadFactory(String)}, which leaves it
+ * behind.
+ *
+ * The {@code Subject.callAs} and {@code Subject.current} API is called
+ * reflectively so that this library still runs on Java 11.
+ */
+public final class SubjectPropagation {
+
+	/**
+	 * Work that runs as a Subject.
+	 *
+	 * @param <T> the result type.
+	 * @param <E> the checked exception type.
+	 */
+	public interface SubjectAction<T, E extends Exception> {
+
+		/**
+		 * @return the result.
+		 * @throws E if the work fails.
+		 */
+		T run() throws E;
+	}
+
+	private static final ThreadLocal<Subject> CURRENT = new ThreadLocal<>();
+
+	private static final MethodHandle CALL_AS;
+
+	private static final MethodHandle SUBJECT_CURRENT;
+
+	static {
+
+		MethodHandle callAs = null;
+		MethodHandle current = null;
+
+		try {
+
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			callAs = lookup.findStatic(Subject.class, "callAs",
+					MethodType.methodType(Object.class, Subject.class,
+							Callable.class));
+			current = lookup.findStatic(Subject.class, "current",
+					MethodType.methodType(Subject.class));
+
+		} catch (ReflectiveOperationException ex) {
+
+			// Java 17 or earlier.
+			callAs = null;
+			current = null;
+		}
+
+		CALL_AS = callAs;
+		SUBJECT_CURRENT = current;
+	}
+
+	private SubjectPropagation() {
+		// Static methods only.
+	}
+
+	/**
+	 * @return true if the Java runtime has {@code Subject.callAs}.
+	 */
+	public static boolean isCallAsSupported() {
+		return CALL_AS != null;
+	}
+
+	/**
+	 * Runs work as a Subject.  Exceptions thrown by the work are thrown
+	 * unwrapped.
+	 *
+	 * @param <T> the result type.
+	 * @param <E> the checked exception type.
+	 * @param subject the Subject, which may be {@code null}.
+	 * @param action the work.
+	 * @return the result of the work.
+	 * @throws E if the work fails.
+	 */
+	public static <T, E extends Exception> T callAs(Subject subject,
+			final SubjectAction<T, E> action) throws E {
+
+		Subject previous = CURRENT.get();
+		CURRENT.set(subject);
+		try {
+
+			if (CALL_AS != null) {
+				return SubjectPropagation.<T, E>callAsSubject(subject, action);
+			}
+			return SubjectPropagation.<T, E>doAsSubject(subject, action);
+
+		} finally {
+			if (previous == null) {
+				CURRENT.remove();
+			} else {
+				CURRENT.set(previous);
+			}
+		}
+	}
+
+	/**
+	 * @return the Subject of the innermost {@link #callAs(Subject,
+	 * SubjectAction) callAs} on this thread, or else the Subject the JDK has
+	 * bound to the current thread, or {@code null}.
+	 */
+	public static Subject current() {
+
+		Subject subject = CURRENT.get();
+		if (subject != null) {
+			return subject;
+		}
+
+		if (SUBJECT_CURRENT != null) {
+			try {
+				return (Subject) SUBJECT_CURRENT.invokeExact();
+			} catch (Throwable ex) {
+				return null;
+			}
+		}
+
+		return Subject.getSubject(AccessController.getContext());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T, E extends Exception> T callAsSubject(Subject subject,
+			final SubjectAction<T, E> action) throws E {
+
+		Callable<T> callable = new Callable<T>() {
+
+			@Override
+			public T call() throws E {
+				return action.run();
+			}
+		};
+
+		try {
+
+			return (T) CALL_AS.invokeExact(subject, callable);
+
+		} catch (CompletionException ex) {
+
+			// Subject.callAs wraps whatever the work throws.
+			return SubjectPropagation.<T, E>rethrow(
+					ex.getCause() == null ? ex : ex.getCause());
+
+		} catch (Throwable ex) {
+
+			return SubjectPropagation.<T, E>rethrow(ex);
+		}
+	}
+
+	private static <T, E extends Exception> T doAsSubject(Subject subject,
+			final SubjectAction<T, E> action) throws E {
+
+		try {
+
+			return Subject.doAs(subject, new PrivilegedExceptionAction<T>() {
+
+				@Override
+				public T run() throws E {
+					return action.run();
+				}
+			});
+
+		} catch (PrivilegedActionException ex) {
+
+			return SubjectPropagation.<T, E>rethrow(ex.getException());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T, E extends Exception> T rethrow(Throwable cause)
+			throws E {
+
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		// The action declares E and nothing else that is checked.
+		throw (E) cause;
+	}
+}
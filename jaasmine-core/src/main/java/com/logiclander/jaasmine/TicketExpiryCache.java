@@ -0,0 +1,175 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+import org.ietf.jgss.GSSException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers when the service tickets that an acceptor has verified expire,
+ * keyed by a digest of the ticket cipher text.
+ *
+ * Clients reuse a service ticket for many requests, changing only the
+ * authenticator.  For every ticket verified by the acceptor, this cache
+ * keeps the end time of the ticket.  Later AP-REQs carrying a ticket that is
+ * known to have expired are rejected before the ticket is decrypted again.
+ * An entry is forgotten once its ticket has expired.
+ *
+ * Tickets that are still valid are always verified by the JGSS acceptor.
+ * Verifying only the authenticator would need the session key of the ticket,
+ * and JGSS only reveals the initiator's subkey, which MIT and Windows clients
+ * always send.
+ */
+public class TicketExpiryCache {
+
+	/** The default maximum number of tickets remembered. */
+	public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+	/** The longest time a ticket is remembered, whatever its end time. */
+	private static final long MAXIMUM_LIFETIME_HOURS = 24;
+
+	private final Cache<String, Long> endTimes;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong expiredCount = new AtomicLong();
+
+	/**
+	 * Constructs a new TicketExpiryCache that remembers up to
+	 * {@link #DEFAULT_MAXIMUM_SIZE} tickets.
+	 */
+	public TicketExpiryCache() {
+		this(DEFAULT_MAXIMUM_SIZE);
+	}
+
+	/**
+	 * Constructs a new TicketExpiryCache.
+	 *
+	 * @param maximumSize the maximum number of tickets remembered.
+	 */
+	public TicketExpiryCache(long maximumSize) {
+
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException(
+				"maximumSize must be positive"
+			);
+		}
+
+		this.endTimes = CacheBuilder.newBuilder()
+			.expireAfterWrite(MAXIMUM_LIFETIME_HOURS, TimeUnit.HOURS)
+			.maximumSize(maximumSize)
+			.build();
+	}
+
+	/**
+	 * @return the number of AP-REQs whose ticket had been verified before.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of AP-REQs rejected because their ticket expired.
+	 */
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	/**
+	 * Forgets every ticket, for example after the service keys change.
+	 */
+	public void clear() {
+		endTimes.invalidateAll();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: tickets = %d, hits = %d, expired = %d",
+			getClass().getSimpleName(), endTimes.size(), getHitCount(),
+			getExpiredCount());
+	}
+
+	/**
+	 * @param token the decoded SPNego or Kerberos token.
+	 * @return the cache key of the ticket in the token, or {@code null} if the
+	 * token does not carry a ticket.
+	 */
+	static String getTicketKey(byte[] token) {
+
+		int[] cipher = SPNegoTokenParser.findTicketCipher(token);
+		if (cipher == null) {
+			return null;
+		}
+
+		try {
+
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(token, cipher[0], cipher[1]);
+			return new String(Base64.encodeBase64(md.digest()));
+
+		} catch (NoSuchAlgorithmException ex) {
+
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(ex);
+
+		}
+	}
+
+	/**
+	 * Rejects a ticket that is known to have expired.
+	 *
+	 * @param ticketKey the cache key of the ticket.
+	 * @param now the current time in milliseconds.
+	 * @throws GSSException if the ticket has expired.
+	 */
+	void check(String ticketKey, long now) throws GSSException {
+
+		Long endTime = endTimes.getIfPresent(ticketKey);
+		if (endTime == null) {
+			return;
+		}
+
+		if (now >= endTime.longValue()) {
+			endTimes.invalidate(ticketKey);
+			expiredCount.incrementAndGet();
+			throw new GSSException(GSSException.CREDENTIALS_EXPIRED);
+		}
+
+		hitCount.incrementAndGet();
+	}
+
+	/**
+	 * Remembers when a ticket verified by the acceptor expires.
+	 *
+	 * @param ticketKey the cache key of the ticket.
+	 * @param endTime the end time of the ticket in milliseconds.
+	 */
+	void put(String ticketKey, long endTime) {
+
+		if (endTime > System.currentTimeMillis()) {
+			endTimes.put(ticketKey, Long.valueOf(endTime));
+		}
+	}
+}
@@ -1,15 +1,44 @@
 package com.logiclander.jaasmine.authentication;
 
+import java.io.IOException;
+
+import javax.naming.CommunicationException;
+import javax.naming.ServiceUnavailableException;
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.Configuration;
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
 
+import com.logiclander.jaasmine.AuthenticationThreads;
+import com.logiclander.jaasmine.CircuitBreaker;
+
 /**
  * Base implementation of AuthenticationService.
  */
 public abstract class BaseAuthenticationService implements AuthenticationService {
 
+	private volatile CircuitBreaker circuitBreaker;
+
+	/**
+	 * Sets the CircuitBreaker that stops logins while the backend is failing.
+	 * Logins that fail because the backend could not be reached, or that are
+	 * slow, count as failures; logins with bad credentials do not.
+	 *
+	 * @param circuitBreaker the CircuitBreaker, or {@code null} to call the
+	 * backend regardless.
+	 */
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * @return the CircuitBreaker, or {@code null}.
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
 	/**
 	 * Performs the login.
 	 *
@@ -24,10 +53,25 @@ public abstract class BaseAuthenticationService implements AuthenticationService
 	Subject doLogin(String applicationName, CallbackHandler cbh)
 			throws LoginException {
 
-        LoginContext lc = new LoginContext(applicationName, cbh);
-        lc.login();
+        return login(new LoginContext(applicationName, cbh));
 
-        return lc.getSubject();
+	}
+
+	/**
+	 * Performs the login with a JAAS configuration that is not read from the
+	 * {@code java.security.auth.login.config} file.
+	 *
+	 * @param applicationName the name of the configuration entry to use.
+	 * @param cbh the CallbackHandler for performing the login.
+	 * @param configuration the JAAS configuration.
+	 * @return the user's Subject.
+	 * @throws LoginException if a problem occurs during login.
+	 */
+	Subject doLogin(String applicationName, CallbackHandler cbh,
+			Configuration configuration) throws LoginException {
+
+        return login(new LoginContext(applicationName, null, cbh,
+        		configuration));
 
 	}
 
@@ -48,4 +92,89 @@ public abstract class BaseAuthenticationService implements AuthenticationService
         lc.logout();
 	}
 
+	/**
+	 * Performs the logout with a JAAS configuration that is not read from the
+	 * {@code java.security.auth.login.config} file.
+	 *
+	 * @param applicationName the name of the configuration entry to use.
+	 * @param subject the Subject to logout.
+	 * @param configuration the JAAS configuration.
+	 * @throws LoginException if a problem occurs during logout.
+	 */
+	void doLogout(String applicationName, Subject subject,
+			Configuration configuration) throws LoginException {
+
+        LoginContext lc = new LoginContext(applicationName, subject,
+        		new NoOpCallbackHandler(), configuration);
+        lc.logout();
+	}
+
+	/**
+	 * Logs in through the CircuitBreaker, if one is set.
+	 *
+	 * @throws CircuitOpenException if the CircuitBreaker refuses the login.
+	 */
+	private Subject login(LoginContext lc) throws LoginException {
+
+		CircuitBreaker breaker = circuitBreaker;
+		if (breaker == null) {
+			callLogin(lc);
+			return lc.getSubject();
+		}
+
+		if (!breaker.tryAcquire()) {
+			throw new CircuitOpenException(breaker);
+		}
+
+		long start = System.nanoTime();
+		try {
+
+			callLogin(lc);
+			breaker.onSuccess(System.nanoTime() - start);
+			return lc.getSubject();
+
+		} catch (LoginException ex) {
+
+			if (isBackendFailure(ex)) {
+				breaker.onFailure(System.nanoTime() - start);
+			} else {
+				breaker.onSuccess(System.nanoTime() - start);
+			}
+			throw ex;
+
+		} catch (RuntimeException ex) {
+
+			breaker.onFailure(System.nanoTime() - start);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Login modules hold monitors while they talk to the backend, so the
+	 * login is kept off virtual threads.
+	 */
+	private static void callLogin(final LoginContext lc)
+			throws LoginException {
+
+		AuthenticationThreads.callPinning("LoginContext.login", () -> {
+			lc.login();
+			return null;
+		});
+	}
+
+	/**
+	 * A login failed because of the backend, rather than the credentials, if
+	 * a network or directory communication error caused it.
+	 */
+	static boolean isBackendFailure(Throwable ex) {
+
+		for (Throwable t = ex; t != null; t = t.getCause()) {
+			if (t instanceof IOException
+					|| t instanceof CommunicationException
+					|| t instanceof ServiceUnavailableException) {
+				return true;
+			}
+		}
+		return false;
+	}
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.Subject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.logiclander.jaasmine.AuthenticationThreads;
+
+/**
+ * An AuthenticationService that bounds the number of logins in progress with
+ * the backend and how long a caller waits for one.
+ *
+ * Logins run on a pool of daemon threads, one per allowed concurrent login,
+ * so a backend that stops answering ties up those threads and not the
+ * caller's.  A caller that finds every thread busy waits in a bounded queue;
+ * if the queue is full, or no thread frees up before the deadline, a
+ * {@link LoginRejectedException} is thrown without checking the
+ * credentials.  A login that has started but does not finish before the
+ * deadline throws a {@link LoginUndecidedException}, and keeps its thread
+ * until the backend answers.
+ *
+ * Instances of this class have a configurable commons-logging based logger
+ * named
+ * {@code com.logiclander.jaasmine.authentication.BulkheadAuthenticationService}.
+ */
+public class BulkheadAuthenticationService implements AuthenticationService,
+		Closeable {
+
+	private static final Log logger =
+			LogFactory.getLog(BulkheadAuthenticationService.class);
+
+	private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+	private final AuthenticationService delegate;
+
+	private final int maxConcurrent;
+
+	private final int maxQueued;
+
+	private final long timeoutNanos;
+
+	private final Semaphore permits;
+
+	private final ExecutorService executor;
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	/**
+	 * @param delegate the AuthenticationService that performs the logins.
+	 * @param maxConcurrent the number of logins that may be in progress.
+	 * @param maxQueued the number of logins that may wait for one in progress
+	 * to finish.
+	 * @param timeoutMillis the number of milliseconds a login may take,
+	 * including the time it waits in the queue.
+	 */
+	public BulkheadAuthenticationService(AuthenticationService delegate,
+			int maxConcurrent, int maxQueued, long timeoutMillis) {
+
+		if (maxConcurrent <= 0 || maxQueued < 0 || timeoutMillis <= 0) {
+			throw new IllegalArgumentException("maxConcurrent and timeoutMillis "
+					+ "must be positive and maxQueued must not be negative");
+		}
+
+		this.delegate = delegate;
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.permits = new Semaphore(maxConcurrent);
+
+		final int poolNumber = POOL_NUMBER.incrementAndGet();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrent,
+				maxConcurrent, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				AuthenticationThreads.newThreadFactory(
+						String.format("jaasmine-login-%d-", poolNumber)));
+		pool.allowCoreThreadTimeOut(true);
+		this.executor = pool;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws LoginRejectedException if too many logins are in progress.
+	 * @throws LoginUndecidedException if the login does not finish in time.
+	 */
+	@Override
+	public Subject login(final String userId, char[] password) {
+
+		long deadline = System.nanoTime() + timeoutNanos;
+
+		acquire(userId, deadline);
+
+		// The caller may clear the password once it stops waiting.
+		final char[] copy = password == null ? null : password.clone();
+		Future<Subject> login;
+		try {
+
+			login = executor.submit(() -> {
+				try {
+					return delegate.login(userId, copy);
+				} finally {
+					if (copy != null) {
+						Arrays.fill(copy, '\0');
+					}
+					permits.release();
+				}
+			});
+
+		} catch (RejectedExecutionException ex) {
+
+			permits.release();
+			throw reject(userId, "closed");
+		}
+
+		try {
+
+			return login.get(deadline - System.nanoTime(),
+					TimeUnit.NANOSECONDS);
+
+		} catch (TimeoutException ex) {
+
+			timeoutCount.incrementAndGet();
+			String msg = String.format("The login of %s timed out", userId);
+			if (logger.isInfoEnabled()) {
+				logger.info(msg);
+			}
+			throw new LoginUndecidedException(msg);
+
+		} catch (InterruptedException ex) {
+
+			Thread.currentThread().interrupt();
+			throw new LoginUndecidedException(String.format(
+					"Interrupted while waiting for the login of %s", userId));
+
+		} catch (ExecutionException ex) {
+
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new IllegalStateException(ex.getCause());
+		}
+	}
+
+	private void acquire(String userId, long deadline) {
+
+		if (permits.tryAcquire()) {
+			return;
+		}
+
+		if (queued.incrementAndGet() > maxQueued) {
+			queued.decrementAndGet();
+			throw reject(userId, "the queue is full");
+		}
+
+		try {
+
+			if (!permits.tryAcquire(deadline - System.nanoTime(),
+					TimeUnit.NANOSECONDS)) {
+				throw reject(userId, "no login finished in time");
+			}
+
+		} catch (InterruptedException ex) {
+
+			Thread.currentThread().interrupt();
+			throw reject(userId, "interrupted");
+
+		} finally {
+			queued.decrementAndGet();
+		}
+	}
+
+	private LoginRejectedException reject(String userId, String reason) {
+
+		rejectedCount.incrementAndGet();
+		String msg = String.format("Rejected the login of %s: %s", userId,
+				reason);
+		if (logger.isInfoEnabled()) {
+			logger.info(msg);
+		}
+		return new LoginRejectedException(msg);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void logout(Subject s) {
+		delegate.logout(s);
+	}
+
+	/**
+	 * @return the number of logins in progress with the backend.
+	 */
+	public int getActiveCount() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	/**
+	 * @return the number of logins waiting for one in progress to finish.
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of logins rejected without checking the credentials.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return the number of logins that did not finish before the deadline.
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * Stops the login threads once the logins in progress finish.  Later
+	 * logins are rejected.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s for %s: active = %d/%d, queued = %d/%d, "
+				+ "rejected = %d, timeouts = %d", getClass().getSimpleName(),
+				delegate, getActiveCount(), maxConcurrent, getQueueDepth(),
+				maxQueued, getRejectedCount(), getTimeoutCount());
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import java.util.Arrays;
+
+import javax.security.auth.Subject;
+
+/**
+ * An AuthenticationService that answers repeated logins with the same
+ * credentials from a {@link CredentialCache} instead of the backend.
+ *
+ * Only successful logins are remembered.  Logging out a Subject removes it
+ * from the cache.  Subjects answered from the cache are read-only copies;
+ * logging one out only forgets the login, since the login modules cannot
+ * log out a read-only Subject.
+ */
+public class CachingAuthenticationService implements AuthenticationService {
+
+	private final AuthenticationService delegate;
+
+	private final CredentialCache credentialCache;
+
+	/**
+	 * @param delegate the AuthenticationService that performs the logins.
+	 * @param credentialCache the cache of successful logins.
+	 */
+	public CachingAuthenticationService(AuthenticationService delegate,
+			CredentialCache credentialCache) {
+		this.delegate = delegate;
+		this.credentialCache = credentialCache;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Subject login(String userId, char[] password) {
+
+		if (userId == null) {
+			return delegate.login(userId, password);
+		}
+
+		Subject subject = credentialCache.get(userId, password);
+		if (subject != null) {
+			return subject;
+		}
+
+		// Keep a copy, in case the delegate clears the password.
+		char[] copy = password == null ? null : password.clone();
+		try {
+
+			subject = delegate.login(userId, password);
+			if (subject != null) {
+				credentialCache.put(userId, copy, subject);
+			}
+			return subject;
+
+		} finally {
+			if (copy != null) {
+				Arrays.fill(copy, '\0');
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void logout(Subject s) {
+		credentialCache.invalidate(s);
+		if (!s.isReadOnly()) {
+			delegate.logout(s);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s for %s", getClass().getSimpleName(),
+				delegate);
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import com.logiclander.jaasmine.CircuitBreaker;
+
+/**
+ * Thrown when a login is refused because the {@link CircuitBreaker} of the
+ * backend is open.
+ */
+public class CircuitOpenException extends LoginRejectedException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param breaker the CircuitBreaker that refused the login.
+	 */
+	public CircuitOpenException(CircuitBreaker breaker) {
+		super(String.format("The circuit breaker for %s is %s",
+				breaker.getName(), breaker.getState()));
+	}
+}
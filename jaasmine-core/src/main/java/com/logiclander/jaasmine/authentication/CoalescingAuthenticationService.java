@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.Subject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * An AuthenticationService that lets concurrent logins with the same
+ * credentials share one login with the backend.
+ *
+ * The first thread to log in with a user id and password performs the login;
+ * threads that arrive with the same credentials while it is in progress wait
+ * for it and get a read-only copy of its Subject, without its private
+ * credentials, or the same failure, so that logging out one of them leaves
+ * the others alone.  A waiting thread gives up after a timeout with a
+ * {@link LoginUndecidedException}, but the login in progress is not
+ * interrupted.  In-flight logins are keyed by an HMAC-SHA256 of the user id
+ * and password, so the password is not kept.
+ *
+ * Instances of this class have a configurable commons-logging based logger
+ * named
+ * {@code com.logiclander.jaasmine.authentication.CoalescingAuthenticationService}.
+ */
+public class CoalescingAuthenticationService implements AuthenticationService {
+
+	/** The default number of milliseconds a thread waits for a login. */
+	public static final long DEFAULT_WAIT_TIMEOUT_MILLIS = 30000;
+
+	private static final Log logger =
+			LogFactory.getLog(CoalescingAuthenticationService.class);
+
+	private final AuthenticationService delegate;
+
+	private final long waitTimeoutMillis;
+
+	private final CredentialHasher hasher = new CredentialHasher();
+
+	private final ConcurrentMap<HashCode, CompletableFuture<Subject>> inFlight =
+			new ConcurrentHashMap<>();
+
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	/**
+	 * Constructs a CoalescingAuthenticationService that waits up to
+	 * {@link #DEFAULT_WAIT_TIMEOUT_MILLIS} for a login in progress.
+	 *
+	 * @param delegate the AuthenticationService that performs the logins.
+	 */
+	public CoalescingAuthenticationService(AuthenticationService delegate) {
+		this(delegate, DEFAULT_WAIT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param delegate the AuthenticationService that performs the logins.
+	 * @param waitTimeoutMillis the number of milliseconds a thread waits for a
+	 * login in progress with the same credentials.
+	 */
+	public CoalescingAuthenticationService(AuthenticationService delegate,
+			long waitTimeoutMillis) {
+
+		if (waitTimeoutMillis <= 0) {
+			throw new IllegalArgumentException(
+				"waitTimeoutMillis must be positive"
+			);
+		}
+
+		this.delegate = delegate;
+		this.waitTimeoutMillis = waitTimeoutMillis;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Subject login(String userId, char[] password) {
+
+		if (userId == null) {
+			return delegate.login(userId, password);
+		}
+
+		HashCode key = hasher.hash(userId, password);
+		CompletableFuture<Subject> mine = new CompletableFuture<>();
+		CompletableFuture<Subject> current = inFlight.putIfAbsent(key, mine);
+
+		if (current != null) {
+			coalescedCount.incrementAndGet();
+			return Subjects.readOnlyCopy(await(userId, current));
+		}
+
+		try {
+
+			Subject subject = delegate.login(userId, password);
+			mine.complete(subject);
+			return subject;
+
+		} catch (Throwable ex) {
+
+			// Errors too, or the waiting threads would wait for the timeout.
+			mine.completeExceptionally(ex);
+			throw ex;
+
+		} finally {
+			inFlight.remove(key, mine);
+		}
+	}
+
+	private Subject await(String userId, CompletableFuture<Subject> login) {
+
+		try {
+
+			return login.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+
+		} catch (TimeoutException ex) {
+
+			timeoutCount.incrementAndGet();
+			String msg = String.format(
+					"Gave up waiting %d ms for the login of %s",
+					waitTimeoutMillis, userId);
+			if (logger.isInfoEnabled()) {
+				logger.info(msg);
+			}
+			throw new LoginUndecidedException(msg);
+
+		} catch (InterruptedException ex) {
+
+			Thread.currentThread().interrupt();
+			throw new LoginUndecidedException(String.format(
+					"Interrupted while waiting for the login of %s", userId));
+
+		} catch (ExecutionException ex) {
+
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			if (ex.getCause() instanceof Error) {
+				throw (Error) ex.getCause();
+			}
+			throw new IllegalStateException(ex.getCause());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void logout(Subject s) {
+		delegate.logout(s);
+	}
+
+	/**
+	 * @return the number of logins that waited for a login in progress instead
+	 * of asking the backend.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * @return the number of logins that gave up waiting.
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * @return the number of logins in progress with the backend.
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s for %s: coalesced = %d, timeouts = %d",
+				getClass().getSimpleName(), delegate, getCoalescedCount(),
+				getTimeoutCount());
+	}
+}
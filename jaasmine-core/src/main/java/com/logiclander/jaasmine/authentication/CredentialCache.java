@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import java.security.Principal;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+
+/**
+ * Remembers the Subjects of successful password logins for a while, so that
+ * clients sending the same credentials with every request do not cause a
+ * login with the backend every time.
+ *
+ * Entries are keyed by an HMAC-SHA256 of the user id and password, with a
+ * random key made for each cache, so neither the password nor a plain hash
+ * of it is kept.  Entries expire a fixed time after the login and the
+ * number of entries is bounded.  A changed password takes effect at once,
+ * since it hashes differently, but a disabled account or an old password
+ * is only noticed when the entry expires, so the time to live should be
+ * short.
+ *
+ * The cache keeps its own copy of each Subject and hands every caller a
+ * read-only copy of it, so logging out one session's Subject does not empty
+ * the Subject of another session with the same credentials.  The copies
+ * have no private credentials, such as the TGT of the login, since logging
+ * out the original Subject destroys them.
+ */
+public class CredentialCache {
+
+	/** The default number of seconds a login is remembered. */
+	public static final long DEFAULT_TIME_TO_LIVE_SECONDS = 300;
+
+	/** The default maximum number of logins remembered. */
+	public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+	private final CredentialHasher hasher = new CredentialHasher();
+
+	private final Cache<HashCode, Subject> logins;
+
+	/**
+	 * Constructs a CredentialCache with the default time to live and size.
+	 */
+	public CredentialCache() {
+		this(DEFAULT_TIME_TO_LIVE_SECONDS, DEFAULT_MAXIMUM_SIZE);
+	}
+
+	/**
+	 * Constructs a CredentialCache.
+	 *
+	 * @param timeToLiveSeconds the number of seconds a login is remembered.
+	 * @param maximumSize the maximum number of logins remembered.
+	 */
+	public CredentialCache(long timeToLiveSeconds, long maximumSize) {
+
+		if (timeToLiveSeconds <= 0 || maximumSize <= 0) {
+			throw new IllegalArgumentException(
+				"timeToLiveSeconds and maximumSize must be positive"
+			);
+		}
+
+		this.logins = CacheBuilder.newBuilder()
+			.expireAfterWrite(timeToLiveSeconds, TimeUnit.SECONDS)
+			.maximumSize(maximumSize)
+			.recordStats()
+			.build();
+	}
+
+	/**
+	 * @param userId the user id.
+	 * @param password the password.
+	 * @return a read-only copy of the Subject of a remembered login with
+	 * these credentials, or {@code null}.
+	 */
+	public Subject get(String userId, char[] password) {
+		return Subjects.readOnlyCopy(
+				logins.getIfPresent(hasher.hash(userId, password)));
+	}
+
+	/**
+	 * Remembers a successful login.
+	 *
+	 * @param userId the user id.
+	 * @param password the password.
+	 * @param subject the Subject of the login, which is copied.
+	 */
+	public void put(String userId, char[] password, Subject subject) {
+		logins.put(hasher.hash(userId, password),
+				Subjects.readOnlyCopy(subject));
+	}
+
+	/**
+	 * Forgets the logins with the same principals as a Subject, for example
+	 * when it is logged out.
+	 *
+	 * @param subject the Subject, or a copy of it.
+	 */
+	public void invalidate(Subject subject) {
+		Set<Principal> principals = subject.getPrincipals();
+		logins.asMap().values().removeIf(
+				s -> s.getPrincipals().equals(principals));
+	}
+
+	/**
+	 * Forgets all logins.
+	 */
+	public void invalidateAll() {
+		logins.invalidateAll();
+	}
+
+	/**
+	 * @return the number of logins answered from the cache.
+	 */
+	public long getHitCount() {
+		return logins.stats().hitCount();
+	}
+
+	/**
+	 * @return the number of logins not found in the cache.
+	 */
+	public long getMissCount() {
+		return logins.stats().missCount();
+	}
+
+	/**
+	 * @return the number of logins remembered.
+	 */
+	public long size() {
+		return logins.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: size = %d, hits = %d, misses = %d",
+				getClass().getSimpleName(), size(), getHitCount(),
+				getMissCount());
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * Hashes a user id and password with HMAC-SHA256 under a random key made
+ * for each instance, so that credentials can be used as cache keys without
+ * keeping the password or a plain hash of it.
+ *
+ * The user id is prefixed with its length in bytes, so that no two pairs of
+ * user id and password hash the same input, even when the user id contains
+ * a NUL.
+ */
+final class CredentialHasher {
+
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	private final SecretKeySpec hmacKey;
+
+	CredentialHasher() {
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		this.hmacKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+		Arrays.fill(key, (byte) 0);
+	}
+
+	/**
+	 * @param userId the user id.
+	 * @param password the password, or {@code null}.
+	 * @return the keyed hash of the credentials.
+	 */
+	HashCode hash(String userId, char[] password) {
+
+		ByteBuffer passwordBytes = StandardCharsets.UTF_8.encode(
+				CharBuffer.wrap(password == null ? new char[0] : password));
+
+		try {
+
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(hmacKey);
+			byte[] userIdBytes = userId.getBytes(StandardCharsets.UTF_8);
+			mac.update(ByteBuffer.allocate(4).putInt(0, userIdBytes.length));
+			mac.update(userIdBytes);
+			mac.update(passwordBytes);
+			return HashCode.fromBytes(mac.doFinal());
+
+		} catch (GeneralSecurityException ex) {
+
+			// Every Java platform is required to support HmacSHA256.
+			throw new IllegalStateException(ex);
+
+		} finally {
+
+			if (passwordBytes.hasArray()) {
+				Arrays.fill(passwordBytes.array(), (byte) 0);
+			}
+		}
+	}
+}
@@ -1,7 +1,14 @@
 package com.logiclander.jaasmine.authentication;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
 import javax.security.auth.login.LoginException;
 
 import org.apache.commons.logging.Log;
@@ -31,16 +38,60 @@ import org.apache.commons.logging.LogFactory;
  */
 public class KeyTabAuthenticationService extends BaseAuthenticationService {
 
+	private static final String KRB5_LOGIN_MODULE =
+			"com.sun.security.auth.module.Krb5LoginModule";
+
 	private final Log logger = LogFactory.getLog(getClass());
 
 	private final String applicationName;
 
+	/** The configuration for a keytab and principal, or {@code null}. */
+	private final Configuration configuration;
+
 	public KeyTabAuthenticationService() {
 		this(DEFAULT_JAASMINE_LOGIN_CONFIG);
 	}
 
 	public KeyTabAuthenticationService(String applicationName) {
 		this.applicationName = applicationName;
+		this.configuration = null;
+	}
+
+	/**
+	 * Constructs a KeyTabAuthenticationService that logs in one principal of
+	 * a keytab without an entry in the JAAS configuration file.  The login
+	 * uses {@code Krb5LoginModule} with the options shown above.
+	 *
+	 * @param keyTab the keytab file.
+	 * @param principal the principal to log in.
+	 */
+	public KeyTabAuthenticationService(File keyTab, String principal) {
+
+		this.applicationName = principal;
+
+		final Map<String, String> options = new HashMap<>();
+		options.put("useKeyTab", "true");
+		options.put("doNotPrompt", "true");
+		options.put("storeKey", "true");
+		options.put("isInitiator", "true");
+		options.put("keyTab", keyTab.getAbsolutePath());
+		options.put("principal", principal);
+
+		final AppConfigurationEntry[] entries = {
+			new AppConfigurationEntry(KRB5_LOGIN_MODULE,
+				AppConfigurationEntry.LoginModuleControlFlag.REQUIRED,
+				Collections.unmodifiableMap(options))
+		};
+
+		this.configuration = new Configuration() {
+
+			@Override
+			public AppConfigurationEntry[] getAppConfigurationEntry(
+					String name) {
+				return entries.clone();
+			}
+
+		};
 	}
 
 	/**
@@ -59,7 +110,8 @@ public class KeyTabAuthenticationService extends BaseAuthenticationService {
         	// The CallbackHandler doesn't need to do any work, so the
         	// NoOpCallbackHandler implementation is used.
             CallbackHandler cbh = new NoOpCallbackHandler();
-            s = doLogin(applicationName, cbh);
+            s = configuration == null ? doLogin(applicationName, cbh)
+            		: doLogin(applicationName, cbh, configuration);
 
         } catch (LoginException ex) {
 
@@ -80,7 +132,11 @@ public class KeyTabAuthenticationService extends BaseAuthenticationService {
 
         try {
 
-        	doLogout(applicationName, s);
+        	if (configuration == null) {
+        		doLogout(applicationName, s);
+        	} else {
+        		doLogout(applicationName, s, configuration);
+        	}
 
         } catch (LoginException ex) {
 
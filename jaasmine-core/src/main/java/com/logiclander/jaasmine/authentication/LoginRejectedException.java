@@ -0,0 +1,42 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+/**
+ * Thrown by an AuthenticationService that cannot attempt a login at the
+ * moment, for example because too many logins are already in progress.  The
+ * credentials were not checked, so the login may be tried again later.
+ */
+public class LoginRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param message the reason the login was rejected.
+	 */
+	public LoginRejectedException(String message) {
+		super(message);
+	}
+
+	/**
+	 * @param message the reason the login was rejected.
+	 * @param cause the cause.
+	 */
+	public LoginRejectedException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
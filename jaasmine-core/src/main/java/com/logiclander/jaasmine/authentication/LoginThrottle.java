@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+
+/**
+ * Decides whether a password login may be passed to the backend, so that a
+ * client retrying bad credentials cannot flood the KDC or lock accounts.
+ *
+ * Three checks are made, each of which is optional:
+ * <UL>
+ *  <LI>Credentials that failed to log in recently are refused again for a
+ * short time without asking the backend.  They are remembered by an
+ * HMAC-SHA256 of the user id and password, so the right password for the same
+ * user is not refused.</LI>
+ *  <LI>The number of logins from each client address is limited.</LI>
+ *  <LI>The number of logins for each user id is limited.</LI>
+ * </UL>
+ *
+ * Instances of this class have a configurable commons-logging based logger
+ * named {@code com.logiclander.jaasmine.authentication.LoginThrottle}.
+ */
+public class LoginThrottle {
+
+	/**
+	 * The outcome of {@link LoginThrottle#acquire(String, char[], String)}.
+	 */
+	public enum Decision {
+
+		/** The login may be passed to the backend. */
+		ALLOWED,
+
+		/** The same credentials failed to log in recently. */
+		RECENTLY_FAILED,
+
+		/** Too many logins were tried for the user or from the client. */
+		RATE_LIMITED
+	}
+
+	/** The default maximum number of failed logins remembered. */
+	public static final long DEFAULT_MAXIMUM_FAILURES = 10000;
+
+	private static final Log logger = LogFactory.getLog(LoginThrottle.class);
+
+	private final CredentialHasher hasher = new CredentialHasher();
+
+	private final Cache<HashCode, Boolean> failures;
+
+	private final StripedRateLimiter userLimiter;
+
+	private final StripedRateLimiter clientLimiter;
+
+	private final AtomicLong recentlyFailedCount = new AtomicLong();
+
+	private final AtomicLong rateLimitedCount = new AtomicLong();
+
+	/**
+	 * Constructs a LoginThrottle.
+	 *
+	 * @param failureTimeToLiveSeconds the number of seconds failed credentials
+	 * are refused, or 0 to not remember failures.
+	 * @param maximumFailures the maximum number of failed credentials
+	 * remembered.
+	 * @param userLimiter the limit on logins per user id, or {@code null}.
+	 * @param clientLimiter the limit on logins per client address, or
+	 * {@code null}.
+	 */
+	public LoginThrottle(long failureTimeToLiveSeconds, long maximumFailures,
+			StripedRateLimiter userLimiter, StripedRateLimiter clientLimiter) {
+
+		if (failureTimeToLiveSeconds < 0 || maximumFailures <= 0) {
+			throw new IllegalArgumentException(
+				"failureTimeToLiveSeconds must not be negative and "
+				+ "maximumFailures must be positive"
+			);
+		}
+
+		this.failures = failureTimeToLiveSeconds == 0 ? null
+			: CacheBuilder.newBuilder()
+				.expireAfterWrite(failureTimeToLiveSeconds, TimeUnit.SECONDS)
+				.maximumSize(maximumFailures)
+				.<HashCode, Boolean>build();
+		this.userLimiter = userLimiter;
+		this.clientLimiter = clientLimiter;
+	}
+
+	/**
+	 * Checks whether a login may be passed to the backend, and takes a permit
+	 * from the rate limits if so.
+	 *
+	 * @param userId the user id.
+	 * @param password the password.
+	 * @param clientAddress the address of the client, or {@code null} if not
+	 * known.
+	 * @return the Decision.
+	 */
+	public Decision acquire(String userId, char[] password,
+			String clientAddress) {
+
+		if (failures != null
+				&& failures.getIfPresent(hasher.hash(userId, password)) != null) {
+
+			recentlyFailedCount.incrementAndGet();
+			if (logger.isDebugEnabled()) {
+				logger.debug(String.format(
+						"Refusing recently failed credentials for %s", userId));
+			}
+			return Decision.RECENTLY_FAILED;
+		}
+
+		if (clientLimiter != null && clientAddress != null
+				&& !clientLimiter.tryAcquire(clientAddress)) {
+
+			return rateLimited("client", clientAddress);
+		}
+
+		if (userLimiter != null && !userLimiter.tryAcquire(userId)) {
+			return rateLimited("user", userId);
+		}
+
+		return Decision.ALLOWED;
+	}
+
+	private Decision rateLimited(String kind, String key) {
+
+		rateLimitedCount.incrementAndGet();
+		if (logger.isInfoEnabled()) {
+			logger.info(String.format("Too many logins for %s %s", kind, key));
+		}
+		return Decision.RATE_LIMITED;
+	}
+
+	/**
+	 * Remembers credentials that failed to log in.
+	 *
+	 * @param userId the user id.
+	 * @param password the password.
+	 */
+	public void recordFailure(String userId, char[] password) {
+		if (failures != null) {
+			failures.put(hasher.hash(userId, password), Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * @return the number of seconds a rate limited client should wait before
+	 * trying again.
+	 */
+	public long getRetryAfterSeconds() {
+
+		long seconds = 1;
+		if (userLimiter != null) {
+			seconds = Math.max(seconds, userLimiter.getRetryAfterSeconds());
+		}
+		if (clientLimiter != null) {
+			seconds = Math.max(seconds, clientLimiter.getRetryAfterSeconds());
+		}
+		return seconds;
+	}
+
+	/**
+	 * @return the number of logins refused because the same credentials
+	 * failed recently.
+	 */
+	public long getRecentlyFailedCount() {
+		return recentlyFailedCount.get();
+	}
+
+	/**
+	 * @return the number of logins refused by a rate limit.
+	 */
+	public long getRateLimitedCount() {
+		return rateLimitedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: recently failed = %d, rate limited = %d",
+				getClass().getSimpleName(), getRecentlyFailedCount(),
+				getRateLimitedCount());
+	}
+}
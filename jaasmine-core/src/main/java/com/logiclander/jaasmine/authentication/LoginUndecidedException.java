@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+/**
+ * Thrown by an AuthenticationService that started a login but could not
+ * decide it, for example because the backend could not be reached or did not
+ * answer in time.  Unlike a login that returns {@code null}, the credentials
+ * were not found to be wrong, so the failure must not count against them.
+ */
+public class LoginUndecidedException extends LoginRejectedException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param message the reason the login was not decided.
+	 */
+	public LoginUndecidedException(String message) {
+		super(message);
+	}
+
+	/**
+	 * @param message the reason the login was not decided.
+	 * @param cause the failure of the backend.
+	 */
+	public LoginUndecidedException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -57,6 +57,8 @@ public class SimpleAuthenticationService extends BaseAuthenticationService {
 
     /**
      * {@inheritDoc}
+     *
+     * @throws LoginUndecidedException if the backend could not be reached.
      */
     @Override
     public Subject login(String userId, char[] password) {
@@ -70,6 +72,13 @@ public class SimpleAuthenticationService extends BaseAuthenticationService {
 
         } catch (LoginException ex) {
 
+            if (isBackendFailure(ex)) {
+                throw new LoginUndecidedException(
+                        String.format("Could not log in %s: %s", userId,
+                            ex.getMessage()),
+                        ex);
+            }
+
             if (logger.isInfoEnabled()) {
                 String msg =
                         String.format("Could not log in %s: %s",
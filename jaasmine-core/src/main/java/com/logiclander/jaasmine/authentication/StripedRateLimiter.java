@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Limits the rate of events for each of many keys, such as user ids or
+ * client addresses, with a token bucket per key.
+ *
+ * Each bucket holds up to a burst of permits and is refilled at a fixed
+ * number of permits per minute.  Buckets are guarded by a fixed set of
+ * striped locks, so keys contend only when they share a stripe, and a bucket
+ * that has been idle long enough to be full again is dropped.  The number of
+ * buckets is bounded; when a bucket is evicted early its key starts again
+ * with a full bucket.
+ */
+public class StripedRateLimiter {
+
+	/** The default maximum number of keys tracked. */
+	public static final long DEFAULT_MAXIMUM_KEYS = 100000;
+
+	private static final int STRIPES = 64;
+
+	private static final long NANOS_PER_MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+	private final Striped<Lock> locks = Striped.lock(STRIPES);
+
+	private final Cache<String, Bucket> buckets;
+
+	private final long permitsPerMinute;
+
+	private final int burst;
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Constructs a StripedRateLimiter that tracks up to
+	 * {@link #DEFAULT_MAXIMUM_KEYS} keys.
+	 *
+	 * @param permitsPerMinute the number of permits added to a bucket each
+	 * minute.
+	 * @param burst the number of permits a bucket holds.
+	 */
+	public StripedRateLimiter(long permitsPerMinute, int burst) {
+		this(permitsPerMinute, burst, DEFAULT_MAXIMUM_KEYS);
+	}
+
+	/**
+	 * Constructs a StripedRateLimiter.
+	 *
+	 * @param permitsPerMinute the number of permits added to a bucket each
+	 * minute.
+	 * @param burst the number of permits a bucket holds.
+	 * @param maximumKeys the maximum number of keys tracked.
+	 */
+	public StripedRateLimiter(long permitsPerMinute, int burst,
+			long maximumKeys) {
+
+		if (permitsPerMinute <= 0 || burst <= 0 || maximumKeys <= 0) {
+			throw new IllegalArgumentException(
+				"permitsPerMinute, burst and maximumKeys must be positive"
+			);
+		}
+
+		this.permitsPerMinute = permitsPerMinute;
+		this.burst = burst;
+
+		// An idle bucket is full again after this long, so forgetting it
+		// changes nothing.  Computed in double, since a large burst would
+		// overflow a long.
+		long refillNanos = (long) Math.max(Math.min(
+				(double) burst * NANOS_PER_MINUTE / permitsPerMinute,
+				Long.MAX_VALUE), TimeUnit.SECONDS.toNanos(1));
+
+		this.buckets = CacheBuilder.newBuilder()
+			.expireAfterAccess(refillNanos, TimeUnit.NANOSECONDS)
+			.maximumSize(maximumKeys)
+			.build();
+	}
+
+	/**
+	 * Takes a permit for a key, if one is available.
+	 *
+	 * @param key the key.
+	 * @return true if a permit was taken, false if the rate for the key has
+	 * been exceeded.
+	 */
+	public boolean tryAcquire(String key) {
+		return tryAcquire(key, System.nanoTime());
+	}
+
+	/**
+	 * @param key the key.
+	 * @param now the current {@link System#nanoTime()}.
+	 * @return true if a permit was taken.
+	 */
+	boolean tryAcquire(String key, long now) {
+
+		Lock lock = locks.get(key);
+		lock.lock();
+		try {
+
+			Bucket bucket = buckets.getIfPresent(key);
+			if (bucket == null) {
+				bucket = new Bucket(burst, now);
+				buckets.put(key, bucket);
+			}
+
+			bucket.refill(now);
+			if (bucket.permits >= 1) {
+				bucket.permits -= 1;
+				return true;
+			}
+
+		} finally {
+			lock.unlock();
+		}
+
+		rejectedCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return the number of seconds after which a key that has been rejected
+	 * has another permit, at most.
+	 */
+	public long getRetryAfterSeconds() {
+		return permitsPerMinute >= 60 ? 1 :
+				(60 + permitsPerMinute - 1) / permitsPerMinute;
+	}
+
+	/**
+	 * @return the number of requests for a permit that were rejected.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d per minute, burst = %d, keys = %d, "
+				+ "rejected = %d", getClass().getSimpleName(), permitsPerMinute,
+				burst, buckets.size(), getRejectedCount());
+	}
+
+	private final class Bucket {
+
+		private double permits;
+
+		private long refilledAt;
+
+		Bucket(double permits, long now) {
+			this.permits = permits;
+			this.refilledAt = now;
+		}
+
+		void refill(long now) {
+			long elapsed = now - refilledAt;
+			if (elapsed > 0) {
+				permits = Math.min(burst, permits
+						+ (double) elapsed * permitsPerMinute / NANOS_PER_MINUTE);
+				refilledAt = now;
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import java.util.Collections;
+
+import javax.security.auth.Subject;
+
+/**
+ * Copies of Subjects that are handed to more than one caller.  The copies
+ * carry the principals and public credentials of a login but not its private
+ * credentials, which stay with the original Subject and are destroyed when
+ * it is logged out.
+ */
+final class Subjects {
+
+	private Subjects() {
+	}
+
+	/**
+	 * Copies a Subject, so that logging out one caller's Subject, which
+	 * empties it, leaves the others alone.  The principals and public
+	 * credentials are copied.  The private credentials are left out: logging
+	 * out destroys them, KerberosTickets and KerberosKeys included, and
+	 * copying the sets would still share them.  Only the caller that owns the
+	 * original Subject can use them, for example to act as the user with the
+	 * TGT of a password login.
+	 *
+	 * @param subject the Subject, or {@code null}.
+	 * @return a read-only copy of the Subject, or {@code null}.
+	 */
+	static Subject readOnlyCopy(Subject subject) {
+
+		if (subject == null) {
+			return null;
+		}
+
+		return new Subject(true, subject.getPrincipals(),
+				subject.getPublicCredentials(), Collections.emptySet());
+	}
+}
@@ -1,17 +1,42 @@
 package com.logiclander.jaasmine.authentication.client;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 /**
  * Generates SPNego tokens.
- * 
+ *
  * @author agherna
  *
  */
 public interface AuthorizationToken {
 
 	/**
-	 * 
+	 *
 	 * @return SPNego token.
 	 */
 	public String generate();
-	
+
+	/**
+	 * Generates a token on the shared executor of
+	 * {@link TokenExecutors#getDefaultExecutor()}.
+	 *
+	 * @return a future completed with the SPNego token, or exceptionally if it
+	 * cannot be generated or the executor is saturated.
+	 */
+	public default CompletableFuture<String> generateAsync() {
+		return generateAsync(TokenExecutors.getDefaultExecutor());
+	}
+
+	/**
+	 * Generates a token on the given executor.
+	 *
+	 * @param executor the executor that runs {@link #generate()}.
+	 * @return a future completed with the SPNego token, or exceptionally if it
+	 * cannot be generated or the executor rejects the task.
+	 */
+	public default CompletableFuture<String> generateAsync(Executor executor) {
+		return TokenExecutors.supplyAsync(this, executor);
+	}
+
 }
@@ -1,39 +1,99 @@
 package com.logiclander.jaasmine.authentication.client;
 
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
 import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import com.logiclander.jaasmine.AuthenticationType;
+import com.logiclander.jaasmine.ClientCredential;
+import com.logiclander.jaasmine.ClientCredentialRenewer;
 import com.logiclander.jaasmine.SPNegoClient;
 import com.logiclander.jaasmine.authentication.AuthenticationService;
 import com.logiclander.jaasmine.authentication.KeyTabAuthenticationService;
 
+/**
+ * Generates SPNego tokens for a service using the credentials in a keytab.
+ *
+ * The keytab login and the client credential are kept for the lifetime of
+ * the TGT, so generating a token does not contact the KDC for a new TGT.  The
+ * login is repeated when 80% of the TGT lifetime has passed, less a random
+ * jitter of up to 10% so that many clients started together do not all log
+ * in at once.  One caller repeats the login while the others keep using the
+ * current credential; callers only wait when there is no usable credential.
+ *
+ * If the TGT lifetime cannot be found in the Subject, the login is repeated
+ * every hour.
+ *
+ * Alternatively, a token can use a {@link ClientCredential} whose tickets
+ * are renewed in the background by a {@link ClientCredentialRenewer}.
+ */
 public class KeyTabAuthorizationToken implements AuthorizationToken {
 
+	/** The number of seconds between logins when the TGT is not known. */
+	private static final long DEFAULT_LIFETIME_SECONDS = 3600;
+
+	/** The number of seconds to wait before retrying a failed login. */
+	private static final long RETRY_SECONDS = 30;
+
+	private static final double REFRESH_FRACTION = 0.8;
+
+	private static final double JITTER_FRACTION = 0.1;
+
+	private final Log logger = LogFactory.getLog(getClass());
+
 	private final String servicePrincipalName;
 
 	private final AuthenticationService authnService;
 
+	/** The credential renewed in the background, or {@code null}. */
+	private final ClientCredential clientCredential;
+
+	private final ReentrantLock loginLock = new ReentrantLock();
+
+	private volatile LoginState loginState;
+
 	public KeyTabAuthorizationToken(String servicePrincipalName) {
 		this.servicePrincipalName = servicePrincipalName;
 		authnService = new KeyTabAuthenticationService();
+		clientCredential = null;
 	}
 
 	public KeyTabAuthorizationToken(String servicePrincipalName,
 			String applicationName) {
 		this.servicePrincipalName = servicePrincipalName;
 		authnService = new KeyTabAuthenticationService(applicationName);
+		clientCredential = null;
+	}
+
+	/**
+	 * Constructs a KeyTabAuthorizationToken that uses a credential kept
+	 * current by a {@link ClientCredentialRenewer}, so generating a token
+	 * never logs in.
+	 *
+	 * @param servicePrincipalName the SPN of the service.
+	 * @param clientCredential the registered client credential.
+	 */
+	public KeyTabAuthorizationToken(String servicePrincipalName,
+			ClientCredential clientCredential) {
+		this.servicePrincipalName = servicePrincipalName;
+		this.authnService = null;
+		this.clientCredential = clientCredential;
 	}
 
 	@Override
 	public String generate() {
 		String token = null;
 
-		// XXX: we EXPECT keytabs to be used here, so username and password are
-		// null.
-		Subject loginCredential = authnService.login(null, null);
+		SPNegoClient spnegoClient = getSPNegoClient();
 		try {
-			SPNegoClient spnegoClient = new SPNegoClient(loginCredential,
-					AuthenticationType.KRB5);
 			token = new StringBuilder("Negotiate ").append(
 					spnegoClient.generateSPNegoToken(servicePrincipalName))
 					.toString();
@@ -44,4 +104,151 @@ public class KeyTabAuthorizationToken implements AuthorizationToken {
 		return token;
 	}
 
+	private SPNegoClient getSPNegoClient() {
+
+		if (clientCredential != null) {
+			return clientCredential.getSPNegoClient();
+		}
+
+		LoginState state = loginState;
+		long now = System.currentTimeMillis();
+
+		if (state != null && now < state.refreshTime) {
+			return state.spnegoClient;
+		}
+
+		if (state != null && now < state.expiryTime) {
+
+			// Still usable: let one caller log in while the others carry on.
+			if (loginLock.tryLock()) {
+				try {
+					refresh(state);
+				} finally {
+					loginLock.unlock();
+				}
+			}
+			return loginState.spnegoClient;
+		}
+
+		loginLock.lock();
+		try {
+			return refresh(state).spnegoClient;
+		} finally {
+			loginLock.unlock();
+		}
+	}
+
+	/**
+	 * Logs in again unless another caller already has.  Must be called
+	 * holding the login lock.
+	 *
+	 * @param seen the login state the caller found out of date.
+	 * @return the current login state.
+	 */
+	private LoginState refresh(LoginState seen) {
+
+		LoginState current = loginState;
+		if (current != seen) {
+			return current;
+		}
+
+		long now = System.currentTimeMillis();
+
+		try {
+
+			// XXX: we EXPECT keytabs to be used here, so username and password
+			// are null.
+			Subject subject = authnService.login(null, null);
+			if (subject == null) {
+				throw new IllegalStateException("Keytab login failed");
+			}
+
+			current = new LoginState(subject,
+					new SPNegoClient(subject, AuthenticationType.KRB5), now);
+
+			if (logger.isDebugEnabled()) {
+				logger.debug(String.format(
+						"Logged in for %s, next login at %tc",
+						servicePrincipalName, new Date(current.refreshTime)));
+			}
+
+		} catch (Exception e) {
+
+			if (current == null || now >= current.expiryTime) {
+				throw e instanceof RuntimeException ? (RuntimeException) e
+						: new RuntimeException(e);
+			}
+
+			if (logger.isWarnEnabled()) {
+				logger.warn(String.format(
+						"Keytab login failed, retrying in %d seconds: %s",
+						RETRY_SECONDS, e.getMessage()));
+			}
+
+			current = current.retryAt(
+					now + TimeUnit.SECONDS.toMillis(RETRY_SECONDS));
+		}
+
+		loginState = current;
+		return current;
+	}
+
+	/**
+	 * The client credential of a login and when to log in again.
+	 */
+	private static final class LoginState {
+
+		private final SPNegoClient spnegoClient;
+
+		private final long refreshTime;
+
+		private final long expiryTime;
+
+		LoginState(Subject subject, SPNegoClient spnegoClient, long now) {
+
+			this.spnegoClient = spnegoClient;
+
+			KerberosTicket tgt = findTgt(subject);
+			long start = now;
+			long end = now + TimeUnit.SECONDS.toMillis(DEFAULT_LIFETIME_SECONDS);
+			if (tgt != null && tgt.getEndTime() != null) {
+				if (tgt.getStartTime() != null) {
+					start = tgt.getStartTime().getTime();
+				}
+				end = tgt.getEndTime().getTime();
+			}
+
+			long lifetime = Math.max(end - start, 0);
+			long jitter = (long) (lifetime * JITTER_FRACTION *
+					ThreadLocalRandom.current().nextDouble());
+
+			this.refreshTime = start + (long) (lifetime * REFRESH_FRACTION)
+					- jitter;
+			this.expiryTime = end;
+		}
+
+		private LoginState(LoginState state, long refreshTime) {
+			this.spnegoClient = state.spnegoClient;
+			this.refreshTime = Math.min(refreshTime, state.expiryTime);
+			this.expiryTime = state.expiryTime;
+		}
+
+		LoginState retryAt(long time) {
+			return new LoginState(this, time);
+		}
+
+		private static KerberosTicket findTgt(Subject subject) {
+
+			for (KerberosTicket ticket :
+					subject.getPrivateCredentials(KerberosTicket.class)) {
+
+				KerberosPrincipal server = ticket.getServer();
+				if (server != null &&
+						server.getName().startsWith("krbtgt/")) {
+					return ticket;
+				}
+			}
+			return null;
+		}
+	}
 }
@@ -0,0 +1,409 @@
+package com.logiclander.jaasmine.authentication.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ietf.jgss.GSSException;
+
+import com.logiclander.jaasmine.ClientCredential;
+import com.logiclander.jaasmine.SPNegoClient;
+import com.logiclander.jaasmine.authentication.http.AuthorizationType;
+
+/**
+ * Sends requests with a {@link HttpClient}, answering the Negotiate and
+ * Basic challenges of servers protected by Jaasmine filters.
+ *
+ * The scheme that succeeds for a host is remembered, and later requests to
+ * the host carry credentials for it from the start, saving the round trip
+ * of the 401 challenge.  If a server rejects those credentials, the host is
+ * forgotten and the request is answered challenge-response style, once.
+ * Negotiate is preferred when a server offers both schemes.  Basic is only
+ * used if {@link #setBasicCredentials(String, char[]) credentials are set}.
+ *
+ * A request may be sent twice, so its body publisher must support more than
+ * one subscription, as the publishers of {@link HttpRequest.BodyPublishers}
+ * do except for {@code ofInputStream}.  The mutual authentication token of a
+ * Negotiate response is not checked.
+ *
+ * Instances of this class are safe for use by many threads.
+ */
+public class NegotiateHttpClient {
+
+	private static final String AUTHORIZATION = "Authorization";
+
+	private static final String WWW_AUTHENTICATE = "WWW-Authenticate";
+
+	private static final int UNAUTHORIZED = 401;
+
+	private final Log logger = LogFactory.getLog(getClass());
+
+	private final HttpClient httpClient;
+
+	private final Supplier<SPNegoClient> spnegoClient;
+
+	/** The scheme that last succeeded for each host. */
+	private final ConcurrentMap<String, AuthorizationType> hostSchemes =
+			new ConcurrentHashMap<>();
+
+	private final AtomicLong preemptiveCount = new AtomicLong();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private final AtomicLong challengeCount = new AtomicLong();
+
+	private volatile Function<URI, String> servicePrincipalNames =
+			uri -> "HTTP/" + uri.getHost();
+
+	private volatile String basicAuthorization;
+
+	private volatile Executor tokenExecutor =
+			TokenExecutors.getDefaultExecutor();
+
+	/**
+	 * Constructs a NegotiateHttpClient that makes Negotiate tokens with a
+	 * credential renewed by a {@link com.logiclander.jaasmine.ClientCredentialRenewer}.
+	 *
+	 * @param httpClient the HttpClient that sends the requests.
+	 * @param credential the client credential.
+	 */
+	public NegotiateHttpClient(HttpClient httpClient,
+			ClientCredential credential) {
+		this(httpClient, credential::getSPNegoClient);
+	}
+
+	/**
+	 * Constructs a NegotiateHttpClient that makes Negotiate tokens with an
+	 * SPNegoClient.
+	 *
+	 * @param httpClient the HttpClient that sends the requests.
+	 * @param spnegoClient the SPNegoClient, or {@code null} to only answer
+	 * Basic challenges.
+	 */
+	public NegotiateHttpClient(HttpClient httpClient,
+			SPNegoClient spnegoClient) {
+		this(httpClient, () -> spnegoClient);
+	}
+
+	private NegotiateHttpClient(HttpClient httpClient,
+			Supplier<SPNegoClient> spnegoClient) {
+		this.httpClient = httpClient;
+		this.spnegoClient = spnegoClient;
+	}
+
+	/**
+	 * Sets the credentials used to answer Basic challenges.
+	 *
+	 * @param username the user name.
+	 * @param password the password.
+	 */
+	public void setBasicCredentials(String username, char[] password) {
+
+		byte[] credentials = (username + ":" + new String(password))
+				.getBytes(StandardCharsets.UTF_8);
+		basicAuthorization = AuthorizationType.BASIC.getScheme() + " " +
+				Base64.getEncoder().encodeToString(credentials);
+	}
+
+	/**
+	 * Sets how the SPN of a server is found from the request URI.  The
+	 * default is {@code HTTP/<host>}.
+	 *
+	 * @param servicePrincipalNames maps request URIs to SPNs.
+	 */
+	public void setServicePrincipalNames(
+			Function<URI, String> servicePrincipalNames) {
+		this.servicePrincipalNames = servicePrincipalNames;
+	}
+
+	/**
+	 * Sets the executor that makes the Negotiate tokens of requests sent by
+	 * {@link #sendAsync(HttpRequest, HttpResponse.BodyHandler) sendAsync}.
+	 * The default is {@link TokenExecutors#getDefaultExecutor()}.
+	 *
+	 * @param tokenExecutor the executor.
+	 */
+	public void setTokenExecutor(Executor tokenExecutor) {
+		this.tokenExecutor = tokenExecutor;
+	}
+
+	/**
+	 * Sends a request, answering an authentication challenge if needed.
+	 *
+	 * @param <T> the response body type.
+	 * @param request the request.
+	 * @param responseBodyHandler the response body handler.
+	 * @return the response.
+	 * @throws IOException if the request cannot be sent or a token cannot be
+	 * made.
+	 * @throws InterruptedException if the thread is interrupted.
+	 */
+	public <T> HttpResponse<T> send(HttpRequest request,
+			HttpResponse.BodyHandler<T> responseBodyHandler)
+			throws IOException, InterruptedException {
+
+		String host = getHostKey(request.uri());
+		AuthorizationType learned = hostSchemes.get(host);
+
+		HttpResponse<T> response;
+		if (learned != null) {
+
+			preemptiveCount.incrementAndGet();
+			response = httpClient.send(withAuthorization(request,
+					getAuthorizationIOE(learned, request.uri())),
+					responseBodyHandler);
+			if (response.statusCode() != UNAUTHORIZED) {
+				return response;
+			}
+			forget(host, learned);
+
+		} else {
+
+			response = httpClient.send(request, responseBodyHandler);
+			if (response.statusCode() != UNAUTHORIZED) {
+				return response;
+			}
+		}
+
+		AuthorizationType offered = chooseScheme(response);
+		if (offered == null) {
+			return response;
+		}
+
+		challengeCount.incrementAndGet();
+		response = httpClient.send(withAuthorization(request,
+				getAuthorizationIOE(offered, request.uri())),
+				responseBodyHandler);
+		learn(host, offered, response);
+
+		return response;
+	}
+
+	/**
+	 * Sends a request asynchronously, answering an authentication challenge
+	 * if needed.
+	 *
+	 * @param <T> the response body type.
+	 * @param request the request.
+	 * @param responseBodyHandler the response body handler.
+	 * @return a future completed with the response.
+	 */
+	public <T> CompletableFuture<HttpResponse<T>> sendAsync(
+			HttpRequest request,
+			HttpResponse.BodyHandler<T> responseBodyHandler) {
+
+		String host = getHostKey(request.uri());
+		AuthorizationType learned = hostSchemes.get(host);
+
+		CompletableFuture<HttpRequest> first;
+		if (learned != null) {
+			preemptiveCount.incrementAndGet();
+			first = makeAuthorization(learned, request.uri())
+				.thenApply(authorization ->
+						withAuthorization(request, authorization));
+		} else {
+			first = CompletableFuture.completedFuture(request);
+		}
+
+		return first
+			.thenCompose(sent -> httpClient.sendAsync(sent, responseBodyHandler))
+			.thenCompose(response -> {
+
+				if (response.statusCode() != UNAUTHORIZED) {
+					return CompletableFuture.completedFuture(response);
+				}
+
+				if (learned != null) {
+					forget(host, learned);
+				}
+
+				AuthorizationType offered = chooseScheme(response);
+				if (offered == null) {
+					return CompletableFuture.completedFuture(response);
+				}
+
+				challengeCount.incrementAndGet();
+				return makeAuthorization(offered, request.uri())
+					.thenCompose(authorization -> httpClient.sendAsync(
+							withAuthorization(request, authorization),
+							responseBodyHandler))
+					.thenApply(retried -> {
+						learn(host, offered, retried);
+						return retried;
+					});
+			});
+	}
+
+	/**
+	 * @return the number of requests sent with credentials from the start.
+	 */
+	public long getPreemptiveCount() {
+		return preemptiveCount.get();
+	}
+
+	/**
+	 * @return the number of requests whose credentials sent from the start
+	 * were rejected.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return the number of challenges answered.
+	 */
+	public long getChallengeCount() {
+		return challengeCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"%s: hosts = %d, preemptive = %d, rejected = %d, challenges = %d",
+			getClass().getSimpleName(), hostSchemes.size(),
+			getPreemptiveCount(), getRejectedCount(), getChallengeCount());
+	}
+
+	private void learn(String host, AuthorizationType scheme,
+			HttpResponse<?> response) {
+
+		if (response.statusCode() != UNAUTHORIZED) {
+			hostSchemes.put(host, scheme);
+		}
+	}
+
+	private void forget(String host, AuthorizationType scheme) {
+
+		rejectedCount.incrementAndGet();
+		hostSchemes.remove(host, scheme);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("%s credentials rejected by %s", scheme,
+					host));
+		}
+	}
+
+	/**
+	 * @return the scheme to answer the challenges of the response with, or
+	 * {@code null} if none can be answered.
+	 */
+	private AuthorizationType chooseScheme(HttpResponse<?> response) {
+
+		boolean negotiate = false;
+		boolean basic = false;
+
+		List<String> challenges = response.headers().allValues(WWW_AUTHENTICATE);
+		for (String challenge : challenges) {
+			for (String part : challenge.split(",")) {
+
+				String scheme = part.trim();
+				int end = scheme.indexOf(' ');
+				if (end >= 0) {
+					scheme = scheme.substring(0, end);
+				}
+
+				if (AuthorizationType.NEGOTIATE.getScheme()
+						.equalsIgnoreCase(scheme)) {
+					negotiate = true;
+				} else if (AuthorizationType.BASIC.getScheme()
+						.equalsIgnoreCase(scheme)) {
+					basic = true;
+				}
+			}
+		}
+
+		if (negotiate && spnegoClient.get() != null) {
+			return AuthorizationType.NEGOTIATE;
+		}
+		if (basic && basicAuthorization != null) {
+			return AuthorizationType.BASIC;
+		}
+		return null;
+	}
+
+	private String getAuthorization(AuthorizationType scheme, URI uri)
+			throws GSSException {
+
+		if (scheme == AuthorizationType.BASIC) {
+			return basicAuthorization;
+		}
+
+		return AuthorizationType.NEGOTIATE.getScheme() + " " +
+				spnegoClient.get().generateSPNegoToken(
+					servicePrincipalNames.apply(uri));
+	}
+
+	/**
+	 * Makes the Authorization header of a scheme on the token executor, so
+	 * that the caller of sendAsync is not held up by the KDC.
+	 */
+	private CompletableFuture<String> makeAuthorization(
+			AuthorizationType scheme, URI uri) {
+
+		if (scheme == AuthorizationType.BASIC) {
+			return CompletableFuture.completedFuture(basicAuthorization);
+		}
+
+		return CompletableFuture.supplyAsync(() -> {
+				try {
+					return getAuthorization(scheme, uri);
+				} catch (GSSException ex) {
+					throw new CompletionException(ex);
+				}
+			}, tokenExecutor);
+	}
+
+	private String getAuthorizationIOE(AuthorizationType scheme, URI uri)
+			throws IOException {
+
+		try {
+			return getAuthorization(scheme, uri);
+		} catch (GSSException ex) {
+			throw new IOException(String.format(
+					"Could not make a %s token for %s", scheme, uri), ex);
+		}
+	}
+
+	private static String getHostKey(URI uri) {
+		return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+	}
+
+	/**
+	 * @return a copy of the request with the Authorization header set.
+	 */
+	private static HttpRequest withAuthorization(HttpRequest request,
+			String authorization) {
+
+		HttpRequest.Builder builder = HttpRequest.newBuilder(request.uri())
+			.method(request.method(), request.bodyPublisher()
+				.orElse(HttpRequest.BodyPublishers.noBody()))
+			.expectContinue(request.expectContinue());
+		request.timeout().ifPresent(builder::timeout);
+		request.version().ifPresent(builder::version);
+
+		request.headers().map().forEach((name, values) -> {
+			if (!AUTHORIZATION.equalsIgnoreCase(name)) {
+				for (String value : values) {
+					builder.header(name, value);
+				}
+			}
+		});
+
+		return builder.header(AUTHORIZATION, authorization).build();
+	}
+}
@@ -0,0 +1,256 @@
+package com.logiclander.jaasmine.authentication.client;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An AuthorizationToken that keeps a few tokens of another
+ * AuthorizationToken generated ahead of time.
+ *
+ * Each pooled token is handed out once, since an acceptor with a replay
+ * cache rejects a token it has seen before.  Tokens older than the time to
+ * live are discarded; the default of 60 seconds is well within the usual
+ * Kerberos clock skew of 5 minutes, so a pooled token is never stale when it
+ * reaches the acceptor.  Taking a token starts a background refill on the
+ * executor; if the pool is empty, the token is generated on the spot.
+ *
+ * Since every AuthorizationToken is for one SPN, a pool is per SPN.
+ */
+public class PooledAuthorizationToken implements AuthorizationToken {
+
+	/** The default number of tokens kept ready. */
+	public static final int DEFAULT_POOL_SIZE = 4;
+
+	/** The default number of seconds a pooled token is kept. */
+	public static final long DEFAULT_TIME_TO_LIVE_SECONDS = 60;
+
+	private final Log logger = LogFactory.getLog(getClass());
+
+	private final AuthorizationToken delegate;
+
+	private final int poolSize;
+
+	private final long timeToLiveNanos;
+
+	private final Executor executor;
+
+	private final Queue<PooledToken> pool = new ConcurrentLinkedQueue<>();
+
+	/** The number of tokens in the pool, since the queue's size is O(n). */
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	private final AtomicBoolean refilling = new AtomicBoolean();
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong expiredCount = new AtomicLong();
+
+	/**
+	 * Constructs a new PooledAuthorizationToken with the default pool size
+	 * and time to live that refills on the default token executor.
+	 *
+	 * @param delegate the AuthorizationToken that generates the tokens.
+	 */
+	public PooledAuthorizationToken(AuthorizationToken delegate) {
+		this(delegate, DEFAULT_POOL_SIZE, DEFAULT_TIME_TO_LIVE_SECONDS,
+				TokenExecutors.getDefaultExecutor());
+	}
+
+	/**
+	 * Constructs a new PooledAuthorizationToken.
+	 *
+	 * @param delegate the AuthorizationToken that generates the tokens.
+	 * @param poolSize the number of tokens kept ready.
+	 * @param timeToLiveSeconds the number of seconds a pooled token is kept.
+	 * @param executor the executor that refills the pool.
+	 */
+	public PooledAuthorizationToken(AuthorizationToken delegate, int poolSize,
+			long timeToLiveSeconds, Executor executor) {
+
+		if (poolSize <= 0 || timeToLiveSeconds <= 0) {
+			throw new IllegalArgumentException(
+				"poolSize and timeToLiveSeconds must be positive"
+			);
+		}
+
+		this.delegate = delegate;
+		this.poolSize = poolSize;
+		this.timeToLiveNanos = TimeUnit.SECONDS.toNanos(timeToLiveSeconds);
+		this.executor = executor;
+	}
+
+	/**
+	 * Fills the pool in the background.
+	 */
+	public void prefill() {
+		refill();
+	}
+
+	@Override
+	public String generate() {
+
+		String token = take();
+		if (token != null) {
+			return token;
+		}
+
+		return delegate.generate();
+	}
+
+	/**
+	 * @return a future that is already complete if a pooled token is ready,
+	 * otherwise a token generated on the executor.
+	 */
+	@Override
+	public CompletableFuture<String> generateAsync() {
+
+		String token = take();
+		if (token != null) {
+			return CompletableFuture.completedFuture(token);
+		}
+
+		return delegate.generateAsync(executor);
+	}
+
+	@Override
+	public CompletableFuture<String> generateAsync(Executor executor) {
+
+		String token = take();
+		if (token != null) {
+			return CompletableFuture.completedFuture(token);
+		}
+
+		return delegate.generateAsync(executor);
+	}
+
+	/**
+	 * @return the number of tokens handed out from the pool.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of tokens generated because the pool was empty.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return the number of pooled tokens discarded unused.
+	 */
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"%s: pooled = %d, hits = %d, misses = %d, expired = %d",
+			getClass().getSimpleName(), pooled.get(), getHitCount(),
+			getMissCount(), getExpiredCount());
+	}
+
+	/**
+	 * @return a fresh pooled token, or {@code null} if there is none.
+	 */
+	private String take() {
+
+		String token = null;
+		long now = System.nanoTime();
+
+		PooledToken pooledToken;
+		while ((pooledToken = pool.poll()) != null) {
+
+			pooled.decrementAndGet();
+			if (now - pooledToken.created < timeToLiveNanos) {
+				token = pooledToken.token;
+				break;
+			}
+			expiredCount.incrementAndGet();
+		}
+
+		if (token != null) {
+			hitCount.incrementAndGet();
+		} else {
+			missCount.incrementAndGet();
+		}
+
+		refill();
+		return token;
+	}
+
+	private void refill() {
+
+		if (pooled.get() >= poolSize || !refilling.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					fill();
+				}
+
+			});
+
+		} catch (RejectedExecutionException ex) {
+
+			refilling.set(false);
+
+			if (logger.isDebugEnabled()) {
+				logger.debug("Token pool refill rejected by the executor");
+			}
+		}
+	}
+
+	private void fill() {
+
+		try {
+
+			while (pooled.get() < poolSize) {
+				pool.add(new PooledToken(delegate.generate(), System.nanoTime()));
+				pooled.incrementAndGet();
+			}
+
+		} catch (RuntimeException ex) {
+
+			if (logger.isWarnEnabled()) {
+				logger.warn(String.format("Could not fill the token pool: %s",
+						ex.getMessage()));
+			}
+
+		} finally {
+
+			refilling.set(false);
+		}
+	}
+
+	private static final class PooledToken {
+
+		final String token;
+
+		final long created;
+
+		PooledToken(String token, long created) {
+			this.token = token;
+			this.created = created;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.logiclander.jaasmine.authentication.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.logiclander.jaasmine.AuthenticationThreads;
+
+/**
+ * Executors for generating tokens off the caller's thread.
+ *
+ * Token generation can block on the KDC, so it does not belong on an event
+ * loop or in the common fork/join pool.  The executors made here have a
+ * fixed number of daemon threads and a bounded queue; when the queue is full
+ * new tasks are rejected rather than queued without limit, and the futures
+ * of rejected tasks complete exceptionally.
+ */
+public final class TokenExecutors {
+
+	/** The default number of tasks waiting for a thread. */
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+	private TokenExecutors() {
+		// Static methods only.
+	}
+
+	/**
+	 * Creates a bounded executor for token generation.
+	 *
+	 * @param threads the number of threads.
+	 * @param queueSize the number of tasks that can wait for a thread.
+	 * @return a new ExecutorService.  The caller shuts it down.
+	 */
+	public static ExecutorService newBoundedExecutor(int threads,
+			int queueSize) {
+
+		if (threads <= 0 || queueSize <= 0) {
+			throw new IllegalArgumentException(
+				"threads and queueSize must be positive"
+			);
+		}
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				AuthenticationThreads.newThreadFactory(String.format(
+						"jaasmine-token-%d-", POOL_NUMBER.incrementAndGet())),
+				new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * @return the shared executor used by
+	 * {@link AuthorizationToken#generateAsync()}.  It has one thread per
+	 * available processor and a queue of {@link #DEFAULT_QUEUE_SIZE} tasks.
+	 */
+	public static Executor getDefaultExecutor() {
+		return DefaultExecutorHolder.EXECUTOR;
+	}
+
+	/**
+	 * Runs {@link AuthorizationToken#generate()} on an executor.
+	 *
+	 * @param token the AuthorizationToken.
+	 * @param executor the executor.
+	 * @return a future completed with the token, or exceptionally if it
+	 * cannot be generated or the executor rejects the task.
+	 */
+	static CompletableFuture<String> supplyAsync(
+			final AuthorizationToken token, Executor executor) {
+
+		try {
+
+			return CompletableFuture.supplyAsync(token::generate, executor);
+
+		} catch (RejectedExecutionException ex) {
+
+			CompletableFuture<String> rejected = new CompletableFuture<>();
+			rejected.completeExceptionally(ex);
+			return rejected;
+		}
+	}
+
+	private static final class DefaultExecutorHolder {
+
+		static final ExecutorService EXECUTOR = newBoundedExecutor(
+				Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE);
+	}
+}
@@ -0,0 +1,517 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.security.auth.Subject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.logiclander.jaasmine.AuthenticationThreads;
+import com.logiclander.jaasmine.SubjectPropagation;
+
+/**
+ * Runs the authentication work of a Filter on a dedicated executor instead
+ * of the container's request thread, using Servlet 3 asynchronous
+ * processing.
+ *
+ * The request is put into asynchronous mode and the Filter's own
+ * {@code doFilter} runs on the executor with a stand-in FilterChain.  If the
+ * Filter authorizes the request, the request is marked with a request
+ * attribute and dispatched again with {@link AsyncContext#dispatch()}; the
+ * Filter finds the mark on the {@link DispatcherType#ASYNC ASYNC} dispatch,
+ * through {@link #resume(ServletRequest, ServletResponse, FilterChain)
+ * resume}, and passes the request on down the chain the container gives it
+ * then.  The container's FilterChain of the first dispatch is never used
+ * after that dispatch returns, since containers such as Tomcat release it.
+ * If the Filter does not authorize the request, the response it prepared (a
+ * challenge, an error or a redirect) is sent as it is.  Requests the
+ * container cannot process asynchronously are filtered on the request thread
+ * as before.
+ *
+ * The Filter must therefore be mapped with both the {@code REQUEST} and the
+ * {@code ASYNC} dispatcher types, and every Filter and Servlet in the chain
+ * must be marked {@code async-supported}.
+ *
+ * The following init-params are read:
+ * <UL>
+ *  <LI>authenticationThreads - the number of threads that authenticate
+ * requests.  The default is twice the number of available processors.</LI>
+ *  <LI>authenticationQueueSize - the number of requests that can wait for a
+ * thread.  Requests that find the queue full get a 503.  The default is
+ * 1024.</LI>
+ *  <LI>authenticationTimeout - the number of seconds a request may wait for
+ * and take to authenticate before it gets a 503.  The default is 60.  Once
+ * the request is authorized, the timeout no longer applies: the rest of the
+ * chain runs without a timeout of its own, as it would on the request
+ * thread.</LI>
+ *  <LI>virtualThreads - set to {@code true} to authenticate each request on
+ * its own virtual thread, on Java runtimes that have them.  At most
+ * authenticationThreads plus authenticationQueueSize requests are
+ * authenticated at once.  The default is {@code false}.  See
+ * {@link AuthenticationThreads} for how the work that would pin a virtual
+ * thread is handled.</LI>
+ * </UL>
+ */
+final class AsyncFilterSupport {
+
+	/**
+	 * The {@code doFilter} method of the Filter whose work is offloaded.
+	 */
+	interface FilterWork {
+
+		/**
+		 * @param request the ServletRequest.
+		 * @param response the ServletResponse.
+		 * @param chain the FilterChain.
+		 * @throws IOException if an I/O error occurs.
+		 * @throws ServletException if a processing error occurs.
+		 */
+		void doFilter(ServletRequest request, ServletResponse response,
+				FilterChain chain) throws IOException, ServletException;
+	}
+
+	private static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	private static final long DEFAULT_TIMEOUT_SECONDS = 60;
+
+	/**
+	 * What a Filter does with a request dispatched back to it after its work
+	 * on the executor.  It runs on a container thread, with the FilterChain
+	 * of the {@code ASYNC} dispatch.
+	 */
+	interface Resumption {
+
+		/**
+		 * @param request the ServletRequest of the dispatch.
+		 * @param response the ServletResponse of the dispatch.
+		 * @param chain the FilterChain of the dispatch.
+		 * @throws IOException if an I/O error occurs.
+		 * @throws ServletException if a processing error occurs.
+		 */
+		void resume(ServletRequest request, ServletResponse response,
+				FilterChain chain) throws IOException, ServletException;
+	}
+
+	private static final Log logger =
+			LogFactory.getLog(AsyncFilterSupport.class);
+
+	/** The request attribute that holds the AsyncRequest of a request. */
+	private final String attributeName;
+
+	private final ExecutorService executor;
+
+	private final ScheduledExecutorService timeouts;
+
+	private final long timeoutMillis;
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	private AsyncFilterSupport(String filterName, ExecutorService executor,
+			ScheduledExecutorService timeouts, long timeoutMillis) {
+		this.attributeName = AsyncFilterSupport.class.getName() + "." +
+				filterName;
+		this.executor = executor;
+		this.timeouts = timeouts;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * @param filterConfig the FilterConfig.
+	 * @return the AsyncFilterSupport.
+	 * @throws ServletException if the init-params are invalid.
+	 */
+	static AsyncFilterSupport create(FilterConfig filterConfig)
+			throws ServletException {
+
+		long threads = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"authenticationThreads",
+				2 * Runtime.getRuntime().availableProcessors());
+		long queueSize = SPNegoAcceptorConfig.getLongInitParameter(
+				filterConfig, "authenticationQueueSize", DEFAULT_QUEUE_SIZE);
+		long timeout = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"authenticationTimeout", DEFAULT_TIMEOUT_SECONDS);
+
+		if (threads <= 0 || threads > Integer.MAX_VALUE || queueSize <= 0
+				|| queueSize > Integer.MAX_VALUE || timeout <= 0) {
+			throw new ServletException("authenticationThreads, "
+				+ "authenticationQueueSize and authenticationTimeout must be "
+				+ "positive");
+		}
+
+		boolean virtual = Boolean.parseBoolean(
+				SPNegoAcceptorConfig.getInitParameter(filterConfig,
+						"virtualThreads"));
+		ExecutorService executor = AuthenticationThreads.newExecutor(
+				"jaasmine-auth", (int) threads, (int) queueSize, virtual);
+
+		return new AsyncFilterSupport(filterConfig.getFilterName(), executor,
+				AuthenticationThreads.newScheduler("jaasmine-auth-timeout"),
+				TimeUnit.SECONDS.toMillis(timeout));
+	}
+
+	/**
+	 * Runs the Filter's work on the executor, or on the calling thread if the
+	 * request cannot be processed asynchronously.
+	 *
+	 * @param request the HttpServletRequest.
+	 * @param response the HttpServletResponse.
+	 * @param chain the FilterChain.
+	 * @param work the Filter's work.
+	 * @throws IOException if an I/O error occurs.
+	 * @throws ServletException if a processing error occurs.
+	 */
+	void offload(HttpServletRequest request, HttpServletResponse response,
+			FilterChain chain, FilterWork work)
+			throws IOException, ServletException {
+
+		if (!request.isAsyncSupported() || request.isAsyncStarted()) {
+			work.doFilter(request, response, chain);
+			return;
+		}
+
+		// The container's timeout would also cover the rest of the chain and
+		// cannot be changed once this dispatch returns, so the authentication
+		// timeout is kept here instead.
+		AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(0);
+
+		AsyncRequest asyncRequest = new AsyncRequest(asyncContext);
+		asyncContext.addListener(asyncRequest);
+		request.setAttribute(attributeName, asyncRequest);
+
+		try {
+
+			asyncRequest.timeout = timeouts.schedule(() -> {
+				if (asyncRequest.timeOut()) {
+					timeoutCount.incrementAndGet();
+					if (logger.isWarnEnabled()) {
+						logger.warn(String.format(
+								"Request not authenticated after %d ms",
+								timeoutMillis));
+					}
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+			executor.execute(() -> asyncRequest.authenticate(work));
+
+		} catch (RejectedExecutionException ex) {
+
+			rejectedCount.incrementAndGet();
+			if (logger.isWarnEnabled()) {
+				logger.warn("Too many requests waiting to be authenticated");
+			}
+			asyncRequest.fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		}
+	}
+
+	/**
+	 * Resumes a request the Filter's work dispatched back to it.  The Filter
+	 * calls this first for every request.
+	 *
+	 * @param request the ServletRequest.
+	 * @param response the ServletResponse.
+	 * @param chain the FilterChain.
+	 * @return true if the request was resumed; false if it is not an
+	 * {@code ASYNC} dispatch made here, and the Filter handles it as usual.
+	 * @throws IOException if an I/O error occurs.
+	 * @throws ServletException if a processing error occurs.
+	 */
+	boolean resume(ServletRequest request, ServletResponse response,
+			FilterChain chain) throws IOException, ServletException {
+
+		if (request.getDispatcherType() != DispatcherType.ASYNC) {
+			return false;
+		}
+
+		Object attribute = request.getAttribute(attributeName);
+		Resumption resumption = attribute instanceof AsyncRequest ?
+				((AsyncRequest) attribute).resumption.getAndSet(null) : null;
+		if (resumption == null) {
+			return false;
+		}
+
+		request.removeAttribute(attributeName);
+		resumption.resume(request, response, chain);
+		return true;
+	}
+
+	/**
+	 * Has a request dispatched once the Filter's work on it is done, instead
+	 * of having the Filter forward it from the executor.  This may only be
+	 * called by the Filter's work.
+	 *
+	 * @param request the ServletRequest the Filter's work was given.
+	 * @param path the path to dispatch to, or {@code null} to dispatch the
+	 * request back to the Filter.
+	 * @param resumption what the Filter does with the dispatched request.
+	 * @return false if the request is not being worked on by the executor,
+	 * in which case the Filter forwards it itself.
+	 */
+	boolean dispatchAfterWork(ServletRequest request, String path,
+			Resumption resumption) {
+
+		Object attribute = request.getAttribute(attributeName);
+		if (!(attribute instanceof AsyncRequest) ||
+				!((AsyncRequest) attribute).isAuthenticating()) {
+			return false;
+		}
+
+		((AsyncRequest) attribute).dispatchAfterWork(path, resumption);
+		return true;
+	}
+
+	/**
+	 * @return the number of requests refused because the queue was full.
+	 */
+	long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return the number of requests that were not authenticated in time.
+	 */
+	long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * Stops the executor once the requests being authenticated are done.
+	 * Their timeouts still fire.
+	 */
+	void destroy() {
+		executor.shutdown();
+		timeouts.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %s, rejected = %d, timeouts = %d",
+				getClass().getSimpleName(), executor, getRejectedCount(),
+				getTimeoutCount());
+	}
+
+	/**
+	 * One request in asynchronous mode.  It is finished exactly once: by a
+	 * dispatch, by the Filter's own response, or by a timeout or error.  A
+	 * timeout only finishes a request that is still being authenticated.
+	 */
+	private static final class AsyncRequest implements AsyncListener {
+
+		private static final int AUTHENTICATING = 0;
+
+		private static final int DISPATCHED = 1;
+
+		private static final int FINISHED = 2;
+
+		private final AsyncContext asyncContext;
+
+		private final AtomicInteger state = new AtomicInteger(AUTHENTICATING);
+
+		/**
+		 * What the Filter does when the request is dispatched, or
+		 * {@code null} if it is not dispatched or was resumed.
+		 */
+		final AtomicReference<Resumption> resumption =
+				new AtomicReference<>();
+
+		/** The path to dispatch to, or {@code null} for the Filter. */
+		private volatile String path;
+
+		/** The authentication timeout, cancelled once it cannot apply. */
+		volatile ScheduledFuture<?> timeout;
+
+		AsyncRequest(AsyncContext asyncContext) {
+			this.asyncContext = asyncContext;
+		}
+
+		boolean isAuthenticating() {
+			return state.get() == AUTHENTICATING;
+		}
+
+		void dispatchAfterWork(String dispatchPath, Resumption then) {
+			path = dispatchPath;
+			resumption.set(then);
+		}
+
+		void authenticate(FilterWork work) {
+
+			try {
+
+				work.doFilter(asyncContext.getRequest(),
+						asyncContext.getResponse(), (req, resp) -> {
+							// A filter that propagates the Subject runs this
+							// chain as the requester, but the real chain runs
+							// on another thread.
+							Subject subject = SubjectPropagation.current();
+							dispatchAfterWork(null, (r, s, chain) -> {
+								FilterChain next = subject == null ? chain :
+										new PropagatingFilterChain(chain,
+												subject);
+								next.doFilter(req, resp);
+							});
+						});
+
+			} catch (IOException | ServletException | RuntimeException ex) {
+
+				if (logger.isErrorEnabled()) {
+					logger.error("Problem authenticating request", ex);
+				}
+				fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				return;
+			}
+
+			if (resumption.get() == null) {
+				complete();
+				return;
+			}
+
+			if (!state.compareAndSet(AUTHENTICATING, DISPATCHED)) {
+				// Timed out while the Filter was working.
+				return;
+			}
+			cancelTimeout();
+
+			try {
+
+				String dispatchPath = path;
+				if (dispatchPath == null) {
+					asyncContext.dispatch();
+				} else {
+					asyncContext.dispatch(dispatchPath);
+				}
+
+			} catch (IllegalStateException ex) {
+
+				// The container finished the request, after an error.
+				logger.debug("Could not dispatch request", ex);
+			}
+		}
+
+		/**
+		 * Answers a request that is still being authenticated with a 503.
+		 *
+		 * @return true if the request was still being authenticated.
+		 */
+		boolean timeOut() {
+
+			if (!state.compareAndSet(AUTHENTICATING, FINISHED)) {
+				return false;
+			}
+			sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			asyncContext.complete();
+			return true;
+		}
+
+		void fail(int status) {
+
+			if (state.getAndSet(FINISHED) == FINISHED) {
+				return;
+			}
+			cancelTimeout();
+			sendError(status);
+			asyncContext.complete();
+		}
+
+		private void sendError(int status) {
+
+			HttpServletResponse response =
+					(HttpServletResponse) asyncContext.getResponse();
+			if (!response.isCommitted()) {
+				try {
+					if (status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+						response.setHeader("Retry-After", "1");
+					}
+					response.sendError(status);
+				} catch (IOException | IllegalStateException ex) {
+					logger.debug("Could not send error", ex);
+				}
+			}
+		}
+
+		private void complete() {
+			if (state.getAndSet(FINISHED) != FINISHED) {
+				cancelTimeout();
+				asyncContext.complete();
+			}
+		}
+
+		private void cancelTimeout() {
+			ScheduledFuture<?> t = timeout;
+			if (t != null) {
+				t.cancel(false);
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+
+			// The container's timeout is off, unless another Filter set one.
+			// Only a request that is still being authenticated is answered;
+			// the rest of the chain owns its response.
+			if (timeOut() && logger.isWarnEnabled()) {
+				logger.warn(String.format("Request timed out after %d ms",
+						asyncContext.getTimeout()));
+			}
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			state.set(FINISHED);
+			cancelTimeout();
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+
+			if (state.getAndSet(FINISHED) == DISPATCHED && path == null &&
+					resumption.get() != null && logger.isWarnEnabled()) {
+				logger.warn("An authorized request was not dispatched back "
+						+ "to the Filter; map it with the ASYNC dispatcher "
+						+ "type");
+			}
+			cancelTimeout();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			// Not restarted.
+		}
+	}
+}
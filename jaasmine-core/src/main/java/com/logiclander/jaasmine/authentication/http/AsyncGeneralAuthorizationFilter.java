@@ -0,0 +1,81 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A {@link GeneralAuthorizationFilter} that checks {@code Authorization}
+ * headers on a dedicated executor instead of the container's request thread.
+ *
+ * Requests without an {@code Authorization} header, such as those
+ * authorized by a cookie or by their connection, are filtered on the request
+ * thread.  The executor is configured with the init-params described in
+ * {@link AsyncFilterSupport}, in addition to those of
+ * GeneralAuthorizationFilter.  The Filter must be marked
+ * {@code async-supported} and mapped with the {@code REQUEST} and
+ * {@code ASYNC} dispatcher types.
+ */
+public class AsyncGeneralAuthorizationFilter extends GeneralAuthorizationFilter {
+
+	private AsyncFilterSupport asyncSupport;
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+		super.init(filterConfig);
+		asyncSupport = AsyncFilterSupport.create(filterConfig);
+	}
+
+	@Override
+	public void doFilter(ServletRequest servletRequest,
+			ServletResponse servletResponse, FilterChain chain)
+			throws IOException, ServletException {
+
+		if (asyncSupport.resume(servletRequest, servletResponse, chain)) {
+			return;
+		}
+
+		if (servletRequest instanceof HttpServletRequest
+				&& servletResponse instanceof HttpServletResponse
+				&& ((HttpServletRequest) servletRequest).getHeader(
+						AuthorizationHeader.AUTHORIZATION) != null) {
+
+			asyncSupport.offload((HttpServletRequest) servletRequest,
+					(HttpServletResponse) servletResponse, chain,
+					super::doFilter);
+
+		} else {
+			super.doFilter(servletRequest, servletResponse, chain);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		super.destroy();
+		if (asyncSupport != null) {
+			asyncSupport.destroy();
+		}
+	}
+}
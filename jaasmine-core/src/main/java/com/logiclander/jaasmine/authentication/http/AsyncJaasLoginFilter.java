@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import com.logiclander.jaasmine.authentication.AuthenticationService;
+
+/**
+ * A {@link JaasLoginFilter} that performs logins on a dedicated executor
+ * instead of the container's request thread.
+ *
+ * Only requests that carry credentials (a {@code username} parameter or an
+ * {@code Authorization} header) and whose session has no Subject yet are
+ * offloaded; requests that are already logged in, and requests sent on to
+ * the login page, are filtered on the request thread.  A failed login is
+ * sent to the login page with an asynchronous dispatch: to loginPath
+ * directly, or back to this Filter to be forwarded to loginServletName on a
+ * container thread.  The executor is configured with the init-params
+ * described in {@link AsyncFilterSupport}, in addition to those of
+ * JaasLoginFilter.  The Filter must be marked {@code async-supported} and
+ * mapped with the {@code REQUEST} and {@code ASYNC} dispatcher types.
+ */
+public class AsyncJaasLoginFilter extends JaasLoginFilter {
+
+    /** Runs logins off the request thread. */
+    private AsyncFilterSupport asyncSupport;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        super.init(filterConfig);
+        asyncSupport = AsyncFilterSupport.create(filterConfig);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response,
+            FilterChain chain) throws IOException, ServletException {
+
+        if (asyncSupport.resume(request, response, chain)) {
+            return;
+        }
+
+        if (request instanceof HttpServletRequest
+                && response instanceof HttpServletResponse
+                && needsLogin((HttpServletRequest) request)) {
+
+            asyncSupport.offload((HttpServletRequest) request,
+                    (HttpServletResponse) response, chain, super::doFilter);
+
+        } else {
+            super.doFilter(request, response, chain);
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * A request being logged in on the executor is dispatched to the login
+     * page once the login is done, since the container's dispatchers cannot
+     * be used from another thread.  If this Filter is also mapped to
+     * loginPath, it passes the dispatched request on.
+     */
+    @Override
+    void forwardToLogin(HttpServletRequest req, HttpServletResponse resp,
+            final RequestDispatcher loginDispatcher, String path)
+            throws IOException, ServletException {
+
+        boolean dispatched = path != null ?
+                asyncSupport.dispatchAfterWork(req, path,
+                        (r, s, chain) -> chain.doFilter(r, s)) :
+                asyncSupport.dispatchAfterWork(req, null,
+                        (r, s, chain) -> loginDispatcher.forward(r, s));
+
+        if (!dispatched) {
+            super.forwardToLogin(req, resp, loginDispatcher, path);
+        }
+    }
+
+
+    /**
+     * @param request the HttpServletRequest.
+     * @return true if the request carries credentials and is not logged in.
+     */
+    private boolean needsLogin(HttpServletRequest request) {
+
+        HttpSession session = request.getSession(false);
+        if (session != null && session.getAttribute(
+                AuthenticationService.SUBJECT_KEY) != null) {
+            return false;
+        }
+
+        return request.getParameter("username") != null
+                || request.getHeader(AuthorizationHeader.AUTHORIZATION) != null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy() {
+        super.destroy();
+        if (asyncSupport != null) {
+            asyncSupport.destroy();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An {@link SPNegoFilter} that accepts SPNego tokens on a dedicated executor
+ * instead of the container's request thread.
+ *
+ * Requests without an {@code Authorization} header, and requests authorized
+ * by a cookie or by their connection whatever their headers, are filtered on
+ * the request thread.  The executor is configured with the init-params
+ * described in {@link AsyncFilterSupport}, in addition to those of
+ * SPNegoFilter.  The Filter must be marked {@code async-supported} and mapped
+ * with the {@code REQUEST} and {@code ASYNC} dispatcher types.
+ */
+public class AsyncSPNegoFilter extends SPNegoFilter {
+
+    /** Runs the acceptor off the request thread. */
+    private AsyncFilterSupport asyncSupport;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        super.init(filterConfig);
+        asyncSupport = AsyncFilterSupport.create(filterConfig);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response,
+            FilterChain chain) throws IOException, ServletException {
+
+        if (asyncSupport.resume(request, response, chain)) {
+            return;
+        }
+
+        if (request instanceof HttpServletRequest
+                && response instanceof HttpServletResponse
+                && needsToken((HttpServletRequest) request)) {
+
+            asyncSupport.offload((HttpServletRequest) request,
+                    (HttpServletResponse) response, chain, super::doFilter);
+
+        } else {
+            super.doFilter(request, response, chain);
+        }
+    }
+
+
+    /**
+     * @param request the HttpServletRequest.
+     * @return true if the request carries a token and is not authorized by a
+     * cookie or its connection.
+     */
+    private boolean needsToken(HttpServletRequest request) {
+        return request.getHeader(AuthorizationHeader.AUTHORIZATION) != null
+                && getRememberedPrincipal(request) == null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy() {
+        super.destroy();
+        if (asyncSupport != null) {
+            asyncSupport.destroy();
+        }
+    }
+}
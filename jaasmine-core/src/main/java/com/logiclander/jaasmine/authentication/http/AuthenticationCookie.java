@@ -0,0 +1,347 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.logiclander.jaasmine.SPNegoPrincipal;
+
+/**
+ * Issues and verifies a signed, time limited cookie that carries the name of
+ * a requester authenticated with {@code Negotiate}.  Requests that present a
+ * valid cookie are authorized without validating an SPNego token.
+ *
+ * The cookie value is {@code payload.signature}, both Base64 (URL safe)
+ * encoded.  The payload is {@code keyId:expires:name} and the signature is an
+ * HMAC-SHA256 of the payload and the server name of the request.  The
+ * signing key changes every rotation period.  Each key is derived from a
+ * secret and the number of the period, so servers sharing the secret accept
+ * each other's cookies without sharing any other state.
+ *
+ * The following init-params are read:
+ * <UL>
+ *  <LI>authCookie - set to {@code true} to issue and accept cookies.  The
+ * default is {@code false}.</LI>
+ *  <LI>authCookieName - the name of the cookie.  The default is
+ * {@code JAASMINE_AUTH}.</LI>
+ *  <LI>authCookieMaxAge - the number of seconds a cookie is valid.  The
+ * default is 300.</LI>
+ *  <LI>authCookieKeyRotation - the number of seconds between signing key
+ * changes.  The default is 3600.</LI>
+ *  <LI>authCookieSecret - a Base64 encoded secret from which the signing keys
+ * are derived.  Set the same secret on every server behind a load balancer.
+ * If not set, a random secret is generated, and cookies are only accepted by
+ * the server that issued them.</LI>
+ * </UL>
+ */
+final class AuthenticationCookie {
+
+	private static final String DEFAULT_COOKIE_NAME = "JAASMINE_AUTH";
+
+	private static final long DEFAULT_MAX_AGE_SECONDS = 300;
+
+	private static final long DEFAULT_KEY_ROTATION_SECONDS =
+			TimeUnit.HOURS.toSeconds(1);
+
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final Log logger =
+			LogFactory.getLog(AuthenticationCookie.class);
+
+	private final String cookieName;
+
+	private final long maxAgeMillis;
+
+	private final long keyRotationMillis;
+
+	private final SecretKeySpec secret;
+
+	private volatile SigningKey currentKey;
+
+	private AuthenticationCookie(String cookieName, long maxAgeSeconds,
+			long keyRotationSeconds, byte[] secret) {
+		this.cookieName = cookieName;
+		this.maxAgeMillis = TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+		this.keyRotationMillis = TimeUnit.SECONDS.toMillis(keyRotationSeconds);
+		this.secret = new SecretKeySpec(secret, HMAC_ALGORITHM);
+	}
+
+	/**
+	 * @param filterConfig the FilterConfig.
+	 * @return a new AuthenticationCookie, or {@code null} if the authCookie
+	 * init-param is not {@code true}.
+	 * @throws ServletException if the init-params are invalid.
+	 */
+	static AuthenticationCookie create(FilterConfig filterConfig)
+			throws ServletException {
+
+		if (!Boolean.parseBoolean(SPNegoAcceptorConfig.getInitParameter(
+				filterConfig, "authCookie"))) {
+			return null;
+		}
+
+		String cookieName = SPNegoAcceptorConfig.getInitParameter(filterConfig,
+				"authCookieName");
+		long maxAge = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"authCookieMaxAge", DEFAULT_MAX_AGE_SECONDS);
+		long keyRotation = SPNegoAcceptorConfig.getLongInitParameter(
+				filterConfig, "authCookieKeyRotation",
+				DEFAULT_KEY_ROTATION_SECONDS);
+		String encodedSecret = SPNegoAcceptorConfig.getInitParameter(
+				filterConfig, "authCookieSecret");
+
+		if (maxAge <= 0 || keyRotation <= 0) {
+			throw new ServletException(
+				"authCookieMaxAge and authCookieKeyRotation must be positive");
+		}
+
+		byte[] secret;
+		if (encodedSecret == null) {
+			secret = new byte[32];
+			new SecureRandom().nextBytes(secret);
+		} else {
+			secret = Base64.decodeBase64(encodedSecret);
+			if (secret.length < 16) {
+				throw new ServletException(
+					"authCookieSecret must be at least 16 bytes");
+			}
+		}
+
+		return new AuthenticationCookie(
+				cookieName == null ? DEFAULT_COOKIE_NAME : cookieName,
+				maxAge, keyRotation, secret);
+	}
+
+	/**
+	 * @param httpRequest the HttpServletRequest.
+	 * @return the Principal named by a valid cookie on the request, or
+	 * {@code null} if there is no valid cookie.
+	 */
+	Principal verify(HttpServletRequest httpRequest) {
+
+		Cookie[] cookies = httpRequest.getCookies();
+		if (cookies == null) {
+			return null;
+		}
+
+		for (Cookie cookie : cookies) {
+			if (cookieName.equals(cookie.getName())) {
+				return verify(cookie.getValue(), httpRequest.getServerName(),
+						System.currentTimeMillis());
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Adds a cookie for the given requester to the response.
+	 *
+	 * @param httpRequest the HttpServletRequest.
+	 * @param httpResponse the HttpServletResponse.
+	 * @param name the name of the authenticated requester.
+	 */
+	void issue(HttpServletRequest httpRequest,
+			HttpServletResponse httpResponse, String name) {
+
+		String value;
+		try {
+			value = createValue(name, httpRequest.getServerName(),
+					System.currentTimeMillis());
+		} catch (GeneralSecurityException ex) {
+			if (logger.isWarnEnabled()) {
+				logger.warn("Could not sign authentication cookie", ex);
+			}
+			return;
+		}
+
+		String path = httpRequest.getContextPath();
+		if (path == null || path.isEmpty()) {
+			path = "/";
+		}
+
+		Cookie cookie = new Cookie(cookieName, value);
+		cookie.setPath(path);
+		cookie.setMaxAge((int) Math.min(Integer.MAX_VALUE,
+				TimeUnit.MILLISECONDS.toSeconds(maxAgeMillis)));
+		cookie.setHttpOnly(true);
+		cookie.setSecure(httpRequest.isSecure());
+
+		httpResponse.addCookie(cookie);
+	}
+
+	/**
+	 * @param name the name of the authenticated requester.
+	 * @param serverName the server name the cookie is valid for.
+	 * @param now the time of issue, in milliseconds.
+	 * @return the signed cookie value.
+	 * @throws GeneralSecurityException if the value cannot be signed.
+	 */
+	String createValue(String name, String serverName, long now)
+			throws GeneralSecurityException {
+
+		SigningKey key = getSigningKey(now / keyRotationMillis);
+
+		String payload = String.format("%d:%d:%s", key.keyId,
+				now + maxAgeMillis, name);
+		byte[] payloadBytes = payload.getBytes(UTF_8);
+
+		return Base64.encodeBase64URLSafeString(payloadBytes) + "." +
+				Base64.encodeBase64URLSafeString(sign(key, payloadBytes,
+						serverName));
+	}
+
+	/**
+	 * @param value the cookie value.
+	 * @param serverName the server name of the request.
+	 * @param now the current time, in milliseconds.
+	 * @return the Principal named by the value, or {@code null} if it is not
+	 * valid.
+	 */
+	Principal verify(String value, String serverName, long now) {
+
+		if (value == null) {
+			return null;
+		}
+
+		int dot = value.indexOf('.');
+		if (dot <= 0) {
+			return null;
+		}
+
+		byte[] payloadBytes = Base64.decodeBase64(value.substring(0, dot));
+		byte[] signature = Base64.decodeBase64(value.substring(dot + 1));
+		String payload = new String(payloadBytes, UTF_8);
+
+		String[] fields = payload.split(":", 3);
+		if (fields.length != 3 || fields[2].isEmpty()) {
+			return null;
+		}
+
+		long keyId;
+		long expires;
+		try {
+			keyId = Long.parseLong(fields[0]);
+			expires = Long.parseLong(fields[1]);
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+
+		long currentKeyId = now / keyRotationMillis;
+		long oldestKeyId = (now - maxAgeMillis) / keyRotationMillis;
+
+		if (now >= expires || expires > now + maxAgeMillis ||
+				keyId > currentKeyId || keyId < oldestKeyId) {
+			return null;
+		}
+
+		try {
+
+			byte[] expected = sign(getSigningKey(keyId), payloadBytes,
+					serverName);
+			if (!MessageDigest.isEqual(expected, signature)) {
+				return null;
+			}
+
+		} catch (GeneralSecurityException ex) {
+			if (logger.isWarnEnabled()) {
+				logger.warn("Could not verify authentication cookie", ex);
+			}
+			return null;
+		}
+
+		try {
+			return new SPNegoPrincipal(fields[2], null);
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	private SigningKey getSigningKey(long keyId) {
+
+		SigningKey key = currentKey;
+		if (key != null && key.keyId == keyId) {
+			return key;
+		}
+
+		try {
+
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(secret);
+			byte[] derived = mac.doFinal(
+					String.format("jaasmine-auth-cookie:%d", keyId)
+						.getBytes(UTF_8));
+			key = new SigningKey(keyId,
+					new SecretKeySpec(derived, HMAC_ALGORITHM));
+
+		} catch (GeneralSecurityException ex) {
+			// Every Java platform is required to support HmacSHA256.
+			throw new IllegalStateException(ex);
+		}
+
+		if (currentKey == null || keyId > currentKey.keyId) {
+			currentKey = key;
+		}
+
+		return key;
+	}
+
+	private static byte[] sign(SigningKey key, byte[] payload,
+			String serverName) throws GeneralSecurityException {
+
+		Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+		mac.init(key.key);
+		mac.update(payload);
+		mac.update((byte) 0);
+		if (serverName != null) {
+			mac.update(serverName.getBytes(UTF_8));
+		}
+		return mac.doFinal();
+	}
+
+	/** A signing key and the rotation period it belongs to. */
+	private static final class SigningKey {
+
+		private final long keyId;
+
+		private final SecretKeySpec key;
+
+		SigningKey(long keyId, SecretKeySpec key) {
+			this.keyId = keyId;
+			this.key = key;
+		}
+	}
+}
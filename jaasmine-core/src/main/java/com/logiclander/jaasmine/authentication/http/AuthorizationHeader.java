@@ -0,0 +1,304 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The {@code Authorization} header of a request, parsed once.
+ *
+ * The scheme is matched case-insensitively against the supported
+ * {@link AuthorizationType}s without creating intermediate Strings or
+ * throwing exceptions; unknown schemes are {@link AuthorizationType#NULL}.
+ * The credentials are the rest of the header with surrounding white space
+ * removed.
+ *
+ * Basic credentials are decoded by {@link #decodeBasicCredentials()} into a
+ * per-thread buffer, so junk headers cost no garbage beyond the header
+ * itself.
+ */
+final class AuthorizationHeader {
+
+	static final String AUTHORIZATION = "Authorization";
+
+	/** The largest Basic credential that is decoded. */
+	private static final int MAX_BASIC_BYTES = 4096;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final AuthorizationHeader NONE =
+			new AuthorizationHeader(false, AuthorizationType.NULL, "");
+
+	private static final AuthorizationType[] TYPES =
+			AuthorizationType.values();
+
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		Arrays.fill(BASE64_VALUES, (byte) -1);
+		String alphabet =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++) {
+			BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+		}
+	}
+
+	private static final ThreadLocal<byte[]> BASIC_BUFFER =
+			new ThreadLocal<byte[]>() {
+
+		@Override
+		protected byte[] initialValue() {
+			return new byte[MAX_BASIC_BYTES];
+		}
+	};
+
+	private final boolean present;
+
+	private final AuthorizationType type;
+
+	private final String credentials;
+
+	private AuthorizationHeader(boolean present, AuthorizationType type,
+			String credentials) {
+		this.present = present;
+		this.type = type;
+		this.credentials = credentials;
+	}
+
+	/**
+	 * @param httpRequest the HttpServletRequest.
+	 * @return the parsed {@code Authorization} header of the request.
+	 */
+	static AuthorizationHeader parse(HttpServletRequest httpRequest) {
+		return parse(httpRequest.getHeader(AUTHORIZATION));
+	}
+
+	/**
+	 * @param headerValue the value of an {@code Authorization} header, or
+	 * {@code null}.
+	 * @return the parsed header.
+	 */
+	static AuthorizationHeader parse(String headerValue) {
+
+		if (headerValue == null) {
+			return NONE;
+		}
+
+		int length = headerValue.length();
+		int start = skipWhitespace(headerValue, 0, length);
+
+		int schemeEnd = start;
+		while (schemeEnd < length &&
+				!isWhitespace(headerValue.charAt(schemeEnd))) {
+			schemeEnd++;
+		}
+
+		AuthorizationType type = matchScheme(headerValue, start,
+				schemeEnd - start);
+
+		int credentialsStart = skipWhitespace(headerValue, schemeEnd, length);
+		int credentialsEnd = length;
+		while (credentialsEnd > credentialsStart &&
+				isWhitespace(headerValue.charAt(credentialsEnd - 1))) {
+			credentialsEnd--;
+		}
+
+		return new AuthorizationHeader(true, type,
+				headerValue.substring(credentialsStart, credentialsEnd));
+	}
+
+	/**
+	 * @return true if the request has an {@code Authorization} header.
+	 */
+	boolean isPresent() {
+		return present;
+	}
+
+	/**
+	 * @return the scheme of the header, {@link AuthorizationType#NULL} if
+	 * there is no header or the scheme is not supported.
+	 */
+	AuthorizationType getType() {
+		return type;
+	}
+
+	/**
+	 * @return the credentials following the scheme, or an empty String.
+	 */
+	String getCredentials() {
+		return credentials;
+	}
+
+	/**
+	 * Decodes Basic credentials ({@code user-id:password}, UTF-8 encoded).
+	 * Credentials without a colon are a user-id with an empty password.
+	 *
+	 * @return the decoded credentials, or {@code null} if the credentials
+	 * are not valid Base64 or UTF-8, or are too long.
+	 */
+	BasicCredentials decodeBasicCredentials() {
+
+		byte[] buffer = BASIC_BUFFER.get();
+		int decoded = decodeBase64(credentials, buffer);
+		if (decoded < 0) {
+			return null;
+		}
+
+		try {
+
+			int colon = decoded;
+			for (int i = 0; i < decoded; i++) {
+				if (buffer[i] == ':') {
+					colon = i;
+					break;
+				}
+			}
+
+			char[] username = decodeChars(buffer, 0, colon);
+			char[] password = colon == decoded ? new char[0] :
+					decodeChars(buffer, colon + 1, decoded - colon - 1);
+
+			return username == null || password == null ? null :
+					new BasicCredentials(new String(username), password);
+
+		} finally {
+			Arrays.fill(buffer, 0, decoded, (byte) 0);
+		}
+	}
+
+	/**
+	 * @return the number of bytes decoded into the buffer, or -1 if the value
+	 * is not valid Base64 or does not fit.
+	 */
+	private static int decodeBase64(String value, byte[] buffer) {
+
+		int end = value.length();
+		int padding = 0;
+		while (end > 0 && value.charAt(end - 1) == '=' && padding < 2) {
+			end--;
+			padding++;
+		}
+
+		if ((end + padding) % 4 != 0 || end * 3 / 4 > buffer.length) {
+			return -1;
+		}
+
+		int out = 0;
+		int bits = 0;
+		int bitCount = 0;
+
+		for (int i = 0; i < end; i++) {
+
+			char c = value.charAt(i);
+			int v = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+			if (v < 0) {
+				Arrays.fill(buffer, 0, out, (byte) 0);
+				return -1;
+			}
+
+			bits = (bits << 6) | v;
+			bitCount += 6;
+			if (bitCount >= 8) {
+				bitCount -= 8;
+				buffer[out++] = (byte) (bits >> bitCount);
+			}
+		}
+
+		return out;
+	}
+
+	private static char[] decodeChars(byte[] buffer, int offset, int length) {
+
+		CharsetDecoder decoder = UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPORT)
+			.onUnmappableCharacter(CodingErrorAction.REPORT);
+
+		try {
+
+			CharBuffer chars = decoder.decode(
+					ByteBuffer.wrap(buffer, offset, length));
+			char[] password = new char[chars.remaining()];
+			chars.get(password);
+			Arrays.fill(chars.array(), '\0');
+			return password;
+
+		} catch (CharacterCodingException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the supported scheme with the given name, compared without
+	 * regard to case.
+	 */
+	private static AuthorizationType matchScheme(String value, int start,
+			int length) {
+
+		for (AuthorizationType candidate : TYPES) {
+			String name = candidate.getScheme();
+			if (name != null && name.length() == length &&
+					value.regionMatches(true, start, name, 0, length)) {
+				return candidate;
+			}
+		}
+		return AuthorizationType.NULL;
+	}
+
+	private static int skipWhitespace(String value, int start, int end) {
+		int pos = start;
+		while (pos < end && isWhitespace(value.charAt(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t';
+	}
+
+	/** A decoded Basic user-id and password. */
+	static final class BasicCredentials {
+
+		private final String username;
+
+		private final char[] password;
+
+		BasicCredentials(String username, char[] password) {
+			this.username = username;
+			this.password = password;
+		}
+
+		String getUsername() {
+			return username;
+		}
+
+		/**
+		 * @return the password.  The caller should clear it after use.
+		 */
+		char[] getPassword() {
+			return password;
+		}
+	}
+}
@@ -1,5 +1,18 @@
 package com.logiclander.jaasmine.authentication.http;
 
 public enum AuthorizationType {
-	NULL, BASIC, NEGOTIATE;
+	NULL(null), BASIC("Basic"), NEGOTIATE("Negotiate");
+	
+	private final String scheme;
+	
+	AuthorizationType(String scheme) {
+		this.scheme = scheme;
+	}
+	
+	/**
+	 * @return the scheme name used in HTTP headers, or {@code null} for NULL.
+	 */
+	public String getScheme() {
+		return scheme;
+	}
 }
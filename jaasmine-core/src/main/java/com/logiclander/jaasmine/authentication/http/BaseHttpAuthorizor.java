@@ -1,9 +1,6 @@
 package com.logiclander.jaasmine.authentication.http;
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.util.Arrays;
-import java.util.List;
-
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -14,12 +11,12 @@ abstract class BaseHttpAuthorizor extends ChallengeHttpAuthorizor {
 
 	private static final String WWW_AUTHENTICATE = "WWW-Authenticate";
 
-	private static final String AUTHORIZATION = "Authorization";
-
 	private static final String DEFAULT_REALM_NAME = "Jaasmine";
 
 	private final HttpServletRequest httpRequest;
 
+	private final AuthorizationHeader authorizationHeader;
+
     final Log httpAuthorizorLogger =
 		LogFactory.getLog("httpAuthorizorLogger");
 
@@ -27,9 +24,20 @@ abstract class BaseHttpAuthorizor extends ChallengeHttpAuthorizor {
     	this(httpRequest, DEFAULT_REALM_NAME);
     }
 
+	BaseHttpAuthorizor(HttpServletRequest httpRequest,
+			AuthorizationHeader authorizationHeader) {
+		this(httpRequest, DEFAULT_REALM_NAME, authorizationHeader);
+	}
+
 	BaseHttpAuthorizor(HttpServletRequest httpRequest, String realmName) {
+		this(httpRequest, realmName, AuthorizationHeader.parse(httpRequest));
+	}
+
+	BaseHttpAuthorizor(HttpServletRequest httpRequest, String realmName,
+			AuthorizationHeader authorizationHeader) {
 		super(realmName);
 		this.httpRequest = checkNotNull(httpRequest);
+		this.authorizationHeader = checkNotNull(authorizationHeader);
 	}
 
 	@Override
@@ -46,63 +54,33 @@ abstract class BaseHttpAuthorizor extends ChallengeHttpAuthorizor {
 	}
 
 	@Override
-	public AuthorizationType authorizationType() {
-		AuthorizationType authzType = AuthorizationType.NULL;
-
-		String requestType =
-			getHeaderValueToken(httpRequest.getHeader(AUTHORIZATION), " ", 0);
-
-		try {
-			authzType = AuthorizationType.valueOf(requestType.toUpperCase());
-		} catch (Exception e) {
-
-			if (httpAuthorizorLogger.isInfoEnabled()) {
-				httpAuthorizorLogger.info(
-					String.format("Unsupported authorization type: %s", requestType)
-				);
-			}
-			authzType = AuthorizationType.NULL;
-		}
-
-		return authzType;
+	public void prepareAuthorizedHttpResponse(HttpServletResponse httpResponse) {
+		// Most authorization types have nothing to send back.
 	}
 
-
 	@Override
-	public String authorizationToken() {
-		String authzToken = "";
-
-		try {
-			authzToken =
-				getHeaderValueToken(httpRequest.getHeader(AUTHORIZATION), " ", 1);
-		} catch (Exception e) {
-
-			if (httpAuthorizorLogger.isInfoEnabled()) {
-				httpAuthorizorLogger.info("No authorization token on Authorization header", e);
-			}
-			authzToken = "";
-		}
-
-		return authzToken;
+	public AuthorizationType authorizationType() {
+		return authorizationHeader.getType();
 	}
 
 
-	String getHeaderValueToken(String headerValue, String delimiter, int tokenToGet) {
-
-		String checkedHeaderValue = checkNotNull(headerValue);
-
-		List<String> header = Arrays.asList(checkedHeaderValue.split(delimiter, 2));
-		return header.get(tokenToGet);
+	@Override
+	public String authorizationToken() {
+		return authorizationHeader.getCredentials();
 	}
 
 
 	@Override
 	public boolean hasAuthorization() {
-		return (httpRequest.getHeader(AUTHORIZATION) != null);
+		return authorizationHeader.isPresent();
 	}
 
 	HttpServletRequest getHttpRequest() {
 		return httpRequest;
 	}
 
+	AuthorizationHeader getAuthorizationHeader() {
+		return authorizationHeader;
+	}
+
 }
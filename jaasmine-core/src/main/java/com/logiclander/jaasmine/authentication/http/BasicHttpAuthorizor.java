@@ -1,67 +1,86 @@
 package com.logiclander.jaasmine.authentication.http;
 
-import java.util.List;
+import java.util.Arrays;
 
 import javax.security.auth.Subject;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
-import org.apache.commons.codec.binary.Base64;
-
-import com.google.common.collect.ImmutableList;
 import com.logiclander.jaasmine.authentication.AuthenticationService;
 import com.logiclander.jaasmine.authentication.SimpleAuthenticationService;
+import com.logiclander.jaasmine.authentication.http.AuthorizationHeader.BasicCredentials;
 
 class BasicHttpAuthorizor extends BaseHttpAuthorizor {
 
-    private final String appName;
+    /** Too Many Requests, which the Servlet API has no constant for. */
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private final PasswordLoginConfig passwordLogin;
+
+    private LoginThrottledException throttled;
 
     private final Subject subject;
 
     BasicHttpAuthorizor(HttpServletRequest httpRequest) {
         super(httpRequest);
-        this.appName = AuthenticationService.DEFAULT_JAASMINE_LOGIN_CONFIG;
+        this.passwordLogin = new PasswordLoginConfig(
+                new SimpleAuthenticationService(
+                        AuthenticationService.DEFAULT_JAASMINE_LOGIN_CONFIG));
         this.subject = createSubject();
     }
 
     BasicHttpAuthorizor(HttpServletRequest httpRequest, String realmName) {
         super(httpRequest, realmName);
-        this.appName = AuthenticationService.DEFAULT_JAASMINE_LOGIN_CONFIG;
+        this.passwordLogin = new PasswordLoginConfig(
+                new SimpleAuthenticationService(
+                        AuthenticationService.DEFAULT_JAASMINE_LOGIN_CONFIG));
         this.subject = createSubject();
     }
 
     BasicHttpAuthorizor(HttpServletRequest httpRequest, String realmName,
             String appName) {
-        super(httpRequest, realmName);
-        this.appName = appName;
-        this.subject = createSubject();
+        this(httpRequest, realmName, appName,
+                AuthorizationHeader.parse(httpRequest));
     }
 
-    private Subject createSubject() {
-        List<String> credentials = getUsernamePasswordCreds(decodeAuthTokenCredentials());
+    BasicHttpAuthorizor(HttpServletRequest httpRequest, String realmName,
+            String appName, AuthorizationHeader authorizationHeader) {
+        this(httpRequest, realmName,
+                new SimpleAuthenticationService(appName), authorizationHeader);
+    }
 
-        return doLogin(credentials);
+    BasicHttpAuthorizor(HttpServletRequest httpRequest, String realmName,
+            AuthenticationService authnService,
+            AuthorizationHeader authorizationHeader) {
+        this(httpRequest, realmName, new PasswordLoginConfig(authnService),
+                authorizationHeader);
     }
 
-    private String decodeAuthTokenCredentials() {
-        return new String(Base64.decodeBase64(authorizationToken()));
+    BasicHttpAuthorizor(HttpServletRequest httpRequest, String realmName,
+            PasswordLoginConfig passwordLogin,
+            AuthorizationHeader authorizationHeader) {
+        super(httpRequest, realmName, authorizationHeader);
+        this.passwordLogin = passwordLogin;
+        this.subject = createSubject();
     }
 
-    private List<String> getUsernamePasswordCreds(String decodedCredential) {
+    private Subject createSubject() {
 
-        ImmutableList.Builder<String> decodedCreds = ImmutableList.builder();
-        for (String decodedCred : decodedCredential.split(":", 2)) {
-            decodedCreds.add(decodedCred);
+        BasicCredentials credentials =
+                getAuthorizationHeader().decodeBasicCredentials();
+        if (credentials == null) {
+            return null;
         }
 
-        if (decodedCreds.build().size() < 2) {
-            decodedCreds.add("");
+        try {
+            return doLogin(credentials);
+        } finally {
+            Arrays.fill(credentials.getPassword(), '\0');
         }
-
-        return decodedCreds.build();
     }
 
-    private Subject doLogin(List<String> usernamePassword) {
+    private Subject doLogin(BasicCredentials credentials) {
 
         HttpSession session = getHttpRequest().getSession();
 
@@ -69,11 +88,13 @@ class BasicHttpAuthorizor extends BaseHttpAuthorizor {
                 .getAttribute(AuthenticationService.SUBJECT_KEY);
 
         if (subj == null) {
-            AuthenticationService authnSvc = new SimpleAuthenticationService(
-                    appName);
-
-            subj = authnSvc.login(usernamePassword.get(0), usernamePassword
-                    .get(1).toCharArray());
+            try {
+                subj = passwordLogin.login(getHttpRequest(),
+                        credentials.getUsername(), credentials.getPassword());
+            } catch (LoginThrottledException ex) {
+                throttled = ex;
+                return null;
+            }
 
             if (subj != null) {
                 session.setAttribute(AuthenticationService.SUBJECT_KEY, subj);
@@ -93,4 +114,21 @@ class BasicHttpAuthorizor extends BaseHttpAuthorizor {
         return subject != null;
     }
 
+    /**
+     * Sends 429 or 503 with a Retry-After header instead of a challenge when
+     * the login was refused without checking the credentials.
+     */
+    @Override
+    public void prepareUnauthorizedHttpResponse(
+            HttpServletResponse httpResponse) {
+
+        if (throttled != null) {
+            httpResponse.setHeader("Retry-After",
+                    Long.toString(throttled.getRetryAfterSeconds()));
+            httpResponse.setStatus(throttled.getStatus());
+        } else {
+            super.prepareUnauthorizedHttpResponse(httpResponse);
+        }
+    }
+
 }
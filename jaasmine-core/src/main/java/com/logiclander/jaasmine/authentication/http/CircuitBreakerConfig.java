@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+import com.logiclander.jaasmine.CircuitBreaker;
+
+/**
+ * Creates the CircuitBreakers that Filters put around their authentication
+ * backends.
+ *
+ * The following init-params are read:
+ * <UL>
+ *  <LI>circuitBreakerFailureRate - the percentage of failed or slow calls
+ * among the last 20 at which the breaker opens.  The default is 0, which
+ * does not use a breaker.</LI>
+ *  <LI>circuitBreakerSlowCall - the number of milliseconds after which a
+ * call counts as failed.  The default is 5000.</LI>
+ *  <LI>circuitBreakerOpenTime - the number of seconds the breaker refuses
+ * calls before it lets a few probe calls through.  The default is 30.</LI>
+ * </UL>
+ *
+ * Each CircuitBreaker is also stored in the ServletContext under the name
+ * {@code com.logiclander.jaasmine.CircuitBreaker.}<i>filterName</i>{@code .}
+ * <i>name</i>, so that the application can watch its state.  The filter name
+ * keeps apart the breakers of Filters that use the same backend.
+ */
+final class CircuitBreakerConfig {
+
+	private CircuitBreakerConfig() {
+		// Static methods only.
+	}
+
+	/**
+	 * @param filterConfig the FilterConfig.
+	 * @param name the name of the backend.
+	 * @return the CircuitBreaker, or {@code null} if breakers are not used.
+	 * @throws ServletException if the init-params are invalid.
+	 */
+	static CircuitBreaker create(FilterConfig filterConfig, String name)
+			throws ServletException {
+
+		long failureRate = SPNegoAcceptorConfig.getLongInitParameter(
+				filterConfig, "circuitBreakerFailureRate", 0);
+		if (failureRate <= 0) {
+			return null;
+		}
+
+		long slowCall = SPNegoAcceptorConfig.getLongInitParameter(
+				filterConfig, "circuitBreakerSlowCall",
+				CircuitBreaker.DEFAULT_SLOW_CALL_MILLIS);
+		long openTime = SPNegoAcceptorConfig.getLongInitParameter(
+				filterConfig, "circuitBreakerOpenTime",
+				CircuitBreaker.DEFAULT_OPEN_MILLIS / 1000);
+		if (failureRate > 100 || slowCall <= 0 || openTime <= 0) {
+			throw new ServletException("circuitBreakerFailureRate must be at "
+				+ "most 100 and circuitBreakerSlowCall and "
+				+ "circuitBreakerOpenTime must be positive");
+		}
+
+		CircuitBreaker breaker = new CircuitBreaker(name, (int) failureRate,
+				CircuitBreaker.DEFAULT_WINDOW_SIZE,
+				CircuitBreaker.DEFAULT_MINIMUM_CALLS, slowCall, openTime * 1000,
+				CircuitBreaker.DEFAULT_PROBE_CALLS);
+		filterConfig.getServletContext().setAttribute(
+				getAttributeName(filterConfig, name), breaker);
+
+		return breaker;
+	}
+
+	/**
+	 * @param filterConfig the FilterConfig.
+	 * @param name the name of the backend.
+	 * @return the name of the ServletContext attribute of the breaker.
+	 */
+	static String getAttributeName(FilterConfig filterConfig, String name) {
+		return String.format("%s.%s.%s", CircuitBreaker.class.getName(),
+				filterConfig.getFilterName(), name);
+	}
+}
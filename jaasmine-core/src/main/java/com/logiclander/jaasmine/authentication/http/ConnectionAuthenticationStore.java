@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.security.Principal;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers the requester authenticated on an HTTP connection so that later
+ * requests on the same keep-alive connection are authorized without
+ * validating another SPNego token (like {@code authPersistNonNTLM} in IIS).
+ *
+ * Connections are identified only by the value of a request attribute in
+ * which the container puts an identifier of the connection, so the
+ * connectionIdAttribute init-param is required.  The remote and local
+ * addresses and ports of a request are not used: behind a reverse proxy that
+ * adds no forwarding headers every user shares the proxy's connections, and
+ * a client port reused within the time an entry is kept would hand one
+ * user's authentication to another.  Entries expire after a fixed time and
+ * the number of entries is bounded.
+ *
+ * Persistence is skipped for requests without the connection identifier and
+ * for requests that came through a proxy ({@code Forwarded},
+ * {@code X-Forwarded-For} or {@code Via} headers), since a proxy sends
+ * requests from many users over the same connection.
+ *
+ * The following init-params are read:
+ * <UL>
+ *  <LI>persistConnectionAuth - set to {@code true} to remember
+ * authentications per connection.  The default is {@code false}.</LI>
+ *  <LI>connectionAuthMaxAge - the number of seconds an authentication is
+ * remembered.  The default is 60.</LI>
+ *  <LI>connectionAuthMaxSize - the maximum number of connections
+ * remembered.  The default is 10000.</LI>
+ *  <LI>connectionIdAttribute - the name of a request attribute holding a
+ * container specific connection identifier.  This parameter is required
+ * when persistConnectionAuth is {@code true}.</LI>
+ * </UL>
+ */
+final class ConnectionAuthenticationStore {
+
+	private static final long DEFAULT_MAX_AGE_SECONDS = 60;
+
+	private static final long DEFAULT_MAX_SIZE = 10000;
+
+	private static final String[] PROXY_HEADERS = {
+		"Forwarded", "X-Forwarded-For", "Via"
+	};
+
+	private final Cache<String, Principal> principals;
+
+	private final String connectionIdAttribute;
+
+	private ConnectionAuthenticationStore(long maxAgeSeconds, long maxSize,
+			String connectionIdAttribute) {
+		this.principals = CacheBuilder.newBuilder()
+			.expireAfterWrite(maxAgeSeconds, TimeUnit.SECONDS)
+			.maximumSize(maxSize)
+			.build();
+		this.connectionIdAttribute = connectionIdAttribute;
+	}
+
+	/**
+	 * @param filterConfig the FilterConfig.
+	 * @return a new ConnectionAuthenticationStore, or {@code null} if the
+	 * persistConnectionAuth init-param is not {@code true}.
+	 * @throws ServletException if the init-params are invalid.
+	 */
+	static ConnectionAuthenticationStore create(FilterConfig filterConfig)
+			throws ServletException {
+
+		if (!Boolean.parseBoolean(SPNegoAcceptorConfig.getInitParameter(
+				filterConfig, "persistConnectionAuth"))) {
+			return null;
+		}
+
+		long maxAge = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"connectionAuthMaxAge", DEFAULT_MAX_AGE_SECONDS);
+		long maxSize = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"connectionAuthMaxSize", DEFAULT_MAX_SIZE);
+
+		if (maxAge <= 0 || maxSize <= 0) {
+			throw new ServletException(
+				"connectionAuthMaxAge and connectionAuthMaxSize must be "
+				+ "positive");
+		}
+
+		String connectionIdAttribute = SPNegoAcceptorConfig.getInitParameter(
+				filterConfig, "connectionIdAttribute");
+		if (connectionIdAttribute == null || connectionIdAttribute.isEmpty()) {
+			throw new ServletException(
+				"persistConnectionAuth needs connectionIdAttribute, since "
+				+ "connections cannot be told apart safely without a "
+				+ "connection identifier from the container");
+		}
+
+		return new ConnectionAuthenticationStore(maxAge, maxSize,
+				connectionIdAttribute);
+	}
+
+	/**
+	 * @param httpRequest the HttpServletRequest.
+	 * @return the Principal authenticated on the connection of the request,
+	 * or {@code null} if there is none.
+	 */
+	Principal get(HttpServletRequest httpRequest) {
+
+		String connectionId = getConnectionId(httpRequest,
+				connectionIdAttribute);
+		return connectionId == null ? null :
+			principals.getIfPresent(connectionId);
+	}
+
+	/**
+	 * Remembers the given Principal for the connection of the request.
+	 *
+	 * @param httpRequest the HttpServletRequest.
+	 * @param principal the authenticated Principal.
+	 */
+	void put(HttpServletRequest httpRequest, Principal principal) {
+
+		String connectionId = getConnectionId(httpRequest,
+				connectionIdAttribute);
+		if (connectionId != null) {
+			principals.put(connectionId, principal);
+		}
+	}
+
+	/**
+	 * @param httpRequest the HttpServletRequest.
+	 * @param connectionIdAttribute the name of the request attribute holding a
+	 * container specific connection identifier, or {@code null}.
+	 * @return the container's identifier for the connection of the request,
+	 * or {@code null} if the connection cannot be identified safely.
+	 */
+	static String getConnectionId(HttpServletRequest httpRequest,
+			String connectionIdAttribute) {
+
+		if (connectionIdAttribute == null || connectionIdAttribute.isEmpty()) {
+			return null;
+		}
+
+		for (String proxyHeader : PROXY_HEADERS) {
+			if (httpRequest.getHeader(proxyHeader) != null) {
+				return null;
+			}
+		}
+
+		Object connectionId = httpRequest.getAttribute(connectionIdAttribute);
+		if (connectionId == null) {
+			return null;
+		}
+
+		String id = connectionId.toString();
+		return id.isEmpty() ? null : id;
+	}
+}
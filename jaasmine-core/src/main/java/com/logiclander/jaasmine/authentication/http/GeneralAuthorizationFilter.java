@@ -1,6 +1,7 @@
 package com.logiclander.jaasmine.authentication.http;
 
 import java.io.IOException;
+import java.security.Principal;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -24,8 +25,29 @@ public class GeneralAuthorizationFilter implements Filter {
 	
 	private String realmName;
 	
+	private boolean propagateSubject;
+	
+	private PasswordLoginConfig passwordLogin;
+	
+	private SPNegoAcceptorConfig acceptorConfig;
+	
+	private AuthenticationCookie authCookie;
+	
+	private ConnectionAuthenticationStore connectionAuth;
+	
+	private StatefulNegotiation negotiation;
+	
 	@Override
 	public void destroy() {
+		if (acceptorConfig != null) {
+			acceptorConfig.destroy();
+		}
+		if (negotiation != null) {
+			negotiation.destroy();
+		}
+		if (passwordLogin != null) {
+			passwordLogin.destroy();
+		}
 	}
 
 	@Override
@@ -48,6 +70,16 @@ public class GeneralAuthorizationFilter implements Filter {
         	HttpServletResponse httpResponse = 
         			(HttpServletResponse) servletResponse;
         	
+        	// A remembered Principal means the requester already authenticated
+        	// with Negotiate, so the SPNego token is not checked again.
+        	Principal principal = getRememberedPrincipal(httpRequest);
+        	if (principal != null) {
+        		getChain(chain).doFilter(
+        			new JaasmineHttpServletRequest(httpRequest, principal),
+        			httpResponse);
+        		return;
+        	}
+        	
         	try {
         		
 				HttpAuthorizable httpAuthorizor = getHttpAuthorizor(httpRequest);
@@ -55,7 +87,16 @@ public class GeneralAuthorizationFilter implements Filter {
 				if (httpAuthorizor.isAuthorized()) {
 					
 					httpRequest = httpAuthorizor.getAuthorizedHttpRequest();
-					chain.doFilter(httpRequest, httpResponse);
+					
+					if (httpAuthorizor instanceof NegotiateHttpAuthorizor &&
+							httpRequest.getUserPrincipal() != null) {
+						rememberPrincipal(httpRequest, httpResponse);
+					}
+					
+					// Before the chain runs, since it may commit the response.
+					httpAuthorizor.prepareAuthorizedHttpResponse(httpResponse);
+					
+					getChain(chain).doFilter(httpRequest, httpResponse);
 					
 				} else {
 					
@@ -79,19 +120,54 @@ public class GeneralAuthorizationFilter implements Filter {
         }
 	}
 
-	private HttpAuthorizable getHttpAuthorizor(HttpServletRequest httpRequest) throws HttpAuthorizorException {
+	private Principal getRememberedPrincipal(HttpServletRequest httpRequest) {
 		
-		HttpAuthorizable httpAuthorizor = new NonAuthorizingHttpAuthorizor(httpRequest);
-
-		if (httpAuthorizor.hasAuthorization()) {
-			if (AuthorizationType.BASIC.equals(httpAuthorizor.authorizationType())) {
-				httpAuthorizor = new BasicHttpAuthorizor(httpRequest, realmName, appName);
-			} else if (AuthorizationType.NEGOTIATE.equals(httpAuthorizor.authorizationType())) {
-				httpAuthorizor = new NegotiateHttpAuthorizor(httpRequest, realmName);
+		Principal principal = null;
+		
+		if (connectionAuth != null) {
+			principal = connectionAuth.get(httpRequest);
+		}
+		
+		if (principal == null && authCookie != null) {
+			principal = authCookie.verify(httpRequest);
+			if (principal != null && connectionAuth != null) {
+				connectionAuth.put(httpRequest, principal);
 			}
 		}
 		
-		return httpAuthorizor;
+		return principal;
+	}
+	
+	private void rememberPrincipal(HttpServletRequest httpRequest,
+			HttpServletResponse httpResponse) {
+		
+		Principal principal = httpRequest.getUserPrincipal();
+		
+		if (connectionAuth != null) {
+			connectionAuth.put(httpRequest, principal);
+		}
+		
+		if (authCookie != null) {
+			authCookie.issue(httpRequest, httpResponse, principal.getName());
+		}
+	}
+	
+	HttpAuthorizable getHttpAuthorizor(HttpServletRequest httpRequest) throws HttpAuthorizorException {
+		
+		AuthorizationHeader authorizationHeader = AuthorizationHeader.parse(httpRequest);
+
+		switch (authorizationHeader.getType()) {
+		case BASIC:
+			return new BasicHttpAuthorizor(httpRequest, realmName, passwordLogin,
+					authorizationHeader);
+		case NEGOTIATE:
+			return new NegotiateHttpAuthorizor(httpRequest, realmName,
+					acceptorConfig.getSPNegoServices(httpRequest), negotiation,
+					authorizationHeader);
+		default:
+			return new NonAuthorizingHttpAuthorizor(httpRequest,
+					authorizationHeader);
+		}
 	}
 	
 	@Override
@@ -106,6 +182,22 @@ public class GeneralAuthorizationFilter implements Filter {
 		if (realmName == null) {
 			realmName = "Jaasmine";
 		}
+		
+		passwordLogin = PasswordLoginConfig.create(filterConfig, appName);
+		acceptorConfig = SPNegoAcceptorConfig.create(filterConfig);
+		authCookie = AuthenticationCookie.create(filterConfig);
+		connectionAuth = ConnectionAuthenticationStore.create(filterConfig);
+		negotiation = StatefulNegotiation.create(filterConfig);
+		propagateSubject = PropagatingFilterChain.isEnabled(filterConfig);
+	}
+	
+	/**
+	 * @param chain the FilterChain.
+	 * @return the chain that runs as the requester if the propagateSubject
+	 * init-param is set, or else the given chain.
+	 */
+	private FilterChain getChain(FilterChain chain) {
+		return propagateSubject ? new PropagatingFilterChain(chain) : chain;
 	}
 	
 	
@@ -26,6 +26,12 @@ interface HttpAuthorizable {
 	 */
 	void prepareUnauthorizedHttpResponse(HttpServletResponse httpResponse);
 	
+	/**
+	 * Sets HTTP headers for the response to an authorized request.
+	 * @param httpResponse
+	 */
+	void prepareAuthorizedHttpResponse(HttpServletResponse httpResponse);
+	
 	/**
 	 * 
 	 * @return true if the HttpServletRequest contains an Authorization header.
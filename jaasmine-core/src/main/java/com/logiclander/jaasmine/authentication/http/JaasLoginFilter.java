@@ -55,6 +55,29 @@ import com.logiclander.jaasmine.authentication.SimpleAuthenticationService;
  *  <LI>setRemoteUserOnLogin - when "true", calls to
  * {@link javax.servlet.http.HttpServletRequest#getRemoteUser() getRemoteUser}
  * will return the user name that was used by the user to log in.</LI>
+ *  <LI>credentialCacheTtl, credentialCacheMaxSize - remember successful
+ * logins, as described in {@link PasswordLoginConfig}.  Logins are not
+ * remembered by default.</LI>
+ *  <LI>failedLoginTtl, failedLoginMaxSize, userLoginRate, userLoginBurst,
+ * clientLoginRate, clientLoginBurst - refuse recently failed credentials and
+ * limit the rate of logins per user and per client, as described in
+ * {@link PasswordLoginConfig}.  Logins are not throttled by default.</LI>
+ *  <LI>loginWaitTimeout - the number of seconds a login waits for a
+ * concurrent login with the same credentials, as described in
+ * {@link PasswordLoginConfig}.  The default is 30.</LI>
+ *  <LI>maxConcurrentLogins, maxQueuedLogins, loginTimeout - bound the
+ * number of logins in progress with the backend and how long each may take,
+ * as described in {@link PasswordLoginConfig}.  Logins are not bounded by
+ * default.</LI>
+ *  <LI>circuitBreakerFailureRate, circuitBreakerSlowCall,
+ * circuitBreakerOpenTime, degradedLoginMaxAge - stop logging in with the
+ * backend while it keeps failing, optionally accepting recently verified
+ * credentials meanwhile, as described in {@link PasswordLoginConfig}.  No
+ * breaker is used by default.</LI>
+ *  <LI>propagateSubject - when "true", the rest of the filter chain runs as
+ * the logged in Subject, as described in {@link PropagatingFilterChain}.
+ * Before Java 23, threads the application starts meanwhile keep that
+ * Subject.  The default is "false".</LI>
  * </UL>
  *
  * Requests that invoke this Filter must have parameters named {@code username}
@@ -92,6 +115,10 @@ public class JaasLoginFilter implements Filter {
     private String appName;
 
 
+    /** Performs the user id and password logins. */
+    private PasswordLoginConfig passwordLogin;
+
+
     private String filterName;
 
 
@@ -124,6 +151,13 @@ public class JaasLoginFilter implements Filter {
 
     private boolean isUsingBasicAuthentication;
 
+
+    /**
+     * Flag indicating whether the rest of the chain runs as the logged in
+     * Subject.
+     */
+    private boolean propagateSubject;
+
     /**
      * {@inheritDoc}
      *
@@ -165,8 +199,12 @@ public class JaasLoginFilter implements Filter {
 
         filterName = filterConfig.getFilterName();
 
+        passwordLogin = PasswordLoginConfig.create(filterConfig, appName);
+
         isUsingBasicAuthentication = Boolean.valueOf(filterConfig.getInitParameter("setBasicAuth"));
 
+        propagateSubject = PropagatingFilterChain.isEnabled(filterConfig);
+
         if (logger.isDebugEnabled()) {
             logger.debug(String.format("%s initialized", toString()));
             logger.debug(String.format("loginPath = %s",
@@ -200,7 +238,10 @@ public class JaasLoginFilter implements Filter {
      * key from above.</LI>
      * </OL>
      * When the login is successful, the ServletRequest is wrapped in a
-     * {@link JaasmineHttpServletRequest}.  If it is unsuccessful, this filter
+     * {@link JaasmineHttpServletRequest} and the rest of the filter chain runs
+     * as the Subject, which it can read with
+     * {@link com.logiclander.jaasmine.SubjectPropagation#current()
+     * SubjectPropagation.current()}.  If it is unsuccessful, this filter
      * will send the request to a login processor as follows:
      * <OL>
      *  <LI>If {@code loginPath} is set, dispatch the request to that resource.
@@ -255,7 +296,16 @@ public class JaasLoginFilter implements Filter {
                 // Attempt to login the user and obtain a Subject.
 
                 if (!canExecute) {
-                    canExecute = login(httpReq);
+
+                    try {
+                        canExecute = login(httpReq);
+                    } catch (LoginThrottledException ex) {
+
+                        httpResp.setHeader("Retry-After",
+                                Long.toString(ex.getRetryAfterSeconds()));
+                        httpResp.sendError(ex.getStatus());
+                        return;
+                    }
                 }
 
                 if (canExecute) {
@@ -274,7 +324,12 @@ public class JaasLoginFilter implements Filter {
 
                     }
 
-                    chain.doFilter(sendOn, httpResp);
+                    if (propagateSubject) {
+                        new PropagatingFilterChain(chain, getSubject(httpReq))
+                                .doFilter(sendOn, httpResp);
+                    } else {
+                        chain.doFilter(sendOn, httpResp);
+                    }
 
                 } else {
 
@@ -331,7 +386,9 @@ public class JaasLoginFilter implements Filter {
 
                     if (loginDispatcher != null) {
 
-                        loginDispatcher.forward(httpReq, httpResp);
+                        forwardToLogin(httpReq, httpResp, loginDispatcher,
+                                loginPath.equals(EMPTY_STRING) ? null :
+                                        loginPath);
                         return;
 
                     } else {
@@ -394,6 +451,24 @@ public class JaasLoginFilter implements Filter {
     }
 
 
+    /**
+     * Forwards a request that is not logged in to the login page.
+     *
+     * @param req the HttpServletRequest.
+     * @param resp the HttpServletResponse.
+     * @param loginDispatcher the RequestDispatcher of the login page.
+     * @param path the loginPath, or {@code null} if the login page is the
+     * Servlet named by loginServletName.
+     * @throws IOException if an I/O error occurs.
+     * @throws ServletException if a processing error occurs.
+     */
+    void forwardToLogin(HttpServletRequest req, HttpServletResponse resp,
+            RequestDispatcher loginDispatcher, String path)
+            throws IOException, ServletException {
+        loginDispatcher.forward(req, resp);
+    }
+
+
     /**
      * Writes a log message using the configured logger at DEBUG level stating
      * that the Filter is destroyed.
@@ -401,6 +476,10 @@ public class JaasLoginFilter implements Filter {
     @Override
     public void destroy() {
 
+        if (passwordLogin != null) {
+            passwordLogin.destroy();
+        }
+
         if (logger.isDebugEnabled()) {
             logger.debug(String.format("%s destroyed", toString()));
         }
@@ -480,8 +559,11 @@ public class JaasLoginFilter implements Filter {
     /**
      * @param request the HttpServletRequest.
      * @return true if the Subject is obtained from the SimpleLoginService.
+     * @throws LoginThrottledException if too many logins were tried for the
+     * user or from the client.
      */
-    private boolean login(HttpServletRequest request) {
+    private boolean login(HttpServletRequest request)
+            throws LoginThrottledException {
 
         String username = request.getParameter("username");
         String password = request.getParameter("password");
@@ -523,8 +605,8 @@ public class JaasLoginFilter implements Filter {
 //            return subjectObtained;
 //        }
 
-        AuthenticationService as = new SimpleAuthenticationService(appName);
-        Subject s = as.login(username, password.toCharArray());
+        Subject s = passwordLogin.login(request, username,
+                password.toCharArray());
         subjectObtained = (s != null);
 
         if (subjectObtained) {
@@ -23,12 +23,19 @@ import javax.security.auth.Subject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 
+import org.ietf.jgss.GSSCredential;
 import org.ietf.jgss.GSSName;
 
+import com.logiclander.jaasmine.SPNegoPrincipal;
+
 /**
  * Custom HttpServletRequestWrapper for accessing Jaasmine constructs via the
  * servlet API.
  *
+ * Each instance carries the Subject of the requester: the Subject of a JAAS
+ * login, or a Subject made from the requester's Principal and any credential
+ * delegated with SPNego.  {@link PropagatingFilterChain} runs the rest of the
+ * filter chain as that Subject.
  */
 class JaasmineHttpServletRequest extends HttpServletRequestWrapper {
 
@@ -36,6 +43,8 @@ class JaasmineHttpServletRequest extends HttpServletRequestWrapper {
 
     private final Principal userPrincipal;
 
+    private final Subject subject;
+
     /**
      * Constructs a new JaasmineHttpServletRequest.
      *
@@ -48,15 +57,55 @@ class JaasmineHttpServletRequest extends HttpServletRequestWrapper {
 
         Set<Principal> principals = subject.getPrincipals();
         userPrincipal = principals.iterator().next();
+        this.subject = subject;
 
     }
 
 
     JaasmineHttpServletRequest(HttpServletRequest toWrap, GSSName name) {
+    	this(toWrap, name, null);
+    }
+
+
+    /**
+     * Constructs a new JaasmineHttpServletRequest for a requester
+     * authenticated with SPNego.
+     *
+     * @param toWrap the HttpServletRequest to wrap
+     * @param name the requester's name.
+     * @param delegatedCred the credential the requester delegated, or
+     * {@code null}.
+     */
+    JaasmineHttpServletRequest(HttpServletRequest toWrap, GSSName name,
+    		GSSCredential delegatedCred) {
     	super(toWrap);
     	this.wrapped = toWrap;
 
     	userPrincipal = new GSSNamePrincipal(name);
+    	subject = newSubject(userPrincipal, delegatedCred);
+    }
+
+
+    JaasmineHttpServletRequest(HttpServletRequest toWrap, Principal principal) {
+    	super(toWrap);
+    	this.wrapped = toWrap;
+
+    	userPrincipal = principal;
+    	subject = newSubject(principal, principal instanceof SPNegoPrincipal ?
+    			((SPNegoPrincipal) principal).getDelegatedCredential() : null);
+    }
+
+
+    private static Subject newSubject(Principal principal,
+    		GSSCredential delegatedCred) {
+
+    	Subject subject = new Subject();
+    	subject.getPrincipals().add(principal);
+    	if (delegatedCred != null) {
+    		subject.getPrivateCredentials().add(delegatedCred);
+    	}
+    	subject.setReadOnly();
+    	return subject;
     }
 
 
@@ -80,6 +129,14 @@ class JaasmineHttpServletRequest extends HttpServletRequestWrapper {
     }
 
 
+    /**
+     * @return the requester's Subject.
+     */
+    Subject getSubject() {
+        return subject;
+    }
+
+
     /**
      * @return a String representation of this JaasmineHttpServletRequest.
      */
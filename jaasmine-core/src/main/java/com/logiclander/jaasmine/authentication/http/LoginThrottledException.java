@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+/**
+ * Thrown when a password login is refused without checking the credentials,
+ * because of a rate limit or because too many logins are in progress.
+ */
+class LoginThrottledException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+
+	private final long retryAfterSeconds;
+
+	/**
+	 * Constructs a LoginThrottledException for a rate limit, answered with
+	 * 429.
+	 *
+	 * @param retryAfterSeconds the number of seconds the client should wait
+	 * before trying again.
+	 */
+	LoginThrottledException(long retryAfterSeconds) {
+		this("Too many logins", BasicHttpAuthorizor.SC_TOO_MANY_REQUESTS,
+				retryAfterSeconds);
+	}
+
+	/**
+	 * @param message the reason the login was refused.
+	 * @param status the HTTP status to answer with.
+	 * @param retryAfterSeconds the number of seconds the client should wait
+	 * before trying again.
+	 */
+	LoginThrottledException(String message, int status,
+			long retryAfterSeconds) {
+		super(message);
+		this.status = status;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * @return the HTTP status to answer with.
+	 */
+	int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the number of seconds the client should wait before trying
+	 * again.
+	 */
+	long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
@@ -1,39 +1,119 @@
 package com.logiclander.jaasmine.authentication.http;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.ietf.jgss.GSSException;
 
+import com.logiclander.jaasmine.InvalidSPNegoTokenException;
 import com.logiclander.jaasmine.SPNegoServer;
+import com.logiclander.jaasmine.SPNegoServices;
 
 class NegotiateHttpAuthorizor extends BaseHttpAuthorizor {
 
+	/**
+	 * The number of seconds a client should wait when the acceptor is
+	 * unavailable.
+	 */
+	private static final long UNAVAILABLE_RETRY_AFTER_SECONDS = 1;
+
+	private final StatefulNegotiation negotiation;
+	
+	/** True if the token could not be checked because the acceptor is
+	 * unavailable. */
+	private boolean unavailable;
+	
+	/** The result of the token, or {@code null} if it was rejected. */
 	private final SPNegoServer spnegoServer;
 	
-	NegotiateHttpAuthorizor(HttpServletRequest httpRequest) throws HttpAuthorizorException {
+	NegotiateHttpAuthorizor(HttpServletRequest httpRequest,
+			SPNegoServices spnegoServices) throws HttpAuthorizorException {
 		super(httpRequest);
-		spnegoServer = createSPNegoServer();
+		negotiation = null;
+		spnegoServer = createSPNegoServer(spnegoServices);
 	}
 
 	public NegotiateHttpAuthorizor(HttpServletRequest httpRequest,
-			String realmName) throws HttpAuthorizorException {
-		super(httpRequest, realmName);
-		spnegoServer = createSPNegoServer();
+			String realmName, SPNegoServices spnegoServices)
+			throws HttpAuthorizorException {
+		this(httpRequest, realmName, spnegoServices, null);
+	}
+
+	/**
+	 * @param negotiation keeps negotiations that need more than one token, or
+	 * {@code null} to start every negotiation over.
+	 */
+	NegotiateHttpAuthorizor(HttpServletRequest httpRequest,
+			String realmName, SPNegoServices spnegoServices,
+			StatefulNegotiation negotiation) throws HttpAuthorizorException {
+		this(httpRequest, realmName, spnegoServices, negotiation,
+				AuthorizationHeader.parse(httpRequest));
+	}
+
+	NegotiateHttpAuthorizor(HttpServletRequest httpRequest,
+			String realmName, SPNegoServices spnegoServices,
+			StatefulNegotiation negotiation,
+			AuthorizationHeader authorizationHeader)
+			throws HttpAuthorizorException {
+		super(httpRequest, realmName, authorizationHeader);
+		this.negotiation = negotiation;
+		spnegoServer = createSPNegoServer(spnegoServices);
 	}
 
-	private SPNegoServer createSPNegoServer() throws HttpAuthorizorException {
+	private SPNegoServer createSPNegoServer(SPNegoServices spnegoServices)
+			throws HttpAuthorizorException {
 		
 		try {
 			
-			return new SPNegoServer(authorizationToken());
+			if (negotiation != null) {
+				return negotiation.accept(spnegoServices, getHttpRequest(),
+						authorizationToken());
+			}
 			
-		} catch (GSSException e) {
+			return spnegoServices.accept(authorizationToken());
 			
-			if (httpAuthorizorLogger.isWarnEnabled()) {
-				httpAuthorizorLogger.warn("Problem initialzing SPNegoServer", e);
+		} catch (InvalidSPNegoTokenException e) {
+			
+			// Bad tokens are the client's problem: answer with a challenge.
+			if (httpAuthorizorLogger.isDebugEnabled()) {
+				httpAuthorizorLogger.debug(e.getMessage());
 			}
 			
-			throw new HttpAuthorizorException(e);
+			return null;
+			
+		} catch (GSSException e) {
+			
+			switch (e.getMajor()) {
+			
+			case GSSException.DUPLICATE_TOKEN:
+			case GSSException.CREDENTIALS_EXPIRED:
+			case GSSException.DEFECTIVE_TOKEN:
+				
+				// Replayed tokens, expired service tickets and tokens the
+				// acceptor cannot read are the client's problem too.
+				if (httpAuthorizorLogger.isDebugEnabled()) {
+					httpAuthorizorLogger.debug(String.format(
+							"Rejected SPNego token: %s", e.getMessage()));
+				}
+				return null;
+				
+			case GSSException.UNAVAILABLE:
+				
+				if (httpAuthorizorLogger.isInfoEnabled()) {
+					httpAuthorizorLogger.info(String.format(
+							"SPNego acceptor unavailable: %s", e.getMessage()));
+				}
+				unavailable = true;
+				return null;
+				
+			default:
+				
+				if (httpAuthorizorLogger.isWarnEnabled()) {
+					httpAuthorizorLogger.warn("Problem initialzing SPNegoServer", e);
+				}
+				
+				throw new HttpAuthorizorException(e);
+			}
 		}
 	}
 	
@@ -47,7 +127,8 @@ class NegotiateHttpAuthorizor extends BaseHttpAuthorizor {
 			authzdHttpRequest =
 				new JaasmineHttpServletRequest(
 					getHttpRequest(), 
-					spnegoServer.getRequesterName()
+					spnegoServer.getRequesterName(),
+					spnegoServer.getDelegatedCredential()
 				);
 			
 		} catch (GSSException e) {
@@ -66,9 +147,44 @@ class NegotiateHttpAuthorizor extends BaseHttpAuthorizor {
 		return authzdHttpRequest;
 	}
 
+	/**
+	 * Sends 503 with a Retry-After header instead of a challenge when the
+	 * acceptor was unavailable.
+	 */
+	@Override
+	public void prepareUnauthorizedHttpResponse(HttpServletResponse httpResponse) {
+		
+		if (unavailable) {
+			httpResponse.setHeader("Retry-After",
+					Long.toString(UNAVAILABLE_RETRY_AFTER_SECONDS));
+			httpResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		} else if (negotiation != null && spnegoServer != null &&
+				spnegoServer.isContinueNeeded()) {
+			negotiation.prepareContinueResponse(getHttpRequest(), httpResponse,
+					spnegoServer);
+		} else {
+			super.prepareUnauthorizedHttpResponse(httpResponse);
+		}
+	}
+	
+	@Override
+	public void prepareAuthorizedHttpResponse(HttpServletResponse httpResponse) {
+		
+		if (spnegoServer == null) {
+			return;
+		}
+		
+		// Mutual authentication: hand the client the final token.
+		byte[] responseToken = spnegoServer.getResponseToken();
+		if (responseToken != null && responseToken.length > 0) {
+			httpResponse.setHeader("WWW-Authenticate",
+					StatefulNegotiation.getNegotiateHeader(responseToken));
+		}
+	}
+
 	@Override
 	public boolean isAuthorized() {
-		return spnegoServer.isValidToken();
+		return spnegoServer != null && spnegoServer.isValidToken();
 	}
 
 }
@@ -8,6 +8,11 @@ public class NonAuthorizingHttpAuthorizor extends BaseHttpAuthorizor {
 		super(httpRequest);
 	}
 
+	NonAuthorizingHttpAuthorizor(HttpServletRequest httpRequest,
+			AuthorizationHeader authorizationHeader) {
+		super(httpRequest, authorizationHeader);
+	}
+
 	@Override
 	public HttpServletRequest getAuthorizedHttpRequest() {
 		return getHttpRequest();
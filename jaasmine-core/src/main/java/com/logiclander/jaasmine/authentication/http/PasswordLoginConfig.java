@@ -0,0 +1,507 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.logiclander.jaasmine.CircuitBreaker;
+import com.logiclander.jaasmine.authentication.AuthenticationService;
+import com.logiclander.jaasmine.authentication.BulkheadAuthenticationService;
+import com.logiclander.jaasmine.authentication.CachingAuthenticationService;
+import com.logiclander.jaasmine.authentication.CircuitOpenException;
+import com.logiclander.jaasmine.authentication.CoalescingAuthenticationService;
+import com.logiclander.jaasmine.authentication.CredentialCache;
+import com.logiclander.jaasmine.authentication.LoginRejectedException;
+import com.logiclander.jaasmine.authentication.LoginThrottle;
+import com.logiclander.jaasmine.authentication.SimpleAuthenticationService;
+import com.logiclander.jaasmine.authentication.StripedRateLimiter;
+
+/**
+ * Performs the user id and password logins of filters, remembering
+ * successful logins and throttling failed ones before they reach the
+ * backend.
+ *
+ * The following init-params are read:
+ * <UL>
+ *  <LI>credentialCacheTtl - the number of seconds a successful login is
+ * remembered, so that the same credentials are not checked with the backend
+ * again.  The default is 0, which does not remember logins.</LI>
+ *  <LI>credentialCacheMaxSize - the maximum number of logins remembered.
+ * The default is 10000.</LI>
+ *  <LI>failedLoginTtl - the number of seconds credentials that failed to log
+ * in are refused without asking the backend.  The default is 0, which does
+ * not remember failures.</LI>
+ *  <LI>failedLoginMaxSize - the maximum number of failed logins remembered.
+ * The default is 10000.</LI>
+ *  <LI>userLoginRate - the number of logins allowed for each user id per
+ * minute.  The default is 0, which does not limit logins per user.</LI>
+ *  <LI>userLoginBurst - the number of logins for a user id allowed at once.
+ * The default is userLoginRate.</LI>
+ *  <LI>clientLoginRate - the number of logins allowed from each client
+ * address per minute.  The default is 0, which does not limit logins per
+ * client.</LI>
+ *  <LI>clientLoginBurst - the number of logins from a client address allowed
+ * at once.  The default is clientLoginRate.</LI>
+ *  <LI>loginWaitTimeout - concurrent logins with the same credentials share
+ * one login with the backend; this is the number of seconds a login waits
+ * for the one in progress before it fails.  The default is 30.  0 does not
+ * share logins.</LI>
+ *  <LI>maxConcurrentLogins - the number of logins that may be in progress
+ * with the backend at once.  Logins run on their own threads, so a slow
+ * backend does not hold up the container's threads.  The default is 0, which
+ * runs logins on the request thread without a limit.</LI>
+ *  <LI>maxQueuedLogins - the number of logins that may wait for one in
+ * progress to finish.  The default is 100.</LI>
+ *  <LI>loginTimeout - the number of seconds a login may take, including the
+ * time it waits in the queue.  The default is 30.</LI>
+ *  <LI>circuitBreakerFailureRate, circuitBreakerSlowCall,
+ * circuitBreakerOpenTime - stop logging in with the backend while it keeps
+ * failing, as described in {@link CircuitBreakerConfig}.  No breaker is used
+ * by default.  Logins refused by the breaker get a 503.</LI>
+ *  <LI>degradedLoginMaxAge - while the breaker is open, accept credentials
+ * that logged in with the backend at most this many seconds ago instead of
+ * refusing them.  The default is 0, which refuses every login while the
+ * breaker is open.</LI>
+ * </UL>
+ *
+ * Remembered logins are answered before the limits are checked, so a client
+ * sending good credentials with every request is not limited.  Logins that
+ * wait for a shared login still take a permit, so the per user burst should
+ * allow for the number of requests a user sends at once.  Logins that find
+ * the queue full, wait in it past the loginTimeout, do not finish in time or
+ * cannot reach the backend get a 503, and do not count as failures.
+ * Recently failed credentials get a 401 and rate limited logins a 429.
+ *
+ * The CredentialCache and the recent logins kept for degraded logins are
+ * also stored in the ServletContext, so that {@link SimpleLogoutServlet} can
+ * forget the logins of a Subject it logs out.
+ */
+final class PasswordLoginConfig {
+
+	private static final long DEFAULT_MAX_QUEUED_LOGINS = 100;
+
+	private static final long DEFAULT_LOGIN_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * The number of seconds a client should wait after a login is refused
+	 * because too many are in progress or the backend is unavailable.
+	 */
+	private static final long REJECTED_RETRY_AFTER_SECONDS = 1;
+
+	private static final Log logger =
+			LogFactory.getLog(PasswordLoginConfig.class);
+
+	private final AuthenticationService authnService;
+
+	private final CredentialCache credentialCache;
+
+	private final LoginThrottle loginThrottle;
+
+	private final BulkheadAuthenticationService bulkhead;
+
+	private final CredentialCache degradedLogins;
+
+	/**
+	 * Constructs a PasswordLoginConfig that neither remembers nor throttles
+	 * logins.
+	 *
+	 * @param authnService the AuthenticationService that performs the logins.
+	 */
+	PasswordLoginConfig(AuthenticationService authnService) {
+		this(authnService, null, null);
+	}
+
+	/**
+	 * @param authnService the AuthenticationService that performs the logins.
+	 * @param credentialCache the cache of successful logins, or {@code null}.
+	 * @param loginThrottle the throttle for logins, or {@code null}.
+	 */
+	PasswordLoginConfig(AuthenticationService authnService,
+			CredentialCache credentialCache, LoginThrottle loginThrottle) {
+		this(authnService, credentialCache, loginThrottle, null, null);
+	}
+
+	private PasswordLoginConfig(AuthenticationService authnService,
+			CredentialCache credentialCache, LoginThrottle loginThrottle,
+			BulkheadAuthenticationService bulkhead,
+			CredentialCache degradedLogins) {
+		this.authnService = authnService;
+		this.credentialCache = credentialCache;
+		this.loginThrottle = loginThrottle;
+		this.bulkhead = bulkhead;
+		this.degradedLogins = degradedLogins;
+	}
+
+	/**
+	 * @param filterConfig the FilterConfig.
+	 * @param appName the JAAS application name.
+	 * @return the PasswordLoginConfig.
+	 * @throws ServletException if the init-params are invalid.
+	 */
+	static PasswordLoginConfig create(FilterConfig filterConfig,
+			String appName) throws ServletException {
+
+		SimpleAuthenticationService simpleService =
+				new SimpleAuthenticationService(appName);
+		CircuitBreaker breaker = CircuitBreakerConfig.create(filterConfig,
+				appName);
+		simpleService.setCircuitBreaker(breaker);
+		AuthenticationService authnService = simpleService;
+
+		BulkheadAuthenticationService bulkhead =
+				createBulkhead(filterConfig, authnService);
+		if (bulkhead != null) {
+			authnService = bulkhead;
+		}
+
+		return new PasswordLoginConfig(
+				coalesce(filterConfig, authnService),
+				createCredentialCache(filterConfig, appName),
+				createLoginThrottle(filterConfig),
+				bulkhead,
+				breaker == null ? null :
+						createDegradedLogins(filterConfig, appName));
+	}
+
+	private static CredentialCache createDegradedLogins(
+			FilterConfig filterConfig, String appName) throws ServletException {
+
+		long maxAge = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"degradedLoginMaxAge", 0);
+		if (maxAge < 0) {
+			throw new ServletException(
+				"degradedLoginMaxAge must not be negative");
+		}
+
+		if (maxAge == 0) {
+			return null;
+		}
+
+		CredentialCache cache = new CredentialCache(maxAge,
+				CredentialCache.DEFAULT_MAXIMUM_SIZE);
+		filterConfig.getServletContext().setAttribute(
+				getDegradedLoginsAttribute(appName), cache);
+
+		return cache;
+	}
+
+	private static AuthenticationService coalesce(FilterConfig filterConfig,
+			AuthenticationService authnService) throws ServletException {
+
+		long waitTimeout = SPNegoAcceptorConfig.getLongInitParameter(
+				filterConfig, "loginWaitTimeout", TimeUnit.MILLISECONDS.toSeconds(
+						CoalescingAuthenticationService.DEFAULT_WAIT_TIMEOUT_MILLIS));
+		if (waitTimeout < 0) {
+			throw new ServletException("loginWaitTimeout must not be negative");
+		}
+		if (waitTimeout == 0) {
+			return authnService;
+		}
+
+		return new CoalescingAuthenticationService(authnService,
+				TimeUnit.SECONDS.toMillis(waitTimeout));
+	}
+
+	private static BulkheadAuthenticationService createBulkhead(
+			FilterConfig filterConfig, AuthenticationService authnService)
+			throws ServletException {
+
+		long maxConcurrent = SPNegoAcceptorConfig.getLongInitParameter(
+				filterConfig, "maxConcurrentLogins", 0);
+		if (maxConcurrent <= 0) {
+			return null;
+		}
+
+		long maxQueued = SPNegoAcceptorConfig.getLongInitParameter(
+				filterConfig, "maxQueuedLogins", DEFAULT_MAX_QUEUED_LOGINS);
+		long timeout = SPNegoAcceptorConfig.getLongInitParameter(
+				filterConfig, "loginTimeout", DEFAULT_LOGIN_TIMEOUT_SECONDS);
+		if (maxConcurrent > Integer.MAX_VALUE || maxQueued < 0
+				|| maxQueued > Integer.MAX_VALUE || timeout <= 0) {
+			throw new ServletException("maxQueuedLogins must not be negative "
+				+ "and loginTimeout must be positive");
+		}
+
+		return new BulkheadAuthenticationService(authnService,
+				(int) maxConcurrent, (int) maxQueued,
+				TimeUnit.SECONDS.toMillis(timeout));
+	}
+
+	private static CredentialCache createCredentialCache(
+			FilterConfig filterConfig, String appName) throws ServletException {
+
+		long ttl = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"credentialCacheTtl", 0);
+		if (ttl <= 0) {
+			return null;
+		}
+
+		long maxSize = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"credentialCacheMaxSize", CredentialCache.DEFAULT_MAXIMUM_SIZE);
+		if (maxSize <= 0) {
+			throw new ServletException(
+				"credentialCacheMaxSize must be positive");
+		}
+
+		CredentialCache cache = new CredentialCache(ttl, maxSize);
+		filterConfig.getServletContext().setAttribute(
+				getCacheAttribute(appName), cache);
+
+		return cache;
+	}
+
+	private static LoginThrottle createLoginThrottle(FilterConfig filterConfig)
+			throws ServletException {
+
+		long ttl = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"failedLoginTtl", 0);
+		long maxSize = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"failedLoginMaxSize", LoginThrottle.DEFAULT_MAXIMUM_FAILURES);
+		if (ttl < 0 || maxSize <= 0) {
+			throw new ServletException("failedLoginTtl must not be negative "
+				+ "and failedLoginMaxSize must be positive");
+		}
+
+		StripedRateLimiter userLimiter =
+				createRateLimiter(filterConfig, "userLogin");
+		StripedRateLimiter clientLimiter =
+				createRateLimiter(filterConfig, "clientLogin");
+
+		if (ttl == 0 && userLimiter == null && clientLimiter == null) {
+			return null;
+		}
+
+		return new LoginThrottle(ttl, maxSize, userLimiter, clientLimiter);
+	}
+
+	private static StripedRateLimiter createRateLimiter(
+			FilterConfig filterConfig, String prefix) throws ServletException {
+
+		long rate = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				prefix + "Rate", 0);
+		if (rate <= 0) {
+			return null;
+		}
+
+		long burst = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				prefix + "Burst", rate);
+		if (burst <= 0 || burst > Integer.MAX_VALUE) {
+			throw new ServletException(prefix + "Burst must be positive");
+		}
+
+		return new StripedRateLimiter(rate, (int) burst);
+	}
+
+	/**
+	 * Logs a user in, answering from the CredentialCache if the same
+	 * credentials logged in recently.
+	 *
+	 * @param httpRequest the HttpServletRequest the credentials came with.
+	 * @param userId the user id.
+	 * @param password the password.
+	 * @return the Subject, or {@code null} if the login failed or the same
+	 * credentials failed recently.
+	 * @throws LoginThrottledException if too many logins were tried for the
+	 * user or from the client, or the login could not be decided.
+	 */
+	Subject login(HttpServletRequest httpRequest, String userId,
+			char[] password) throws LoginThrottledException {
+
+		if (userId == null) {
+			return authnService.login(userId, password);
+		}
+
+		if (credentialCache != null) {
+			Subject subject = credentialCache.get(userId, password);
+			if (subject != null) {
+				return subject;
+			}
+		}
+
+		if (loginThrottle != null) {
+			switch (loginThrottle.acquire(userId, password,
+					httpRequest.getRemoteAddr())) {
+			case RECENTLY_FAILED:
+				return null;
+			case RATE_LIMITED:
+				throw new LoginThrottledException(
+						loginThrottle.getRetryAfterSeconds());
+			default:
+				break;
+			}
+		}
+
+		// Keep a copy, in case the AuthenticationService clears the password.
+		char[] copy = password == null ? null : password.clone();
+		try {
+
+			Subject subject;
+			try {
+
+				subject = authnService.login(userId, password);
+
+			} catch (CircuitOpenException ex) {
+
+				subject = degradedLogin(userId, copy);
+				if (subject == null) {
+					throw new LoginThrottledException(ex.getMessage(),
+							HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+							REJECTED_RETRY_AFTER_SECONDS);
+				}
+				return subject;
+
+			} catch (LoginRejectedException ex) {
+
+				// Refused or undecided, so the credentials were not found
+				// wrong and the failure is not recorded against them.
+				throw new LoginThrottledException(ex.getMessage(),
+						HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+						REJECTED_RETRY_AFTER_SECONDS);
+			}
+
+			if (subject == null) {
+				if (loginThrottle != null) {
+					loginThrottle.recordFailure(userId, copy);
+				}
+			} else {
+				if (credentialCache != null) {
+					credentialCache.put(userId, copy, subject);
+				}
+				if (degradedLogins != null) {
+					degradedLogins.put(userId, copy, subject);
+				}
+			}
+			return subject;
+
+		} finally {
+			if (copy != null) {
+				Arrays.fill(copy, '\0');
+			}
+		}
+	}
+
+	/**
+	 * @param servletContext the ServletContext.
+	 * @param appName the JAAS application name.
+	 * @return the AuthenticationService for logging out Subjects of password
+	 * logins.
+	 */
+	static AuthenticationService forLogout(ServletContext servletContext,
+			String appName) {
+
+		AuthenticationService authnService =
+				new SimpleAuthenticationService(appName);
+
+		Object cache = servletContext.getAttribute(getCacheAttribute(appName));
+		if (cache instanceof CredentialCache) {
+			authnService = new CachingAuthenticationService(authnService,
+					(CredentialCache) cache);
+		}
+
+		Object degraded = servletContext.getAttribute(
+				getDegradedLoginsAttribute(appName));
+		if (degraded instanceof CredentialCache) {
+			authnService = new DegradedLoginForgetter(authnService,
+					(CredentialCache) degraded);
+		}
+
+		return authnService;
+	}
+
+	/**
+	 * @return the Subject of a recent login with the same credentials, or
+	 * {@code null} if degraded logins are off or there is none.
+	 */
+	private Subject degradedLogin(String userId, char[] password) {
+
+		if (degradedLogins == null) {
+			return null;
+		}
+
+		Subject subject = degradedLogins.get(userId, password);
+		if (subject != null && logger.isInfoEnabled()) {
+			logger.info(String.format("Accepted a recent login of %s while "
+					+ "the backend is unavailable", userId));
+		}
+		return subject;
+	}
+
+	/**
+	 * Stops the threads of the login bulkhead, if there is one.
+	 */
+	void destroy() {
+		if (bulkhead != null) {
+			bulkhead.close();
+		}
+	}
+
+	/**
+	 * Forgets the recent logins of a Subject before logging it out, so that
+	 * it is not accepted again while the backend is unavailable.  Unlike a
+	 * CachingAuthenticationService, read-only Subjects are passed on too.
+	 */
+	private static final class DegradedLoginForgetter
+			implements AuthenticationService {
+
+		private final AuthenticationService delegate;
+
+		private final CredentialCache degradedLogins;
+
+		DegradedLoginForgetter(AuthenticationService delegate,
+				CredentialCache degradedLogins) {
+			this.delegate = delegate;
+			this.degradedLogins = degradedLogins;
+		}
+
+		@Override
+		public Subject login(String userId, char[] password) {
+			return delegate.login(userId, password);
+		}
+
+		@Override
+		public void logout(Subject s) {
+			degradedLogins.invalidate(s);
+			delegate.logout(s);
+		}
+	}
+
+	private static String getCacheAttribute(String appName) {
+		return CredentialCache.class.getName() + "." + appName;
+	}
+
+	private static String getDegradedLoginsAttribute(String appName) {
+		return CredentialCache.class.getName() + ".degraded." + appName;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %s, cache = %s, throttle = %s",
+				getClass().getSimpleName(), authnService, credentialCache,
+				loginThrottle);
+	}
+}
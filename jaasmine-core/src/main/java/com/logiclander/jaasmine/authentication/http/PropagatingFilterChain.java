@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.io.IOException;
+
+import javax.security.auth.Subject;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import javax.servlet.ServletResponse;
+
+import com.logiclander.jaasmine.SubjectPropagation;
+
+/**
+ * A FilterChain that runs the rest of the chain as the requester's Subject,
+ * with {@link SubjectPropagation#callAs(Subject,
+ * SubjectPropagation.SubjectAction)}, so that servlets and later filters
+ * find it with {@link SubjectPropagation#current()}.
+ *
+ * Unless a Subject is given, it is taken from the
+ * {@link JaasmineHttpServletRequest} the request is, or wraps.  Without a
+ * Subject, the chain runs as it would have.
+ *
+ * The Filters use this chain only when their {@code propagateSubject}
+ * init-param is "true".  Before Java 23, every thread created while the
+ * Subject is bound inherits it, along with any delegated credentials, for
+ * the rest of its life; an application pool that starts a thread lazily
+ * during a request would hand this requester's Subject to later requests.
+ * The library's own threads are made with
+ * {@link com.logiclander.jaasmine.AuthenticationThreads#newThreadFactory(String)}
+ * and do not inherit it, but application code is outside its control.
+ */
+final class PropagatingFilterChain implements FilterChain {
+
+	/** The init-param that makes a Filter bind the Subject. */
+	static final String PROPAGATE_SUBJECT = "propagateSubject";
+
+	private final FilterChain chain;
+
+	private final Subject subject;
+
+	/**
+	 * @param chain the FilterChain to run.
+	 */
+	PropagatingFilterChain(FilterChain chain) {
+		this(chain, null);
+	}
+
+	/**
+	 * @param chain the FilterChain to run.
+	 * @param subject the Subject to run it as, or {@code null} to take it
+	 * from the request.
+	 */
+	PropagatingFilterChain(FilterChain chain, Subject subject) {
+		this.chain = chain;
+		this.subject = subject;
+	}
+
+	/**
+	 * @param filterConfig the Filter's configuration.
+	 * @return {@code true} if the {@code propagateSubject} init-param is
+	 * "true".
+	 */
+	static boolean isEnabled(FilterConfig filterConfig) {
+		return Boolean.parseBoolean(SPNegoAcceptorConfig.getInitParameter(
+				filterConfig, PROPAGATE_SUBJECT));
+	}
+
+	@Override
+	public void doFilter(final ServletRequest request,
+			final ServletResponse response)
+			throws IOException, ServletException {
+
+		Subject runAs = subject == null ? getSubject(request) : subject;
+		if (runAs == null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		try {
+
+			SubjectPropagation.callAs(runAs, () -> {
+				chain.doFilter(request, response);
+				return null;
+			});
+
+		} catch (IOException | ServletException | RuntimeException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			// FilterChain.doFilter throws nothing else that is checked.
+			throw new ServletException(ex);
+		}
+	}
+
+	private static Subject getSubject(ServletRequest request) {
+
+		while (request != null) {
+			if (request instanceof JaasmineHttpServletRequest) {
+				return ((JaasmineHttpServletRequest) request).getSubject();
+			}
+			request = request instanceof ServletRequestWrapper ?
+					((ServletRequestWrapper) request).getRequest() : null;
+		}
+		return null;
+	}
+}
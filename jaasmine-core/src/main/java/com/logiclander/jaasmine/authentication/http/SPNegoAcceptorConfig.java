@@ -0,0 +1,449 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ietf.jgss.GSSException;
+
+import com.logiclander.jaasmine.KerberosReplayCache;
+import com.logiclander.jaasmine.KeyTabWatcher;
+import com.logiclander.jaasmine.SPNegoServices;
+import com.logiclander.jaasmine.SPNegoTokenValidator;
+import com.logiclander.jaasmine.TicketExpiryCache;
+
+/**
+ * The SPNego acceptors shared by the Filters that accept {@code Negotiate}
+ * authorization, built from the Filter's init-params.
+ *
+ * The following init-params are read:
+ * <UL>
+ *  <LI>keyTab - the path to the keytab holding the service keys.  If set,
+ * principal must also be set and the keytab is watched for changes.  If not
+ * set, the default acceptor configuration of the JVM is used.</LI>
+ *  <LI>principal - a comma separated list of service principals in the
+ * keytab, for example {@code HTTP/www.mydomain.com@MYDOMAIN.COM,
+ * HTTP/api.mydomain.com@MYDOMAIN.COM}.  The keys of every principal are
+ * loaded when the Filter is initialized.  Requests are routed to the
+ * principal whose host name matches the server name of the request (the
+ * {@code Host} header).  Requests for any other host use the first
+ * principal.</LI>
+ *  <LI>hostPrincipals - an optional comma separated list of
+ * {@code host=principal} routes for host names that do not appear in the
+ * principal names, for example
+ * {@code mydomain.com=HTTP/www.mydomain.com@MYDOMAIN.COM}.  The principals
+ * named here are added to the principal list.</LI>
+ *  <LI>keyTabGracePeriod - the number of seconds that keys removed from the
+ * keytab are still accepted.  The default is one hour.</LI>
+ *  <LI>credentialRefreshInterval - the number of seconds after which an
+ * acceptor credential that never expires is acquired again.  The default is
+ * one hour.</LI>
+ *  <LI>replayCache - {@code jdk} (the default) to leave replay detection to
+ * the JDK acceptor, or {@code jaasmine} to check authenticators against a
+ * sharded in-memory {@link KerberosReplayCache}.  With {@code jaasmine}, the
+ * JVM must be started with the {@code sun.security.krb5.rcache} system
+ * property set, normally to {@code none} to turn the JDK replay cache off.
+ * That property applies to every acceptor in the JVM, so with {@code none}
+ * every other Filter and application in it must use the {@code jaasmine}
+ * replay cache too.  The Filter does not start if the property is not
+ * set.</LI>
+ *  <LI>replayCacheLifetime - the number of seconds authenticators are
+ * remembered by the {@code jaasmine} replay cache.  It must be at least twice
+ * replayCacheClockSkew.  The default is 600.</LI>
+ *  <LI>replayCacheClockSkew - the clock skew in seconds allowed by the
+ * Kerberos configuration ({@code clockskew} in krb5.conf).  The default is
+ * 300, the Kerberos default.</LI>
+ *  <LI>replayCacheMaxSize - the maximum number of authenticators remembered
+ * by the {@code jaasmine} replay cache.  When it is full, new tokens are
+ * refused until old authenticators expire.  The default is 1000000.</LI>
+ *  <LI>maxTokenSize - the maximum size in bytes of a decoded SPNego token.
+ * Larger tokens, NTLM tokens and tokens with malformed DER framing are
+ * rejected by a {@link SPNegoTokenValidator} before they reach the acceptor.
+ * The default is 65535.</LI>
+ *  <LI>ticketCache - set to {@code true} to remember when verified service
+ * tickets expire in a {@link TicketExpiryCache}, so that AP-REQs with a
+ * ticket known to have expired are rejected without decrypting it.  The default is
+ * {@code false}.</LI>
+ *  <LI>ticketCacheMaxSize - the maximum number of tickets remembered.  The
+ * default is 10000.</LI>
+ * </UL>
+ */
+final class SPNegoAcceptorConfig {
+
+	private static final Log logger =
+			LogFactory.getLog(SPNegoAcceptorConfig.class);
+
+	private final SPNegoServices defaultServices;
+
+	private final Map<String, SPNegoServices> hostServices;
+
+	private final KeyTabWatcher keyTabWatcher;
+
+	private SPNegoAcceptorConfig(SPNegoServices defaultServices,
+			Map<String, SPNegoServices> hostServices,
+			KeyTabWatcher keyTabWatcher) {
+		this.defaultServices = defaultServices;
+		this.hostServices = hostServices;
+		this.keyTabWatcher = keyTabWatcher;
+	}
+
+	/**
+	 * Creates the acceptor described by the init-params of the given
+	 * FilterConfig and starts watching the keytab if one is configured.
+	 *
+	 * @param filterConfig the FilterConfig.
+	 * @return a new SPNegoAcceptorConfig.
+	 * @throws ServletException if the init-params are invalid or the keytab
+	 * cannot be watched.
+	 */
+	static SPNegoAcceptorConfig create(FilterConfig filterConfig)
+			throws ServletException {
+
+		String keyTab = getInitParameter(filterConfig, "keyTab");
+		String principals = getInitParameter(filterConfig, "principal");
+		String hostPrincipals = getInitParameter(filterConfig,
+				"hostPrincipals");
+		long refreshInterval = getLongInitParameter(filterConfig,
+				"credentialRefreshInterval",
+				SPNegoServices.DEFAULT_REFRESH_INTERVAL_SECONDS);
+		long gracePeriod = getLongInitParameter(filterConfig,
+				"keyTabGracePeriod",
+				SPNegoServices.DEFAULT_GRACE_PERIOD_SECONDS);
+
+		if (keyTab != null && principals == null) {
+			throw new ServletException(
+					"The principal init-param is required with keyTab");
+		}
+
+		TokenChecks checks = new TokenChecks(
+				createTokenValidator(filterConfig),
+				createReplayCache(filterConfig),
+				createTicketCache(filterConfig));
+
+		try {
+
+			if (keyTab == null) {
+				SPNegoServices services = new SPNegoServices(refreshInterval);
+				checks.applyTo(services);
+				return new SPNegoAcceptorConfig(services,
+						new HashMap<String, SPNegoServices>(), null);
+			}
+
+			File keyTabFile = new File(keyTab);
+
+			// One acceptor per principal, with its keys loaded up front so
+			// that a bad principal fails here rather than on a request.
+			Map<String, SPNegoServices> principalServices =
+					new LinkedHashMap<>();
+			Map<String, SPNegoServices> hostServices = new HashMap<>();
+
+			for (String principal : split(principals)) {
+				SPNegoServices services = addServices(principalServices,
+						principal, keyTabFile, refreshInterval, gracePeriod,
+						checks);
+
+				String host = getHostName(principal);
+				if (host != null && !hostServices.containsKey(host)) {
+					hostServices.put(host, services);
+				}
+			}
+
+			if (hostPrincipals != null) {
+				for (String route : split(hostPrincipals)) {
+
+					int eq = route.indexOf('=');
+					if (eq <= 0 || eq == route.length() - 1) {
+						throw new ServletException(String.format(
+								"hostPrincipals entry must be host=principal: "
+								+ "%s", route));
+					}
+
+					SPNegoServices services = addServices(principalServices,
+							route.substring(eq + 1).trim(), keyTabFile,
+							refreshInterval, gracePeriod, checks);
+					hostServices.put(route.substring(0, eq).trim()
+							.toLowerCase(Locale.ENGLISH), services);
+				}
+			}
+
+			KeyTabWatcher keyTabWatcher = new KeyTabWatcher(
+					principalServices.values(), keyTabFile);
+			keyTabWatcher.start();
+
+			if (logger.isDebugEnabled()) {
+				logger.debug(String.format(
+						"Accepting %s with keys from %s, routes = %s",
+						principalServices.keySet(), keyTab,
+						hostServices.keySet()));
+			}
+
+			return new SPNegoAcceptorConfig(
+					principalServices.values().iterator().next(),
+					hostServices, keyTabWatcher);
+
+		} catch (GSSException ex) {
+
+			throw new ServletException("Could not create SPNego acceptor", ex);
+
+		} catch (IOException ex) {
+
+			throw new ServletException(
+					String.format("Could not watch %s", keyTab), ex);
+
+		} catch (IllegalArgumentException ex) {
+
+			throw new ServletException(ex.getMessage(), ex);
+
+		}
+	}
+
+	/**
+	 * @param httpRequest the HttpServletRequest.
+	 * @return the acceptor for the server name of the request.
+	 */
+	SPNegoServices getSPNegoServices(HttpServletRequest httpRequest) {
+
+		if (hostServices.isEmpty()) {
+			return defaultServices;
+		}
+
+		String serverName = httpRequest.getServerName();
+		if (serverName == null) {
+			return defaultServices;
+		}
+
+		SPNegoServices services = hostServices.get(serverName);
+		if (services == null) {
+			services = hostServices.get(serverName.toLowerCase(Locale.ENGLISH));
+		}
+
+		return services == null ? defaultServices : services;
+	}
+
+	/**
+	 * @return the KeyTabWatcher, or {@code null} if no keytab is configured.
+	 */
+	KeyTabWatcher getKeyTabWatcher() {
+		return keyTabWatcher;
+	}
+
+	/**
+	 * Stops watching the keytab.
+	 */
+	void destroy() {
+		if (keyTabWatcher != null) {
+			keyTabWatcher.close();
+		}
+	}
+
+	private static SPNegoServices addServices(
+			Map<String, SPNegoServices> principalServices, String principal,
+			File keyTab, long refreshInterval, long gracePeriod,
+			TokenChecks checks) throws GSSException {
+
+		SPNegoServices services = principalServices.get(principal);
+
+		if (services == null) {
+			services = new SPNegoServices(keyTab, principal, refreshInterval,
+					gracePeriod);
+			checks.applyTo(services);
+			services.reload();
+			principalServices.put(principal, services);
+		}
+
+		return services;
+	}
+
+	/**
+	 * @return the token validator shared by the acceptors.
+	 */
+	private static SPNegoTokenValidator createTokenValidator(
+			FilterConfig filterConfig) throws ServletException {
+
+		long maxTokenSize = getLongInitParameter(filterConfig, "maxTokenSize",
+				SPNegoTokenValidator.DEFAULT_MAXIMUM_TOKEN_BYTES);
+		if (maxTokenSize <= 0 || maxTokenSize > Integer.MAX_VALUE) {
+			throw new ServletException("maxTokenSize must be positive");
+		}
+
+		return new SPNegoTokenValidator((int) maxTokenSize);
+	}
+
+	/**
+	 * @return the replay cache shared by the acceptors, or {@code null} if
+	 * replay detection is left to the JDK.
+	 */
+	private static KerberosReplayCache createReplayCache(
+			FilterConfig filterConfig) throws ServletException {
+
+		String type = getInitParameter(filterConfig, "replayCache");
+		if (type == null || "jdk".equalsIgnoreCase(type)) {
+			return null;
+		}
+
+		if (!"jaasmine".equalsIgnoreCase(type)) {
+			throw new ServletException(String.format(
+					"replayCache must be jdk or jaasmine: %s", type));
+		}
+
+		long lifetime = getLongInitParameter(filterConfig,
+				"replayCacheLifetime",
+				KerberosReplayCache.DEFAULT_LIFETIME_SECONDS);
+		long maxSize = getLongInitParameter(filterConfig,
+				"replayCacheMaxSize",
+				KerberosReplayCache.DEFAULT_MAXIMUM_SIZE);
+		long clockSkew = getLongInitParameter(filterConfig,
+				"replayCacheClockSkew",
+				KerberosReplayCache.DEFAULT_CLOCK_SKEW_SECONDS);
+		if (lifetime <= 0 || maxSize <= 0 || clockSkew <= 0) {
+			throw new ServletException("replayCacheLifetime, "
+				+ "replayCacheMaxSize and replayCacheClockSkew must be "
+				+ "positive");
+		}
+
+		// An authenticator is accepted within the skew on either side of
+		// its timestamp.
+		if (lifetime < 2 * clockSkew) {
+			throw new ServletException(String.format(
+					"replayCacheLifetime must be at least twice the clock "
+					+ "skew of %d seconds: %d", clockSkew, lifetime));
+		}
+
+		String jdkReplayCache = KerberosReplayCache.getJdkReplayCacheType();
+		if (jdkReplayCache == null) {
+			throw new ServletException("replayCache=jaasmine needs the JVM "
+					+ "to be started with -Dsun.security.krb5.rcache=none, "
+					+ "which turns the JDK replay cache off for every "
+					+ "acceptor in the JVM");
+		}
+
+		if (!KerberosReplayCache.isJdkReplayCacheDisabled() &&
+				logger.isInfoEnabled()) {
+			logger.info(String.format("sun.security.krb5.rcache=%s, so the "
+					+ "JDK replay cache also checks every token",
+					jdkReplayCache));
+		}
+
+		return new KerberosReplayCache(lifetime,
+				KerberosReplayCache.DEFAULT_SHARDS, maxSize);
+	}
+
+	/**
+	 * @return the ticket cache shared by the acceptors, or {@code null} if
+	 * tickets are not remembered.
+	 */
+	private static TicketExpiryCache createTicketCache(
+			FilterConfig filterConfig) throws ServletException {
+
+		if (!Boolean.parseBoolean(getInitParameter(filterConfig,
+				"ticketCache"))) {
+			return null;
+		}
+
+		long maxSize = getLongInitParameter(filterConfig, "ticketCacheMaxSize",
+				TicketExpiryCache.DEFAULT_MAXIMUM_SIZE);
+		if (maxSize <= 0) {
+			throw new ServletException("ticketCacheMaxSize must be positive");
+		}
+
+		return new TicketExpiryCache(maxSize);
+	}
+
+	/**
+	 * @param principal a principal name such as {@code HTTP/host@REALM}.
+	 * @return the lower case host name of the principal, or {@code null} if
+	 * the principal has no host name.
+	 */
+	private static String getHostName(String principal) {
+
+		int slash = principal.indexOf('/');
+		if (slash < 0) {
+			return null;
+		}
+
+		int at = principal.indexOf('@', slash);
+		String host = at < 0 ? principal.substring(slash + 1) :
+				principal.substring(slash + 1, at);
+
+		return host.isEmpty() ? null : host.toLowerCase(Locale.ENGLISH);
+	}
+
+	/** The token checks shared by every acceptor of a Filter. */
+	private static final class TokenChecks {
+
+		private final SPNegoTokenValidator tokenValidator;
+
+		private final KerberosReplayCache replayCache;
+
+		private final TicketExpiryCache ticketCache;
+
+		TokenChecks(SPNegoTokenValidator tokenValidator,
+				KerberosReplayCache replayCache,
+				TicketExpiryCache ticketCache) {
+			this.tokenValidator = tokenValidator;
+			this.replayCache = replayCache;
+			this.ticketCache = ticketCache;
+		}
+
+		void applyTo(SPNegoServices services) {
+			services.setTokenValidator(tokenValidator);
+			services.setReplayCache(replayCache);
+			services.setTicketCache(ticketCache);
+		}
+	}
+
+	private static String[] split(String value) {
+		return value.trim().split("\\s*,\\s*");
+	}
+
+	static String getInitParameter(FilterConfig filterConfig, String name) {
+
+		String value = filterConfig.getInitParameter(name);
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+
+		return value.trim();
+	}
+
+	static long getLongInitParameter(FilterConfig filterConfig, String name,
+			long defaultValue) throws ServletException {
+
+		String value = getInitParameter(filterConfig, name);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException ex) {
+			throw new ServletException(
+					String.format("%s must be a number: %s", name, value), ex);
+		}
+	}
+}
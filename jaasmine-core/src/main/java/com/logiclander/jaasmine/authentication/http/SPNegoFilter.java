@@ -17,6 +17,7 @@
 package com.logiclander.jaasmine.authentication.http;
 
 import java.io.IOException;
+import java.security.Principal;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -31,7 +32,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.ietf.jgss.GSSException;
 
+import com.logiclander.jaasmine.InvalidSPNegoTokenException;
 import com.logiclander.jaasmine.SPNegoServer;
+import com.logiclander.jaasmine.SPNegoServices;
+import com.logiclander.jaasmine.SPNegoTokenType;
 import com.logiclander.jaasmine.authentication.AuthenticationService;
 
 /**
@@ -41,12 +45,36 @@ import com.logiclander.jaasmine.authentication.AuthenticationService;
  * <UL>
  *  <LI>appName - the name of the application in the JAAS configuration.  This
  * parameter is optional.</LI>
+ *  <LI>keyTab, principal, hostPrincipals, keyTabGracePeriod,
+ * credentialRefreshInterval, maxTokenSize, replayCache, replayCacheLifetime,
+ * replayCacheMaxSize, replayCacheClockSkew, ticketCache, ticketCacheMaxSize
+ * - configure the SPNego acceptor as described in
+ * {@link SPNegoAcceptorConfig}.  These parameters are optional.</LI>
+ *  <LI>authCookie, authCookieName, authCookieMaxAge, authCookieKeyRotation,
+ * authCookieSecret - issue a signed cookie after a successful authentication
+ * and accept it in place of an SPNego token on later requests, as described
+ * in {@link AuthenticationCookie}.  These parameters are optional.</LI>
+ *  <LI>persistConnectionAuth, connectionAuthMaxAge, connectionAuthMaxSize,
+ * connectionIdAttribute - remember a successful authentication for the
+ * keep-alive connection it was made on, as described in
+ * {@link ConnectionAuthenticationStore}.  These parameters are optional, but
+ * persistConnectionAuth needs connectionIdAttribute.</LI>
+ *  <LI>statefulNegotiation, negotiationTimeout, negotiationMaxSize - keep
+ * negotiations that need more than one token, as described in
+ * {@link StatefulNegotiation}.  These parameters are optional.</LI>
+ *  <LI>propagateSubject - when "true", the rest of the filter chain runs as
+ * the requester's Subject, as described in {@link PropagatingFilterChain}.
+ * Before Java 23, threads the application starts meanwhile keep that
+ * Subject.  The default is "false".</LI>
  * </UL>
  *
  * Requests that invoke this Filter must have a {@code Authorization} header
  * and a {@code Negotiate} scheme with a valid SPNego token.  If any of these
  * requirements fail, then this Filter returns an HTTP 401 - Unauthorized with
- * a {@code WWW-Authenticate} header.
+ * a {@code WWW-Authenticate} header.  If the acceptor returns a token for
+ * the client, it is sent in the {@code WWW-Authenticate} header, both with a
+ * continuation (when stateful negotiation is enabled) and with the response
+ * to an authorized request.
  *
  * Instances of this class have a configurable commons-logging based logger
  * named
@@ -56,6 +84,12 @@ import com.logiclander.jaasmine.authentication.AuthenticationService;
 //TODO - do we need to think about being able to generate Subjects in SSO situations?
 public class SPNegoFilter implements Filter {
 
+    /**
+     * The number of seconds a client should wait when the acceptor is
+     * unavailable.
+     */
+    private static final long UNAVAILABLE_RETRY_AFTER_SECONDS = 1;
+
     /** The logger for this instance. */
     private transient final Log logger = LogFactory.getLog(SPNegoFilter.class);
 
@@ -69,11 +103,46 @@ public class SPNegoFilter implements Filter {
     public String filterName;
 
 
+    /**
+     * The acceptor shared by all requests handled by this Filter.
+     */
+    private SPNegoAcceptorConfig acceptorConfig;
+
+
+    /**
+     * Issues and verifies authentication cookies, or {@code null} if they are
+     * not enabled.
+     */
+    private AuthenticationCookie authCookie;
+
+
+    /**
+     * Remembers authentications per connection, or {@code null} if this is
+     * not enabled.
+     */
+    private ConnectionAuthenticationStore connectionAuth;
+
+
+    /**
+     * Keeps negotiations that need more than one token, or {@code null} if
+     * this is not enabled.
+     */
+    private StatefulNegotiation negotiation;
+
+
+    /**
+     * Flag indicating whether the rest of the chain runs as the requester's
+     * Subject.
+     */
+    private boolean propagateSubject;
+
+
     /**
      * {@inheritDoc}
      *
      * Checks the given FilterConfig for the init-param named appName.  If this
-     * value is not in the FilterConfig, then the default value is used.
+     * value is not in the FilterConfig, then the default value is used.  The
+     * SPNego acceptor used for all requests is created here.
      */
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
@@ -85,6 +154,12 @@ public class SPNegoFilter implements Filter {
 
         filterName = filterConfig.getFilterName();
 
+        acceptorConfig = SPNegoAcceptorConfig.create(filterConfig);
+        authCookie = AuthenticationCookie.create(filterConfig);
+        connectionAuth = ConnectionAuthenticationStore.create(filterConfig);
+        negotiation = StatefulNegotiation.create(filterConfig);
+        propagateSubject = PropagatingFilterChain.isEnabled(filterConfig);
+
         if (logger.isDebugEnabled()) {
             logger.debug(String.format("%s initialized", toString()));
         }
@@ -98,6 +173,9 @@ public class SPNegoFilter implements Filter {
      *  <LI>If the request is not an HttpServletRequest and the response is not
      * an HttpServletResponse, continue processing the filter chain (this almost
      * never happens)</LI>
+     *  <LI>If the connection of the request was already authenticated, or if
+     * authentication cookies are enabled and the request has a valid one,
+     * processing continues without checking for an SPNego token.</LI>
      *  <LI>The HttpServletRequest is checked for a {@code WWW-Authenticate}
      * request header.  If found, it is checked for the scheme used, which must
      * be set to {@code Negotiate}.</LI>
@@ -139,23 +217,57 @@ public class SPNegoFilter implements Filter {
                         httpReq.getContextPath(), httpReq.getServletPath()));
             }
 
+            Principal principal = getRememberedPrincipal(httpReq);
+            if (principal != null) {
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format(
+                        "Authorized %s without an SPNego token",
+                        principal.getName()));
+                }
+
+                getChain(chain).doFilter(
+                    new JaasmineHttpServletRequest(httpReq, principal),
+                    httpResp);
+                return;
+            }
+
             String sPNegoToken = getSPNegoToken(httpReq);
             boolean canExecute = false;
+            boolean unavailable = false;
             SPNegoServer server = null;
 
             try {
 
-                server = new SPNegoServer(sPNegoToken);
+                if (sPNegoToken.isEmpty()) {
+                    throw new InvalidSPNegoTokenException(
+                            SPNegoTokenType.MALFORMED);
+                }
+
+                SPNegoServices services =
+                        acceptorConfig.getSPNegoServices(httpReq);
+                server = negotiation == null ? services.accept(sPNegoToken) :
+                        negotiation.accept(services, httpReq, sPNegoToken);
                 canExecute = server.isValidToken();
 
                 // Wrap the HttpServletRequest with the requester's GSSName
-                // so that additional processing can take place w/out having
-                // to re-examine the SPNego token.
+                // and delegated credential so that additional processing can
+                // take place w/out having to re-examine the SPNego token.
                 httpReq = new JaasmineHttpServletRequest(
             		httpReq,
-            		server.getRequesterName()
+            		server.getRequesterName(),
+            		server.getDelegatedCredential()
             	);
 
+            } catch (InvalidSPNegoTokenException ex) {
+
+                // Rejected before reaching the acceptor; nothing to trace.
+                if (logger.isDebugEnabled()) {
+                    logger.debug(ex.getMessage());
+                }
+
+                canExecute = false;
+
             } catch (GSSException ex) {
 
                 if (logger.isDebugEnabled()) {
@@ -169,6 +281,7 @@ public class SPNegoFilter implements Filter {
 
                 }
 
+                unavailable = ex.getMajor() == GSSException.UNAVAILABLE;
                 canExecute = false;
 
             } catch (Exception ex) {
@@ -183,7 +296,36 @@ public class SPNegoFilter implements Filter {
 
             if (canExecute) {
 
-                chain.doFilter(httpReq, httpResp);
+                rememberPrincipal(httpReq, httpResp);
+
+                // Mutual authentication: hand the client the final token.
+                byte[] responseToken = server.getResponseToken();
+                if (responseToken != null && responseToken.length > 0) {
+                    httpResp.setHeader("WWW-Authenticate",
+                        StatefulNegotiation.getNegotiateHeader(responseToken));
+                }
+
+                getChain(chain).doFilter(httpReq, httpResp);
+
+            } else if (negotiation != null && server != null &&
+                    server.isContinueNeeded()) {
+
+                if (!httpResp.isCommitted()) {
+                    negotiation.prepareContinueResponse(httpReq, httpResp,
+                        server);
+                }
+
+            } else if (unavailable) {
+
+                // The acceptor could not check the token; ask the client to
+                // come back rather than to authenticate again.
+                if (!httpResp.isCommitted()) {
+                    httpResp.setHeader("Retry-After",
+                        Long.toString(UNAVAILABLE_RETRY_AFTER_SECONDS));
+                    httpResp.sendError(
+                        HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
 
             } else {
 
@@ -205,6 +347,14 @@ public class SPNegoFilter implements Filter {
     @Override
     public void destroy() {
 
+        if (acceptorConfig != null) {
+            acceptorConfig.destroy();
+        }
+
+        if (negotiation != null) {
+            negotiation.destroy();
+        }
+
         if (logger.isDebugEnabled()) {
             logger.debug(String.format("%s destroyed", toString()));
         }
@@ -222,27 +372,70 @@ public class SPNegoFilter implements Filter {
     }
 
 
-    private String getSPNegoToken(HttpServletRequest req) {
+    /**
+     * @param chain the FilterChain.
+     * @return a chain that runs as the requester if the propagateSubject
+     * init-param is set, or else the given chain.
+     */
+    private FilterChain getChain(FilterChain chain) {
+        return propagateSubject ? new PropagatingFilterChain(chain) : chain;
+    }
 
-        String headerValue = req.getHeader("Authorization");
-        if (headerValue == null || headerValue.isEmpty()) {
-            return "";
+
+    /**
+     * @param req an HttpServletRequest
+     * @return the Principal remembered for the connection of the request or
+     * named by its authentication cookie, or {@code null} if there is none.
+     */
+    Principal getRememberedPrincipal(HttpServletRequest req) {
+
+        Principal principal = null;
+
+        if (connectionAuth != null) {
+            principal = connectionAuth.get(req);
         }
 
-        // Split "Negotiate [SPNego_TOKEN]" by the space and return the token.
+        if (principal == null && authCookie != null) {
+            principal = authCookie.verify(req);
+            if (principal != null && connectionAuth != null) {
+                connectionAuth.put(req, principal);
+            }
+        }
 
-        String token = "";
+        return principal;
+    }
 
-        try {
 
-        	token = headerValue.split(" ", 2)[1];
+    /**
+     * Remembers the Principal of a request that was authorized with an
+     * SPNego token.
+     *
+     * @param req the wrapped HttpServletRequest
+     * @param resp the HttpServletResponse
+     */
+    private void rememberPrincipal(HttpServletRequest req,
+            HttpServletResponse resp) {
 
-        } catch (RuntimeException t) {
+        Principal principal = req.getUserPrincipal();
 
-        	logger.fatal(t.getMessage(), t);
-        	throw t;
+        if (connectionAuth != null) {
+            connectionAuth.put(req, principal);
+        }
 
+        if (authCookie != null) {
+            authCookie.issue(req, resp, principal.getName());
         }
+    }
+
+
+    private String getSPNegoToken(HttpServletRequest req) {
+
+        AuthorizationHeader header = AuthorizationHeader.parse(req);
+        if (header.getType() != AuthorizationType.NEGOTIATE) {
+            return "";
+        }
+
+        String token = header.getCredentials();
 
         if (logger.isDebugEnabled()) {
         	logger.debug(String.format("%nSPNego token%n%s%n", token));
@@ -31,7 +31,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.logiclander.jaasmine.authentication.AuthenticationService;
-import com.logiclander.jaasmine.authentication.SimpleAuthenticationService;
 
 /**
  * Logs out the Subject associated with the user's HttpSession.
@@ -54,6 +53,9 @@ import com.logiclander.jaasmine.authentication.SimpleAuthenticationService;
 public class SimpleLogoutServlet extends HttpServlet {
 
 
+    private static final long serialVersionUID = 1L;
+
+
     /** The logger for this instance. */
     private transient final Log logger =
             LogFactory.getLog(SimpleLogoutServlet.class);
@@ -132,7 +134,8 @@ public class SimpleLogoutServlet extends HttpServlet {
         }
 
         // Log out the Subject
-        AuthenticationService as = new SimpleAuthenticationService(appName);
+        AuthenticationService as =
+                PasswordLoginConfig.forLogout(getServletContext(), appName);
         as.logout(subj);
 
         // Invalidate the session
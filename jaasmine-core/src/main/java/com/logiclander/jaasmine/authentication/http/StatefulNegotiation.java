@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.security.SecureRandom;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Base64;
+import org.ietf.jgss.GSSException;
+
+import com.logiclander.jaasmine.SPNegoNegotiations;
+import com.logiclander.jaasmine.SPNegoServer;
+import com.logiclander.jaasmine.SPNegoServices;
+
+/**
+ * Keeps SPNego negotiations that need more than one token, so that a client
+ * can answer a {@code WWW-Authenticate: Negotiate <token>} continuation
+ * instead of starting the negotiation over.
+ *
+ * A negotiation is identified by the container's identifier for the
+ * connection of the request, as described in
+ * {@link ConnectionAuthenticationStore}.  When connectionIdAttribute is not
+ * set or the connection cannot be identified, a random negotiation
+ * identifier is sent in the
+ * {@code JAASMINE_NEGOTIATE} cookie with the continuation.  Incomplete
+ * contexts are kept in a {@link SPNegoNegotiations} store and are disposed
+ * when they time out or when the store is full.
+ *
+ * The following init-params are read:
+ * <UL>
+ *  <LI>statefulNegotiation - set to {@code true} to keep incomplete
+ * negotiations.  The default is {@code false}.</LI>
+ *  <LI>negotiationTimeout - the number of seconds an incomplete negotiation
+ * is kept.  The default is 30.</LI>
+ *  <LI>negotiationMaxSize - the maximum number of incomplete negotiations
+ * kept.  The default is 1000.</LI>
+ *  <LI>connectionIdAttribute - the name of a request attribute holding a
+ * container specific connection identifier.  This parameter is optional.</LI>
+ * </UL>
+ */
+final class StatefulNegotiation {
+
+	private static final String COOKIE_NAME = "JAASMINE_NEGOTIATE";
+
+	/** Holds a negotiation identifier created for the current request. */
+	private static final String NEW_ID_ATTRIBUTE =
+			StatefulNegotiation.class.getName() + ".newId";
+
+	private final SPNegoNegotiations negotiations;
+
+	private final String connectionIdAttribute;
+
+	private final SecureRandom random = new SecureRandom();
+
+	private StatefulNegotiation(SPNegoNegotiations negotiations,
+			String connectionIdAttribute) {
+		this.negotiations = negotiations;
+		this.connectionIdAttribute = connectionIdAttribute;
+	}
+
+	/**
+	 * @param filterConfig the FilterConfig.
+	 * @return a new StatefulNegotiation, or {@code null} if the
+	 * statefulNegotiation init-param is not {@code true}.
+	 * @throws ServletException if the init-params are invalid.
+	 */
+	static StatefulNegotiation create(FilterConfig filterConfig)
+			throws ServletException {
+
+		if (!Boolean.parseBoolean(SPNegoAcceptorConfig.getInitParameter(
+				filterConfig, "statefulNegotiation"))) {
+			return null;
+		}
+
+		long timeout = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"negotiationTimeout",
+				SPNegoNegotiations.DEFAULT_TIMEOUT_SECONDS);
+		long maxSize = SPNegoAcceptorConfig.getLongInitParameter(filterConfig,
+				"negotiationMaxSize", SPNegoNegotiations.DEFAULT_MAXIMUM_SIZE);
+
+		if (timeout <= 0 || maxSize <= 0) {
+			throw new ServletException(
+				"negotiationTimeout and negotiationMaxSize must be positive");
+		}
+
+		return new StatefulNegotiation(
+				new SPNegoNegotiations(timeout, maxSize),
+				SPNegoAcceptorConfig.getInitParameter(filterConfig,
+					"connectionIdAttribute"));
+	}
+
+	/**
+	 * Accepts the SPNego token of the request, continuing the negotiation of
+	 * the request if there is one.
+	 *
+	 * @param spnegoServices the acceptor for the request.
+	 * @param httpRequest the HttpServletRequest.
+	 * @param spnegoToken the Base64 encoded SPNego token.
+	 * @return an SPNegoServer holding the result of the validation.
+	 * @throws GSSException if the token cannot be accepted.
+	 */
+	SPNegoServer accept(SPNegoServices spnegoServices,
+			HttpServletRequest httpRequest, String spnegoToken)
+			throws GSSException {
+		return spnegoServices.accept(spnegoToken, negotiations,
+				getNegotiationKey(httpRequest));
+	}
+
+	/**
+	 * Sends an HTTP 401 asking the client for the next token of the
+	 * negotiation.
+	 *
+	 * @param httpRequest the HttpServletRequest.
+	 * @param httpResponse the HttpServletResponse.
+	 * @param server the result of the last token.
+	 */
+	void prepareContinueResponse(HttpServletRequest httpRequest,
+			HttpServletResponse httpResponse, SPNegoServer server) {
+
+		Object newId = httpRequest.getAttribute(NEW_ID_ATTRIBUTE);
+		if (newId != null) {
+
+			Cookie cookie = new Cookie(COOKIE_NAME, newId.toString());
+			cookie.setPath(getCookiePath(httpRequest));
+			cookie.setHttpOnly(true);
+			cookie.setSecure(httpRequest.isSecure());
+
+			httpResponse.addCookie(cookie);
+		}
+
+		httpResponse.setHeader("WWW-Authenticate",
+				getNegotiateHeader(server.getResponseToken()));
+		httpResponse.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+	}
+
+	/**
+	 * Disposes the incomplete negotiations.
+	 */
+	void destroy() {
+		negotiations.clear();
+	}
+
+	/**
+	 * @param responseToken an SPNego response token, or {@code null}.
+	 * @return the value of a {@code WWW-Authenticate} header carrying the
+	 * token.
+	 */
+	static String getNegotiateHeader(byte[] responseToken) {
+
+		if (responseToken == null || responseToken.length == 0) {
+			return "Negotiate";
+		}
+
+		return "Negotiate " + new String(Base64.encodeBase64(responseToken));
+	}
+
+	private String getNegotiationKey(HttpServletRequest httpRequest) {
+
+		String connectionId = ConnectionAuthenticationStore.getConnectionId(
+				httpRequest, connectionIdAttribute);
+		if (connectionId != null) {
+			return "connection:" + connectionId;
+		}
+
+		Cookie[] cookies = httpRequest.getCookies();
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (COOKIE_NAME.equals(cookie.getName()) &&
+						cookie.getValue() != null &&
+						!cookie.getValue().isEmpty()) {
+					return "cookie:" + cookie.getValue();
+				}
+			}
+		}
+
+		byte[] id = new byte[18];
+		random.nextBytes(id);
+		String newId = Base64.encodeBase64URLSafeString(id);
+		httpRequest.setAttribute(NEW_ID_ATTRIBUTE, newId);
+
+		return "cookie:" + newId;
+	}
+
+	private static String getCookiePath(HttpServletRequest httpRequest) {
+
+		String path = httpRequest.getContextPath();
+		return path == null || path.isEmpty() ? "/" : path;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Starts 10000 simulated authentications at once on the executors made by
+ * {@link AuthenticationThreads} and reports how long they take.
+ *
+ * Each authentication waits for the network outside any monitor, as a
+ * servlet waiting for a slow client would, and then runs a section that
+ * holds a monitor while it waits for the KDC, as {@code LoginContext.login}
+ * and the JGSS acceptor do.  The executors compared are
+ * <UL>
+ *  <LI>platform - authenticationThreads platform threads;</LI>
+ *  <LI>virtual - a virtual thread per authentication, with the monitor
+ * sections handed to the pinning pool;</LI>
+ *  <LI>pinned - a virtual thread per authentication, with the monitor
+ * sections run on the virtual thread as pinning diagnostics do, so they pin
+ * its carrier.</LI>
+ * </UL>
+ *
+ * This is not run by the build.  It needs Java 21 or later for the virtual
+ * thread executors.  Run it from {@code jaasmine-core} after
+ * {@code mvn test-compile} with:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:$(mvn -q \
+ *   dependency:build-classpath -Dmdep.outputFile=/dev/stdout) \
+ *   com.logiclander.jaasmine.AuthenticationThreadsBenchmark \
+ *   [authentications [threads [networkMillis [kdcMillis]]]]
+ * </pre>
+ *
+ * The size of the pinning pool is set with {@code -Djaasmine.pinningThreads}
+ * as usual.
+ */
+public final class AuthenticationThreadsBenchmark {
+
+	private AuthenticationThreadsBenchmark() {
+		// Run main.
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int authentications = args.length > 0 ? Integer.parseInt(args[0])
+				: 10000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		long networkMillis = args.length > 2 ? Long.parseLong(args[2]) : 50;
+		long kdcMillis = args.length > 3 ? Long.parseLong(args[3]) : 2;
+
+		// Pinning diagnostics log every section.
+		Logger.getLogger(AuthenticationThreads.class.getName())
+				.setLevel(Level.WARNING);
+
+		System.out.printf("%d authentications, %d platform threads, "
+				+ "%d ms network, %d ms KDC, %d processors%n",
+				authentications, threads, networkMillis, kdcMillis,
+				Runtime.getRuntime().availableProcessors());
+		System.out.printf("%-10s %10s %10s %10s %10s%n", "executor",
+				"total ms", "p50 ms", "p99 ms", "routed");
+
+		run("platform", authentications, threads, false, false,
+				networkMillis, kdcMillis);
+
+		if (!AuthenticationThreads.isVirtualThreadSupported()) {
+			System.out.println("virtual    skipped: no virtual threads");
+			return;
+		}
+
+		run("virtual", authentications, threads, true, false,
+				networkMillis, kdcMillis);
+		run("pinned", authentications, threads, true, true,
+				networkMillis, kdcMillis);
+	}
+
+	private static void run(String name, int authentications, int threads,
+			boolean virtual, boolean diagnostics, final long networkMillis,
+			final long kdcMillis) throws InterruptedException {
+
+		AuthenticationThreads.setPinningDiagnostics(diagnostics);
+		ExecutorService executor = AuthenticationThreads.newExecutor(
+				"benchmark", threads, authentications, virtual);
+		long routed = AuthenticationThreads.getRoutedCount();
+
+		final long[] latencies = new long[authentications];
+		final CountDownLatch done = new CountDownLatch(authentications);
+		final AtomicInteger failures = new AtomicInteger();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < authentications; i++) {
+			final int n = i;
+			final long submitted = System.nanoTime();
+			executor.execute(() -> {
+				try {
+					Thread.sleep(networkMillis);
+					final Object monitor = new Object();
+					AuthenticationThreads.callPinning("benchmark", () -> {
+						synchronized (monitor) {
+							Thread.sleep(kdcMillis);
+						}
+						return null;
+					});
+				} catch (Exception ex) {
+					failures.incrementAndGet();
+				} finally {
+					latencies[n] = System.nanoTime() - submitted;
+					done.countDown();
+				}
+			});
+		}
+
+		done.await();
+		long total = System.nanoTime() - start;
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+		AuthenticationThreads.setPinningDiagnostics(false);
+
+		Arrays.sort(latencies);
+		System.out.printf("%-10s %10d %10d %10d %10d%s%n", name,
+				TimeUnit.NANOSECONDS.toMillis(total),
+				TimeUnit.NANOSECONDS.toMillis(latencies[authentications / 2]),
+				TimeUnit.NANOSECONDS.toMillis(
+						latencies[authentications * 99 / 100]),
+				AuthenticationThreads.getRoutedCount() - routed,
+				failures.get() > 0 ? " (" + failures + " failed)" : "");
+	}
+}
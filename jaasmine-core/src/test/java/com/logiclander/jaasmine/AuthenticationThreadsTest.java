@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+/**
+ * The virtual thread tests only check something on Java 21 or later; run
+ * them there with {@code JAVA_HOME} set to such a runtime.
+ */
+public class AuthenticationThreadsTest extends TestCase {
+
+	public void testVirtualThreadSupportMatchesTheRuntime() {
+		assertEquals(Runtime.version().feature() >= 21,
+				AuthenticationThreads.isVirtualThreadSupported());
+	}
+
+	public void testExecutorMakesVirtualThreadsWhereSupported()
+			throws Exception {
+
+		ExecutorService executor =
+				AuthenticationThreads.newExecutor("test", 1, 1, true);
+		try {
+			Future<Boolean> virtual =
+					executor.submit(AuthenticationThreads::isVirtualThread);
+			assertEquals(AuthenticationThreads.isVirtualThreadSupported(),
+					virtual.get(10, TimeUnit.SECONDS).booleanValue());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testThreadsDoNotInheritTheSubject() throws Exception {
+
+		// Before Java 23 a thread started as a Subject inherits it.
+		if (Runtime.version().feature() < 23) {
+			assertSame(ALICE, getSubjectOfThreadStartedAsAlice(Thread::new));
+		}
+
+		assertNull(getSubjectOfThreadStartedAsAlice(
+				AuthenticationThreads.newThreadFactory("test-")));
+	}
+
+	public void testExecutorThreadsDoNotInheritTheSubject() throws Exception {
+
+		for (boolean preferVirtual : new boolean[] { false, true }) {
+			ExecutorService executor = AuthenticationThreads.newExecutor(
+					"test", 1, 1, preferVirtual);
+			try {
+				// The executor starts its thread for this task.
+				Future<Subject> subject = SubjectPropagation.callAs(ALICE,
+						() -> executor.submit(SubjectPropagation::current));
+				assertNull(subject.get(10, TimeUnit.SECONDS));
+			} finally {
+				executor.shutdown();
+			}
+		}
+	}
+
+	public void testPinningSectionsLeaveVirtualThreads() throws Exception {
+
+		if (!AuthenticationThreads.isVirtualThreadSupported()) {
+			return;
+		}
+
+		ExecutorService executor =
+				AuthenticationThreads.newExecutor("test", 1, 1, true);
+		try {
+			long routed = AuthenticationThreads.getRoutedCount();
+			Future<Boolean> virtual = executor.submit(() ->
+					AuthenticationThreads.callPinning("test",
+							AuthenticationThreads::isVirtualThread));
+			assertFalse(virtual.get(10, TimeUnit.SECONDS).booleanValue());
+			assertEquals(routed + 1, AuthenticationThreads.getRoutedCount());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static final Subject ALICE = new Subject(true,
+			Collections.<Principal>singleton(() -> "alice@EXAMPLE.COM"),
+			Collections.emptySet(), Collections.emptySet());
+
+	private static Subject getSubjectOfThreadStartedAsAlice(
+			final ThreadFactory threadFactory) throws Exception {
+
+		final Subject[] subject = new Subject[1];
+		Thread thread = SubjectPropagation.callAs(ALICE, () ->
+				threadFactory.newThread(
+						() -> subject[0] = SubjectPropagation.current()));
+		thread.start();
+		thread.join(10000);
+		assertFalse(thread.isAlive());
+		return subject[0];
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the throughput of {@link KerberosReplayCache} with the JDK's
+ * replay caches (the in-memory default, and the file based {@code dfl}
+ * selected with {@code sun.security.krb5.rcache=dfl}) as more threads check
+ * new authenticators at once.
+ *
+ * This is not run by the build.  Run it from {@code jaasmine-core} after
+ * {@code mvn test-compile} with:
+ *
+ * <pre>
+ * java --add-exports java.security.jgss/sun.security.krb5.internal=ALL-UNNAMED \
+ *   --add-exports java.security.jgss/sun.security.krb5.internal.rcache=ALL-UNNAMED \
+ *   -cp target/classes:target/test-classes:$(mvn -q dependency:build-classpath \
+ *   -Dmdep.outputFile=/dev/stdout) \
+ *   com.logiclander.jaasmine.KerberosReplayCacheBenchmark [seconds]
+ * </pre>
+ *
+ * Without the {@code --add-exports} options only the jaasmine cache is
+ * measured.  The JDK caches are given the same work a real acceptor hands
+ * them: one {@code AuthTimeWithHash} per authenticator.  The jaasmine cache
+ * is given whole AP-REQ tokens, so its numbers include finding and hashing
+ * the authenticator.  Every check is of a new authenticator.  The jaasmine
+ * cache is made with a one second lifetime so that it does not fill up
+ * during the run.
+ */
+public final class KerberosReplayCacheBenchmark {
+
+	private static final int[] THREADS = { 1, 4, 16, 64 };
+
+	private interface Checker {
+		void check(int thread, long n) throws Exception;
+	}
+
+	private KerberosReplayCacheBenchmark() {
+		// Run main.
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		long seconds = args.length > 0 ? Long.parseLong(args[0]) : 3;
+
+		System.out.printf("%-10s %8s %14s%n", "cache", "threads", "checks/s");
+
+		for (int threads : THREADS) {
+
+			// One token per thread, whose authenticator is changed for
+			// every check.
+			final byte[][] tokens = new byte[threads][];
+			Random random = new Random(threads);
+			for (int t = 0; t < threads; t++) {
+				tokens[t] = KerberosTokens.randomApReq(random);
+			}
+			final int counterOffset =
+					SPNegoTokenParser.findAuthenticatorCipher(tokens[0])[0];
+
+			final KerberosReplayCache jaasmine =
+					new KerberosReplayCache(1, 64, 10000000);
+			run("jaasmine", threads, seconds, (thread, n) -> {
+				byte[] token = tokens[thread];
+				for (int b = 0; b < 8; b++) {
+					token[counterOffset + b] = (byte) (n >>> (8 * b));
+				}
+				if (!jaasmine.checkAndStore(token)) {
+					throw new IllegalStateException(jaasmine.toString());
+				}
+			});
+
+			Checker memory = JdkReplayCache.checker(null);
+			if (memory != null) {
+				run("memory", threads, seconds, memory);
+			}
+			Checker dfl = JdkReplayCache.checker("dfl");
+			if (dfl != null) {
+				run("dfl", threads, seconds, dfl);
+			}
+		}
+	}
+
+	private static void run(String name, int threads, long seconds,
+			final Checker checker) throws InterruptedException {
+
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final AtomicInteger failures = new AtomicInteger();
+		final long[] counts = new long[threads];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			workers[t] = new Thread(() -> {
+				try {
+					start.await();
+					long n = 0;
+					while (System.nanoTime() < deadline) {
+						checker.check(thread, n);
+						n++;
+					}
+					counts[thread] = n;
+				} catch (Exception ex) {
+					failures.incrementAndGet();
+					ex.printStackTrace();
+				}
+			});
+			workers[t].start();
+		}
+
+		start.countDown();
+		long total = 0;
+		for (int t = 0; t < threads; t++) {
+			workers[t].join();
+			total += counts[t];
+		}
+
+		System.out.printf("%-10s %8d %14d%s%n", name, threads,
+				total / seconds, failures.get() > 0 ? " (failed)" : "");
+	}
+
+	/** The JDK replay caches, reached reflectively. */
+	private static final class JdkReplayCache {
+
+		/**
+		 * @param type the type of the cache, or {@code null} for the
+		 * in-memory default.
+		 */
+		static Checker checker(String type) {
+
+			try {
+
+				Class<?> replayCache = Class.forName(
+						"sun.security.krb5.internal.ReplayCache");
+				Class<?> kerberosTime = Class.forName(
+						"sun.security.krb5.internal.KerberosTime");
+				Class<?> authTime = Class.forName(
+						"sun.security.krb5.internal.rcache.AuthTimeWithHash");
+
+				final Object cache = replayCache.getMethod("getInstance",
+						String.class).invoke(null, type);
+				final Method checkAndStore = replayCache.getMethod(
+						"checkAndStore", kerberosTime, authTime);
+				final Method now = kerberosTime.getMethod("now");
+				final Constructor<?> newAuthTime = authTime.getConstructor(
+						String.class, String.class, int.class, int.class,
+						String.class, String.class);
+
+				final AtomicInteger serial = new AtomicInteger();
+
+				return (thread, ignored) -> {
+					int n = serial.incrementAndGet();
+					long millis = System.currentTimeMillis();
+					Object entry = newAuthTime.newInstance(
+							"user" + thread + "@EXAMPLE.COM",
+							"HTTP/www.example.com@EXAMPLE.COM",
+							(int) (millis / 1000), n % 1000000, "SHA256",
+							String.format("%064x", n));
+					try {
+						checkAndStore.invoke(cache, now.invoke(null), entry);
+					} catch (InvocationTargetException ex) {
+						// A clash in the made up times; not a failure.
+					}
+				};
+
+			} catch (ReflectiveOperationException | RuntimeException ex) {
+
+				System.out.printf("%-10s skipped: %s%n",
+						type == null ? "memory" : type, ex);
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class KerberosReplayCacheTest extends TestCase {
+
+	private final Random random = new Random(7);
+
+	public void testSecondStoreIsAReplay() {
+
+		KerberosReplayCache cache = new KerberosReplayCache();
+		byte[] token = KerberosTokens.randomApReq(random);
+
+		assertTrue(cache.checkAndStore(token));
+		assertFalse(cache.checkAndStore(token));
+		assertEquals(1, cache.getReplayCount());
+		assertTrue(cache.checkAndStore(KerberosTokens.randomApReq(random)));
+	}
+
+	public void testIsReplayDoesNotStore() {
+
+		KerberosReplayCache cache = new KerberosReplayCache();
+		byte[] token = KerberosTokens.randomApReq(random);
+
+		assertFalse(cache.isReplay(token));
+		assertFalse(cache.isReplay(token));
+		assertTrue(cache.checkAndStore(token));
+		assertTrue(cache.isReplay(token));
+	}
+
+	public void testSameAuthenticatorInAnotherTicketIsAReplay() {
+
+		KerberosReplayCache cache = new KerberosReplayCache();
+		byte[] authenticator = KerberosTokens.randomBytes(random, 96);
+
+		assertTrue(cache.checkAndStore(KerberosTokens.apReq(
+				KerberosTokens.randomBytes(random, 64), authenticator)));
+		assertFalse(cache.checkAndStore(KerberosTokens.apReq(
+				KerberosTokens.randomBytes(random, 64), authenticator)));
+	}
+
+	public void testTokenWithoutAuthenticatorIsNotChecked() {
+
+		KerberosReplayCache cache = new KerberosReplayCache();
+		byte[] token = KerberosTokens.negTokenRespWithMicOnly(random);
+
+		assertTrue(cache.isCheckable(token));
+		assertTrue(cache.checkAndStore(token));
+		assertTrue(cache.checkAndStore(token));
+		assertEquals(2, cache.getUncheckedCount());
+		assertEquals(0, cache.getCheckCount());
+	}
+
+	public void testUnreadableTokenIsDefective() {
+
+		KerberosReplayCache cache = new KerberosReplayCache();
+		byte[] token = KerberosTokens.randomBytes(random, 40);
+
+		assertFalse(cache.isCheckable(token));
+		assertFalse(cache.checkAndStore(token));
+		assertEquals(1, cache.getDefectiveCount());
+		assertEquals(0, cache.getUncheckedCount());
+	}
+
+	/**
+	 * The JDK acceptor decodes the AP-REQ as BER, so a captured token whose
+	 * AP-REQ is re-framed with an indefinite length is still accepted; it
+	 * must not pass the cache unchecked.
+	 */
+	public void testReFramedReplayIsDefective() {
+
+		KerberosReplayCache cache = new KerberosReplayCache();
+		byte[] ticket = KerberosTokens.randomBytes(random, 64);
+		byte[] authenticator = KerberosTokens.randomBytes(random, 96);
+		byte[] token = KerberosTokens.negTokenInit(
+				KerberosTokens.apReq(ticket, authenticator));
+		byte[] reFramed = KerberosTokens.negTokenInit(
+				KerberosTokens.apReq(ticket, authenticator, true));
+
+		assertEquals(KerberosReplayCache.Result.STORED,
+				cache.store(token, System.currentTimeMillis()));
+		assertFalse(cache.isCheckable(reFramed));
+		assertEquals(KerberosReplayCache.Result.DEFECTIVE,
+				cache.store(reFramed, System.currentTimeMillis()));
+		assertEquals(KerberosReplayCache.Result.DEFECTIVE,
+				cache.store(KerberosTokens.apReq(ticket, authenticator, true),
+						System.currentTimeMillis()));
+		assertEquals(0, cache.getUncheckedCount());
+	}
+
+	public void testAuthenticatorsExpireAfterTheLifetime() {
+
+		KerberosReplayCache cache = new KerberosReplayCache(60, 1);
+		byte[] token = KerberosTokens.randomApReq(random);
+		long now = TimeUnit.HOURS.toMillis(1);
+
+		assertEquals(KerberosReplayCache.Result.STORED,
+				cache.store(token, now));
+		assertEquals(KerberosReplayCache.Result.REPLAY,
+				cache.store(token, now + TimeUnit.SECONDS.toMillis(59)));
+		assertEquals(KerberosReplayCache.Result.STORED,
+				cache.store(token, now + TimeUnit.SECONDS.toMillis(67)));
+	}
+
+	public void testFullCacheRefusesNewAuthenticators() {
+
+		KerberosReplayCache cache = new KerberosReplayCache(60, 1, 2);
+		long now = TimeUnit.HOURS.toMillis(1);
+		byte[] first = KerberosTokens.randomApReq(random);
+
+		assertEquals(KerberosReplayCache.Result.STORED,
+				cache.store(first, now));
+		assertEquals(KerberosReplayCache.Result.STORED,
+				cache.store(KerberosTokens.randomApReq(random), now));
+		assertEquals(KerberosReplayCache.Result.FULL,
+				cache.store(KerberosTokens.randomApReq(random), now));
+		assertEquals(KerberosReplayCache.Result.REPLAY,
+				cache.store(first, now));
+		assertEquals(1, cache.getOverflowCount());
+
+		// Room is made when the old authenticators expire.
+		assertEquals(KerberosReplayCache.Result.STORED,
+				cache.store(KerberosTokens.randomApReq(random),
+						now + TimeUnit.SECONDS.toMillis(67)));
+	}
+}
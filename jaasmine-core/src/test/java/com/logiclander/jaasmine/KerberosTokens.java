@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Builds Kerberos AP-REQ tokens with the DER framing the token parser looks
+ * at and random cipher texts, for tests and benchmarks.  The tokens cannot
+ * be decrypted by an acceptor.
+ */
+final class KerberosTokens {
+
+	private static final byte[] KRB5_OID = {
+		(byte) 0x06, (byte) 0x09, (byte) 0x2a, (byte) 0x86, (byte) 0x48,
+		(byte) 0x86, (byte) 0xf7, (byte) 0x12, (byte) 0x01, (byte) 0x02,
+		(byte) 0x02
+	};
+
+	private static final byte[] SPNEGO_OID = {
+		(byte) 0x06, (byte) 0x06, (byte) 0x2b, (byte) 0x06, (byte) 0x01,
+		(byte) 0x05, (byte) 0x05, (byte) 0x02
+	};
+
+	private KerberosTokens() {
+		// Static methods only.
+	}
+
+	/**
+	 * @param ticketCipher the cipher text of the ticket's encrypted part.
+	 * @param authenticatorCipher the cipher text of the authenticator.
+	 * @return a Kerberos GSS token carrying an AP-REQ.
+	 */
+	static byte[] apReq(byte[] ticketCipher, byte[] authenticatorCipher) {
+		return apReq(ticketCipher, authenticatorCipher, false);
+	}
+
+	/**
+	 * @param ticketCipher the cipher text of the ticket's encrypted part.
+	 * @param authenticatorCipher the cipher text of the authenticator.
+	 * @param indefinite whether the AP-REQ has an indefinite length, which
+	 * is BER but not DER.
+	 * @return a Kerberos GSS token carrying an AP-REQ.
+	 */
+	static byte[] apReq(byte[] ticketCipher, byte[] authenticatorCipher,
+			boolean indefinite) {
+
+		byte[] ticket = der(0x61, der(0x30,
+				der(0xa3, encryptedData(ticketCipher))));
+		byte[] sequence = der(0x30,
+				der(0xa3, ticket),
+				der(0xa4, encryptedData(authenticatorCipher)));
+		byte[] apReq = indefinite ? indefinite(0x6e, sequence) :
+				der(0x6e, sequence);
+
+		return der(0x60, KRB5_OID, new byte[] { 0x01, 0x00 }, apReq);
+	}
+
+	/**
+	 * @param mechToken the mechToken, or {@code null} for none.
+	 * @return an SPNego NegTokenInit offering Kerberos.
+	 */
+	static byte[] negTokenInit(byte[] mechToken) {
+
+		byte[] mechTypes = der(0xa0, der(0x30, KRB5_OID));
+		byte[] sequence = mechToken == null ? der(0x30, mechTypes) :
+				der(0x30, mechTypes, der(0xa2, der(0x04, mechToken)));
+
+		return der(0x60, SPNEGO_OID, der(0xa0, sequence));
+	}
+
+	/**
+	 * @return an SPNego NegTokenResp that only has a mechListMIC.
+	 */
+	static byte[] negTokenRespWithMicOnly(Random random) {
+		return der(0xa1, der(0x30,
+				der(0xa0, new byte[] { 0x0a, 0x01, 0x01 }),
+				der(0xa3, der(0x04, randomBytes(random, 28)))));
+	}
+
+	/**
+	 * @return an AP-REQ with a random ticket and authenticator.
+	 */
+	static byte[] randomApReq(Random random) {
+		return apReq(randomBytes(random, 1024), randomBytes(random, 96));
+	}
+
+	static byte[] randomBytes(Random random, int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] encryptedData(byte[] cipher) {
+		return der(0x30, der(0xa0, new byte[] { 0x02, 0x01, 0x12 }),
+				der(0xa2, der(0x04, cipher)));
+	}
+
+	private static byte[] indefinite(int tag, byte[] contents) {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(tag);
+		out.write(0x80);
+		out.write(contents, 0, contents.length);
+		out.write(0);
+		out.write(0);
+		return out.toByteArray();
+	}
+
+	private static byte[] der(int tag, byte[]... contents) {
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for (byte[] content : contents) {
+			body.write(content, 0, content.length);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(tag);
+		int length = body.size();
+		if (length < 0x80) {
+			out.write(length);
+		} else if (length < 0x100) {
+			out.write(0x81);
+			out.write(length);
+		} else {
+			out.write(0x82);
+			out.write(length >> 8);
+			out.write(length);
+		}
+		byte[] bytes = body.toByteArray();
+		out.write(bytes, 0, bytes.length);
+		return out.toByteArray();
+	}
+}
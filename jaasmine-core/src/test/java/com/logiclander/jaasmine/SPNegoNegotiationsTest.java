@@ -0,0 +1,97 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.ietf.jgss.GSSContext;
+
+public class SPNegoNegotiationsTest extends TestCase {
+
+	private SPNegoNegotiations negotiations;
+
+	@Override
+	protected void setUp() {
+		negotiations = new SPNegoNegotiations(60, 2);
+	}
+
+	public void testClearDisposesStoredContexts() {
+
+		AtomicInteger first = new AtomicInteger();
+		AtomicInteger second = new AtomicInteger();
+		negotiations.put("first", context(first));
+		negotiations.put("second", context(second));
+
+		negotiations.clear();
+
+		assertEquals(0, negotiations.size());
+		assertEquals(1, first.get());
+		assertEquals(1, second.get());
+	}
+
+	public void testTakenContextIsNotDisposed() {
+
+		AtomicInteger disposed = new AtomicInteger();
+		GSSContext context = context(disposed);
+		negotiations.put("key", context);
+
+		assertSame(context, negotiations.take("key"));
+		negotiations.clear();
+
+		assertNull(negotiations.take("key"));
+		assertEquals(0, disposed.get());
+	}
+
+	public void testReplacedAndEvictedContextsAreDisposed() {
+
+		AtomicInteger replaced = new AtomicInteger();
+		AtomicInteger evicted = new AtomicInteger();
+		negotiations.put("key", context(replaced));
+		negotiations.put("key", context(new AtomicInteger()));
+		assertEquals(1, replaced.get());
+
+		SPNegoNegotiations single = new SPNegoNegotiations(60, 1);
+		single.put("first", context(evicted));
+		single.put("second", context(new AtomicInteger()));
+		assertEquals(1, evicted.get());
+		assertEquals(1, single.size());
+	}
+
+	/** @return a GSSContext that counts calls to dispose. */
+	private static GSSContext context(final AtomicInteger disposed) {
+		return (GSSContext) Proxy.newProxyInstance(
+				GSSContext.class.getClassLoader(),
+				new Class<?>[] {GSSContext.class},
+				(proxy, method, args) -> {
+					if (method.getName().equals("dispose")) {
+						disposed.incrementAndGet();
+						return null;
+					}
+					if (method.getName().equals("hashCode")) {
+						return System.identityHashCode(proxy);
+					}
+					if (method.getName().equals("equals")) {
+						return proxy == args[0];
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+	}
+}
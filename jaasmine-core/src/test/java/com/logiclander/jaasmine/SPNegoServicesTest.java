@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.ietf.jgss.GSSException;
+
+import junit.framework.TestCase;
+
+public class SPNegoServicesTest extends TestCase {
+
+	/**
+	 * A token the acceptor cannot accept must not be recorded, so that it
+	 * neither fills the replay cache nor turns a retry into a replay.
+	 */
+	public void testRejectedTokensAreNotRecorded() throws Exception {
+
+		KerberosReplayCache replayCache = new KerberosReplayCache();
+		SPNegoServices services = new SPNegoServices();
+		services.setReplayCache(replayCache);
+
+		byte[] token = KerberosTokens.randomApReq(new Random(11));
+		String encoded = Base64.encodeBase64String(token);
+
+		for (int attempt = 0; attempt < 2; attempt++) {
+			try {
+				services.accept(encoded);
+				fail("A made up token was accepted");
+			} catch (GSSException ex) {
+				assertTrue(ex.getMajor() != GSSException.DUPLICATE_TOKEN);
+			}
+		}
+
+		assertFalse(replayCache.isReplay(token));
+		assertEquals(0, replayCache.getCheckCount());
+	}
+
+	public void testReFramedReplaysAreRejectedBeforeTheAcceptor()
+			throws Exception {
+
+		KerberosReplayCache replayCache = new KerberosReplayCache();
+		SPNegoServices services = new SPNegoServices();
+		services.setReplayCache(replayCache);
+
+		Random random = new Random(17);
+		byte[] ticket = KerberosTokens.randomBytes(random, 64);
+		byte[] authenticator = KerberosTokens.randomBytes(random, 96);
+		assertTrue(replayCache.checkAndStore(KerberosTokens.negTokenInit(
+				KerberosTokens.apReq(ticket, authenticator))));
+
+		byte[] reFramed = KerberosTokens.negTokenInit(
+				KerberosTokens.apReq(ticket, authenticator, true));
+		try {
+			services.accept(Base64.encodeBase64String(reFramed));
+			fail("A re-framed replay was accepted");
+		} catch (GSSException ex) {
+			assertEquals(GSSException.DEFECTIVE_TOKEN, ex.getMajor());
+		}
+	}
+
+	public void testKnownReplaysAreRejectedBeforeTheAcceptor()
+			throws Exception {
+
+		KerberosReplayCache replayCache = new KerberosReplayCache();
+		SPNegoServices services = new SPNegoServices();
+		services.setReplayCache(replayCache);
+
+		byte[] token = KerberosTokens.randomApReq(new Random(13));
+		assertTrue(replayCache.checkAndStore(token));
+
+		try {
+			services.accept(Base64.encodeBase64String(token));
+			fail("A replayed token was accepted");
+		} catch (GSSException ex) {
+			assertEquals(GSSException.DUPLICATE_TOKEN, ex.getMajor());
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SPNegoTokenParserTest extends TestCase {
+
+	private final Random random = new Random(23);
+
+	public void testTypes() {
+
+		byte[] apReq = KerberosTokens.randomApReq(random);
+
+		assertEquals(SPNegoTokenType.KERBEROS,
+				SPNegoTokenParser.classify(apReq));
+		assertEquals(SPNegoTokenType.SPNEGO_INIT,
+				SPNegoTokenParser.classify(KerberosTokens.negTokenInit(apReq)));
+		assertEquals(SPNegoTokenType.SPNEGO_INIT,
+				SPNegoTokenParser.classify(KerberosTokens.negTokenInit(null)));
+		assertEquals(SPNegoTokenType.SPNEGO_RESPONSE,
+				SPNegoTokenParser.classify(
+						KerberosTokens.negTokenRespWithMicOnly(random)));
+		assertEquals(SPNegoTokenType.NTLM,
+				SPNegoTokenParser.classify(ntlm()));
+		assertEquals(SPNegoTokenType.NTLM,
+				SPNegoTokenParser.classify(KerberosTokens.negTokenInit(ntlm())));
+	}
+
+	public void testAuthenticatorCipherIsFound() {
+
+		byte[] authenticator = KerberosTokens.randomBytes(random, 96);
+		byte[] token = KerberosTokens.negTokenInit(KerberosTokens.apReq(
+				KerberosTokens.randomBytes(random, 300), authenticator));
+
+		int[] cipher = SPNegoTokenParser.findAuthenticatorCipher(token);
+		assertNotNull(cipher);
+		assertEquals(authenticator.length, cipher[1]);
+		assertTrue(Arrays.equals(authenticator, Arrays.copyOfRange(token,
+				cipher[0], cipher[0] + cipher[1])));
+		assertFalse(SPNegoTokenParser.isWithoutApReq(token));
+	}
+
+	public void testTokensWithoutAnApReq() {
+
+		assertTrue(SPNegoTokenParser.isWithoutApReq(
+				KerberosTokens.negTokenRespWithMicOnly(random)));
+		assertTrue(SPNegoTokenParser.isWithoutApReq(
+				KerberosTokens.negTokenInit(null)));
+		assertNull(SPNegoTokenParser.findAuthenticatorCipher(
+				KerberosTokens.negTokenInit(null)));
+
+		// Not SPNego at all, so not a token that merely lacks an AP-REQ.
+		assertFalse(SPNegoTokenParser.isWithoutApReq(ntlm()));
+		assertFalse(SPNegoTokenParser.isWithoutApReq(new byte[0]));
+	}
+
+	public void testEveryTruncationIsMalformed() {
+
+		byte[] token = KerberosTokens.negTokenInit(
+				KerberosTokens.apReq(KerberosTokens.randomBytes(random, 200),
+						KerberosTokens.randomBytes(random, 40)));
+
+		for (int length = 0; length < token.length; length++) {
+			assertEquals("Truncated to " + length, SPNegoTokenType.MALFORMED,
+					SPNegoTokenParser.classify(
+							Arrays.copyOf(token, length)));
+		}
+	}
+
+	public void testTrailingBytesAreMalformed() {
+
+		byte[] token = KerberosTokens.randomApReq(random);
+
+		assertEquals(SPNegoTokenType.MALFORMED, SPNegoTokenParser.classify(
+				Arrays.copyOf(token, token.length + 1)));
+		assertEquals(SPNegoTokenType.MALFORMED, SPNegoTokenParser.classify(
+				Arrays.copyOf(KerberosTokens.negTokenInit(token),
+						KerberosTokens.negTokenInit(token).length + 2)));
+	}
+
+	public void testMechTokenMustBeAKerberosToken() {
+
+		assertEquals(SPNegoTokenType.MALFORMED, SPNegoTokenParser.classify(
+				KerberosTokens.negTokenInit(new byte[] { 0x05, 0x00 })));
+		assertEquals(SPNegoTokenType.MALFORMED, SPNegoTokenParser.classify(
+				KerberosTokens.negTokenInit(KerberosTokens.randomBytes(
+						random, 64))));
+
+		// An SPNego token cannot be the mechToken of another.
+		assertEquals(SPNegoTokenType.MALFORMED, SPNegoTokenParser.classify(
+				KerberosTokens.negTokenInit(KerberosTokens.negTokenInit(
+						KerberosTokens.randomApReq(random)))));
+	}
+
+	public void testElementLengths() {
+
+		// Short form, and long form up to three length octets.
+		assertTrue(Arrays.equals(new int[] { 0x04, 2, 3 },
+				SPNegoTokenParser.element(new byte[] { 0x04, 0x01, 0x00 },
+						0, 3, 0x04)));
+		byte[] longForm = new byte[5 + 0x100];
+		longForm[0] = 0x04;
+		longForm[1] = (byte) 0x83;
+		longForm[3] = 0x01;
+		assertTrue(Arrays.equals(new int[] { 0x04, 5, longForm.length },
+				SPNegoTokenParser.element(longForm, 0, longForm.length, -1)));
+
+		// Four length octets, an indefinite length, a length past the end, a
+		// missing length and a different tag.
+		assertNull(SPNegoTokenParser.element(
+				new byte[] { 0x04, (byte) 0x84, 0, 0, 0, 0 }, 0, 6, -1));
+		assertNull(SPNegoTokenParser.element(
+				new byte[] { 0x30, (byte) 0x80, 0, 0 }, 0, 4, -1));
+		assertNull(SPNegoTokenParser.element(
+				new byte[] { 0x04, 0x02, 0x00 }, 0, 3, -1));
+		assertNull(SPNegoTokenParser.element(
+				new byte[] { 0x04, (byte) 0x82, 0x01 }, 0, 3, -1));
+		assertNull(SPNegoTokenParser.element(new byte[] { 0x04 }, 0, 1, -1));
+		assertNull(SPNegoTokenParser.element(
+				new byte[] { 0x04, 0x00 }, 0, 2, 0x30));
+
+		// The range, not the array, bounds the element.
+		assertNull(SPNegoTokenParser.element(
+				new byte[] { 0x04, 0x02, 0x00, 0x00 }, 0, 3, -1));
+	}
+
+	/**
+	 * Whatever a client sends, classifying it must not throw.
+	 */
+	public void testDamagedTokensDoNotThrow() {
+
+		byte[] token = KerberosTokens.negTokenInit(
+				KerberosTokens.randomApReq(random));
+
+		for (int i = 0; i < token.length; i++) {
+			byte[] damaged = token.clone();
+			damaged[i] ^= 1 << random.nextInt(8);
+			SPNegoTokenParser.classify(damaged);
+			SPNegoTokenParser.findAuthenticatorCipher(damaged);
+			SPNegoTokenParser.findTicketCipher(damaged);
+		}
+
+		for (int i = 0; i < 10000; i++) {
+			byte[] garbage = KerberosTokens.randomBytes(random,
+					random.nextInt(64));
+			if (garbage.length > 0) {
+				garbage[0] = (byte) new int[] { 0x60, 0xa1, 0x6e }[i % 3];
+			}
+			assertFalse(SPNegoTokenParser.classify(garbage)
+					== SPNegoTokenType.OVERSIZED);
+			SPNegoTokenParser.findAuthenticatorCipher(garbage);
+		}
+	}
+
+	private static byte[] ntlm() {
+		return Arrays.copyOf("NTLMSSP\0\1\0\0\0".getBytes(
+				StandardCharsets.US_ASCII), 40);
+	}
+}
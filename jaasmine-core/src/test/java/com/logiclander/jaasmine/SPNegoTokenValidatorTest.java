@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+
+import junit.framework.TestCase;
+
+public class SPNegoTokenValidatorTest extends TestCase {
+
+	private final Random random = new Random(19);
+
+	private final SPNegoTokenValidator validator = new SPNegoTokenValidator();
+
+	public void testSPNegoTokenCarryingAnAPReqIsAccepted() throws Exception {
+
+		byte[] token = KerberosTokens.negTokenInit(
+				KerberosTokens.randomApReq(random));
+
+		assertEquals(SPNegoTokenType.SPNEGO_INIT,
+				SPNegoTokenParser.classify(token));
+		assertTrue(Arrays.equals(token,
+				validator.decode(encode(token))));
+	}
+
+	/**
+	 * The JDK acceptor would decode a mechToken AP-REQ with an indefinite
+	 * length, so the validator must look inside the mechToken.
+	 */
+	public void testIndefiniteLengthMechTokenIsMalformed() {
+
+		byte[] token = KerberosTokens.negTokenInit(KerberosTokens.apReq(
+				KerberosTokens.randomBytes(random, 64),
+				KerberosTokens.randomBytes(random, 96), true));
+
+		assertEquals(SPNegoTokenType.MALFORMED,
+				SPNegoTokenParser.classify(token));
+		assertRejected(token, SPNegoTokenType.MALFORMED);
+	}
+
+	public void testBadBase64IsMalformed() {
+
+		byte[] token = KerberosTokens.negTokenInit(
+				KerberosTokens.randomApReq(random));
+		String encoded = encode(token);
+
+		for (String bad : new String[] { null, "", "=", "====",
+				encoded + "===", encoded.substring(0, 8) + "*"
+						+ encoded.substring(8),
+				encoded.substring(0, 8) + "=" + encoded.substring(8),
+				encoded.substring(0, 8) + "\r\n" + encoded.substring(8),
+				" " + encoded, "-_-_" }) {
+			assertRejected(bad, SPNegoTokenType.MALFORMED);
+		}
+	}
+
+	public void testMaximumTokenSize() throws Exception {
+
+		// Sizes with two, one and no padding characters.
+		for (int extra = 0; extra < 3; extra++) {
+
+			byte[] token = KerberosTokens.negTokenInit(KerberosTokens.apReq(
+					KerberosTokens.randomBytes(random, 100 + extra),
+					KerberosTokens.randomBytes(random, 96)));
+
+			assertTrue(Arrays.equals(token, new SPNegoTokenValidator(
+					token.length).decode(encode(token))));
+
+			SPNegoTokenValidator smaller =
+					new SPNegoTokenValidator(token.length - 1);
+			try {
+				smaller.decode(encode(token));
+				fail("A token of " + token.length + " bytes was accepted");
+			} catch (InvalidSPNegoTokenException ex) {
+				assertEquals(SPNegoTokenType.OVERSIZED, ex.getTokenType());
+				assertEquals(1, smaller.getRejectedCount(
+						SPNegoTokenType.OVERSIZED));
+			}
+		}
+	}
+
+	/**
+	 * Oversized tokens are refused before they are decoded.
+	 */
+	public void testHugeTokenIsOversized() {
+
+		char[] huge = new char[4 * 1024 * 1024];
+		Arrays.fill(huge, 'A');
+		assertRejected(new String(huge), SPNegoTokenType.OVERSIZED);
+	}
+
+	public void testMaximumMustBePositive() {
+		try {
+			new SPNegoTokenValidator(0);
+			fail("A maximum of 0 was accepted");
+		} catch (IllegalArgumentException ex) {
+			// Expected.
+		}
+	}
+
+	public void testUnsupportedAndTruncatedTokensAreRejected() {
+
+		byte[] ntlm = Arrays.copyOf("NTLMSSP\0\1\0\0\0".getBytes(
+				StandardCharsets.US_ASCII), 40);
+		assertRejected(ntlm, SPNegoTokenType.NTLM);
+
+		byte[] token = KerberosTokens.negTokenInit(
+				KerberosTokens.randomApReq(random));
+		assertRejected(Arrays.copyOf(token, token.length - 1),
+				SPNegoTokenType.MALFORMED);
+		assertRejected(new byte[] { 0x60 }, SPNegoTokenType.MALFORMED);
+
+		assertTrue(validator.toString(), validator.toString().contains(
+				"NTLM = 1"));
+	}
+
+	private void assertRejected(byte[] token, SPNegoTokenType type) {
+		assertRejected(encode(token), type);
+	}
+
+	private void assertRejected(String encodedToken, SPNegoTokenType type) {
+
+		long rejected = validator.getRejectedCount(type);
+		try {
+			validator.decode(encodedToken);
+			fail("The token was accepted");
+		} catch (InvalidSPNegoTokenException ex) {
+			assertEquals(type, ex.getTokenType());
+			assertEquals(rejected + 1, validator.getRejectedCount(type));
+		}
+	}
+
+	/** Base64 without the line breaks of encodeBase64String. */
+	private static String encode(byte[] token) {
+		return new String(Base64.encodeBase64(token));
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine;
+
+import org.ietf.jgss.GSSException;
+
+import junit.framework.TestCase;
+
+public class TicketExpiryCacheTest extends TestCase {
+
+	public void testExpiredTicketsAreRejected() throws Exception {
+
+		TicketExpiryCache cache = new TicketExpiryCache();
+		long endTime = System.currentTimeMillis() + 60000;
+		cache.put("ticket", endTime);
+
+		cache.check("ticket", endTime - 1);
+		assertEquals(1, cache.getHitCount());
+
+		try {
+			cache.check("ticket", endTime);
+			fail("An expired ticket was not rejected");
+		} catch (GSSException ex) {
+			assertEquals(GSSException.CREDENTIALS_EXPIRED, ex.getMajor());
+		}
+		assertEquals(1, cache.getExpiredCount());
+
+		// Forgotten once expired, so the acceptor decides the next time.
+		cache.check("ticket", endTime);
+		assertEquals(1, cache.getExpiredCount());
+	}
+
+	public void testUnknownAndExpiredTicketsAreNotRemembered()
+			throws Exception {
+
+		TicketExpiryCache cache = new TicketExpiryCache();
+		cache.put("ticket", System.currentTimeMillis() - 1);
+
+		cache.check("ticket", Long.MAX_VALUE);
+		cache.check("unknown", Long.MAX_VALUE);
+		assertEquals(0, cache.getHitCount());
+		assertEquals(0, cache.getExpiredCount());
+	}
+}
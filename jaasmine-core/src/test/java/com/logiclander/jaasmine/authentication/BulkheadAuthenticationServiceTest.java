@@ -0,0 +1,274 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine.authentication;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+public class BulkheadAuthenticationServiceTest extends TestCase {
+
+	/** Blocks each login until released, and remembers the passwords. */
+	private static final class Backend implements AuthenticationService {
+
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final CountDownLatch started;
+
+		volatile String password;
+
+		volatile String threadName;
+
+		Backend(int logins) {
+			started = new CountDownLatch(logins);
+		}
+
+		@Override
+		public Subject login(String userId, char[] password) {
+			this.password = password == null ? null : new String(password);
+			this.threadName = Thread.currentThread().getName();
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			if ("broken".equals(userId)) {
+				throw new IllegalStateException("backend failed");
+			}
+			return new Subject();
+		}
+
+		@Override
+		public void logout(Subject s) {
+		}
+	}
+
+	private final ExecutorService callers = Executors.newCachedThreadPool();
+
+	private BulkheadAuthenticationService bulkhead;
+
+	@Override
+	protected void tearDown() {
+		callers.shutdownNow();
+		if (bulkhead != null) {
+			bulkhead.close();
+		}
+	}
+
+	public void testLoginRunsOnALoginThread() {
+
+		Backend backend = new Backend(1);
+		backend.release.countDown();
+		bulkhead = new BulkheadAuthenticationService(backend, 1, 0, 10000);
+
+		assertNotNull(bulkhead.login("alice", "secret".toCharArray()));
+		assertTrue(backend.threadName, backend.threadName.startsWith(
+				"jaasmine-login-"));
+		assertEquals("secret", backend.password);
+		assertNotNull(bulkhead.login("alice", null));
+		assertNull(backend.password);
+		assertEquals(0, bulkhead.getActiveCount());
+	}
+
+	public void testFullQueueIsRejectedAtOnce() throws Exception {
+
+		Backend backend = new Backend(1);
+		bulkhead = new BulkheadAuthenticationService(backend, 1, 1, 10000);
+
+		Future<Subject> running = login("alice");
+		assertTrue(backend.started.await(10, TimeUnit.SECONDS));
+		Future<Subject> waiting = login("bob");
+		awaitQueueDepth(1);
+
+		long start = System.nanoTime();
+		assertRejected("carol");
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		assertEquals(1, bulkhead.getRejectedCount());
+
+		backend.release.countDown();
+		assertNotNull(running.get(10, TimeUnit.SECONDS));
+		assertNotNull(waiting.get(10, TimeUnit.SECONDS));
+		assertEquals(0, bulkhead.getQueueDepth());
+	}
+
+	public void testNoQueue() throws Exception {
+
+		Backend backend = new Backend(1);
+		bulkhead = new BulkheadAuthenticationService(backend, 1, 0, 10000);
+
+		Future<Subject> running = login("alice");
+		assertTrue(backend.started.await(10, TimeUnit.SECONDS));
+		assertRejected("bob");
+
+		backend.release.countDown();
+		assertNotNull(running.get(10, TimeUnit.SECONDS));
+		assertNotNull(bulkhead.login("bob", "secret".toCharArray()));
+	}
+
+	/**
+	 * The deadline covers the wait in the queue, so a caller that never gets
+	 * a thread is rejected without its credentials being checked.
+	 */
+	public void testQueuedLoginIsRejectedAtTheDeadline() throws Exception {
+
+		Backend backend = new Backend(1);
+		bulkhead = new BulkheadAuthenticationService(backend, 1, 5, 200);
+
+		login("alice");
+		assertTrue(backend.started.await(10, TimeUnit.SECONDS));
+
+		assertRejected("bob");
+		assertEquals(0, bulkhead.getQueueDepth());
+		assertEquals(1, bulkhead.getRejectedCount());
+		backend.release.countDown();
+	}
+
+	/**
+	 * A login that has started and outlives the deadline is undecided, keeps
+	 * its thread until the backend answers, and still sees the password the
+	 * caller cleared.
+	 */
+	public void testStartedLoginTimesOut() throws Exception {
+
+		Backend backend = new Backend(1);
+		bulkhead = new BulkheadAuthenticationService(backend, 1, 0, 200);
+
+		char[] password = "secret".toCharArray();
+		try {
+			bulkhead.login("alice", password);
+			fail("The login did not time out");
+		} catch (LoginUndecidedException ex) {
+			// Expected.
+		}
+		Arrays.fill(password, '\0');
+
+		assertEquals(1, bulkhead.getTimeoutCount());
+		assertEquals(1, bulkhead.getActiveCount());
+		assertRejected("bob");
+
+		backend.release.countDown();
+		awaitActiveCount(0);
+		assertEquals("secret", backend.password);
+	}
+
+	public void testBackendFailureIsThrownAndFreesTheThread() {
+
+		Backend backend = new Backend(1);
+		backend.release.countDown();
+		bulkhead = new BulkheadAuthenticationService(backend, 1, 0, 10000);
+
+		try {
+			bulkhead.login("broken", "secret".toCharArray());
+			fail("The failure was not thrown");
+		} catch (IllegalStateException ex) {
+			assertEquals("backend failed", ex.getMessage());
+		}
+		assertEquals(0, bulkhead.getActiveCount());
+		assertNotNull(bulkhead.login("alice", "secret".toCharArray()));
+	}
+
+	public void testInterruptedWaiterIsRejected() throws Exception {
+
+		Backend backend = new Backend(1);
+		bulkhead = new BulkheadAuthenticationService(backend, 1, 1, 60000);
+
+		login("alice");
+		assertTrue(backend.started.await(10, TimeUnit.SECONDS));
+
+		final Thread caller = Thread.currentThread();
+		callers.submit(() -> {
+			awaitQueueDepth(1);
+			caller.interrupt();
+			return null;
+		});
+		try {
+			assertRejected("bob");
+			assertTrue(Thread.interrupted());
+		} finally {
+			Thread.interrupted();
+			backend.release.countDown();
+		}
+		assertEquals(0, bulkhead.getQueueDepth());
+	}
+
+	public void testClosedBulkheadRejectsWithoutLeakingPermits() {
+
+		Backend backend = new Backend(1);
+		backend.release.countDown();
+		bulkhead = new BulkheadAuthenticationService(backend, 2, 0, 10000);
+		bulkhead.close();
+
+		for (int i = 0; i < 3; i++) {
+			assertRejected("alice");
+		}
+		assertEquals(0, bulkhead.getActiveCount());
+	}
+
+	public void testArguments() {
+
+		int[][] invalid = { { 0, 0, 1 }, { 1, -1, 1 }, { 1, 0, 0 } };
+		for (int[] args : invalid) {
+			try {
+				new BulkheadAuthenticationService(new Backend(0), args[0],
+						args[1], args[2]).close();
+				fail("Accepted " + args[0] + ", " + args[1] + ", " + args[2]);
+			} catch (IllegalArgumentException ex) {
+				// Expected.
+			}
+		}
+	}
+
+	private Future<Subject> login(final String userId) {
+		return callers.submit(
+				() -> bulkhead.login(userId, "secret".toCharArray()));
+	}
+
+	private void assertRejected(String userId) {
+		try {
+			bulkhead.login(userId, "secret".toCharArray());
+			fail("The login of " + userId + " was not rejected");
+		} catch (LoginRejectedException ex) {
+			// Rejected before the backend was asked, not undecided.
+			assertFalse(ex instanceof LoginUndecidedException);
+		}
+	}
+
+	private void awaitQueueDepth(int depth) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (bulkhead.getQueueDepth() != depth) {
+			assertTrue(System.nanoTime() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	private void awaitActiveCount(int count) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (bulkhead.getActiveCount() != count) {
+			assertTrue(System.nanoTime() < deadline);
+			Thread.sleep(1);
+		}
+	}
+}
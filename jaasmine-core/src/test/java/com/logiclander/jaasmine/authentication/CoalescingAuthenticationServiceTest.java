@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+public class CoalescingAuthenticationServiceTest extends TestCase {
+
+	public void testWaitersGetTheirOwnCopy() throws Exception {
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		AuthenticationService backend = new AuthenticationService() {
+			@Override
+			public Subject login(String userId, char[] password) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				return CredentialCacheTest.newSubject(userId);
+			}
+
+			@Override
+			public void logout(Subject s) {
+				s.getPrincipals().clear();
+			}
+		};
+
+		final CoalescingAuthenticationService service =
+				new CoalescingAuthenticationService(backend);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+
+			Future<Subject> leader = executor.submit(
+					() -> service.login("alice", "secret".toCharArray()));
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			Future<Subject> waiter = executor.submit(
+					() -> service.login("alice", "secret".toCharArray()));
+			while (service.getCoalescedCount() == 0) {
+				Thread.sleep(1);
+			}
+			release.countDown();
+
+			Subject leaderSubject = leader.get(10, TimeUnit.SECONDS);
+			Subject waiterSubject = waiter.get(10, TimeUnit.SECONDS);
+			assertNotSame(leaderSubject, waiterSubject);
+			assertTrue(waiterSubject.isReadOnly());
+
+			service.logout(leaderSubject);
+			assertEquals(1, waiterSubject.getPrincipals().size());
+
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * A login that fails with an Error must not leave the threads waiting
+	 * for it blocked until their timeout.
+	 */
+	public void testWaitersSeeAnErrorOfTheLogin() throws Exception {
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		AuthenticationService backend = new AuthenticationService() {
+			@Override
+			public Subject login(String userId, char[] password) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				throw new AssertionError("login module failed");
+			}
+
+			@Override
+			public void logout(Subject s) {
+			}
+		};
+
+		final CoalescingAuthenticationService service =
+				new CoalescingAuthenticationService(backend, 60000);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+
+			Future<Subject> leader = executor.submit(
+					() -> service.login("alice", "secret".toCharArray()));
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			Future<Subject> waiter = executor.submit(
+					() -> service.login("alice", "secret".toCharArray()));
+			while (service.getCoalescedCount() == 0) {
+				Thread.sleep(1);
+			}
+			release.countDown();
+
+			for (Future<Subject> login : Arrays.asList(leader, waiter)) {
+				try {
+					login.get(10, TimeUnit.SECONDS);
+					fail("The Error was not reported");
+				} catch (ExecutionException ex) {
+					assertTrue(ex.getCause() instanceof AssertionError);
+				}
+			}
+
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
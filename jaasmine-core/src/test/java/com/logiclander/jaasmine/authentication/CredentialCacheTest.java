@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import java.util.Collections;
+
+import javax.security.auth.DestroyFailedException;
+import javax.security.auth.Destroyable;
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+
+import junit.framework.TestCase;
+
+public class CredentialCacheTest extends TestCase {
+
+	static Subject newSubject(String name) {
+		return new Subject(false,
+				Collections.singleton(new KerberosPrincipal(name + "@EXAMPLE.COM")),
+				Collections.emptySet(), Collections.emptySet());
+	}
+
+	public void testEveryCallerGetsItsOwnReadOnlyCopy() {
+
+		CredentialCache cache = new CredentialCache();
+		Subject original = newSubject("alice");
+		cache.put("alice", "secret".toCharArray(), original);
+
+		Subject first = cache.get("alice", "secret".toCharArray());
+		Subject second = cache.get("alice", "secret".toCharArray());
+
+		assertNotSame(original, first);
+		assertNotSame(first, second);
+		assertTrue(first.isReadOnly());
+		assertEquals(original.getPrincipals(), second.getPrincipals());
+	}
+
+	/**
+	 * Logging out empties a Subject; the other sessions with the same
+	 * credentials must keep their principals.
+	 */
+	public void testLogoutLeavesOtherSessionsAlone() {
+
+		CredentialCache cache = new CredentialCache();
+		Subject original = newSubject("alice");
+		cache.put("alice", "secret".toCharArray(), original);
+		Subject other = cache.get("alice", "secret".toCharArray());
+
+		original.getPrincipals().clear();
+
+		assertEquals(1, other.getPrincipals().size());
+		assertEquals(1, cache.get("alice", "secret".toCharArray())
+				.getPrincipals().size());
+	}
+
+	/**
+	 * Logging out destroys the private credentials of a Subject, so copies
+	 * handed to other sessions must not share them.
+	 */
+	public void testCopiesDoNotShareThePrivateCredentials() throws Exception {
+
+		CredentialCache cache = new CredentialCache();
+		Subject original = newSubject("alice");
+		Credential tgt = new Credential();
+		original.getPrivateCredentials().add(tgt);
+		original.getPublicCredentials().add("public");
+		cache.put("alice", "secret".toCharArray(), original);
+
+		Subject copy = cache.get("alice", "secret".toCharArray());
+		tgt.destroy();
+
+		assertTrue(copy.getPrivateCredentials().isEmpty());
+		assertEquals(original.getPublicCredentials(),
+				copy.getPublicCredentials());
+		assertEquals(1, original.getPrivateCredentials().size());
+	}
+
+	public void testInvalidateForgetsTheLoginsOfACopy() {
+
+		CredentialCache cache = new CredentialCache();
+		cache.put("alice", "secret".toCharArray(), newSubject("alice"));
+		cache.put("bob", "secret".toCharArray(), newSubject("bob"));
+
+		cache.invalidate(cache.get("alice", "secret".toCharArray()));
+
+		assertNull(cache.get("alice", "secret".toCharArray()));
+		assertNotNull(cache.get("bob", "secret".toCharArray()));
+	}
+
+	public void testCachedCopiesAreNotLoggedOut() {
+
+		final int[] logouts = new int[1];
+		AuthenticationService backend = new AuthenticationService() {
+			@Override
+			public Subject login(String userId, char[] password) {
+				return newSubject(userId);
+			}
+
+			@Override
+			public void logout(Subject s) {
+				logouts[0]++;
+				s.getPrincipals().clear();
+			}
+		};
+
+		CredentialCache cache = new CredentialCache();
+		CachingAuthenticationService service =
+				new CachingAuthenticationService(backend, cache);
+
+		Subject first = service.login("alice", "secret".toCharArray());
+		Subject second = service.login("alice", "secret".toCharArray());
+
+		service.logout(second);
+		assertEquals(0, logouts[0]);
+		assertEquals(0, cache.size());
+
+		service.logout(first);
+		assertEquals(1, logouts[0]);
+	}
+
+	/** A private credential that records whether it was destroyed. */
+	static final class Credential implements Destroyable {
+
+		private boolean destroyed;
+
+		@Override
+		public void destroy() throws DestroyFailedException {
+			destroyed = true;
+		}
+
+		@Override
+		public boolean isDestroyed() {
+			return destroyed;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication;
+
+import junit.framework.TestCase;
+
+public class CredentialHasherTest extends TestCase {
+
+	public void testSameCredentialsHashAlike() {
+		CredentialHasher hasher = new CredentialHasher();
+		assertEquals(hasher.hash("alice", "secret".toCharArray()),
+				hasher.hash("alice", "secret".toCharArray()));
+	}
+
+	/**
+	 * With a separator between them, "a\0b" / "c" and "a" / "b\0c" would hash
+	 * the same bytes.
+	 */
+	public void testUserIdAndPasswordCannotBeShifted() {
+		CredentialHasher hasher = new CredentialHasher();
+		assertFalse(hasher.hash("a\0b", "c".toCharArray()).equals(
+				hasher.hash("a", "b\0c".toCharArray())));
+		assertFalse(hasher.hash("ab", null).equals(
+				hasher.hash("a", "b".toCharArray())));
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine.authentication;
+
+import junit.framework.TestCase;
+
+public class LoginThrottleTest extends TestCase {
+
+	public void testRecentlyFailedCredentialsAreRefused() {
+
+		LoginThrottle throttle = new LoginThrottle(60, 100, null, null);
+
+		assertAllowed(throttle, "alice", "wrong");
+		throttle.recordFailure("alice", "wrong".toCharArray());
+
+		assertEquals(LoginThrottle.Decision.RECENTLY_FAILED,
+				throttle.acquire("alice", "wrong".toCharArray(), "10.0.0.1"));
+		assertAllowed(throttle, "alice", "secret");
+		assertAllowed(throttle, "bob", "wrong");
+		assertAllowed(throttle, "alicewrong", "");
+		assertEquals(1, throttle.getRecentlyFailedCount());
+	}
+
+	/**
+	 * The user id is hashed with its length, so moving characters between
+	 * the user id and the password, or adding a NUL, makes other credentials.
+	 */
+	public void testFailuresDoNotLeakToSimilarCredentials() {
+
+		LoginThrottle throttle = new LoginThrottle(60, 100, null, null);
+		throttle.recordFailure("alice", "wrong".toCharArray());
+
+		assertAllowed(throttle, "alic", "ewrong");
+		assertAllowed(throttle, "alice\0", "wrong");
+		assertAllowed(throttle, "alice", "wrong\0");
+		assertAllowed(throttle, "alice", null);
+	}
+
+	public void testNullPasswordFailureIsRemembered() {
+
+		LoginThrottle throttle = new LoginThrottle(60, 100, null, null);
+		throttle.recordFailure("alice", null);
+
+		assertEquals(LoginThrottle.Decision.RECENTLY_FAILED,
+				throttle.acquire("alice", null, null));
+		assertEquals(LoginThrottle.Decision.RECENTLY_FAILED,
+				throttle.acquire("alice", new char[0], null));
+	}
+
+	public void testFailuresAreNotRememberedWithoutATimeToLive() {
+
+		LoginThrottle throttle = new LoginThrottle(0, 100, null, null);
+		throttle.recordFailure("alice", "wrong".toCharArray());
+
+		assertAllowed(throttle, "alice", "wrong");
+	}
+
+	public void testOldestFailuresAreForgottenFirst() {
+
+		LoginThrottle throttle = new LoginThrottle(60, 1, null, null);
+		throttle.recordFailure("alice", "wrong".toCharArray());
+		throttle.recordFailure("bob", "wrong".toCharArray());
+
+		assertAllowed(throttle, "alice", "wrong");
+	}
+
+	public void testUserAndClientLimits() {
+
+		LoginThrottle throttle = new LoginThrottle(0, 100,
+				new StripedRateLimiter(1, 2), new StripedRateLimiter(1, 3));
+
+		assertAllowed(throttle, "alice", "secret");
+		assertAllowed(throttle, "alice", "secret");
+		assertEquals(LoginThrottle.Decision.RATE_LIMITED,
+				throttle.acquire("alice", "secret".toCharArray(), "10.0.0.1"));
+
+		// The client's third and last permit went to that refused login.
+		assertEquals(LoginThrottle.Decision.RATE_LIMITED,
+				throttle.acquire("bob", "secret".toCharArray(), "10.0.0.1"));
+		assertEquals(LoginThrottle.Decision.ALLOWED,
+				throttle.acquire("bob", "secret".toCharArray(), "10.0.0.2"));
+
+		// Without an address only the user limit applies.
+		assertEquals(LoginThrottle.Decision.ALLOWED,
+				throttle.acquire("bob", "secret".toCharArray(), null));
+		assertEquals(2, throttle.getRateLimitedCount());
+	}
+
+	/**
+	 * Refused credentials do not take permits from the rate limits.
+	 */
+	public void testRecentlyFailedLoginsTakeNoPermits() {
+
+		LoginThrottle throttle = new LoginThrottle(60, 100,
+				new StripedRateLimiter(1, 1), null);
+		throttle.recordFailure("alice", "wrong".toCharArray());
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals(LoginThrottle.Decision.RECENTLY_FAILED, throttle
+					.acquire("alice", "wrong".toCharArray(), "10.0.0.1"));
+		}
+		assertAllowed(throttle, "alice", "secret");
+	}
+
+	public void testRetryAfterIsTheLongestOfTheLimits() {
+
+		assertEquals(1, new LoginThrottle(60, 100, null, null)
+				.getRetryAfterSeconds());
+		assertEquals(30, new LoginThrottle(0, 100,
+				new StripedRateLimiter(120, 1), new StripedRateLimiter(2, 1))
+				.getRetryAfterSeconds());
+	}
+
+	public void testArguments() {
+
+		for (long[] args : new long[][] { { -1, 1 }, { 1, 0 } }) {
+			try {
+				new LoginThrottle(args[0], args[1], null, null);
+				fail("Accepted " + args[0] + ", " + args[1]);
+			} catch (IllegalArgumentException ex) {
+				// Expected.
+			}
+		}
+	}
+
+	private static void assertAllowed(LoginThrottle throttle, String userId,
+			String password) {
+		assertEquals(LoginThrottle.Decision.ALLOWED, throttle.acquire(userId,
+				password == null ? null : password.toCharArray(), "10.0.0.1"));
+	}
+}
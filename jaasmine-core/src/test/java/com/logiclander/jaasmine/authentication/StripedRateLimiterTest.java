@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine.authentication;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class StripedRateLimiterTest extends TestCase {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/** An arbitrary nanoTime, which may be negative. */
+	private static final long START = -5 * SECOND;
+
+	public void testBurstThenRate() {
+
+		// 6 per minute is one permit every 10 seconds.
+		StripedRateLimiter limiter = new StripedRateLimiter(6, 3);
+
+		for (int i = 0; i < 3; i++) {
+			assertTrue(limiter.tryAcquire("alice", START));
+		}
+		assertFalse(limiter.tryAcquire("alice", START));
+		assertFalse(limiter.tryAcquire("alice", START + 10 * SECOND - 1));
+		assertTrue(limiter.tryAcquire("alice", START + 10 * SECOND));
+		assertFalse(limiter.tryAcquire("alice", START + 10 * SECOND));
+		assertEquals(3, limiter.getRejectedCount());
+	}
+
+	public void testRefillIsCappedAtTheBurst() {
+
+		StripedRateLimiter limiter = new StripedRateLimiter(60, 2);
+
+		assertTrue(limiter.tryAcquire("alice", START));
+		long later = START + 3600 * SECOND;
+		assertTrue(limiter.tryAcquire("alice", later));
+		assertTrue(limiter.tryAcquire("alice", later));
+		assertFalse(limiter.tryAcquire("alice", later));
+	}
+
+	public void testKeysHaveTheirOwnBuckets() {
+
+		StripedRateLimiter limiter = new StripedRateLimiter(1, 1);
+
+		assertTrue(limiter.tryAcquire("alice", START));
+		assertFalse(limiter.tryAcquire("alice", START));
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(limiter.tryAcquire("user" + i, START));
+		}
+		assertFalse(limiter.tryAcquire("alice", START));
+	}
+
+	/**
+	 * Permits must not be created by a clock that goes backwards.
+	 */
+	public void testTimeGoingBackAddsNoPermits() {
+
+		StripedRateLimiter limiter = new StripedRateLimiter(60, 1);
+
+		assertTrue(limiter.tryAcquire("alice", START));
+		assertFalse(limiter.tryAcquire("alice", START - 3600 * SECOND));
+		assertFalse(limiter.tryAcquire("alice", START + SECOND - 1));
+		assertTrue(limiter.tryAcquire("alice", START + SECOND));
+	}
+
+	/**
+	 * A key pushed out of a full limiter starts again with a full bucket.
+	 */
+	public void testEvictedKeyStartsAgain() {
+
+		StripedRateLimiter limiter = new StripedRateLimiter(1, 1, 1);
+
+		assertTrue(limiter.tryAcquire("alice", START));
+		assertTrue(limiter.tryAcquire("bob", START));
+		assertTrue(limiter.tryAcquire("alice", START));
+	}
+
+	public void testExtremeRatesAndBursts() {
+
+		StripedRateLimiter fast = new StripedRateLimiter(Long.MAX_VALUE, 1);
+		assertTrue(fast.tryAcquire("alice", START));
+		assertTrue(fast.tryAcquire("alice", START + 1));
+		assertEquals(1, fast.getRetryAfterSeconds());
+
+		StripedRateLimiter large =
+				new StripedRateLimiter(1, Integer.MAX_VALUE);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(large.tryAcquire("alice", START));
+		}
+	}
+
+	public void testRetryAfterSeconds() {
+
+		assertEquals(60, new StripedRateLimiter(1, 1).getRetryAfterSeconds());
+		assertEquals(30, new StripedRateLimiter(2, 1).getRetryAfterSeconds());
+		assertEquals(2, new StripedRateLimiter(59, 1).getRetryAfterSeconds());
+		assertEquals(1, new StripedRateLimiter(60, 1).getRetryAfterSeconds());
+		assertEquals(1, new StripedRateLimiter(61, 1).getRetryAfterSeconds());
+	}
+
+	public void testArgumentsMustBePositive() {
+
+		long[][] invalid = { { 0, 1, 1 }, { 1, 0, 1 }, { 1, 1, 0 },
+				{ -1, 1, 1 }, { 1, -1, 1 } };
+		for (long[] args : invalid) {
+			try {
+				new StripedRateLimiter(args[0], (int) args[1], args[2]);
+				fail("Accepted " + args[0] + ", " + args[1] + ", " + args[2]);
+			} catch (IllegalArgumentException ex) {
+				// Expected.
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Runs the asynchronous Filters in an embedded container, which releases
+ * the FilterChain of a dispatch when the dispatch returns.
+ */
+public class AsyncFilterContainerTest extends TestCase {
+
+	private static final EnumSet<DispatcherType> REQUEST_AND_ASYNC =
+			EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC);
+
+	private Server server;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		ServletContextHandler context = new ServletContextHandler(
+				ServletContextHandler.SESSIONS);
+
+		FilterHolder authorization = new FilterHolder(
+				new HeaderAuthorizationFilter());
+		authorization.setAsyncSupported(true);
+		context.addFilter(authorization, "/app", REQUEST_AND_ASYNC);
+
+		FilterHolder login = new FilterHolder(AsyncJaasLoginFilter.class);
+		login.setAsyncSupported(true);
+		login.setInitParameter("loginPath", "/login");
+		context.addFilter(login, "/secure/*", REQUEST_AND_ASYNC);
+		context.addFilter(login, "/login", REQUEST_AND_ASYNC);
+
+		context.addServlet(servlet(new Application()), "/app");
+		context.addServlet(servlet(new Application()), "/secure/*");
+		context.addServlet(servlet(new LoginPage()), "/login");
+
+		server = new Server(0);
+		server.setHandler(context);
+		server.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+
+	public void testAuthorizedRequestReachesTheServlet() throws Exception {
+
+		HttpURLConnection connection = open("/app");
+		connection.setRequestProperty(AuthorizationHeader.AUTHORIZATION,
+				"Test alice");
+
+		assertEquals(HttpServletResponse.SC_OK,
+				connection.getResponseCode());
+		String body = read(connection.getInputStream());
+		assertTrue(body, body.startsWith("alice "));
+		assertFalse(body, body.contains("jaasmine"));
+	}
+
+	public void testUnauthorizedRequestIsAnswered() throws Exception {
+
+		HttpURLConnection connection = open("/app");
+		connection.setRequestProperty(AuthorizationHeader.AUTHORIZATION,
+				"Unknown alice");
+
+		assertEquals(HttpServletResponse.SC_UNAUTHORIZED,
+				connection.getResponseCode());
+	}
+
+	public void testFailedLoginIsDispatchedToTheLoginPath() throws Exception {
+
+		HttpURLConnection connection = open("/secure/page?username=alice"
+				+ "&password=wrong");
+
+		assertEquals(HttpServletResponse.SC_OK,
+				connection.getResponseCode());
+		assertEquals("login", read(connection.getInputStream()));
+	}
+
+	private HttpURLConnection open(String path) throws IOException {
+
+		int port = ((ServerConnector) server.getConnectors()[0])
+				.getLocalPort();
+		HttpURLConnection connection = (HttpURLConnection) new URL("http",
+				"localhost", port, path).openConnection();
+		connection.setConnectTimeout(5000);
+		connection.setReadTimeout(5000);
+		return connection;
+	}
+
+	private static ServletHolder servlet(HttpServlet servlet) {
+		ServletHolder holder = new ServletHolder(servlet);
+		holder.setAsyncSupported(true);
+		return holder;
+	}
+
+	private static String read(InputStream in) throws IOException {
+
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[256];
+			for (int n; (n = in.read(buffer)) != -1;) {
+				out.write(buffer, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Authorizes requests with the Test scheme as the user named in the
+	 * Authorization header.
+	 */
+	private static final class HeaderAuthorizationFilter
+			extends AsyncGeneralAuthorizationFilter {
+
+		@Override
+		HttpAuthorizable getHttpAuthorizor(final HttpServletRequest httpRequest) {
+
+			final String header = httpRequest.getHeader(
+					AuthorizationHeader.AUTHORIZATION);
+			return new NonAuthorizingHttpAuthorizor(httpRequest) {
+
+				@Override
+				public boolean isAuthorized() {
+					return header.startsWith("Test ");
+				}
+
+				@Override
+				public HttpServletRequest getAuthorizedHttpRequest() {
+					return new JaasmineHttpServletRequest(httpRequest,
+							() -> header.substring("Test ".length()));
+				}
+			};
+		}
+	}
+
+	/** Answers with the remote user and the thread that served it. */
+	private static final class Application extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws IOException {
+			resp.setContentType("text/plain");
+			resp.getWriter().print(req.getRemoteUser() + " "
+					+ Thread.currentThread().getName());
+		}
+	}
+
+	private static final class LoginPage extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws IOException {
+			resp.setContentType("text/plain");
+			resp.getWriter().print("login");
+		}
+	}
+}
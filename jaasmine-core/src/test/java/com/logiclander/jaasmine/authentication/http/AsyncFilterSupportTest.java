@@ -0,0 +1,250 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+public class AsyncFilterSupportTest extends TestCase {
+
+	private static final long TIMEOUT_MILLIS = 1000;
+
+	private AsyncFilterSupport asyncSupport;
+
+	@Override
+	protected void setUp() throws Exception {
+		ServletStubs.Config config = new ServletStubs.Config("async",
+				new ServletStubs.Context());
+		config.initParameters.put("authenticationTimeout",
+				Long.toString(TimeUnit.MILLISECONDS.toSeconds(TIMEOUT_MILLIS)));
+		asyncSupport = AsyncFilterSupport.create(config.proxy());
+	}
+
+	@Override
+	protected void tearDown() {
+		asyncSupport.destroy();
+	}
+
+	/**
+	 * The authentication timeout must not cut off a chain that takes longer
+	 * than it.
+	 */
+	public void testTimeoutDoesNotCoverTheChain() throws Exception {
+
+		ServletStubs.Response response = new ServletStubs.Response();
+		ServletStubs.Async async = offload(response, 0,
+				TIMEOUT_MILLIS + 500);
+
+		assertTrue(async.completed.await(10, TimeUnit.SECONDS));
+		Thread.sleep(100);
+
+		assertNull(async.dispatchFailure);
+		assertEquals(0, async.timeout);
+		assertEquals(HttpServletResponse.SC_ACCEPTED, response.status);
+		assertEquals(1, async.dispatchCount);
+		assertEquals(0, async.completeCount);
+		assertEquals(0, asyncSupport.getTimeoutCount());
+	}
+
+	public void testSlowAuthenticationTimesOut() throws Exception {
+
+		ServletStubs.Response response = new ServletStubs.Response();
+		ServletStubs.Async async = offload(response, TIMEOUT_MILLIS + 500, 0);
+
+		assertTrue(async.completed.await(10, TimeUnit.SECONDS));
+		// Let the authentication finish: the chain must not run.
+		Thread.sleep(TIMEOUT_MILLIS);
+
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+				response.status);
+		assertEquals("1", response.getHeader("Retry-After"));
+		assertEquals(1, async.completeCount);
+		assertEquals(0, async.dispatchCount);
+		assertEquals(1, asyncSupport.getTimeoutCount());
+	}
+
+	/**
+	 * The authorized request reaches the chain of the ASYNC dispatch, with
+	 * the request the Filter authorized, and never the released chain of the
+	 * first dispatch.
+	 */
+	public void testAuthorizedRequestIsDispatched() throws Exception {
+
+		ServletStubs.Response response = new ServletStubs.Response();
+		ServletStubs.Async async = offload(response, 0, 0);
+
+		assertTrue(async.completed.await(10, TimeUnit.SECONDS));
+
+		assertNull(async.dispatchFailure);
+		assertNull(async.dispatchPath);
+		assertEquals(HttpServletResponse.SC_ACCEPTED, response.status);
+		assertEquals("alice", response.getHeader("X-Remote-User"));
+	}
+
+	public void testWorkCanDispatchToAPath() throws Exception {
+
+		ServletStubs.Request request = new ServletStubs.Request();
+		final ServletStubs.Response response = new ServletStubs.Response();
+		ServletStubs.Async async = filter(request, response,
+				(req, resp, chain) -> assertTrue(asyncSupport.dispatchAfterWork(
+						req, "/login", (r, s, c) -> c.doFilter(r, s))));
+
+		assertTrue(async.completed.await(10, TimeUnit.SECONDS));
+
+		assertNull(async.dispatchFailure);
+		assertEquals("/login", async.dispatchPath);
+		assertEquals(HttpServletResponse.SC_ACCEPTED, response.status);
+		assertTrue(request.attributes.isEmpty());
+	}
+
+	public void testOnlyOffloadedRequestsCanDispatchAfterWork() {
+		assertFalse(asyncSupport.dispatchAfterWork(
+				new ServletStubs.Request().proxy(), null,
+				(r, s, c) -> fail("Resumed")));
+	}
+
+	public void testUnauthorizedRequestIsCompleted() throws Exception {
+
+		ServletStubs.Response response = new ServletStubs.Response();
+		ServletStubs.Async async = filter(new ServletStubs.Request(), response,
+				(req, resp, chain) -> ((HttpServletResponse) resp).setStatus(
+						HttpServletResponse.SC_UNAUTHORIZED));
+
+		assertTrue(async.completed.await(10, TimeUnit.SECONDS));
+
+		assertEquals(HttpServletResponse.SC_UNAUTHORIZED, response.status);
+		assertEquals(1, async.completeCount);
+		assertEquals(0, async.dispatchCount);
+	}
+
+	/**
+	 * Offloads a Filter that authorizes every request as alice after a
+	 * delay, to a Servlet that answers 202 after a delay.
+	 */
+	private ServletStubs.Async offload(final ServletStubs.Response response,
+			final long authenticationMillis, final long chainMillis)
+			throws Exception {
+
+		return filter(new ServletStubs.Request(), response, chainMillis,
+				(req, resp, chain) -> {
+					sleep(authenticationMillis);
+					chain.doFilter(new HttpServletRequestWrapper(
+							(HttpServletRequest) req) {
+						@Override
+						public String getRemoteUser() {
+							return "alice";
+						}
+					}, resp);
+				});
+	}
+
+	private ServletStubs.Async filter(ServletStubs.Request request,
+			ServletStubs.Response response, AsyncFilterSupport.FilterWork work)
+			throws Exception {
+		return filter(request, response, 0, work);
+	}
+
+	/**
+	 * Runs a request through an offloading Filter the way a container does.
+	 * The FilterChain of each dispatch is released when the dispatch
+	 * returns, like Tomcat's.
+	 */
+	private ServletStubs.Async filter(final ServletStubs.Request request,
+			final ServletStubs.Response response, final long chainMillis,
+			final AsyncFilterSupport.FilterWork work) throws Exception {
+
+		final HttpServletRequest req = request.proxy();
+		final HttpServletResponse resp = response.proxy();
+		ServletStubs.Async async = new ServletStubs.Async(req, resp);
+		request.async = async;
+
+		final FilterChain servlet = (r, s) -> {
+			sleep(chainMillis);
+			HttpServletResponse httpResponse = (HttpServletResponse) s;
+			httpResponse.setHeader("X-Remote-User",
+					((HttpServletRequest) r).getRemoteUser());
+			httpResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+		};
+
+		async.onDispatch = path -> {
+			request.dispatcherType = DispatcherType.ASYNC;
+			ReleasedChain chain = new ReleasedChain(servlet);
+			try {
+				assertTrue(asyncSupport.resume(req, resp, chain));
+			} finally {
+				chain.release();
+			}
+		};
+
+		ReleasedChain chain = new ReleasedChain(servlet);
+		try {
+			assertFalse(asyncSupport.resume(req, resp, chain));
+			asyncSupport.offload(req, resp, chain, work);
+		} finally {
+			chain.release();
+		}
+		return async;
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A FilterChain that, like Tomcat's ApplicationFilterChain, cannot be
+	 * used once the dispatch it belongs to has returned.
+	 */
+	private static final class ReleasedChain implements FilterChain {
+
+		private volatile FilterChain servlet;
+
+		ReleasedChain(FilterChain servlet) {
+			this.servlet = servlet;
+		}
+
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response)
+				throws IOException, ServletException {
+
+			FilterChain s = servlet;
+			if (s == null) {
+				throw new IllegalStateException("The chain was released");
+			}
+			s.doFilter(request, response);
+		}
+
+		void release() {
+			servlet = null;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.apache.commons.codec.binary.Base64;
+
+import junit.framework.TestCase;
+
+public class AuthenticationCookieTest extends TestCase {
+
+	private static final String SECRET =
+			"MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=";
+
+	private static final String SERVER = "www.example.com";
+
+	private static final String NAME = "alice@EXAMPLE.COM";
+
+	private static final long MAX_AGE = TimeUnit.SECONDS.toMillis(300);
+
+	private static final long ROTATION = TimeUnit.HOURS.toMillis(1);
+
+	/** One second before a signing key changes. */
+	private static final long NOW = 1000 * ROTATION - 1000;
+
+	private AuthenticationCookie cookie;
+
+	@Override
+	protected void setUp() throws Exception {
+		cookie = create(SECRET, MAX_AGE);
+	}
+
+	public void testIssuedCookieIsValidUntilItExpires() throws Exception {
+
+		String value = cookie.createValue(NAME, SERVER, NOW);
+
+		assertName(NAME, cookie.verify(value, SERVER, NOW));
+		assertName(NAME, cookie.verify(value, SERVER, NOW + MAX_AGE - 1));
+		assertNull(cookie.verify(value, SERVER, NOW + MAX_AGE));
+		assertNull(cookie.verify(value, SERVER, NOW + 10 * ROTATION));
+	}
+
+	/**
+	 * A cookie signed with the key of the previous period stays valid after
+	 * the key changes.
+	 */
+	public void testCookieOutlivesAKeyChange() throws Exception {
+
+		String value = cookie.createValue(NAME, SERVER, NOW);
+		String next = cookie.createValue(NAME, SERVER, NOW + 2000);
+
+		assertFalse(value.substring(0, value.indexOf('.')).equals(
+				next.substring(0, next.indexOf('.'))));
+		assertName(NAME, cookie.verify(value, SERVER, NOW + 2000));
+		assertName(NAME, cookie.verify(next, SERVER, NOW + 2000));
+	}
+
+	public void testServersSharingTheSecretAcceptEachOthersCookies()
+			throws Exception {
+
+		String value = cookie.createValue(NAME, SERVER, NOW);
+
+		assertName(NAME, create(SECRET, MAX_AGE).verify(value, SERVER, NOW));
+		assertNull(create(null, MAX_AGE).verify(value, SERVER, NOW));
+		assertNull(create("ZmVkY2JhOTg3NjU0MzIxMGZlZGNiYTk4NzY1NDMyMTA=",
+				MAX_AGE).verify(value, SERVER, NOW));
+	}
+
+	/**
+	 * A cookie from the future, or from a server that lets cookies live
+	 * longer, is refused even though its signature is good.
+	 */
+	public void testCookiesOutsideTheWindowAreRefused() throws Exception {
+
+		assertNull(cookie.verify(cookie.createValue(NAME, SERVER,
+				NOW + ROTATION), SERVER, NOW));
+		assertNull(cookie.verify(create(SECRET, 2 * ROTATION).createValue(
+				NAME, SERVER, NOW), SERVER, NOW + 1000));
+	}
+
+	public void testCookieIsBoundToTheServerName() throws Exception {
+
+		String value = cookie.createValue(NAME, SERVER, NOW);
+
+		assertNull(cookie.verify(value, "other.example.com", NOW));
+		assertNull(cookie.verify(value, null, NOW));
+		assertName(NAME, cookie.verify(cookie.createValue(NAME, null, NOW),
+				null, NOW));
+	}
+
+	public void testTamperedCookiesAreRefused() throws Exception {
+
+		String value = cookie.createValue(NAME, SERVER, NOW);
+		int dot = value.indexOf('.');
+		String payload = new String(Base64.decodeBase64(
+				value.substring(0, dot)), StandardCharsets.UTF_8);
+		String signature = value.substring(dot);
+
+		// Another name, a later expiry and another key with the signature.
+		assertNull(cookie.verify(encode(payload.replace("alice", "mallory"))
+				+ signature, SERVER, NOW));
+		String[] fields = payload.split(":", 3);
+		assertNull(cookie.verify(encode(fields[0] + ":"
+				+ (Long.parseLong(fields[1]) + 1) + ":" + fields[2])
+				+ signature, SERVER, NOW));
+		assertNull(cookie.verify(encode((Long.parseLong(fields[0]) - 1)
+				+ ":" + fields[1] + ":" + fields[2]) + signature, SERVER,
+				NOW));
+
+		// A damaged or truncated signature.
+		char[] damaged = value.toCharArray();
+		damaged[dot + 1] = damaged[dot + 1] == 'A' ? 'B' : 'A';
+		assertNull(cookie.verify(new String(damaged), SERVER, NOW));
+		assertNull(cookie.verify(value.substring(0, value.length() - 2),
+				SERVER, NOW));
+		assertNull(cookie.verify(value.substring(0, dot + 1), SERVER, NOW));
+	}
+
+	public void testMalformedCookiesAreRefused() {
+
+		for (String bad : new String[] { null, "", ".", "abc", ".abc",
+				encode("1:2") + ".AAAA", encode("x:2:" + NAME) + ".AAAA",
+				encode("1:x:" + NAME) + ".AAAA", encode("1:2:") + ".AAAA",
+				"%%%.%%%", encode(":::") + "." }) {
+			assertNull(bad, cookie.verify(bad, SERVER, NOW));
+		}
+	}
+
+	public void testNameMayContainColons() throws Exception {
+		assertName("HTTP/a:b@EXAMPLE.COM", cookie.verify(cookie.createValue(
+				"HTTP/a:b@EXAMPLE.COM", SERVER, NOW), SERVER, NOW));
+	}
+
+	public void testInitParameters() throws Exception {
+
+		ServletStubs.Config config =
+				new ServletStubs.Config("cookie", new ServletStubs.Context());
+		assertNull(AuthenticationCookie.create(config.proxy()));
+
+		config.initParameters.put("authCookie", "true");
+		config.initParameters.put("authCookieSecret", "c2hvcnQ=");
+		assertInvalid(config);
+
+		config.initParameters.remove("authCookieSecret");
+		config.initParameters.put("authCookieMaxAge", "0");
+		assertInvalid(config);
+
+		config.initParameters.put("authCookieMaxAge", "300");
+		config.initParameters.put("authCookieKeyRotation", "-1");
+		assertInvalid(config);
+	}
+
+	private static void assertInvalid(ServletStubs.Config config) {
+		try {
+			AuthenticationCookie.create(config.proxy());
+			fail("Invalid init-params were accepted");
+		} catch (ServletException ex) {
+			// Expected.
+		}
+	}
+
+	private static void assertName(String name, Principal principal) {
+		assertNotNull(principal);
+		assertEquals(name, principal.getName());
+	}
+
+	private static AuthenticationCookie create(String secret, long maxAge)
+			throws ServletException {
+
+		ServletStubs.Config config =
+				new ServletStubs.Config("cookie", new ServletStubs.Context());
+		config.initParameters.put("authCookie", "true");
+		config.initParameters.put("authCookieMaxAge",
+				Long.toString(TimeUnit.MILLISECONDS.toSeconds(maxAge)));
+		config.initParameters.put("authCookieKeyRotation",
+				Long.toString(TimeUnit.MILLISECONDS.toSeconds(ROTATION)));
+		if (secret != null) {
+			config.initParameters.put("authCookieSecret", secret);
+		}
+		return AuthenticationCookie.create(config.proxy());
+	}
+
+	private static String encode(String payload) {
+		return Base64.encodeBase64URLSafeString(
+				payload.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Base64;
+
+import junit.framework.TestCase;
+
+public class AuthorizationHeaderTest extends TestCase {
+
+	/** The largest Basic credential that is decoded. */
+	private static final int MAX_BASIC_BYTES = 4096;
+
+	public void testSchemes() {
+
+		assertFalse(AuthorizationHeader.parse((String) null).isPresent());
+		assertEquals(AuthorizationType.NULL,
+				AuthorizationHeader.parse((String) null).getType());
+
+		AuthorizationHeader header =
+				AuthorizationHeader.parse(" \tbAsIc  dXNlcjpwYXNz \t");
+		assertTrue(header.isPresent());
+		assertEquals(AuthorizationType.BASIC, header.getType());
+		assertEquals("dXNlcjpwYXNz", header.getCredentials());
+
+		assertEquals(AuthorizationType.NEGOTIATE,
+				AuthorizationHeader.parse("NEGOTIATE abc").getType());
+		assertEquals(AuthorizationType.NULL,
+				AuthorizationHeader.parse("Basically abc").getType());
+		assertEquals(AuthorizationType.NULL,
+				AuthorizationHeader.parse("Bas abc").getType());
+		assertEquals(AuthorizationType.NULL,
+				AuthorizationHeader.parse("").getType());
+		assertTrue(AuthorizationHeader.parse("").isPresent());
+		assertEquals("", AuthorizationHeader.parse("Basic").getCredentials());
+	}
+
+	public void testBasicCredentials() {
+
+		assertCredentials("alice", "secret", basic("alice:secret"));
+		assertCredentials("alice", "", basic("alice:"));
+		assertCredentials("alice", "", basic("alice"));
+		assertCredentials("", "secret", basic(":secret"));
+		assertCredentials("alice", "se:cr:et", basic("alice:se:cr:et"));
+		assertCredentials("ålice", "sécret€", basic("ålice:sécret€"));
+	}
+
+	public void testPaddingLengths() {
+
+		// One, two and three bytes in the last Base64 group.
+		assertCredentials("a", "", basic("a"));
+		assertCredentials("ab", "", basic("ab"));
+		assertCredentials("abc", "", basic("abc"));
+	}
+
+	public void testMalformedBase64IsRejected() {
+
+		String encoded = encode("alice:secret");
+
+		for (String bad : new String[] {
+				encoded.substring(1),
+				encoded.substring(0, encoded.length() - 1),
+				encoded + "=",
+				"YQ===",
+				"YQ",
+				"Y===",
+				"=",
+				encoded.replace('Y', '-'),
+				encoded.replace('Y', '_'),
+				encoded.replace('Y', 'ř'),
+				encoded.substring(0, 4) + " " + encoded.substring(4),
+				encoded.substring(0, 4) + "=" + encoded.substring(5) }) {
+			assertNull(bad, AuthorizationHeader.parse("Basic " + bad)
+					.decodeBasicCredentials());
+		}
+	}
+
+	public void testInvalidUtf8IsRejected() {
+
+		assertNull(basic(new byte[] { 'a', ':', (byte) 0xc3, 0x28 }));
+		assertNull(basic(new byte[] { (byte) 0xff, ':', 's' }));
+		assertNull(basic(new byte[] { 'a', (byte) 0xe2, (byte) 0x82, ':' }));
+	}
+
+	public void testMaximumLength() {
+
+		char[] user = new char[MAX_BASIC_BYTES - 2];
+		Arrays.fill(user, 'u');
+		String name = new String(user);
+
+		assertCredentials(name, "p", basic(name + ":p"));
+		assertNull(basic(name + ":pp"));
+		assertNull(basic(name + name + ":p"));
+	}
+
+	/**
+	 * The decoding buffer is reused by the thread, so a short credential
+	 * decoded after a long one must not see its bytes.
+	 */
+	public void testBufferIsNotShared() {
+
+		assertCredentials("alice", "a-long-secret",
+				basic("alice:a-long-secret"));
+		assertCredentials("bob", "", basic("bob"));
+		assertNull(basic("carol:" + new String(new char[MAX_BASIC_BYTES])));
+		assertCredentials("dave", "x", basic("dave:x"));
+	}
+
+	private static void assertCredentials(String username, String password,
+			AuthorizationHeader.BasicCredentials credentials) {
+
+		assertNotNull(credentials);
+		assertEquals(username, credentials.getUsername());
+		assertEquals(password, new String(credentials.getPassword()));
+	}
+
+	private static AuthorizationHeader.BasicCredentials basic(String value) {
+		return basic(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static AuthorizationHeader.BasicCredentials basic(byte[] value) {
+		return AuthorizationHeader.parse("Basic "
+				+ new String(Base64.encodeBase64(value))).decodeBasicCredentials();
+	}
+
+	private static String encode(String value) {
+		return new String(Base64.encodeBase64(
+				value.getBytes(StandardCharsets.UTF_8)));
+	}
+}
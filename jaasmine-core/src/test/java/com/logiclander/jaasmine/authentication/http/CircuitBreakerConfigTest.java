@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine.authentication.http;
+
+import com.logiclander.jaasmine.CircuitBreaker;
+
+import junit.framework.TestCase;
+
+public class CircuitBreakerConfigTest extends TestCase {
+
+	public void testFiltersWithTheSameBackendKeepTheirOwnBreaker()
+			throws Exception {
+
+		ServletStubs.Context context = new ServletStubs.Context();
+		ServletStubs.Config first = new ServletStubs.Config("first", context);
+		ServletStubs.Config second = new ServletStubs.Config("second", context);
+		first.initParameters.put("circuitBreakerFailureRate", "50");
+		second.initParameters.put("circuitBreakerFailureRate", "50");
+
+		CircuitBreaker firstBreaker =
+			CircuitBreakerConfig.create(first.proxy(), "app");
+		CircuitBreaker secondBreaker =
+			CircuitBreakerConfig.create(second.proxy(), "app");
+
+		assertNotSame(firstBreaker, secondBreaker);
+		assertSame(firstBreaker, context.attributes.get(
+				CircuitBreaker.class.getName() + ".first.app"));
+		assertSame(secondBreaker, context.attributes.get(
+				CircuitBreaker.class.getName() + ".second.app"));
+	}
+
+	public void testNoBreakerByDefault() throws Exception {
+
+		ServletStubs.Context context = new ServletStubs.Context();
+		assertNull(CircuitBreakerConfig.create(
+				new ServletStubs.Config("filter", context).proxy(), "app"));
+		assertTrue(context.attributes.isEmpty());
+	}
+}
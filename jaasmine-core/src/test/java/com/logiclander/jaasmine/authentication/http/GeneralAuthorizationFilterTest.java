@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.security.Principal;
+import java.util.Collections;
+
+import javax.security.auth.Subject;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import com.logiclander.jaasmine.SubjectPropagation;
+
+public class GeneralAuthorizationFilterTest extends TestCase {
+
+	private static final String FINAL_TOKEN = "Negotiate b2s=";
+
+	public void testAuthorizedResponseIsPreparedBeforeTheChain()
+			throws Exception {
+
+		GeneralAuthorizationFilter filter = new GeneralAuthorizationFilter() {
+			@Override
+			HttpAuthorizable getHttpAuthorizor(HttpServletRequest httpRequest) {
+				return new MutualAuthorizor(httpRequest);
+			}
+		};
+
+		ServletStubs.Request request = new ServletStubs.Request();
+		request.headers.put("Authorization", "Negotiate YQ==");
+		final ServletStubs.Response response = new ServletStubs.Response();
+		final String[] headerSeenByChain = new String[1];
+		final ServletRequest[] requestSeenByChain = new ServletRequest[1];
+
+		FilterChain chain = (req, resp) -> {
+			headerSeenByChain[0] = response.getHeader("WWW-Authenticate");
+			requestSeenByChain[0] = req;
+		};
+
+		filter.doFilter(request.proxy(), response.proxy(), chain);
+
+		assertEquals(FINAL_TOKEN, headerSeenByChain[0]);
+		assertEquals(FINAL_TOKEN, response.getHeader("WWW-Authenticate"));
+		assertEquals(HttpServletResponse.SC_OK, response.status);
+		assertEquals("alice", ((HttpServletRequest) requestSeenByChain[0])
+				.getRemoteUser());
+	}
+
+	public void testUnauthorizedResponseIsChallenged() throws Exception {
+
+		GeneralAuthorizationFilter filter = new GeneralAuthorizationFilter() {
+			@Override
+			HttpAuthorizable getHttpAuthorizor(HttpServletRequest httpRequest) {
+				return new NonAuthorizingHttpAuthorizor(httpRequest);
+			}
+		};
+
+		ServletStubs.Response response = new ServletStubs.Response();
+		filter.doFilter(new ServletStubs.Request().proxy(), response.proxy(),
+				(req, resp) -> fail("The chain must not run"));
+
+		assertEquals(HttpServletResponse.SC_UNAUTHORIZED, response.status);
+		assertTrue(response.headers.get("WWW-Authenticate")
+				.contains("Negotiate"));
+	}
+
+	public void testSubjectIsNotBoundByDefault() throws Exception {
+		assertNull(getSubjectSeenByChain(null));
+	}
+
+	public void testSubjectIsBoundWhenPropagating() throws Exception {
+		assertSame(ALICE, getSubjectSeenByChain("true"));
+	}
+
+	private static final Subject ALICE = new Subject(true,
+			Collections.<Principal>singleton(() -> "alice@EXAMPLE.COM"),
+			Collections.emptySet(), Collections.emptySet());
+
+	private static Subject getSubjectSeenByChain(String propagateSubject)
+			throws Exception {
+
+		GeneralAuthorizationFilter filter = new GeneralAuthorizationFilter() {
+			@Override
+			HttpAuthorizable getHttpAuthorizor(HttpServletRequest httpRequest) {
+				return new MutualAuthorizor(httpRequest) {
+					@Override
+					public HttpServletRequest getAuthorizedHttpRequest() {
+						return new JaasmineHttpServletRequest(getHttpRequest(),
+								ALICE);
+					}
+				};
+			}
+		};
+
+		ServletStubs.Config config =
+				new ServletStubs.Config("general", new ServletStubs.Context());
+		if (propagateSubject != null) {
+			config.initParameters.put("propagateSubject", propagateSubject);
+		}
+		filter.init(config.proxy());
+
+		final Subject[] subjectSeenByChain = new Subject[1];
+		try {
+			filter.doFilter(new ServletStubs.Request().proxy(),
+					new ServletStubs.Response().proxy(), (req, resp) ->
+							subjectSeenByChain[0] = SubjectPropagation.current());
+		} finally {
+			filter.destroy();
+		}
+		return subjectSeenByChain[0];
+	}
+
+	/**
+	 * Authorizes every request and sends a final Negotiate token, like
+	 * NegotiateHttpAuthorizor does with mutual authentication.
+	 */
+	private static class MutualAuthorizor extends BaseHttpAuthorizor {
+
+		MutualAuthorizor(HttpServletRequest httpRequest) {
+			super(httpRequest);
+		}
+
+		@Override
+		public HttpServletRequest getAuthorizedHttpRequest() {
+			Principal alice = () -> "alice@EXAMPLE.COM";
+			return new JaasmineHttpServletRequest(getHttpRequest(), alice);
+		}
+
+		@Override
+		public void prepareAuthorizedHttpResponse(
+				HttpServletResponse httpResponse) {
+			httpResponse.setHeader("WWW-Authenticate", FINAL_TOKEN);
+		}
+
+		@Override
+		public boolean isAuthorized() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.ietf.jgss.GSSException;
+
+import com.logiclander.jaasmine.SPNegoServer;
+import com.logiclander.jaasmine.SPNegoServices;
+
+import junit.framework.TestCase;
+
+public class NegotiateHttpAuthorizorTest extends TestCase {
+
+	public void testRejectedTokensAreChallenged() throws Exception {
+
+		int[] rejections = {
+			GSSException.DUPLICATE_TOKEN,
+			GSSException.CREDENTIALS_EXPIRED,
+			GSSException.DEFECTIVE_TOKEN
+		};
+
+		for (int major : rejections) {
+			ServletStubs.Response response = prepareResponse(major);
+
+			assertEquals(HttpServletResponse.SC_UNAUTHORIZED, response.status);
+			assertTrue(response.headers.get("WWW-Authenticate")
+					.contains("Negotiate"));
+			assertNull(response.getHeader("Retry-After"));
+		}
+	}
+
+	public void testUnavailableAcceptorAsksForRetry() throws Exception {
+
+		ServletStubs.Response response =
+			prepareResponse(GSSException.UNAVAILABLE);
+
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+				response.status);
+		assertEquals("1", response.getHeader("Retry-After"));
+		assertNull(response.getHeader("WWW-Authenticate"));
+	}
+
+	public void testOtherFailuresAreErrors() throws Exception {
+
+		try {
+			new NegotiateHttpAuthorizor(negotiateRequest(), "realm",
+					new FailingServices(GSSException.FAILURE));
+			fail("A failing acceptor was not reported");
+		} catch (HttpAuthorizorException ex) {
+			assertEquals(GSSException.FAILURE,
+					((GSSException) ex.getCause()).getMajor());
+		}
+	}
+
+	private static ServletStubs.Response prepareResponse(int major)
+			throws Exception {
+
+		NegotiateHttpAuthorizor authorizor = new NegotiateHttpAuthorizor(
+				negotiateRequest(), "realm", new FailingServices(major));
+		assertFalse(authorizor.isAuthorized());
+
+		ServletStubs.Response response = new ServletStubs.Response();
+		authorizor.prepareUnauthorizedHttpResponse(response.proxy());
+		return response;
+	}
+
+	private static HttpServletRequest negotiateRequest() {
+		ServletStubs.Request request = new ServletStubs.Request();
+		request.headers.put("Authorization", "Negotiate YQ==");
+		return request.proxy();
+	}
+
+	/** Fails every token with the given major status. */
+	private static final class FailingServices extends SPNegoServices {
+
+		private final int major;
+
+		FailingServices(int major) throws GSSException {
+			this.major = major;
+		}
+
+		@Override
+		public SPNegoServer accept(String spnegoToken) throws GSSException {
+			throw new GSSException(major);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.servlet.http.HttpServletResponse;
+
+import com.logiclander.jaasmine.authentication.AuthenticationService;
+import com.logiclander.jaasmine.authentication.CredentialCache;
+import com.logiclander.jaasmine.authentication.LoginThrottle;
+import com.logiclander.jaasmine.authentication.LoginUndecidedException;
+
+import junit.framework.TestCase;
+
+public class PasswordLoginConfigTest extends TestCase {
+
+	/** Fails the first login with the given exception, then accepts. */
+	private static final class Backend implements AuthenticationService {
+
+		private RuntimeException firstFailure;
+
+		Backend(RuntimeException firstFailure) {
+			this.firstFailure = firstFailure;
+		}
+
+		@Override
+		public Subject login(String userId, char[] password) {
+			if (firstFailure != null) {
+				RuntimeException ex = firstFailure;
+				firstFailure = null;
+				throw ex;
+			}
+			return "secret".equals(new String(password)) ? new Subject() : null;
+		}
+
+		@Override
+		public void logout(Subject s) {
+		}
+	}
+
+	public void testUndecidedLoginsAreNotRecordedAsFailures()
+			throws Exception {
+
+		PasswordLoginConfig config = new PasswordLoginConfig(
+				new Backend(new LoginUndecidedException("timed out")), null,
+				new LoginThrottle(60, 100, null, null));
+
+		try {
+			config.login(new ServletStubs.Request().proxy(), "alice",
+					"secret".toCharArray());
+			fail("An undecided login was not reported");
+		} catch (LoginThrottledException ex) {
+			assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					ex.getStatus());
+		}
+
+		assertNotNull(config.login(new ServletStubs.Request().proxy(),
+				"alice", "secret".toCharArray()));
+	}
+
+	public void testRejectedCredentialsAreRecorded() throws Exception {
+
+		LoginThrottle throttle = new LoginThrottle(60, 100, null, null);
+		PasswordLoginConfig config =
+				new PasswordLoginConfig(new Backend(null), null, throttle);
+
+		assertNull(config.login(new ServletStubs.Request().proxy(), "alice",
+				"wrong".toCharArray()));
+		assertNull(config.login(new ServletStubs.Request().proxy(), "alice",
+				"wrong".toCharArray()));
+		assertEquals(1, throttle.getRecentlyFailedCount());
+	}
+
+	/**
+	 * A logged out Subject must not be accepted as a recent login while the
+	 * backend is down.
+	 */
+	public void testLogoutForgetsRememberedAndDegradedLogins()
+			throws Exception {
+
+		ServletStubs.Context context = new ServletStubs.Context();
+		ServletStubs.Config config = new ServletStubs.Config("login", context);
+		config.initParameters.put("credentialCacheTtl", "60");
+		config.initParameters.put("circuitBreakerFailureRate", "50");
+		config.initParameters.put("degradedLoginMaxAge", "600");
+		PasswordLoginConfig.create(config.proxy(), "app").destroy();
+
+		List<CredentialCache> caches = new ArrayList<>();
+		for (Object value : context.attributes.values()) {
+			if (value instanceof CredentialCache) {
+				caches.add((CredentialCache) value);
+			}
+		}
+		assertEquals(2, caches.size());
+
+		Subject subject = new Subject(false,
+				Collections.singleton(new KerberosPrincipal("alice@EXAMPLE.COM")),
+				Collections.emptySet(), Collections.emptySet());
+		for (CredentialCache cache : caches) {
+			cache.put("alice", "secret".toCharArray(), subject);
+		}
+
+		PasswordLoginConfig.forLogout(context.proxy(), "app").logout(
+				new Subject(true, subject.getPrincipals(),
+						Collections.emptySet(), Collections.emptySet()));
+
+		for (CredentialCache cache : caches) {
+			assertEquals(0, cache.size());
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.logiclander.jaasmine.authentication.http;
+
+import javax.servlet.ServletException;
+
+import junit.framework.TestCase;
+
+public class SPNegoAcceptorConfigTest extends TestCase {
+
+	private static final String JDK_RCACHE = "sun.security.krb5.rcache";
+
+	private String jdkReplayCache;
+
+	@Override
+	protected void setUp() {
+		jdkReplayCache = System.getProperty(JDK_RCACHE);
+	}
+
+	@Override
+	protected void tearDown() {
+		if (jdkReplayCache == null) {
+			System.clearProperty(JDK_RCACHE);
+		} else {
+			System.setProperty(JDK_RCACHE, jdkReplayCache);
+		}
+	}
+
+	public void testJaasmineReplayCacheNeedsTheJdkProperty()
+			throws Exception {
+
+		System.clearProperty(JDK_RCACHE);
+		try {
+			SPNegoAcceptorConfig.create(config("600", null).proxy());
+			fail("Created a replay cache without " + JDK_RCACHE);
+		} catch (ServletException ex) {
+			assertNull(System.getProperty(JDK_RCACHE));
+		}
+	}
+
+	public void testJaasmineReplayCacheWithTheJdkCacheOff()
+			throws Exception {
+
+		System.setProperty(JDK_RCACHE, "none");
+		SPNegoAcceptorConfig acceptor =
+				SPNegoAcceptorConfig.create(config("600", null).proxy());
+		try {
+			assertNotNull(acceptor.getSPNegoServices(
+					new ServletStubs.Request().proxy()).getReplayCache());
+		} finally {
+			acceptor.destroy();
+		}
+	}
+
+	public void testLifetimeMustCoverTwiceTheClockSkew() throws Exception {
+
+		System.setProperty(JDK_RCACHE, "none");
+		assertInvalid(config("599", null));
+		assertInvalid(config("119", "60"));
+		SPNegoAcceptorConfig.create(config("120", "60").proxy()).destroy();
+	}
+
+	private static ServletStubs.Config config(String lifetime,
+			String clockSkew) {
+
+		ServletStubs.Config config = new ServletStubs.Config("spnego",
+				new ServletStubs.Context());
+		config.initParameters.put("replayCache", "jaasmine");
+		config.initParameters.put("replayCacheLifetime", lifetime);
+		if (clockSkew != null) {
+			config.initParameters.put("replayCacheClockSkew", clockSkew);
+		}
+		return config;
+	}
+
+	private static void assertInvalid(ServletStubs.Config config) {
+		try {
+			SPNegoAcceptorConfig.create(config.proxy());
+			fail("Accepted an invalid configuration");
+		} catch (ServletException ex) {
+			// Expected.
+		}
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2010 LogicLander
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.logiclander.jaasmine.authentication.http;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal HttpServletRequest, HttpServletResponse, FilterConfig and
+ * ServletContext stand-ins for tests, made with dynamic proxies.  Methods that are not implemented return
+ * {@code null}, {@code false} or zero.
+ */
+final class ServletStubs {
+
+	private ServletStubs() {
+		// Static methods only.
+	}
+
+	/**
+	 * The state behind a stub HttpServletRequest.
+	 */
+	static final class Request implements InvocationHandler {
+
+		final Map<String, String> headers = new HashMap<>();
+
+		final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+		/** The asynchronous context, or {@code null} if not supported. */
+		Async async;
+
+		volatile DispatcherType dispatcherType = DispatcherType.REQUEST;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+
+			switch (method.getName()) {
+			case "isAsyncSupported":
+				return async != null;
+			case "isAsyncStarted":
+				return async != null && async.started;
+			case "startAsync":
+				async.started = true;
+				return async.proxy();
+			case "getHeader":
+				return headers.get(args[0]);
+			case "getDispatcherType":
+				return dispatcherType;
+			case "getAttribute":
+				return attributes.get(args[0]);
+			case "setAttribute":
+				attributes.put((String) args[0], args[1]);
+				return null;
+			case "removeAttribute":
+				attributes.remove(args[0]);
+				return null;
+			case "getContextPath":
+			case "getServletPath":
+				return "";
+			case "getRequestURI":
+				return "/";
+			case "getMethod":
+				return "GET";
+			case "getRemoteAddr":
+				return "127.0.0.1";
+			case "toString":
+				return "stub request " + headers;
+			default:
+				return defaultValue(method.getReturnType());
+			}
+		}
+
+		HttpServletRequest proxy() {
+			return (HttpServletRequest) Proxy.newProxyInstance(
+					ServletStubs.class.getClassLoader(),
+					new Class<?>[] { HttpServletRequest.class }, this);
+		}
+	}
+
+	/**
+	 * The state behind a stub HttpServletResponse.
+	 */
+	static final class Response implements InvocationHandler {
+
+		final Map<String, List<String>> headers =
+				Collections.synchronizedMap(new HashMap<String, List<String>>());
+
+		volatile int status = HttpServletResponse.SC_OK;
+
+		volatile boolean committed;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+
+			switch (method.getName()) {
+			case "setHeader":
+				headers.put((String) args[0],
+						new ArrayList<>(Collections.singletonList(
+								(String) args[1])));
+				return null;
+			case "addHeader":
+				headers.computeIfAbsent((String) args[0],
+						k -> new ArrayList<String>()).add((String) args[1]);
+				return null;
+			case "getHeader":
+				List<String> values = headers.get(args[0]);
+				return values == null ? null : values.get(0);
+			case "containsHeader":
+				return headers.containsKey(args[0]);
+			case "setStatus":
+				status = (Integer) args[0];
+				return null;
+			case "getStatus":
+				return status;
+			case "sendError":
+				status = (Integer) args[0];
+				committed = true;
+				return null;
+			case "isCommitted":
+				return committed;
+			case "toString":
+				return "stub response " + status + " " + headers;
+			default:
+				return defaultValue(method.getReturnType());
+			}
+		}
+
+		String getHeader(String name) {
+			List<String> values = headers.get(name);
+			return values == null ? null : values.get(0);
+		}
+
+		HttpServletResponse proxy() {
+			return (HttpServletResponse) Proxy.newProxyInstance(
+					ServletStubs.class.getClassLoader(),
+					new Class<?>[] { HttpServletResponse.class }, this);
+		}
+	}
+
+	/**
+	 * The state behind a stub AsyncContext.  Runnables passed to
+	 * {@code start} run on a new thread.  A {@code dispatch} runs
+	 * {@link #onDispatch} on a new thread and then completes the request, as
+	 * a container does when the dispatch returns.
+	 */
+	static final class Async implements InvocationHandler {
+
+		/** What the container does on a dispatch. */
+		interface Dispatch {
+
+			/**
+			 * @param path the path dispatched to, or {@code null} for the
+			 * request's own.
+			 */
+			void run(String path) throws Exception;
+		}
+
+		final HttpServletRequest request;
+
+		final HttpServletResponse response;
+
+		final List<AsyncListener> listeners = new CopyOnWriteArrayList<>();
+
+		final CountDownLatch completed = new CountDownLatch(1);
+
+		volatile boolean started;
+
+		volatile long timeout = 30000;
+
+		volatile int completeCount;
+
+		volatile int dispatchCount;
+
+		volatile String dispatchPath;
+
+		volatile Dispatch onDispatch;
+
+		/** The exception thrown by {@link #onDispatch}, if any. */
+		volatile Exception dispatchFailure;
+
+		Async(HttpServletRequest request, HttpServletResponse response) {
+			this.request = request;
+			this.response = response;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Exception {
+
+			switch (method.getName()) {
+			case "getRequest":
+				return request;
+			case "getResponse":
+				return response;
+			case "setTimeout":
+				timeout = (Long) args[0];
+				return null;
+			case "getTimeout":
+				return timeout;
+			case "addListener":
+				listeners.add((AsyncListener) args[0]);
+				return null;
+			case "start":
+				new Thread((Runnable) args[0]).start();
+				return null;
+			case "complete":
+				synchronized (this) {
+					completeCount++;
+				}
+				finish((AsyncContext) proxy);
+				return null;
+			case "dispatch":
+				final String path = args == null ? null :
+						(String) args[args.length - 1];
+				synchronized (this) {
+					dispatchCount++;
+				}
+				dispatchPath = path;
+				new Thread(() -> {
+					try {
+						Dispatch d = onDispatch;
+						if (d != null) {
+							d.run(path);
+						}
+					} catch (Exception ex) {
+						dispatchFailure = ex;
+					}
+					finish((AsyncContext) proxy);
+				}).start();
+				return null;
+			case "toString":
+				return "stub async context";
+			default:
+				return defaultValue(method.getReturnType());
+			}
+		}
+
+		private void finish(AsyncContext proxy) {
+
+			AsyncEvent event = new AsyncEvent(proxy);
+			for (AsyncListener listener : listeners) {
+				try {
+					listener.onComplete(event);
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+			completed.countDown();
+		}
+
+		AsyncContext proxy() {
+			return (AsyncContext) Proxy.newProxyInstance(
+					ServletStubs.class.getClassLoader(),
+					new Class<?>[] { AsyncContext.class }, this);
+		}
+	}
+
+	/**
+	 * The state behind a stub ServletContext.
+	 */
+	static final class Context implements InvocationHandler {
+
+		final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+
+			switch (method.getName()) {
+			case "getAttribute":
+				return attributes.get(args[0]);
+			case "setAttribute":
+				attributes.put((String) args[0], args[1]);
+				return null;
+			case "removeAttribute":
+				attributes.remove(args[0]);
+				return null;
+			case "toString":
+				return "stub context " + attributes.keySet();
+			default:
+				return defaultValue(method.getReturnType());
+			}
+		}
+
+		ServletContext proxy() {
+			return (ServletContext) Proxy.newProxyInstance(
+					ServletStubs.class.getClassLoader(),
+					new Class<?>[] { ServletContext.class }, this);
+		}
+	}
+
+	/**
+	 * The state behind a stub FilterConfig.
+	 */
+	static final class Config implements InvocationHandler {
+
+		final String filterName;
+
+		final Map<String, String> initParameters = new HashMap<>();
+
+		final ServletContext servletContext;
+
+		Config(String filterName, Context context) {
+			this.filterName = filterName;
+			this.servletContext = context.proxy();
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+
+			switch (method.getName()) {
+			case "getFilterName":
+				return filterName;
+			case "getInitParameter":
+				return initParameters.get(args[0]);
+			case "getInitParameterNames":
+				return Collections.enumeration(initParameters.keySet());
+			case "getServletContext":
+				return servletContext;
+			case "toString":
+				return "stub filter config " + filterName;
+			default:
+				return defaultValue(method.getReturnType());
+			}
+		}
+
+		FilterConfig proxy() {
+			return (FilterConfig) Proxy.newProxyInstance(
+					ServletStubs.class.getClassLoader(),
+					new Class<?>[] { FilterConfig.class }, this);
+		}
+	}
+
+	static Object defaultValue(Class<?> type) {
+
+		if (type == boolean.class) {
+			return false;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}